@@ -0,0 +1,92 @@
+package net.haesleinhuepf.clijx.demo;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.piv.ParticleImageVelocimetry;
+import net.haesleinhuepf.clijx.piv.ParticleImageVelocimetryTimelapse;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Compares particle image velocimetry on a 512x512x100 2D+t timelapse of random particles moving by (2, 1) pixels
+ * per frame: stacking one cross-correlation image per shift versus the fused displacement search, with and without
+ * subpixel fit.
+ */
+public class PIVBenchmark {
+    public static void main(String... args) {
+        CLIJ2 clij2 = CLIJ2.getInstance();
+
+        int width = 512;
+        int height = 512;
+        int frames = 100;
+        int maxDelta = 5;
+
+        ClearCLBuffer input = createTimelapse(clij2, width, height, frames, 2, 1);
+        ClearCLBuffer deltaX = clij2.create(new long[]{width, height, frames - 1}, NativeTypeEnum.Float);
+        ClearCLBuffer deltaY = clij2.create(deltaX);
+        ClearCLBuffer deltaZ = clij2.create(deltaX);
+        ClearCLBuffer formerDeltaX = clij2.create(deltaX);
+
+        ParticleImageVelocimetry.use_fused_displacement_search = false;
+        long time = System.currentTimeMillis();
+        ParticleImageVelocimetryTimelapse.particleImageVelocimetryTimelapse(clij2, input, formerDeltaX, deltaY, deltaZ, maxDelta, maxDelta, 0, false);
+        System.out.println("Stacked cross-correlation: " + (System.currentTimeMillis() - time) + " ms");
+
+        ParticleImageVelocimetry.use_fused_displacement_search = true;
+        time = System.currentTimeMillis();
+        ParticleImageVelocimetryTimelapse.particleImageVelocimetryTimelapse(clij2, input, deltaX, deltaY, deltaZ, maxDelta, maxDelta, 0, false);
+        System.out.println("Fused displacement search: " + (System.currentTimeMillis() - time) + " ms");
+        System.out.println("  pixels with different shift: " + countDifferentPixels(clij2, formerDeltaX, deltaX));
+        System.out.println("  mean delta x / y: " + clij2.meanOfAllPixels(deltaX) + " / " + clij2.meanOfAllPixels(deltaY));
+
+        ParticleImageVelocimetry.subpixel_fit = true;
+        time = System.currentTimeMillis();
+        ParticleImageVelocimetryTimelapse.particleImageVelocimetryTimelapse(clij2, input, deltaX, deltaY, deltaZ, maxDelta, maxDelta, 0, false);
+        System.out.println("Fused displacement search, subpixel: " + (System.currentTimeMillis() - time) + " ms");
+        System.out.println("  mean delta x / y: " + clij2.meanOfAllPixels(deltaX) + " / " + clij2.meanOfAllPixels(deltaY));
+        ParticleImageVelocimetry.subpixel_fit = false;
+
+        input.close();
+        deltaX.close();
+        deltaY.close();
+        deltaZ.close();
+        formerDeltaX.close();
+    }
+
+    private static ClearCLBuffer createTimelapse(CLIJ2 clij2, int width, int height, int frames, int shiftX, int shiftY) {
+        // particles on a background twice as large as the image, cropped at a moving position
+        int fieldWidth = width + frames * shiftX;
+        int fieldHeight = height + frames * shiftY;
+        float[] field = new float[fieldWidth * fieldHeight];
+        Random random = new Random(42);
+        for (int i = 0; i < field.length / 50; i++) {
+            field[random.nextInt(field.length)] = 100 + random.nextInt(100);
+        }
+        ClearCLBuffer fieldBuffer = clij2.create(new long[]{fieldWidth, fieldHeight}, NativeTypeEnum.Float);
+        fieldBuffer.readFrom(FloatBuffer.wrap(field), true);
+        ClearCLBuffer blurred = clij2.create(fieldBuffer);
+        clij2.gaussianBlur2D(fieldBuffer, blurred, 1.5, 1.5);
+
+        ClearCLBuffer timelapse = clij2.create(new long[]{width, height, frames}, NativeTypeEnum.Float);
+        ClearCLBuffer frame = clij2.create(new long[]{width, height}, NativeTypeEnum.Float);
+        for (int t = 0; t < frames; t++) {
+            // content moves towards positive x and y over time
+            clij2.crop2D(blurred, frame, (frames - 1 - t) * shiftX, (frames - 1 - t) * shiftY);
+            clij2.copySlice(frame, timelapse, t);
+        }
+        frame.close();
+        blurred.close();
+        fieldBuffer.close();
+        return timelapse;
+    }
+
+    private static double countDifferentPixels(CLIJ2 clij2, ClearCLBuffer image1, ClearCLBuffer image2) {
+        ClearCLBuffer different = clij2.create(image1.getDimensions(), NativeTypeEnum.UnsignedByte);
+        clij2.notEqual(image1, image2, different);
+        double count = clij2.sumOfAllPixels(different);
+        different.close();
+        return count;
+    }
+}
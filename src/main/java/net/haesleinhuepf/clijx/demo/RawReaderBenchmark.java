@@ -0,0 +1,69 @@
+package net.haesleinhuepf.clijx.demo;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.io.RawImageFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Compares reading a raw file into a heap buffer as a whole and uploading it afterwards with the memory mapped,
+ * chunked upload of RawImageFile. Pass the number of planes of 1024 x 1024 pixels (16 bit) as argument; the
+ * default results in a file of 3 GB which the heap buffer path cannot read.
+ */
+public class RawReaderBenchmark {
+    public static void main(String... args) throws IOException {
+        int width = 1024;
+        int height = 1024;
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 1536;
+        NativeTypeEnum type = NativeTypeEnum.UnsignedShort;
+
+        File file = File.createTempFile("rawreaderbenchmark", ".raw");
+        file.deleteOnExit();
+        RawImageFile rawImageFile = RawImageFile.create(file.getAbsolutePath(), width, height, depth, type);
+        System.out.println("File size: " + (file.length() / 1024 / 1024) + " MB");
+
+        CLIJ clij = CLIJ.getInstance();
+        ClearCLBuffer buffer = clij.create(new long[]{width, height, depth}, type);
+
+        int repetitions = 3;
+        for (int i = 0; i < repetitions; i++) {
+            long time = System.currentTimeMillis();
+            try {
+                readWholeFile(file.getAbsolutePath(), buffer);
+                System.out.println("Heap buffer:   " + (System.currentTimeMillis() - time) + " ms");
+            } catch (IllegalArgumentException | OutOfMemoryError e) {
+                System.out.println("Heap buffer:   failed (" + e + ")");
+            }
+
+            time = System.currentTimeMillis();
+            rawImageFile.upload(new long[]{0, 0, 0}, rawImageFile.getDimensions(), buffer);
+            System.out.println("Memory mapped: " + (System.currentTimeMillis() - time) + " ms");
+        }
+
+        // reading a z-range only
+        ClearCLBuffer slab = clij.create(new long[]{width, height, 64}, type);
+        long time = System.currentTimeMillis();
+        rawImageFile.upload(new long[]{0, 0, depth / 2}, slab.getDimensions(), slab);
+        System.out.println("Memory mapped, 64 planes: " + (System.currentTimeMillis() - time) + " ms");
+
+        slab.close();
+        buffer.close();
+    }
+
+    // the former implementation of ReadRawImageFromDisc
+    private static void readWholeFile(String filename, ClearCLBuffer buffer) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+             FileChannel channel = file.getChannel()) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate((int) channel.size());
+            channel.read(byteBuffer);
+            byteBuffer.flip();
+            buffer.readFrom(byteBuffer, true);
+        }
+    }
+}
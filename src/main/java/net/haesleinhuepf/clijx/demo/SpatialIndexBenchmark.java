@@ -0,0 +1,86 @@
+package net.haesleinhuepf.clijx.demo;
+
+import net.haesleinhuepf.clijx.utilities.KDTree;
+import net.haesleinhuepf.clijx.utilities.SparseLabelAdjacency;
+
+import java.util.Random;
+
+/**
+ * Compares n-nearest-neighbor search in a KDTree with comparing all pairs of points, as the distance matrix does,
+ * for 1k to 200k random 3D points at constant density. All-pairs search is skipped above 50k points.
+ */
+public class SpatialIndexBenchmark {
+    public static void main(String... args) {
+        int n = 6;
+        int[] numbersOfPoints = {1000, 10000, 50000, 100000, 200000};
+        Random random = new Random(42);
+
+        for (int numberOfPoints : numbersOfPoints) {
+            // on average one point in 10 x 10 x 10 pixels, like cells in a tissue
+            float size = (float) Math.cbrt(numberOfPoints * 1000.0);
+            float[] points = new float[numberOfPoints * 3];
+            for (int i = 0; i < points.length; i++) {
+                points[i] = random.nextFloat() * size;
+            }
+            System.out.println(numberOfPoints + " points (dense float distance matrix: " + ((long) numberOfPoints * numberOfPoints * 4 / 1024 / 1024) + " MB)");
+
+            long time = System.currentTimeMillis();
+            KDTree tree = new KDTree(points, 3);
+            int[] nearest = new int[n];
+            long checksum = 0;
+            for (int i = 0; i < numberOfPoints; i++) {
+                tree.nearest(i, n, nearest, null);
+                checksum += nearest[n - 1];
+            }
+            System.out.println("  k-d tree, " + n + " nearest:     " + (System.currentTimeMillis() - time) + " ms");
+
+            time = System.currentTimeMillis();
+            long[] pairs = {0};
+            for (int i = 0; i < numberOfPoints; i++) {
+                tree.withinDistance(i, 20, j -> pairs[0]++);
+            }
+            System.out.println("  k-d tree, within distance: " + (System.currentTimeMillis() - time) + " ms (" + pairs[0] + " pairs)");
+
+            time = System.currentTimeMillis();
+            SparseLabelAdjacency.fromNNearestCentroids(points, 3, n);
+            System.out.println("  sparse adjacency:          " + (System.currentTimeMillis() - time) + " ms");
+
+            if (numberOfPoints <= 50000) {
+                time = System.currentTimeMillis();
+                long bruteForceChecksum = 0;
+                for (int i = 0; i < numberOfPoints; i++) {
+                    bruteForceChecksum += bruteForceNearest(points, i, n)[n - 1];
+                }
+                System.out.println("  all pairs, " + n + " nearest:    " + (System.currentTimeMillis() - time) + " ms" + (bruteForceChecksum == checksum ? "" : " (results differ)"));
+            }
+        }
+    }
+
+    private static int[] bruteForceNearest(float[] points, int point, int n) {
+        int[] nearest = new int[n];
+        float[] distances = new float[n];
+        int count = 0;
+        for (int j = 0; j < points.length / 3; j++) {
+            if (j == point) {
+                continue;
+            }
+            float dx = points[3 * point] - points[3 * j];
+            float dy = points[3 * point + 1] - points[3 * j + 1];
+            float dz = points[3 * point + 2] - points[3 * j + 2];
+            float distance = dx * dx + dy * dy + dz * dz;
+            if (count == n && distance >= distances[n - 1]) {
+                continue;
+            }
+            int position = Math.min(count, n - 1);
+            while (position > 0 && distances[position - 1] > distance) {
+                distances[position] = distances[position - 1];
+                nearest[position] = nearest[position - 1];
+                position--;
+            }
+            distances[position] = distance;
+            nearest[position] = j;
+            count = Math.min(count + 1, n);
+        }
+        return nearest;
+    }
+}
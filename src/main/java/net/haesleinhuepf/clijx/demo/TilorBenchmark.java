@@ -0,0 +1,59 @@
+package net.haesleinhuepf.clijx.demo;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.tilor.TileGrid;
+import net.haesleinhuepf.clijx.tilor.Tilor;
+import net.haesleinhuepf.clijx.tilor.implementations.GaussianBlur3D;
+import net.haesleinhuepf.clijx.tilor.implementations.Mean3DBox;
+
+/**
+ * Compares tiles per second of the polling Tilor scheduler with the executor based scheduler.
+ */
+public class TilorBenchmark {
+    public static void main(String... args) {
+        CLIJ2 clij2 = CLIJ2.getInstance();
+
+        ImagePlus imp = NewImage.createFloatImage("random", 512, 512, 128, NewImage.FILL_RANDOM);
+        ClearCLBuffer input = clij2.push(imp);
+        ClearCLBuffer output = clij2.create(input);
+
+        int tileWidth = 128;
+        int tileHeight = 128;
+        int tileDepth = 32;
+        int margin = 4;
+        int numberOfTiles = new TileGrid(input, tileWidth, tileHeight, tileDepth, margin, margin, margin).getNumberOfTiles();
+
+        AbstractCLIJ2Plugin[] plugins = {
+                new GaussianBlur3D(),
+                new Mean3DBox()
+        };
+
+        for (AbstractCLIJ2Plugin plugin : plugins) {
+            for (boolean polling : new boolean[]{true, false}) {
+                Tilor.setUsePollingScheduler(polling);
+                plugin.setCLIJ2(clij2);
+                plugin.setArgs(new Object[]{input, output, 2, 2, 2, tileWidth, tileHeight, tileDepth, margin, margin, margin});
+
+                // warmup
+                plugin.executeCL();
+
+                int repetitions = 5;
+                long time = System.currentTimeMillis();
+                for (int i = 0; i < repetitions; i++) {
+                    plugin.executeCL();
+                }
+                double seconds = (System.currentTimeMillis() - time) / 1000.0;
+
+                System.out.println(plugin.getClass().getSimpleName() + (polling ? " polling  " : " scheduled") + ": " + (numberOfTiles * repetitions / seconds) + " tiles/s");
+            }
+        }
+        Tilor.setUsePollingScheduler(false);
+
+        clij2.release(input);
+        clij2.release(output);
+    }
+}
@@ -0,0 +1,144 @@
+package net.haesleinhuepf.clijx.framor;
+
+/**
+ * Limits how many frames are processed at the same time on one device. The first frame is processed alone and its
+ * peak memory is measured. Afterwards, as many frames are admitted as fit into the free device memory minus the given
+ * headroom. If a frame runs out of memory nevertheless, the limit is lowered and only goes up again after enough
+ * frames were processed successfully.
+ */
+class DeviceAdmission {
+    private final String deviceName;
+    private final long memoryInBytes;
+    private final long memoryInUseInBytes;
+    private final int maximumConcurrency;
+    private final double headroom;
+
+    private int limit = 1;
+    private int active = 0;
+    // 0 until the first frame was measured
+    private long memoryPerFrameInBytes = 0;
+    private boolean measuring = false;
+    private int allocationFailures = 0;
+    private int successesSinceLimitChanged = 0;
+
+    /**
+     * @param memoryInUseInBytes device memory allocated by others, e.g. by the CLIJ2 instance ImageJ works with
+     * @param maximumConcurrency how many frames may be processed at a time on the device at most, no matter how much
+     *                           memory is free
+     */
+    DeviceAdmission(String deviceName, long memoryInBytes, long memoryInUseInBytes, int maximumConcurrency, double headroom) {
+        this.deviceName = deviceName;
+        this.memoryInBytes = memoryInBytes;
+        this.memoryInUseInBytes = memoryInUseInBytes;
+        this.maximumConcurrency = Math.max(1, maximumConcurrency);
+        this.headroom = headroom;
+    }
+
+    synchronized void acquire() throws InterruptedException {
+        while (active >= limit) {
+            wait();
+        }
+        active++;
+    }
+
+    synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    /**
+     * Gives the admission back for at least the given time and waits until the device admits the frame again, e.g.
+     * after the frame ran out of memory and less frames are admitted now.
+     */
+    synchronized void backOff(long milliseconds) throws InterruptedException {
+        release();
+        try {
+            long deadline = System.currentTimeMillis() + milliseconds;
+            for (long remaining = milliseconds; remaining > 0; remaining = deadline - System.currentTimeMillis()) {
+                wait(remaining);
+            }
+            while (active >= limit) {
+                wait();
+            }
+        } finally {
+            // also if interrupted; the caller releases the admission it holds
+            active++;
+        }
+    }
+
+    /**
+     * Returns true if the calling frame is the one whose peak memory is measured. It is processed alone, as the limit
+     * stays at one frame until the measurement is reported.
+     */
+    synchronized boolean startMeasurement() {
+        if (memoryPerFrameInBytes > 0 || measuring) {
+            return false;
+        }
+        measuring = true;
+        return true;
+    }
+
+    /**
+     * The measured frame failed; the next frame is measured instead.
+     */
+    synchronized void cancelMeasurement() {
+        measuring = false;
+    }
+
+    synchronized void reportPeakMemory(long bytes) {
+        measuring = false;
+        memoryPerFrameInBytes = Math.max(1, bytes);
+        setLimit(getMemoryLimit());
+    }
+
+    /**
+     * Raises a limit lowered after an allocation failure again, once as many frames as admitted were processed
+     * successfully; twice as many after every further failure.
+     */
+    synchronized void reportSuccess() {
+        if (limit >= getMemoryLimit()) {
+            return;
+        }
+        successesSinceLimitChanged++;
+        if (successesSinceLimitChanged >= (long) limit << Math.min(Math.max(0, allocationFailures - 1), 16)) {
+            setLimit(limit + 1);
+        }
+    }
+
+    /**
+     * Called by a frame which ran out of memory while being processed together with the other active frames.
+     * Afterwards, less frames than currently active will be admitted, but at least one.
+     */
+    synchronized void reportAllocationFailure() {
+        allocationFailures++;
+        setLimit(Math.max(1, Math.min(limit, active) - 1));
+    }
+
+    /**
+     * Number of frames which fit into the free device memory minus the headroom.
+     */
+    private int getMemoryLimit() {
+        if (memoryPerFrameInBytes == 0) {
+            return 1;
+        }
+        long usable = (long) (memoryInBytes * (1.0 - headroom)) - memoryInUseInBytes;
+        return (int) Math.max(1, Math.min(maximumConcurrency, usable / memoryPerFrameInBytes));
+    }
+
+    private void setLimit(int newLimit) {
+        successesSinceLimitChanged = 0;
+        if (newLimit != limit) {
+            System.out.println("Processing " + newLimit + " frames in parallel on " + deviceName + " (" + memoryPerFrameInBytes + " bytes per frame)");
+            limit = newLimit;
+            notifyAll();
+        }
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    int getMaximumConcurrency() {
+        return maximumConcurrency;
+    }
+}
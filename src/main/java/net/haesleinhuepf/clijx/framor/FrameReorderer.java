@@ -0,0 +1,60 @@
+package net.haesleinhuepf.clijx.framor;
+
+import ij.ImagePlus;
+
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Collects frames processed in arbitrary order and hands them over to a sink in order of their index.
+ */
+class FrameReorderer {
+    private final FrameSink sink;
+    private final Semaphore framesInFlight;
+    private final HashMap<Integer, ImagePlus> pending = new HashMap<>();
+    private int nextIndex = 0;
+    private Throwable failure = null;
+
+    FrameReorderer(FrameSink sink, Semaphore framesInFlight) {
+        this.sink = sink;
+        this.framesInFlight = framesInFlight;
+    }
+
+    /**
+     * Delivers the frame and all subsequent frames which are already available to the sink. A frame which failed
+     * processing is passed as null and skipped.
+     */
+    synchronized void put(int index, ImagePlus frame) {
+        pending.put(index, frame);
+        while (pending.containsKey(nextIndex)) {
+            ImagePlus next = pending.remove(nextIndex);
+            if (next != null && failure == null) {
+                try {
+                    sink.put(nextIndex, next);
+                } catch (Throwable e) {
+                    fail(e);
+                }
+            }
+            nextIndex++;
+            framesInFlight.release();
+        }
+    }
+
+    synchronized void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    synchronized void rethrow() {
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+}
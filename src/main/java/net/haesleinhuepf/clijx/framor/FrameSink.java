@@ -0,0 +1,11 @@
+package net.haesleinhuepf.clijx.framor;
+
+import ij.ImagePlus;
+
+public interface FrameSink {
+    /**
+     * Receives processed frames in order. The frame of time point t and channel c has the index
+     * t * numberOfChannels + c.
+     */
+    void put(int index, ImagePlus frame);
+}
@@ -10,59 +10,110 @@ import net.haesleinhuepf.clij.CLIJ;
 import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
 import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clijx.framor.implementations.GaussianBlurFrameProcessor;
+import net.haesleinhuepf.clijx.gui.MemoryDisplay;
 import org.apache.commons.math3.distribution.HypergeometricDistribution;
 import org.jocl.CL;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class Framor {
     private ImagePlus input;
     private FrameProcessor frameProcessor;
-    CLIJ2[] clij2s = null;
-    int max_num_clijs_per_device = 2;
+    // one per worker; created when the device first admits the worker, as most workers may never be needed
+    PeakMemoryCLIJ2[] clij2s = null;
+    DeviceAdmission[] admissions = null;
+    int[] deviceIndices = null;
+    int prefetchSize = 2;
     public static boolean auto_contrast = true;
 
+    /**
+     * How many frames are processed in parallel on one device at most; each of them has a CLIJ instance of its own.
+     * Below this number, the free device memory decides.
+     */
+    public static int max_num_clijs_per_device = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Fraction of device memory which is kept free when deciding how many frames are processed in parallel on a
+     * device.
+     */
+    public static double memory_headroom = 0.2;
+
+    private static final int MAXIMUM_NUMBER_OF_ATTEMPTS = 4;
+    private static final long BACK_OFF_IN_MS = 100;
+    private static final long WORKER_CHECK_INTERVAL_IN_MS = 100;
+
     public static boolean multi_gpu_support = false;
 
     public Framor(ImagePlus input, FrameProcessor frameProcessor) {
         this.input = input;
         this.frameProcessor = frameProcessor;
 
+        ArrayList names = CLIJ.getAvailableDeviceNames();
+        // memory ImageJ's CLIJ2 instance holds is not available to Framor
+        CLIJ2 defaultCLIJ2 = CLIJ2.getInstance();
+        String defaultDeviceName = defaultCLIJ2.getGPUName();
+        long defaultMemoryInUse = MemoryDisplay.getUsedMemoryInBytes(defaultCLIJ2);
+
+        ArrayList<Integer> devices = new ArrayList<>();
         if (multi_gpu_support) {
-            ArrayList names = CLIJ.getAvailableDeviceNames();
-            long memoryNeed = frameProcessor.getMemoryNeedInBytes(input);
-            ArrayList<CLIJ2> clij2list = new ArrayList<>();
             for (int i = 0; i < names.size(); i++) {
-                long availableMemory = new CLIJ(i).getGPUMemoryInBytes();
-                int num_clijs_per_device = 0;
-                while (availableMemory > memoryNeed && num_clijs_per_device < max_num_clijs_per_device) {
-                    clij2list.add(new CLIJ2(new CLIJ(i)));
-                    availableMemory -= memoryNeed;
-                    num_clijs_per_device++;
-                }
+                devices.add(i);
             }
+        } else {
+            // the device ImageJ works with, but Framor's own CLIJ instances; they are cleared after allocation failures
+            devices.add(Math.max(0, names.indexOf(defaultDeviceName)));
+        }
 
-            clij2s = new CLIJ2[clij2list.size()];
-            clij2list.toArray(clij2s);
-
-            if (clij2s.length == 0) {
-                throw new IllegalArgumentException("No GPU found with enough memory (> " + memoryNeed + " bytes).");
+        long memoryNeed = frameProcessor.getMemoryNeedInBytes(input);
+        ArrayList<PeakMemoryCLIJ2> clij2list = new ArrayList<>();
+        ArrayList<DeviceAdmission> admissionList = new ArrayList<>();
+        ArrayList<Integer> deviceIndexList = new ArrayList<>();
+        for (int i : devices) {
+            CLIJ clij = new CLIJ(i);
+            long memoryInUse = clij.getGPUName().equals(defaultDeviceName) ? defaultMemoryInUse : 0;
+            long availableMemory = clij.getGPUMemoryInBytes() - memoryInUse;
+            if (multi_gpu_support && availableMemory <= memoryNeed) {
+                continue;
+            }
+            // all CLIJ2 instances on a device share one admission which limits how many of them are busy
+            DeviceAdmission admission = new DeviceAdmission(clij.getGPUName(), clij.getGPUMemoryInBytes(), memoryInUse, max_num_clijs_per_device, memory_headroom);
+            for (int j = 0; j < admission.getMaximumConcurrency(); j++) {
+                // the first frame is measured alone, hence one instance is always needed
+                clij2list.add(j == 0 ? new PeakMemoryCLIJ2(clij) : null);
+                admissionList.add(admission);
+                deviceIndexList.add(i);
             }
-            System.out.println("Available GPUs with enough memory:");
+        }
 
-        } else {
-            clij2s = new CLIJ2[1];
-            clij2s[0] = CLIJ2.getInstance();
+        clij2s = clij2list.toArray(new PeakMemoryCLIJ2[0]);
+        admissions = admissionList.toArray(new DeviceAdmission[0]);
+        deviceIndices = new int[deviceIndexList.size()];
+        for (int i = 0; i < deviceIndices.length; i++) {
+            deviceIndices[i] = deviceIndexList.get(i);
+        }
+
+        if (clij2s.length == 0) {
+            throw new IllegalArgumentException("No GPU found with enough memory (> " + memoryNeed + " bytes).");
         }
+        System.out.println("Available GPUs with enough memory:");
         for (int i = 0; i < clij2s.length; i++) {
-            System.out.println(" * " + clij2s[i].getGPUName());
+            if (clij2s[i] != null) {
+                System.out.println(" * " + clij2s[i].getGPUName());
+            }
         }
     }
 
-    private synchronized ImagePlus extractFrame(ImagePlus imp, int frame_channel) {
-        int frame = frame_channel % input.getNFrames();
-        int channel = frame_channel / input.getNFrames();
+    private synchronized ImagePlus extractFrame(ImagePlus imp, int index) {
+        int frame = index / input.getNChannels();
+        int channel = index % input.getNChannels();
 
         ImageStack stack = new ImageStack();
         imp.setC(channel + 1);
@@ -76,67 +127,197 @@ public class Framor {
         return extracted;
     }
 
+    /**
+     * Sets how many frames are extracted from the input ahead of processing. Together with the frames currently
+     * processed and the frames waiting for in-order delivery, this limits how many frames are held in memory.
+     */
+    public void setPrefetchSize(int prefetchSize) {
+        this.prefetchSize = prefetchSize;
+    }
+
     public ImagePlus getResult() {
-        int framesProcessed = 0;
-        ArrayList<ExecutorOnFrame> executors = new ArrayList<>();
-        HashMap<Integer, ImagePlus> processedFrames = new HashMap<>();
-        for (int i = 0; i < input.getNFrames() * input.getNChannels() && i < clij2s.length; i++) {
-            FrameProcessor newProcessor = frameProcessor.duplicate();
-            newProcessor.setCLIJ2(clij2s[i]);
-            ExecutorOnFrame executor = new ExecutorOnFrame(extractFrame(input, i), i, newProcessor);
-            new Thread(executor).start();
-            executors.add(executor);
-            framesProcessed++;
+        HyperStackFrameSink sink = new HyperStackFrameSink(frameProcessor.getClass().getSimpleName() + "_" + input.getTitle(), input.getNChannels(), input.getNFrames());
+        process(sink);
+        ImagePlus output = sink.getResult();
+
+        if (auto_contrast) {
+            IJ.run(output, "Enhance Contrast", "saturated=0.35");
         }
+        return output;
+    }
+
+    /**
+     * Processes all frames and channels and hands the results over to the sink in order. A producer extracts
+     * frames into a bounded queue; one worker per CLIJ2 instance takes frames from the queue and processes them once
+     * its device admits another frame.
+     */
+    public void process(FrameSink sink) {
+        int numberOfFrames = input.getNFrames() * input.getNChannels();
+
+        // frames extracted but not yet handed over to the sink
+        Semaphore framesInFlight = new Semaphore(prefetchSize + 2 * clij2s.length);
+        // workers only take frames when admitted; most of them may wait for admission
+        BlockingQueue<ExtractedFrame> queue = new ArrayBlockingQueue<>(Math.max(1, prefetchSize));
+        FrameReorderer reorderer = new FrameReorderer(sink, framesInFlight);
 
-        while(processedFrames.size() < input.getNFrames() * input.getNChannels() ) {
-            for (int i = 0; i < executors.size(); i++) {
-                ExecutorOnFrame executor = executors.get(i);
-                if (executor != null) {
-                    ImagePlus result = executor.getOutput();
-                    if (result != null) {
-                        processedFrames.put(executor.getFrame(), result);
-                        if (framesProcessed < input.getNFrames() * input.getNChannels()) {
-                            executor = new ExecutorOnFrame(extractFrame(input, framesProcessed), framesProcessed, executor.getProcessor());
-                            new Thread(executor).start();
-                            executors.set(i, executor);
-                            framesProcessed++;
-                        } else {
-                            executors.set(i, null);
+        ArrayList<ExecutorService> workers = new ArrayList<>();
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < clij2s.length; i++) {
+            final int workerIndex = i;
+            DeviceAdmission admission = admissions[i];
+            FrameProcessor processor = frameProcessor.duplicate();
+            ExecutorService worker = Executors.newSingleThreadExecutor();
+            workers.add(worker);
+            futures.add(worker.submit(() -> {
+                while (true) {
+                    // frames are only taken from the queue once the device admits them; otherwise they could wait
+                    // for a busy device while another one is idle
+                    admission.acquire();
+                    try {
+                        ExtractedFrame frame = queue.take();
+                        if (frame.index < 0) {
+                            return null;
+                        }
+                        ImagePlus result = null;
+                        try {
+                            PeakMemoryCLIJ2 clij2 = getCLIJ2(workerIndex);
+                            processor.setCLIJ2(clij2);
+                            ExecutorOnFrame executor = new ExecutorOnFrame(frame.imp, frame.index, processor);
+                            processor.setFrame(executor.getFrame());
+                            result = processAdmitted(executor, frame.imp, admission, clij2);
+                        } catch (Throwable e) {
+                            // the producer notices the failure and cancels the pipeline
+                            reorderer.fail(e);
+                            throw e;
+                        } finally {
+                            // hands the frame's permit back, also if processing failed
+                            reorderer.put(frame.index, result);
                         }
+                    } finally {
+                        admission.release();
                     }
                 }
+            }));
+        }
+
+        try {
+            for (int i = 0; i < numberOfFrames; i++) {
+                while (!framesInFlight.tryAcquire(WORKER_CHECK_INTERVAL_IN_MS, TimeUnit.MILLISECONDS)) {
+                    checkWorkers(reorderer, futures);
+                }
+                checkWorkers(reorderer, futures);
+                ExtractedFrame frame = new ExtractedFrame(i, extractFrame(input, i));
+                while (!queue.offer(frame, WORKER_CHECK_INTERVAL_IN_MS, TimeUnit.MILLISECONDS)) {
+                    checkWorkers(reorderer, futures);
+                }
+            }
+            for (int i = 0; i < clij2s.length; i++) {
+                while (!queue.offer(new ExtractedFrame(-1, null), WORKER_CHECK_INTERVAL_IN_MS, TimeUnit.MILLISECONDS)) {
+                    checkWorkers(reorderer, futures);
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            reorderer.rethrow();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // stops workers which are still busy after a failure
+            for (ExecutorService worker : workers) {
+                worker.shutdownNow();
             }
+        }
+        reorderer.rethrow();
+    }
 
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                break;
+    /**
+     * Workers only stop before all frames are processed if they failed; the failure is thrown instead of waiting for
+     * them forever.
+     */
+    private static void checkWorkers(FrameReorderer reorderer, ArrayList<Future<?>> futures) throws InterruptedException, ExecutionException {
+        reorderer.rethrow();
+        for (Future<?> future : futures) {
+            if (future.isDone()) {
+                future.get();
+                throw new IllegalStateException("A Framor worker stopped before all frames were processed.");
             }
         }
-        int nSlices = processedFrames.get(0).getNSlices();
+    }
 
-        ImageStack result = new ImageStack();
-        for (int f = 0; f < input.getNFrames(); f++) {
-            for (int z = 0; z < nSlices; z++) {
-                for (int c = 0; c < input.getNChannels(); c++) {
-                    ImagePlus frame_imp = processedFrames.get(f + c * input.getNFrames());
+    /**
+     * Workers beyond the first one per device get their CLIJ instance when the device admits them for the first time.
+     */
+    private PeakMemoryCLIJ2 getCLIJ2(int workerIndex) {
+        synchronized (Framor.class) {
+            if (clij2s[workerIndex] == null) {
+                clij2s[workerIndex] = new PeakMemoryCLIJ2(new CLIJ(deviceIndices[workerIndex]));
+            }
+            return clij2s[workerIndex];
+        }
+    }
 
-                    frame_imp.setZ(z + 1);
-                    result.addSlice(frame_imp.getProcessor());
+    /**
+     * Processes a frame the device admitted. The first frame on a device is processed alone and the peak memory it
+     * allocates is measured on the worker thread, which is the only user of its CLIJ2 instance. If the device runs out
+     * of memory, less frames are admitted and the frame is processed again after backing off, also if it was
+     * processed alone, e.g. because other applications allocated memory meanwhile.
+     */
+    private ImagePlus processAdmitted(ExecutorOnFrame executor, ImagePlus frame, DeviceAdmission admission, PeakMemoryCLIJ2 clij2) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            boolean measuring = admission.startMeasurement();
+            if (measuring) {
+                clij2.startPeakMeasurement();
+            }
+            try {
+                executor.run();
+                if (measuring) {
+                    long peak = clij2.stopPeakMeasurement();
+                    // nothing measured, e.g. if the processor allocated all memory before; the estimate has to do
+                    admission.reportPeakMemory(peak > 0 ? peak : executor.getProcessor().getMemoryNeedInBytes(frame));
+                } else {
+                    admission.reportSuccess();
+                }
+                return executor.getOutput();
+            } catch (RuntimeException e) {
+                if (measuring) {
+                    clij2.stopPeakMeasurement();
+                    admission.cancelMeasurement();
                 }
+                if (!isAllocationFailure(e) || attempt >= MAXIMUM_NUMBER_OF_ATTEMPTS) {
+                    throw e;
+                }
+                admission.reportAllocationFailure();
+                System.out.println("Out of memory while processing frame " + executor.getFrame() + " on " + clij2.getGPUName() + ", retrying with " + admission.getLimit() + " frames in parallel.");
+                // the instance is Framor's own; free what the failed attempt left behind
+                clij2.clear();
+                admission.backOff(BACK_OFF_IN_MS << (attempt - 1));
             }
         }
-        ImagePlus output = new ImagePlus(frameProcessor.getClass().getSimpleName() + "_" + input.getTitle(), result);
-        if (output.getNSlices() > 1) {
-            output = HyperStackConverter.toHyperStack(output, input.getNChannels(), output.getNSlices() / input.getNFrames() / input.getNChannels(), input.getNFrames());
+    }
+
+    private static boolean isAllocationFailure(Throwable exception) {
+        String allocationFailure = CL.stringFor_errorCode(CL.CL_MEM_OBJECT_ALLOCATION_FAILURE);
+        String outOfResources = CL.stringFor_errorCode(CL.CL_OUT_OF_RESOURCES);
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            String message = cause.getMessage();
+            if (message != null && (message.contains(allocationFailure) || message.contains(outOfResources))) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        if (auto_contrast) {
-            IJ.run(output, "Enhance Contrast", "saturated=0.35");
+    private static class ExtractedFrame {
+        final int index;
+        final ImagePlus imp;
+
+        ExtractedFrame(int index, ImagePlus imp) {
+            this.index = index;
+            this.imp = imp;
         }
-        return output;
     }
 
     public static void main(String... args) {
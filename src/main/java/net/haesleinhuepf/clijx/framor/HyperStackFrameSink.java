@@ -0,0 +1,48 @@
+package net.haesleinhuepf.clijx.framor;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.HyperStackConverter;
+
+/**
+ * Assembles processed frames to a hyperstack. Only the slices of the processed frames are kept.
+ */
+public class HyperStackFrameSink implements FrameSink {
+    private final String title;
+    private final int numberOfChannels;
+    private final int numberOfFrames;
+
+    private ImageStack stack = null;
+    private int numberOfSlices;
+
+    public HyperStackFrameSink(String title, int numberOfChannels, int numberOfFrames) {
+        this.title = title;
+        this.numberOfChannels = numberOfChannels;
+        this.numberOfFrames = numberOfFrames;
+    }
+
+    @Override
+    public void put(int index, ImagePlus frame) {
+        int t = index / numberOfChannels;
+        int c = index % numberOfChannels;
+
+        if (stack == null) {
+            numberOfSlices = frame.getNSlices();
+            stack = new ImageStack(frame.getWidth(), frame.getHeight(), numberOfChannels * numberOfSlices * numberOfFrames);
+        }
+        for (int z = 0; z < numberOfSlices; z++) {
+            stack.setPixels(frame.getStack().getPixels(z + 1), t * numberOfSlices * numberOfChannels + z * numberOfChannels + c + 1);
+        }
+    }
+
+    public ImagePlus getResult() {
+        if (stack == null) {
+            throw new IllegalStateException("No frame was delivered to " + title + ".");
+        }
+        ImagePlus output = new ImagePlus(title, stack);
+        if (output.getNSlices() > 1) {
+            output = HyperStackConverter.toHyperStack(output, numberOfChannels, numberOfSlices, numberOfFrames);
+        }
+        return output;
+    }
+}
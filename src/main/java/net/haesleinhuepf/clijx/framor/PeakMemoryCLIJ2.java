@@ -0,0 +1,63 @@
+package net.haesleinhuepf.clijx.framor;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.gui.MemoryDisplay;
+
+/**
+ * CLIJ2 instance of a Framor worker which can measure the peak memory a frame allocates. While measuring, the
+ * allocated memory is summed up after every allocation on the worker's own thread, which is the only user of this
+ * instance; the peak is reached right after one of them.
+ */
+class PeakMemoryCLIJ2 extends CLIJ2 {
+    private boolean measuring = false;
+    private long baselineInBytes = 0;
+    private long peakInBytes = 0;
+
+    PeakMemoryCLIJ2(CLIJ clij) {
+        super(clij);
+    }
+
+    void startPeakMeasurement() {
+        baselineInBytes = MemoryDisplay.getUsedMemoryInBytes(this);
+        peakInBytes = baselineInBytes;
+        measuring = true;
+    }
+
+    /**
+     * Returns the maximum memory allocated above what was allocated when the measurement started.
+     */
+    long stopPeakMeasurement() {
+        measuring = false;
+        return peakInBytes - baselineInBytes;
+    }
+
+    private void sample() {
+        if (measuring) {
+            peakInBytes = Math.max(peakInBytes, MemoryDisplay.getUsedMemoryInBytes(this));
+        }
+    }
+
+    @Override
+    public ClearCLBuffer create(long[] dimensions, NativeTypeEnum typeEnum) {
+        ClearCLBuffer buffer = super.create(dimensions, typeEnum);
+        sample();
+        return buffer;
+    }
+
+    @Override
+    public ClearCLBuffer create(ClearCLBuffer template) {
+        ClearCLBuffer buffer = super.create(template);
+        sample();
+        return buffer;
+    }
+
+    @Override
+    public ClearCLBuffer push(Object object) {
+        ClearCLBuffer buffer = super.push(object);
+        sample();
+        return buffer;
+    }
+}
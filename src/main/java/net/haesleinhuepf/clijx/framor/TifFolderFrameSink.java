@@ -0,0 +1,27 @@
+package net.haesleinhuepf.clijx.framor;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.File;
+
+/**
+ * Saves every processed frame as tif file in a folder, e.g. for processing timelapses which don't fit into memory.
+ */
+public class TifFolderFrameSink implements FrameSink {
+    private final String folder;
+    private final int numberOfChannels;
+
+    public TifFolderFrameSink(String folder, int numberOfChannels) {
+        this.folder = folder;
+        this.numberOfChannels = numberOfChannels;
+        new File(folder).mkdirs();
+    }
+
+    @Override
+    public void put(int index, ImagePlus frame) {
+        int t = index / numberOfChannels;
+        int c = index % numberOfChannels;
+        IJ.saveAsTiff(frame, folder + File.separator + String.format("t%04d_c%02d.tif", t, c));
+    }
+}
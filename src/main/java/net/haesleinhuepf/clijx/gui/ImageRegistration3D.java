@@ -10,6 +10,7 @@ import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.utilities.ImagePyramidCache;
 import net.imglib2.realtransform.AffineTransform3D;
 
 import javax.swing.*;
@@ -65,7 +66,6 @@ public class ImageRegistration3D implements PlugIn {
         float zoom = (float) gdp.getNextNumber();
 
         CLIJx clijx = CLIJx.getInstance();
-        clijx.clear();
 
         //# Noise / background removal
         boolean formerDoNoiseAndBackgroundRemoval = true;
@@ -170,237 +170,257 @@ public class ImageRegistration3D implements PlugIn {
 
         AffineTransform3D at = new AffineTransform3D();
 
-        //# loop until user closed the dialog
-        boolean stillValid = false;
-        while ((! gdp.wasCanceled()) && (!gdp.wasOKed())) {
-
-            // # reserve memory for input and output images
-            if (input1 == null) {
-                input1 = clijx.create(new long[]{
-                        (long) (imp1.getWidth() * scale1X),
-                        (long) (imp1.getHeight() * scale1Y),
-                        (long) (imp1.getNSlices() * scale1Z)}, clijx.Float);
-
-                input2 = clijx.create(new long[]{
-                        (long) (imp2.getWidth() * scale2X),
-                        (long) (imp2.getHeight() * scale2Y),
-                        (long) (imp2.getNSlices() * scale2Z)}, clijx.Float);
-
-                temp1 = clijx.create(input1);
-                temp2 = clijx.create(input2);
-                dog1 = clijx.create(input1);
-                dog2 = clijx.create(input2);
-                transformed = clijx.create(input1);
-                //transformedX = clijx.create(new long[]{input1.getHeight(), input1.getDepth(), input1.getWidth()}, input1.getNativeType());
-                //transformedY = clijx.create(new long[]{input1.getWidth(), input1.getDepth(), input1.getHeight()}, input1.getNativeType());
-
-
-                maxXProjection1 = clijx.create(new long[]{transformed.getDepth(), transformed.getHeight()}, input1.getNativeType());
-                maxXProjection2 = clijx.create(new long[]{transformed.getDepth(), transformed.getHeight()}, input2.getNativeType());
-                maxYProjection1 = clijx.create(new long[]{transformed.getWidth(), transformed.getDepth()}, input1.getNativeType());
-                maxYProjection2 = clijx.create(new long[]{transformed.getWidth(), transformed.getDepth()}, input2.getNativeType());
-                maxZProjection1 = clijx.create(new long[]{transformed.getWidth(), transformed.getHeight()}, input1.getNativeType());
-                maxZProjection2 = clijx.create(new long[]{transformed.getWidth(), transformed.getHeight()}, input2.getNativeType());
-            }
-            //# read current values from dialog
-            boolean doNoiseAndBackgroundRemoval = doNoiseAndBackgroundRemovalCheckbox.getState();
-            float sigma1 = (float) (0.1 * sigma1Slider.getValue());
-            float sigma2 = (float) (0.1 * sigma2Slider.getValue());
-
-            double viewTranslationX = viewTranslationXSlider.getValue();
-            double viewTranslationY = viewTranslationYSlider.getValue();
-            double viewTranslationZ = viewTranslationZSlider.getValue();
-
-            double viewRotationX = viewRotationXSlider.getValue() * Math.PI / 180.0;
-            double viewRotationY = viewRotationYSlider.getValue() * Math.PI / 180.0;
-            double viewRotationZ = viewRotationZSlider.getValue() * Math.PI / 180.0;
-
-            double registrationTranslationX = registrationTranslationXSlider.getValue();
-            double registrationTranslationY = registrationTranslationYSlider.getValue();
-            double registrationTranslationZ = registrationTranslationZSlider.getValue();
-
-            double registrationRotationX = registrationRotationXSlider.getValue() * Math.PI / 180.0;
-            double registrationRotationY = registrationRotationYSlider.getValue() * Math.PI / 180.0;
-            double registrationRotationZ = registrationRotationZSlider.getValue() * Math.PI / 180.0;
-
-
-            //# check if something changed
-            if (
-                    formerDoNoiseAndBackgroundRemoval == doNoiseAndBackgroundRemoval &&
-                            sigma1 == formerSigma1 &&
-                            sigma2 == formerSigma2 &&
-                            viewTranslationX == formerViewTranslationX &&
-                            viewTranslationY == formerViewTranslationY &&
-                            viewTranslationZ == formerViewTranslationZ &&
-                            viewRotationX == formerViewRotationX &&
-                            viewRotationY == formerViewRotationY &&
-                            viewRotationZ == formerViewRotationZ &&
-                            registrationTranslationX == formerRegistrationTranslationX &&
-                            registrationTranslationY == formerRegistrationTranslationY &&
-                            registrationTranslationZ == formerRegistrationTranslationZ &&
-                            registrationRotationX == formerRegistrationRotationX &&
-                            registrationRotationY == formerRegistrationRotationY &&
-                            registrationRotationZ == formerRegistrationRotationZ &&
-                            formerT1 == imp1.getFrame() &&
-                            formerT2 == imp2.getFrame()
-            ) {
-                //# sleep some msec
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        ImagePyramidCache.Pyramid pyramid1 = null;
+        ImagePyramidCache.Pyramid pyramid2 = null;
+        try {
+            //# loop until user closed the dialog
+            boolean stillValid = false;
+            while ((! gdp.wasCanceled()) && (!gdp.wasOKed())) {
+
+                // # reserve memory for input and output images
+                if (input1 == null) {
+                    input1 = clijx.create(new long[]{
+                            (long) (imp1.getWidth() * scale1X),
+                            (long) (imp1.getHeight() * scale1Y),
+                            (long) (imp1.getNSlices() * scale1Z)}, clijx.Float);
+
+                    input2 = clijx.create(new long[]{
+                            (long) (imp2.getWidth() * scale2X),
+                            (long) (imp2.getHeight() * scale2Y),
+                            (long) (imp2.getNSlices() * scale2Z)}, clijx.Float);
+
+                    temp1 = clijx.create(input1);
+                    temp2 = clijx.create(input2);
+                    dog1 = clijx.create(input1);
+                    dog2 = clijx.create(input2);
+                    transformed = clijx.create(input1);
+                    //transformedX = clijx.create(new long[]{input1.getHeight(), input1.getDepth(), input1.getWidth()}, input1.getNativeType());
+                    //transformedY = clijx.create(new long[]{input1.getWidth(), input1.getDepth(), input1.getHeight()}, input1.getNativeType());
+
+
+                    maxXProjection1 = clijx.create(new long[]{transformed.getDepth(), transformed.getHeight()}, input1.getNativeType());
+                    maxXProjection2 = clijx.create(new long[]{transformed.getDepth(), transformed.getHeight()}, input2.getNativeType());
+                    maxYProjection1 = clijx.create(new long[]{transformed.getWidth(), transformed.getDepth()}, input1.getNativeType());
+                    maxYProjection2 = clijx.create(new long[]{transformed.getWidth(), transformed.getDepth()}, input2.getNativeType());
+                    maxZProjection1 = clijx.create(new long[]{transformed.getWidth(), transformed.getHeight()}, input1.getNativeType());
+                    maxZProjection2 = clijx.create(new long[]{transformed.getWidth(), transformed.getHeight()}, input2.getNativeType());
+                }
+                //# read current values from dialog
+                boolean doNoiseAndBackgroundRemoval = doNoiseAndBackgroundRemovalCheckbox.getState();
+                float sigma1 = (float) (0.1 * sigma1Slider.getValue());
+                float sigma2 = (float) (0.1 * sigma2Slider.getValue());
+
+                double viewTranslationX = viewTranslationXSlider.getValue();
+                double viewTranslationY = viewTranslationYSlider.getValue();
+                double viewTranslationZ = viewTranslationZSlider.getValue();
+
+                double viewRotationX = viewRotationXSlider.getValue() * Math.PI / 180.0;
+                double viewRotationY = viewRotationYSlider.getValue() * Math.PI / 180.0;
+                double viewRotationZ = viewRotationZSlider.getValue() * Math.PI / 180.0;
+
+                double registrationTranslationX = registrationTranslationXSlider.getValue();
+                double registrationTranslationY = registrationTranslationYSlider.getValue();
+                double registrationTranslationZ = registrationTranslationZSlider.getValue();
+
+                double registrationRotationX = registrationRotationXSlider.getValue() * Math.PI / 180.0;
+                double registrationRotationY = registrationRotationYSlider.getValue() * Math.PI / 180.0;
+                double registrationRotationZ = registrationRotationZSlider.getValue() * Math.PI / 180.0;
+
+
+                //# check if something changed
+                if (
+                        formerDoNoiseAndBackgroundRemoval == doNoiseAndBackgroundRemoval &&
+                                sigma1 == formerSigma1 &&
+                                sigma2 == formerSigma2 &&
+                                viewTranslationX == formerViewTranslationX &&
+                                viewTranslationY == formerViewTranslationY &&
+                                viewTranslationZ == formerViewTranslationZ &&
+                                viewRotationX == formerViewRotationX &&
+                                viewRotationY == formerViewRotationY &&
+                                viewRotationZ == formerViewRotationZ &&
+                                registrationTranslationX == formerRegistrationTranslationX &&
+                                registrationTranslationY == formerRegistrationTranslationY &&
+                                registrationTranslationZ == formerRegistrationTranslationZ &&
+                                registrationRotationX == formerRegistrationRotationX &&
+                                registrationRotationY == formerRegistrationRotationY &&
+                                registrationRotationZ == formerRegistrationRotationZ &&
+                                formerT1 == imp1.getFrame() &&
+                                formerT2 == imp2.getFrame() &&
+                                pyramid1 != null && !pyramid1.isOutdated() &&
+                                pyramid2 != null && !pyramid2.isOutdated()
+                ) {
+                    //# sleep some msec
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    continue;
                 }
-                continue;
-            }
 
-            //# measure start time for benchmarking
-            long timeStamp = System.currentTimeMillis();
+                //# measure start time for benchmarking
+                long timeStamp = System.currentTimeMillis();
 
-            if (formerT1 != imp1.getFrame()) {
-                formerT1 = imp1.getFrame();
-                //#push image to GPU
-                ClearCLBuffer pushed = clijx.pushCurrentZStack(imp1);
-                //#scale it initially;
-                // depends on zoom factor and voxel size
-                AffineTransform3D scaleTransform = new AffineTransform3D();
-                scaleTransform.scale(scale1X, scale1Y, scale1Z);
-                clijx.affineTransform3D(pushed, input1, scaleTransform);
-                pushed.close();
-                stillValid = false;
-            }
+                if (formerT1 != imp1.getFrame() || pyramid1 == null || pyramid1.isOutdated()) {
+                    formerT1 = imp1.getFrame();
+                    //#push image to GPU, unless another tool did before; kept to notice changes of the image
+                    if (pyramid1 != null) {
+                        pyramid1.release();
+                    }
+                    pyramid1 = ImagePyramidCache.acquire(clijx, imp1);
+                    //#scale it initially;
+                    // depends on zoom factor and voxel size
+                    AffineTransform3D scaleTransform = new AffineTransform3D();
+                    scaleTransform.scale(scale1X, scale1Y, scale1Z);
+                    clijx.affineTransform3D(pyramid1.getFullResolution(), input1, scaleTransform);
+                    stillValid = false;
+                }
 
-            if (formerT2 != imp2.getFrame()) {
-                formerT2 = imp2.getFrame();
-                //#push image to GPU
-                ClearCLBuffer pushed = clijx.pushCurrentZStack(imp2);
-                //#scale it initially;
-                //depends on zoom factor and voxel size
-                AffineTransform3D scaleTransform = new AffineTransform3D();
-                scaleTransform.scale(scale2X, scale2Y, scale2Z);
-                clijx.affineTransform3D(pushed, input2, scaleTransform);
-                pushed.close();
-                stillValid = false;
-            }
+                if (formerT2 != imp2.getFrame() || pyramid2 == null || pyramid2.isOutdated()) {
+                    formerT2 = imp2.getFrame();
+                    //#push image to GPU, unless another tool did before; kept to notice changes of the image
+                    if (pyramid2 != null) {
+                        pyramid2.release();
+                    }
+                    pyramid2 = ImagePyramidCache.acquire(clijx, imp2);
+                    //#scale it initially;
+                    //depends on zoom factor and voxel size
+                    AffineTransform3D scaleTransform = new AffineTransform3D();
+                    scaleTransform.scale(scale2X, scale2Y, scale2Z);
+                    clijx.affineTransform3D(pyramid2.getFullResolution(), input2, scaleTransform);
+                    stillValid = false;
+                }
 
-            //# Noise/background removal
-            if (formerDoNoiseAndBackgroundRemoval != doNoiseAndBackgroundRemoval ||
-                    formerSigma1 != sigma1 ||
-                    formerSigma2 != sigma2) {
-                formerDoNoiseAndBackgroundRemoval = doNoiseAndBackgroundRemoval;
-                formerSigma1 = sigma1;
-                formerSigma2 = sigma2;
-                stillValid = false;
-            }
+                //# Noise/background removal
+                if (formerDoNoiseAndBackgroundRemoval != doNoiseAndBackgroundRemoval ||
+                        formerSigma1 != sigma1 ||
+                        formerSigma2 != sigma2) {
+                    formerDoNoiseAndBackgroundRemoval = doNoiseAndBackgroundRemoval;
+                    formerSigma1 = sigma1;
+                    formerSigma2 = sigma2;
+                    stillValid = false;
+                }
 
-            if (!stillValid) {
-                if (doNoiseAndBackgroundRemoval) {
-                    clijx.blur(input1, temp1, sigma1, sigma1);
-                    clijx.blur(input1, temp2, sigma2, sigma2);
-                    clijx.subtractImages(temp1, temp2, dog1);
-                    clijx.blur(input2, temp1, sigma1, sigma1);
-                    clijx.blur(input2, temp2, sigma2, sigma2);
-                    clijx.subtractImages(temp1, temp2, dog2);
-                } else {
-                    clijx.copy(input1, dog1);
-                    clijx.copy(input2, dog2);
+                if (!stillValid) {
+                    if (doNoiseAndBackgroundRemoval) {
+                        clijx.blur(input1, temp1, sigma1, sigma1);
+                        clijx.blur(input1, temp2, sigma2, sigma2);
+                        clijx.subtractImages(temp1, temp2, dog1);
+                        clijx.blur(input2, temp1, sigma1, sigma1);
+                        clijx.blur(input2, temp2, sigma2, sigma2);
+                        clijx.subtractImages(temp1, temp2, dog2);
+                    } else {
+                        clijx.copy(input1, dog1);
+                        clijx.copy(input2, dog2);
+                    }
                 }
-            }
 
-            //# Rigid transform
-            if (!(viewTranslationX == formerViewTranslationX &&
-                    viewTranslationY == formerViewTranslationY &&
-                    viewTranslationZ == formerViewTranslationZ &&
-                    viewRotationX == formerViewRotationX &&
-                    viewRotationY == formerViewRotationY &&
-                    viewRotationZ == formerViewRotationZ &&
-                    registrationTranslationX == formerRegistrationTranslationX &&
-                    registrationTranslationY == formerRegistrationTranslationY &&
-                    registrationTranslationZ == formerRegistrationTranslationZ &&
-                    registrationRotationX == formerRegistrationRotationX &&
-                    registrationRotationY == formerRegistrationRotationY &&
-                    registrationRotationZ == formerRegistrationRotationZ)) {
-                stillValid = false;
-            }
+                //# Rigid transform
+                if (!(viewTranslationX == formerViewTranslationX &&
+                        viewTranslationY == formerViewTranslationY &&
+                        viewTranslationZ == formerViewTranslationZ &&
+                        viewRotationX == formerViewRotationX &&
+                        viewRotationY == formerViewRotationY &&
+                        viewRotationZ == formerViewRotationZ &&
+                        registrationTranslationX == formerRegistrationTranslationX &&
+                        registrationTranslationY == formerRegistrationTranslationY &&
+                        registrationTranslationZ == formerRegistrationTranslationZ &&
+                        registrationRotationX == formerRegistrationRotationX &&
+                        registrationRotationY == formerRegistrationRotationY &&
+                        registrationRotationZ == formerRegistrationRotationZ)) {
+                    stillValid = false;
+                }
 
-            formerViewTranslationX = viewTranslationX;
-            formerViewTranslationY = viewTranslationY;
-            formerViewTranslationZ = viewTranslationZ;
-            formerViewRotationX = viewRotationX;
-            formerViewRotationY = viewRotationY;
-            formerViewRotationZ = viewRotationZ;
-            formerRegistrationTranslationX = registrationTranslationX;
-            formerRegistrationTranslationY = registrationTranslationY;
-            formerRegistrationTranslationZ = registrationTranslationZ;
-            formerRegistrationRotationX = registrationRotationX;
-            formerRegistrationRotationY = registrationRotationY;
-            formerRegistrationRotationZ = registrationRotationZ;
-
-            at = new AffineTransform3D();
-            at.translate(-transformed.getWidth() / 2, -transformed.getHeight() / 2, -transformed.getDepth() / 2);
-            at.translate(viewTranslationX, viewTranslationY, viewTranslationZ);
-            at.rotate(0, viewRotationX);
-            at.rotate(1, viewRotationY);
-            at.rotate(2, viewRotationZ);
-            at.translate(transformed.getWidth() / 2, transformed.getHeight() / 2, transformed.getDepth() / 2);
-
-            //# Execute operation on GPU
-            clijx.affineTransform3D(dog1, transformed, at);
-
-            //# Maximum Intensity Projection
-            clijx.maximumXProjection(transformed, maxXProjection1);
-            clijx.maximumYProjection(transformed, maxYProjection1);
-            clijx.maximumZProjection(transformed, maxZProjection1);
-
-
-            at = new AffineTransform3D();
-            at.translate(-transformed.getWidth() / 2, -transformed.getHeight() / 2, -transformed.getDepth() / 2);
-            at.translate(viewTranslationX, viewTranslationY, viewTranslationZ);
-            at.rotate(0, viewRotationX);
-            at.rotate(1, viewRotationY);
-            at.rotate(2, viewRotationZ);
-            at.translate(registrationTranslationX, registrationTranslationY, registrationTranslationZ);
-            at.rotate(0, registrationRotationX);
-            at.rotate(1, registrationRotationY);
-            at.rotate(2, registrationRotationZ);
-            at.translate(transformed.getWidth() / 2, transformed.getHeight() / 2, transformed.getDepth() / 2);
-
-            //# Execute operation on GPU
-            clijx.affineTransform3D(dog2, transformed, at);
-
-            //# Maximum Intensity Projection
-            clijx.maximumXProjection(transformed, maxXProjection2);
-            clijx.maximumYProjection(transformed, maxYProjection2);
-            clijx.maximumZProjection(transformed, maxZProjection2);
-
-            //# Result visualisation
-            clijx.showRGB(maxXProjection1, maxXProjection2, maxXProjection2, WINDOW_YZ_TITLE);
-            clijx.showRGB(maxYProjection1, maxYProjection2, maxYProjection2, WINDOW_XZ_TITLE);
-            clijx.showRGB(maxZProjection1, maxZProjection2, maxZProjection2, WINDOW_XY_TITLE);
-
-            if (!interactionInitialized) {
-                impX = WindowManager.getImage(WINDOW_YZ_TITLE);
-                impY = WindowManager.getImage(WINDOW_XZ_TITLE);
-                impZ = WindowManager.getImage(WINDOW_XY_TITLE);
-
-                impX.getWindow().setLocation(impZ.getWindow().getX() + impZ.getWindow().getWidth(), impZ.getWindow().getY());
-                impY.getWindow().setLocation(impZ.getWindow().getX(), impZ.getWindow().getY() + impZ.getWindow().getHeight());
-
-                initInteraction();
-
-                interactionInitialized = true;
-            }
+                formerViewTranslationX = viewTranslationX;
+                formerViewTranslationY = viewTranslationY;
+                formerViewTranslationZ = viewTranslationZ;
+                formerViewRotationX = viewRotationX;
+                formerViewRotationY = viewRotationY;
+                formerViewRotationZ = viewRotationZ;
+                formerRegistrationTranslationX = registrationTranslationX;
+                formerRegistrationTranslationY = registrationTranslationY;
+                formerRegistrationTranslationZ = registrationTranslationZ;
+                formerRegistrationRotationX = registrationRotationX;
+                formerRegistrationRotationY = registrationRotationY;
+                formerRegistrationRotationZ = registrationRotationZ;
+
+                at = new AffineTransform3D();
+                at.translate(-transformed.getWidth() / 2, -transformed.getHeight() / 2, -transformed.getDepth() / 2);
+                at.translate(viewTranslationX, viewTranslationY, viewTranslationZ);
+                at.rotate(0, viewRotationX);
+                at.rotate(1, viewRotationY);
+                at.rotate(2, viewRotationZ);
+                at.translate(transformed.getWidth() / 2, transformed.getHeight() / 2, transformed.getDepth() / 2);
+
+                //# Execute operation on GPU
+                clijx.affineTransform3D(dog1, transformed, at);
+
+                //# Maximum Intensity Projection
+                clijx.maximumXProjection(transformed, maxXProjection1);
+                clijx.maximumYProjection(transformed, maxYProjection1);
+                clijx.maximumZProjection(transformed, maxZProjection1);
+
+
+                at = new AffineTransform3D();
+                at.translate(-transformed.getWidth() / 2, -transformed.getHeight() / 2, -transformed.getDepth() / 2);
+                at.translate(viewTranslationX, viewTranslationY, viewTranslationZ);
+                at.rotate(0, viewRotationX);
+                at.rotate(1, viewRotationY);
+                at.rotate(2, viewRotationZ);
+                at.translate(registrationTranslationX, registrationTranslationY, registrationTranslationZ);
+                at.rotate(0, registrationRotationX);
+                at.rotate(1, registrationRotationY);
+                at.rotate(2, registrationRotationZ);
+                at.translate(transformed.getWidth() / 2, transformed.getHeight() / 2, transformed.getDepth() / 2);
+
+                //# Execute operation on GPU
+                clijx.affineTransform3D(dog2, transformed, at);
+
+                //# Maximum Intensity Projection
+                clijx.maximumXProjection(transformed, maxXProjection2);
+                clijx.maximumYProjection(transformed, maxYProjection2);
+                clijx.maximumZProjection(transformed, maxZProjection2);
+
+                //# Result visualisation
+                clijx.showRGB(maxXProjection1, maxXProjection2, maxXProjection2, WINDOW_YZ_TITLE);
+                clijx.showRGB(maxYProjection1, maxYProjection2, maxYProjection2, WINDOW_XZ_TITLE);
+                clijx.showRGB(maxZProjection1, maxZProjection2, maxZProjection2, WINDOW_XY_TITLE);
+
+                if (!interactionInitialized) {
+                    impX = WindowManager.getImage(WINDOW_YZ_TITLE);
+                    impY = WindowManager.getImage(WINDOW_XZ_TITLE);
+                    impZ = WindowManager.getImage(WINDOW_XY_TITLE);
+
+                    impX.getWindow().setLocation(impZ.getWindow().getX() + impZ.getWindow().getWidth(), impZ.getWindow().getY());
+                    impY.getWindow().setLocation(impZ.getWindow().getX(), impZ.getWindow().getY() + impZ.getWindow().getHeight());
+
+                    initInteraction();
+
+                    interactionInitialized = true;
+                }
 
-            formerT1 = imp1.getFrame();
-            formerT2 = imp2.getFrame();
-            System.out.println("Time: " + (System.currentTimeMillis() - timeStamp) + " ms");
+                formerT1 = imp1.getFrame();
+                formerT2 = imp2.getFrame();
+                System.out.println("Time: " + (System.currentTimeMillis() - timeStamp) + " ms");
 
-            stillValid = true;
-            //System.out.println(clijx.reportMemory());
+                stillValid = true;
+                //System.out.println(clijx.reportMemory());
+            }
+        } finally {
+            //# clean up; other tools may still use the GPU
+            for (ClearCLBuffer buffer : new ClearCLBuffer[]{input1, input2, temp1, temp2, dog1, dog2, transformed, maxXProjection1, maxXProjection2, maxYProjection1, maxYProjection2, maxZProjection1, maxZProjection2}) {
+                if (buffer != null) {
+                    clijx.release(buffer);
+                }
+            }
+            if (pyramid1 != null) {
+                pyramid1.release();
+            }
+            if (pyramid2 != null) {
+                pyramid2.release();
+            }
         }
 
-        //# clean up
-        clijx.clear();
-
         if (gdp.wasOKed()) {
             System.out.println("Translation X: " + registrationTranslationXSlider.getValue());
             System.out.println("Translation Y: " + registrationTranslationYSlider.getValue());
@@ -10,6 +10,7 @@ import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.utilities.ImagePyramidCache;
 import net.imglib2.realtransform.AffineTransform3D;
 
 
@@ -27,9 +28,16 @@ import java.awt.event.MouseEvent;
 public class InteractiveMaximumZProjection implements PlugInFilter, ImageListener {
 
     CLIJx clijx;
+    ImagePyramidCache.Pyramid pyramid;
     ClearCLBuffer myBuffer;
     ClearCLBuffer transformed;
     ClearCLBuffer myMaxProjection;
+    boolean transformedIsCurrent = false;
+
+    // while dragging, a coarse level of detail is transformed and projected
+    int previewLevel = 0;
+    ClearCLBuffer transformedPreview;
+    ClearCLBuffer previewProjection;
     int old_max_z = -1;
     double old_angleX = -1;
     double old_angleY = -1;
@@ -79,7 +87,8 @@ public class InteractiveMaximumZProjection implements PlugInFilter, ImageListene
 
         clijx = CLIJx.getInstance();
         my_source = imp;
-        myBuffer = clijx.push(imp);
+        pyramid = ImagePyramidCache.acquire(clijx, imp);
+        myBuffer = pyramid.getFullResolution();
         //transformed = clijx.create(new long[]{myBuffer.getWidth(), myBuffer.getHeight(), (long)(myBuffer.getDepth() * 1.5)}, myBuffer.getNativeType());
         transformed = clijx.create(new long[]{
                 (long) (myBuffer.getWidth() * scale1X),
@@ -93,31 +102,34 @@ public class InteractiveMaximumZProjection implements PlugInFilter, ImageListene
     private ImagePlus my_display = null;
     private ImagePlus my_source = null;
     private void refresh() {
+        refresh(false);
+    }
+
+    private void refresh(boolean preview) {
         synchronized (this) {
+            if (pyramid.isOutdated()) {
+                pyramid.release();
+                pyramid = ImagePyramidCache.acquire(clijx, my_source);
+                myBuffer = pyramid.getFullResolution();
+                transformedIsCurrent = false;
+            }
             int min_z = 0;
             int max_z = my_source.getZ() - 1;
-            if (old_max_z != max_z || old_angleX != angleX || old_angleY != angleY) {
+            boolean anglesChanged = old_angleX != angleX || old_angleY != angleY;
+            if (old_max_z != max_z || anglesChanged || (!transformedIsCurrent && !preview)) {
                 String window_title = my_source.getTitle() + " Interactive Maximum Z projection";
 
-                if (old_angleX != angleX || old_angleY != angleY) {
-                    AffineTransform3D at = new AffineTransform3D();
-                    at.scale(scale1X, scale1Y, scale1Z);
-                    at.translate(-transformed.getWidth() / 2, -transformed.getHeight() / 2, 0);
-                    at.rotate(0, angleX / 180.0 * Math.PI);
-                    at.rotate(1, angleY / 180.0 * Math.PI);
-                    at.translate(transformed.getWidth() / 2, transformed.getHeight() / 2, 0);
-
-                    //# Execute operation on GPU
-                    clijx.affineTransform3D(myBuffer, transformed, at);
-
-                }
-
-                if (projection.compareTo("Max") == 0) {
-                    clijx.maximumZProjectionBounded(transformed, myMaxProjection, min_z, max_z);
-                } else if (projection.compareTo("Min") == 0) {
-                    clijx.minimumZProjectionBounded(transformed, myMaxProjection, min_z, max_z);
-                } else if (projection.compareTo("Mean") == 0) {
-                    clijx.meanZProjectionBounded(transformed, myMaxProjection, min_z, max_z);
+                int level = preview ? pyramid.getPreviewLevel(ImagePyramidCache.preview_maximum_voxels) : 0;
+                if (level > 0) {
+                    refreshPreview(level, min_z, max_z);
+                    transformedIsCurrent = false;
+                } else {
+                    if (anglesChanged || !transformedIsCurrent) {
+                        //# Execute operation on GPU
+                        clijx.affineTransform3D(myBuffer, transformed, transform());
+                        transformedIsCurrent = true;
+                    }
+                    project(transformed, myMaxProjection, min_z, max_z);
                 }
                 clijx.showGrey(myMaxProjection, window_title);
 
@@ -136,7 +148,7 @@ public class InteractiveMaximumZProjection implements PlugInFilter, ImageListene
                             angleY = angleStartY - deltaX / 5;
                             angleX = angleStartX + deltaY / 5;
 
-                            refresh();
+                            refresh(true);
                             System.out.println("Refreshing...");
                         }
                     });
@@ -148,6 +160,11 @@ public class InteractiveMaximumZProjection implements PlugInFilter, ImageListene
                             mouseStartX = e.getX();
                             mouseStartY = e.getY();
                         }
+
+                        @Override
+                        public void mouseReleased(MouseEvent e) {
+                            refresh();
+                        }
                     });
                 }
 
@@ -161,12 +178,66 @@ public class InteractiveMaximumZProjection implements PlugInFilter, ImageListene
         }
     }
 
+    private AffineTransform3D transform() {
+        AffineTransform3D at = new AffineTransform3D();
+        at.scale(scale1X, scale1Y, scale1Z);
+        at.translate(-transformed.getWidth() / 2, -transformed.getHeight() / 2, 0);
+        at.rotate(0, angleX / 180.0 * Math.PI);
+        at.rotate(1, angleY / 180.0 * Math.PI);
+        at.translate(transformed.getWidth() / 2, transformed.getHeight() / 2, 0);
+        return at;
+    }
+
+    private void project(ClearCLBuffer stack, ClearCLBuffer projected, int min_z, int max_z) {
+        if (projection.compareTo("Max") == 0) {
+            clijx.maximumZProjectionBounded(stack, projected, min_z, max_z);
+        } else if (projection.compareTo("Min") == 0) {
+            clijx.minimumZProjectionBounded(stack, projected, min_z, max_z);
+        } else if (projection.compareTo("Mean") == 0) {
+            clijx.meanZProjectionBounded(stack, projected, min_z, max_z);
+        }
+    }
+
+    private void refreshPreview(int level, int min_z, int max_z) {
+        int blockSize = 1 << level;
+        if (previewLevel != level) {
+            releasePreview();
+            transformedPreview = clijx.create(new long[]{
+                    (transformed.getWidth() + blockSize - 1) / blockSize,
+                    (transformed.getHeight() + blockSize - 1) / blockSize,
+                    (transformed.getDepth() + blockSize - 1) / blockSize}, transformed.getNativeType());
+            previewProjection = clijx.create(new long[]{transformedPreview.getWidth(), transformedPreview.getHeight()}, transformed.getNativeType());
+            previewLevel = level;
+        }
+
+        // the same transform in units of the level of detail
+        AffineTransform3D at = new AffineTransform3D();
+        at.scale(blockSize);
+        at.preConcatenate(transform());
+        at.scale(1.0 / blockSize);
+        clijx.affineTransform3D(pyramid.getLevel(level, ImagePyramidCache.Reduction.ofProjection(projection)), transformedPreview, at);
+
+        project(transformedPreview, previewProjection, min_z / blockSize, max_z / blockSize);
+        clijx.resample2D(previewProjection, myMaxProjection, (float) blockSize, (float) blockSize, false);
+    }
+
+    private void releasePreview() {
+        if (transformedPreview != null) {
+            clijx.release(transformedPreview);
+            clijx.release(previewProjection);
+            transformedPreview = null;
+            previewProjection = null;
+        }
+        previewLevel = 0;
+    }
+
     private void finish() {
         my_source = null;
         my_display = null;
 
         ImagePlus.removeImageListener(this);
-        clijx.release(myBuffer);
+        pyramid.release();
+        releasePreview();
         clijx.release(myMaxProjection);
         clijx.release(transformed);
         clijx = null;
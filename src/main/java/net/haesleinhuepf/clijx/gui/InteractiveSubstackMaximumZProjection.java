@@ -15,6 +15,7 @@ import net.haesleinhuepf.clij.clearcl.enums.ImageChannelDataType;
 import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.haesleinhuepf.clij2.utilities.CLIJUtilities;
 import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.utilities.ImagePyramidCache;
 import net.haesleinhuepf.clij2.plugins.DepthColorProjection;
 import net.imglib2.realtransform.AffineTransform3D;
 
@@ -33,6 +34,7 @@ import java.awt.event.MouseEvent;
 public class InteractiveSubstackMaximumZProjection implements PlugInFilter, ImageListener {
 
     CLIJx clijx;
+    ImagePyramidCache.Pyramid pyramid;
     ClearCLBuffer myBuffer;
     ClearCLImage converted;
     ClearCLImage transformed;
@@ -111,7 +113,8 @@ public class InteractiveSubstackMaximumZProjection implements PlugInFilter, Imag
         scale1Z = (float) (calib.pixelDepth * zoom);
 
         my_source = imp;
-        myBuffer = clijx.push(imp);
+        pyramid = ImagePyramidCache.acquire(clijx, imp);
+        myBuffer = pyramid.getFullResolution();
         converted = clijx.create(myBuffer.getDimensions(), CLIJUtilities.nativeToChannelType(myBuffer.getNativeType()));
 
         clijx.copy(myBuffer, converted);
@@ -134,12 +137,20 @@ public class InteractiveSubstackMaximumZProjection implements PlugInFilter, Imag
     private ImagePlus my_source = null;
     private void refresh() {
         synchronized (this) {
+            boolean sourceChanged = false;
+            if (pyramid.isOutdated()) {
+                pyramid.release();
+                pyramid = ImagePyramidCache.acquire(clijx, my_source);
+                myBuffer = pyramid.getFullResolution();
+                clijx.copy(myBuffer, converted);
+                sourceChanged = true;
+            }
             int min_z = (int) Math.max(my_source.getZ() * my_source.getCalibration().pixelDepth * zoom - slice_thickness / 2, 0);
             int max_z = (int) Math.min(my_source.getZ() * my_source.getCalibration().pixelDepth  * zoom + slice_thickness / 2, my_source.getNSlices() * my_source.getCalibration().pixelDepth  * zoom - 1);
-            if (old_max_z != max_z || old_angleX != angleX || old_angleY != angleY) {
+            if (sourceChanged || old_max_z != max_z || old_angleX != angleX || old_angleY != angleY) {
                 String window_title = my_source.getTitle() + " Interactive Maximum Z projection";
 
-                if (old_angleX != angleX || old_angleY != angleY) {
+                if (sourceChanged || old_angleX != angleX || old_angleY != angleY) {
                     AffineTransform3D at = new AffineTransform3D();
                     at.scale(scale1X, scale1Y, scale1Z);
                     at.translate(-transformed.getWidth() / 2, -transformed.getHeight() / 2, 0);
@@ -254,7 +265,8 @@ public class InteractiveSubstackMaximumZProjection implements PlugInFilter, Imag
         my_display = null;
 
         ImagePlus.removeImageListener(this);
-        clijx.release(myBuffer);
+        pyramid.release();
+        converted.close();
         clijx.release(myMaxProjection);
         clijx.release(transformed);
         clijx = null;
@@ -8,6 +8,7 @@ import ij.plugin.PlugIn;
 import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clijx.CLIJx;
 
 import java.awt.*;
@@ -92,6 +93,20 @@ public class MemoryDisplay implements PlugIn, ImageListener {
     }
 
     private static float getMemoryConsumption(CLIJx instance) {
+        double sum = getUsedMemoryInBytes(instance);
+        long available_bytes = instance.getCLIJ().getGPUMemoryInBytes();
+
+        long unit_factor = 1024 * 1024 * 1024;
+        status = String.format("%.1f / %.1f GB", (float) sum / unit_factor, (float)available_bytes / unit_factor);
+
+        return (float) Math.min(sum / available_bytes, 1.0);
+
+    }
+
+    /**
+     * Sums up the memory of all buffers the given CLIJ2 instance has allocated according to its memory report.
+     */
+    public static long getUsedMemoryInBytes(CLIJ2 instance) {
         String report = instance.reportMemory();
 
         double sum = 0;
@@ -105,13 +120,7 @@ public class MemoryDisplay implements PlugIn, ImageListener {
                 }
             }
         }
-        long available_bytes = instance.getCLIJ().getGPUMemoryInBytes();
-
-        long unit_factor = 1024 * 1024 * 1024;
-        status = String.format("%.1f / %.1f GB", (float) sum / unit_factor, (float)available_bytes / unit_factor);
-
-        return (float) Math.min(sum / available_bytes, 1.0);
-
+        return (long) sum;
     }
 
     private static double unitToFactor(String s) {
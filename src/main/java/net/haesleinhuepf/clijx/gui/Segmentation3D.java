@@ -10,6 +10,7 @@ import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.utilities.ImagePyramidCache;
 import net.imglib2.realtransform.AffineTransform3D;
 
 import javax.swing.*;
@@ -53,7 +54,6 @@ public class Segmentation3D implements PlugIn {
         float zoom = (float) gdp.getNextNumber();
 
         CLIJx clijx = CLIJx.getInstance();
-        clijx.clear();
 
         //# Noise / background removal
         boolean formerDoNoiseRemoval = true;
@@ -143,216 +143,229 @@ public class Segmentation3D implements PlugIn {
 
         AffineTransform3D at = new AffineTransform3D();
 
-        //# loop until user closed the dialog
-        boolean stillValid = false;
-        while ((! gdp.wasCanceled()) && (!gdp.wasOKed())) {
-
-            // # reserve memory for input and output images
-            if (input1 == null) {
-                input1 = clijx.create(new long[]{
-                        (long) (imp1.getWidth() * scale1X),
-                        (long) (imp1.getHeight() * scale1Y),
-                        (long) (imp1.getNSlices() * scale1Z)}, clijx.Float);
-
-                labelled = clijx.create(input1);
-                temp = clijx.create(input1);
-                transformed = clijx.create(input1);
-                backgroundRemoved = clijx.create(input1);
-
-                maxXProjection1 = clijx.create(new long[]{transformed.getDepth(), transformed.getHeight()}, input1.getNativeType());
-                maxXProjection2 = clijx.create(new long[]{transformed.getDepth(), transformed.getHeight()}, input1.getNativeType());
-                maxYProjection1 = clijx.create(new long[]{transformed.getWidth(), transformed.getDepth()}, input1.getNativeType());
-                maxYProjection2 = clijx.create(new long[]{transformed.getWidth(), transformed.getDepth()}, input1.getNativeType());
-                maxZProjection1 = clijx.create(new long[]{transformed.getWidth(), transformed.getHeight()}, input1.getNativeType());
-                maxZProjection2 = clijx.create(new long[]{transformed.getWidth(), transformed.getHeight()}, input1.getNativeType());
-            }
-            //# read current values from dialog
-            boolean doNoiseRemoval = doNoiseRemovalCheckbox.getState();
-            float sigma = (float) (0.1 * sigmaSlider.getValue());
-            boolean doTopHatBackgroundRemoval = doTopHatCheckBox.getState();
-            float tophatRadius = (float) (tophatRadiusSlider.getValue());
-
-            double viewTranslationX = viewTranslationXSlider.getValue();
-            double viewTranslationY = viewTranslationYSlider.getValue();
-            double viewTranslationZ = viewTranslationZSlider.getValue();
-
-            double viewRotationX = viewRotationXSlider.getValue() * Math.PI / 180.0;
-            double viewRotationY = viewRotationYSlider.getValue() * Math.PI / 180.0;
-            double viewRotationZ = viewRotationZSlider.getValue() * Math.PI / 180.0;
-
-            boolean doThresholding = doThresholdingCheckbox.getState();
-            double threshold = thresholdSlider.getValue();
-            if (!doThresholding) {
-                doConnectedComponentsCheckbox.setState(false);
-            }
-            boolean doConnectedComponents = doConnectedComponentsCheckbox.getState();
-
-            //# check if something changed
-            if (
-                    doNoiseRemoval == formerDoNoiseRemoval &&
-                            sigma == formerSigma &&
-                            doTopHatBackgroundRemoval == formerDoTopHatBackgroundRemoval &&
-                            tophatRadius == formerTopHatRadius &&
-                            viewTranslationX == formerViewTranslationX &&
-                            viewTranslationY == formerViewTranslationY &&
-                            viewTranslationZ == formerViewTranslationZ &&
-                            viewRotationX == formerViewRotationX &&
-                            viewRotationY == formerViewRotationY &&
-                            viewRotationZ == formerViewRotationZ &&
-                            doThresholding == formerDoThresholding &&
-                            threshold == formerThreshold &&
-                            doConnectedComponents == formerDoConnectedComponents &&
-                            formerT1 == imp1.getFrame()
-            ) {
-                //# sleep some msec
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        ImagePyramidCache.Pyramid pyramid = null;
+        try {
+            //# loop until user closed the dialog
+            boolean stillValid = false;
+            while ((! gdp.wasCanceled()) && (!gdp.wasOKed())) {
+
+                // # reserve memory for input and output images
+                if (input1 == null) {
+                    input1 = clijx.create(new long[]{
+                            (long) (imp1.getWidth() * scale1X),
+                            (long) (imp1.getHeight() * scale1Y),
+                            (long) (imp1.getNSlices() * scale1Z)}, clijx.Float);
+
+                    labelled = clijx.create(input1);
+                    temp = clijx.create(input1);
+                    transformed = clijx.create(input1);
+                    backgroundRemoved = clijx.create(input1);
+
+                    maxXProjection1 = clijx.create(new long[]{transformed.getDepth(), transformed.getHeight()}, input1.getNativeType());
+                    maxXProjection2 = clijx.create(new long[]{transformed.getDepth(), transformed.getHeight()}, input1.getNativeType());
+                    maxYProjection1 = clijx.create(new long[]{transformed.getWidth(), transformed.getDepth()}, input1.getNativeType());
+                    maxYProjection2 = clijx.create(new long[]{transformed.getWidth(), transformed.getDepth()}, input1.getNativeType());
+                    maxZProjection1 = clijx.create(new long[]{transformed.getWidth(), transformed.getHeight()}, input1.getNativeType());
+                    maxZProjection2 = clijx.create(new long[]{transformed.getWidth(), transformed.getHeight()}, input1.getNativeType());
+                }
+                //# read current values from dialog
+                boolean doNoiseRemoval = doNoiseRemovalCheckbox.getState();
+                float sigma = (float) (0.1 * sigmaSlider.getValue());
+                boolean doTopHatBackgroundRemoval = doTopHatCheckBox.getState();
+                float tophatRadius = (float) (tophatRadiusSlider.getValue());
+
+                double viewTranslationX = viewTranslationXSlider.getValue();
+                double viewTranslationY = viewTranslationYSlider.getValue();
+                double viewTranslationZ = viewTranslationZSlider.getValue();
+
+                double viewRotationX = viewRotationXSlider.getValue() * Math.PI / 180.0;
+                double viewRotationY = viewRotationYSlider.getValue() * Math.PI / 180.0;
+                double viewRotationZ = viewRotationZSlider.getValue() * Math.PI / 180.0;
+
+                boolean doThresholding = doThresholdingCheckbox.getState();
+                double threshold = thresholdSlider.getValue();
+                if (!doThresholding) {
+                    doConnectedComponentsCheckbox.setState(false);
+                }
+                boolean doConnectedComponents = doConnectedComponentsCheckbox.getState();
+
+                //# check if something changed
+                if (
+                        doNoiseRemoval == formerDoNoiseRemoval &&
+                                sigma == formerSigma &&
+                                doTopHatBackgroundRemoval == formerDoTopHatBackgroundRemoval &&
+                                tophatRadius == formerTopHatRadius &&
+                                viewTranslationX == formerViewTranslationX &&
+                                viewTranslationY == formerViewTranslationY &&
+                                viewTranslationZ == formerViewTranslationZ &&
+                                viewRotationX == formerViewRotationX &&
+                                viewRotationY == formerViewRotationY &&
+                                viewRotationZ == formerViewRotationZ &&
+                                doThresholding == formerDoThresholding &&
+                                threshold == formerThreshold &&
+                                doConnectedComponents == formerDoConnectedComponents &&
+                                formerT1 == imp1.getFrame() &&
+                                pyramid != null && !pyramid.isOutdated()
+                ) {
+                    //# sleep some msec
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    continue;
                 }
-                continue;
-            }
-
-            //# measure start time for benchmarking
-            long timeStamp = System.currentTimeMillis();
 
-            if (formerT1 != imp1.getFrame()) {
-                formerT1 = imp1.getFrame();
-                //#push image to GPU
-                ClearCLBuffer pushed = clijx.pushCurrentZStack(imp1);
-                //#scale it initially;
-                // depends on zoom factor and voxel size
-                AffineTransform3D scaleTransform = new AffineTransform3D();
-                scaleTransform.scale(scale1X, scale1Y, scale1Z);
-                clijx.affineTransform3D(pushed, input1, scaleTransform);
-                pushed.close();
-                stillValid = false;
-            }
+                //# measure start time for benchmarking
+                long timeStamp = System.currentTimeMillis();
 
-            //# Noise/background removal
-            if (formerDoNoiseRemoval != doNoiseRemoval ||
-                    formerSigma != sigma ||
-                    formerDoTopHatBackgroundRemoval != doTopHatBackgroundRemoval ||
-                    formerTopHatRadius != tophatRadius) {
-                formerDoNoiseRemoval = doNoiseRemoval;
-                formerSigma = sigma;
-                formerDoTopHatBackgroundRemoval = doTopHatBackgroundRemoval;
-                formerTopHatRadius = tophatRadius;
-                stillValid = false;
-            }
+                if (formerT1 != imp1.getFrame() || pyramid == null || pyramid.isOutdated()) {
+                    formerT1 = imp1.getFrame();
+                    //#push image to GPU, unless another tool did before; kept to notice changes of the image
+                    if (pyramid != null) {
+                        pyramid.release();
+                    }
+                    pyramid = ImagePyramidCache.acquire(clijx, imp1);
+                    //#scale it initially;
+                    // depends on zoom factor and voxel size
+                    AffineTransform3D scaleTransform = new AffineTransform3D();
+                    scaleTransform.scale(scale1X, scale1Y, scale1Z);
+                    clijx.affineTransform3D(pyramid.getFullResolution(), input1, scaleTransform);
+                    stillValid = false;
+                }
 
-            if (!stillValid) {
-                if (doNoiseRemoval) {
-                    clijx.blur(input1, temp, sigma, sigma, 0);
-                } else {
-                    clijx.copy(input1, temp);
+                //# Noise/background removal
+                if (formerDoNoiseRemoval != doNoiseRemoval ||
+                        formerSigma != sigma ||
+                        formerDoTopHatBackgroundRemoval != doTopHatBackgroundRemoval ||
+                        formerTopHatRadius != tophatRadius) {
+                    formerDoNoiseRemoval = doNoiseRemoval;
+                    formerSigma = sigma;
+                    formerDoTopHatBackgroundRemoval = doTopHatBackgroundRemoval;
+                    formerTopHatRadius = tophatRadius;
+                    stillValid = false;
                 }
-                if (doTopHatBackgroundRemoval) {
-                    clijx.topHatBox(temp, backgroundRemoved, tophatRadius, tophatRadius, tophatRadius);
-                } else {
-                    clijx.copy(temp, backgroundRemoved);
+
+                if (!stillValid) {
+                    if (doNoiseRemoval) {
+                        clijx.blur(input1, temp, sigma, sigma, 0);
+                    } else {
+                        clijx.copy(input1, temp);
+                    }
+                    if (doTopHatBackgroundRemoval) {
+                        clijx.topHatBox(temp, backgroundRemoved, tophatRadius, tophatRadius, tophatRadius);
+                    } else {
+                        clijx.copy(temp, backgroundRemoved);
+                    }
                 }
-            }
 
-            //# Rigid transform
-            if (!(viewTranslationX == formerViewTranslationX &&
-                    viewTranslationY == formerViewTranslationY &&
-                    viewTranslationZ == formerViewTranslationZ &&
-                    viewRotationX == formerViewRotationX &&
-                    viewRotationY == formerViewRotationY &&
-                    viewRotationZ == formerViewRotationZ )) {
+                //# Rigid transform
+                if (!(viewTranslationX == formerViewTranslationX &&
+                        viewTranslationY == formerViewTranslationY &&
+                        viewTranslationZ == formerViewTranslationZ &&
+                        viewRotationX == formerViewRotationX &&
+                        viewRotationY == formerViewRotationY &&
+                        viewRotationZ == formerViewRotationZ )) {
 
-                formerViewTranslationX = viewTranslationX;
-                formerViewTranslationY = viewTranslationY;
-                formerViewTranslationZ = viewTranslationZ;
-                formerViewRotationX = viewRotationX;
-                formerViewRotationY = viewRotationY;
-                formerViewRotationZ = viewRotationZ;
+                    formerViewTranslationX = viewTranslationX;
+                    formerViewTranslationY = viewTranslationY;
+                    formerViewTranslationZ = viewTranslationZ;
+                    formerViewRotationX = viewRotationX;
+                    formerViewRotationY = viewRotationY;
+                    formerViewRotationZ = viewRotationZ;
 
 
-                stillValid = false;
-            }
+                    stillValid = false;
+                }
 
 
-            if (!stillValid) {
+                if (!stillValid) {
 
-                at = new AffineTransform3D();
-                at.translate(-transformed.getWidth() / 2, -transformed.getHeight() / 2, -transformed.getDepth() / 2);
-                at.translate(viewTranslationX, viewTranslationY, viewTranslationZ);
-                at.rotate(0, viewRotationX);
-                at.rotate(1, viewRotationY);
-                at.rotate(2, viewRotationZ);
-                at.translate(transformed.getWidth() / 2, transformed.getHeight() / 2, transformed.getDepth() / 2);
+                    at = new AffineTransform3D();
+                    at.translate(-transformed.getWidth() / 2, -transformed.getHeight() / 2, -transformed.getDepth() / 2);
+                    at.translate(viewTranslationX, viewTranslationY, viewTranslationZ);
+                    at.rotate(0, viewRotationX);
+                    at.rotate(1, viewRotationY);
+                    at.rotate(2, viewRotationZ);
+                    at.translate(transformed.getWidth() / 2, transformed.getHeight() / 2, transformed.getDepth() / 2);
 
-                //# Execute operation on GPU
-                clijx.affineTransform3D(backgroundRemoved, transformed, at);
-            } else {
-                clijx.copy(backgroundRemoved, transformed);
-            }
+                    //# Execute operation on GPU
+                    clijx.affineTransform3D(backgroundRemoved, transformed, at);
+                } else {
+                    clijx.copy(backgroundRemoved, transformed);
+                }
 
-            //# Maximum Intensity Projection
-            clijx.maximumXProjection(transformed, maxXProjection1);
-            clijx.maximumYProjection(transformed, maxYProjection1);
-            clijx.maximumZProjection(transformed, maxZProjection1);
-
-            //# thresholding
-            if (doThresholding != formerDoThresholding ||
-                    threshold != formerThreshold ||
-                    doConnectedComponents != formerDoConnectedComponents
-            ) {
-                formerDoThresholding = doThresholding;
-                formerThreshold = threshold;
-                formerDoConnectedComponents = doConnectedComponents;
-
-                stillValid = false;
-            }
+                //# Maximum Intensity Projection
+                clijx.maximumXProjection(transformed, maxXProjection1);
+                clijx.maximumYProjection(transformed, maxYProjection1);
+                clijx.maximumZProjection(transformed, maxZProjection1);
+
+                //# thresholding
+                if (doThresholding != formerDoThresholding ||
+                        threshold != formerThreshold ||
+                        doConnectedComponents != formerDoConnectedComponents
+                ) {
+                    formerDoThresholding = doThresholding;
+                    formerThreshold = threshold;
+                    formerDoConnectedComponents = doConnectedComponents;
+
+                    stillValid = false;
+                }
 
-            if (!stillValid) {
-                if (doThresholding) {
-                    clijx.threshold(transformed, temp, threshold);
-                    if (doConnectedComponents) {
-                        clijx.connectedComponentsLabeling(temp, labelled);
+                if (!stillValid) {
+                    if (doThresholding) {
+                        clijx.threshold(transformed, temp, threshold);
+                        if (doConnectedComponents) {
+                            clijx.connectedComponentsLabeling(temp, labelled);
+                        } else {
+                            clijx.copy(temp, labelled);
+                        }
                     } else {
-                        clijx.copy(temp, labelled);
+                        clijx.copy(transformed, labelled);
                     }
-                } else {
-                    clijx.copy(transformed, labelled);
                 }
-            }
 
-            //# Maximum Intensity Projection
-            clijx.maximumXProjection(labelled, maxXProjection2);
-            clijx.maximumYProjection(labelled, maxYProjection2);
-            clijx.maximumZProjection(labelled, maxZProjection2);
+                //# Maximum Intensity Projection
+                clijx.maximumXProjection(labelled, maxXProjection2);
+                clijx.maximumYProjection(labelled, maxYProjection2);
+                clijx.maximumZProjection(labelled, maxZProjection2);
 
-            //# Result visualisation
-            clijx.showRGB(maxXProjection1, maxXProjection2, maxXProjection2, WINDOW_YZ_TITLE);
-            clijx.showRGB(maxYProjection1, maxYProjection2, maxYProjection2, WINDOW_XZ_TITLE);
-            clijx.showRGB(maxZProjection1, maxZProjection2, maxZProjection2, WINDOW_XY_TITLE);
+                //# Result visualisation
+                clijx.showRGB(maxXProjection1, maxXProjection2, maxXProjection2, WINDOW_YZ_TITLE);
+                clijx.showRGB(maxYProjection1, maxYProjection2, maxYProjection2, WINDOW_XZ_TITLE);
+                clijx.showRGB(maxZProjection1, maxZProjection2, maxZProjection2, WINDOW_XY_TITLE);
 
-            if (!interactionInitialized) {
-                impX = WindowManager.getImage(WINDOW_YZ_TITLE);
-                impY = WindowManager.getImage(WINDOW_XZ_TITLE);
-                impZ = WindowManager.getImage(WINDOW_XY_TITLE);
+                if (!interactionInitialized) {
+                    impX = WindowManager.getImage(WINDOW_YZ_TITLE);
+                    impY = WindowManager.getImage(WINDOW_XZ_TITLE);
+                    impZ = WindowManager.getImage(WINDOW_XY_TITLE);
 
-                impX.getWindow().setLocation(impZ.getWindow().getX() + impZ.getWindow().getWidth(), impZ.getWindow().getY());
-                impY.getWindow().setLocation(impZ.getWindow().getX(), impZ.getWindow().getY() + impZ.getWindow().getHeight());
+                    impX.getWindow().setLocation(impZ.getWindow().getX() + impZ.getWindow().getWidth(), impZ.getWindow().getY());
+                    impY.getWindow().setLocation(impZ.getWindow().getX(), impZ.getWindow().getY() + impZ.getWindow().getHeight());
 
-                /////// initInteraction();
+                    /////// initInteraction();
 
-                interactionInitialized = true;
-            }
+                    interactionInitialized = true;
+                }
 
-            formerT1 = imp1.getFrame();
-            System.out.println("Time: " + (System.currentTimeMillis() - timeStamp) + " ms");
+                formerT1 = imp1.getFrame();
+                System.out.println("Time: " + (System.currentTimeMillis() - timeStamp) + " ms");
 
-            stillValid = true;
-            //System.out.println(clijx.reportMemory());
+                stillValid = true;
+                //System.out.println(clijx.reportMemory());
+            }
+        } finally {
+            //# clean up; other tools may still use the GPU
+            for (ClearCLBuffer buffer : new ClearCLBuffer[]{input1, labelled, temp, backgroundRemoved, transformed, maxXProjection1, maxXProjection2, maxYProjection1, maxYProjection2, maxZProjection1, maxZProjection2}) {
+                if (buffer != null) {
+                    clijx.release(buffer);
+                }
+            }
+            if (pyramid != null) {
+                pyramid.release();
+            }
         }
 
-        //# clean up
-        clijx.clear();
-
         if (gdp.wasOKed()) {
 
             System.out.println("Zoom: " + zoom);
@@ -2,6 +2,7 @@ package net.haesleinhuepf.clijx.gui.stickyfilters;
 
 import ij.IJ;
 import ij.ImageJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.gui.ImageWindow;
@@ -12,11 +13,53 @@ import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clijx.CLIJx;
 import net.haesleinhuepf.clijx.gui.InteractiveWindowPosition;
 import net.haesleinhuepf.clijx.gui.stickyfilters.implementations.*;
+import net.haesleinhuepf.clijx.utilities.ImagePyramidCache;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sticky filters process the image of the window their window is placed right next to and show the result in their
+ * own window. Chained sticky filters form a dataflow graph: every filter keeps its result in GPU memory where the next
+ * filter takes it from, hence a chain uploads its source image once.
+ *
+ * After a change, the graph is evaluated when no further change arrived for debounce_delay_in_ms: only filters
+ * downstream of a change are recomputed and only results of visible windows at the end of chains are pulled.
+ */
 public abstract class AbstractStickyFilter implements PlugInFilter {
-    private ImagePlus source;
+    // changes arriving within this delay are processed together
+    public static int debounce_delay_in_ms = 50;
+    // pull the results of filters in the middle of chains as well; otherwise their windows keep showing their last pull
+    public static boolean pull_intermediate_results = false;
+
+    private static final CopyOnWriteArrayList<AbstractStickyFilter> filters = new CopyOnWriteArrayList<>();
+    // graph evaluation and GPU memory of the filters are guarded by this lock
+    private static final Object graph = new Object();
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Sticky filters");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static ScheduledFuture<?> scheduledEvaluation = null;
+    private static boolean listening = false;
+
+    private volatile ImagePlus source;
     private ImagePlus target;
 
+    private ClearCLBuffer output = null;
+    // keeps the source in GPU memory unless it's the result of another sticky filter
+    private ImagePyramidCache.Pyramid sourcePyramid = null;
+    private volatile boolean dirty = false;
+    // the source image sent an update; it may have changed or just show another slice
+    private volatile boolean sourceUpdated = false;
+    private boolean needsDisplay = false;
+
     @Override
     public int setup(String arg, ImagePlus imp) {
         return DOES_ALL;
@@ -26,37 +69,23 @@ public abstract class AbstractStickyFilter implements PlugInFilter {
         return source;
     }
 
-    protected ImagePlus setTarget(ImagePlus result) {
-        if (!(result instanceof StickyImagePlus)) {
-            result = new StickyImagePlus(result.getStack(), this);
-        }
-        if (target == null) {
-            target = result;
-            target.show();
-        } else {
-            target.setStack(result.getStack());
-        }
-        refreshRelated(target);
-        return target;
-    }
-
-    private void refreshRelated(ImagePlus potential_source) {
-        for (int id : WindowManager.getIDList()) {
-            ImagePlus imp = WindowManager.getImage(id);
-            if (imp instanceof StickyImagePlus){
-                AbstractStickyFilter filter = ((StickyImagePlus) imp).getFilter();
-                if (filter.source == potential_source) {
-                    filter.compute();
-                }
-            }
-        }
-    }
-
     @Override
     public void run(ImageProcessor ip) {
-        source = IJ.getImage();
-        compute();
-        source = null;
+        listen();
+        synchronized (graph) {
+            source = IJ.getImage();
+            if (!filters.contains(this)) {
+                filters.add(this);
+            }
+            dirty = true;
+            evaluate(new HashSet<>());
+            if (output != null) {
+                display();
+            }
+            // the filter is attached to a source by placing its window next to it
+            source = null;
+            releaseSourcePyramid();
+        }
     }
 
     public static void handleCoordinates(StickyImagePlus simp) {
@@ -80,49 +109,141 @@ public abstract class AbstractStickyFilter implements PlugInFilter {
                 // fits in y
                 if (s_left_x > (left_x + right_x) / 2 && s_left_x < right_x) {
                     // fits in x
-                    simp.getFilter().source = imp;
-                    simp.getFilter().compute();
+                    simp.getFilter().attach(imp);
                     break;
                 }
             }
         }
     }
 
+    private void attach(ImagePlus imp) {
+        if (source != imp) {
+            source = imp;
+            dirty = true;
+            scheduleEvaluation();
+        }
+    }
 
-    public static void main(String[] args) {
-        new ImageJ();
-        IJ.openImage("C:/structure/data/blobs.tif").show();
-        IJ.openImage("C:/structure/data/blobs.tif").show();
+    private static synchronized void scheduleEvaluation() {
+        if (scheduledEvaluation != null) {
+            scheduledEvaluation.cancel(false);
+        }
+        scheduledEvaluation = scheduler.schedule(() -> {
+            try {
+                evaluate();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, debounce_delay_in_ms, TimeUnit.MILLISECONDS);
+    }
 
-        Toolbar.addPlugInTool(new InteractiveWindowPosition());
+    private static void evaluate() {
+        synchronized (graph) {
+            HashSet<AbstractStickyFilter> evaluated = new HashSet<>();
+            for (AbstractStickyFilter filter : filters) {
+                filter.evaluate(evaluated);
+            }
+            for (AbstractStickyFilter filter : filters) {
+                if (filter.needsDisplay && filter.isShowing() && (pull_intermediate_results || filter.downstream().isEmpty())) {
+                    filter.display();
+                }
+            }
+        }
+    }
 
-        new SoftBlur().run(null);
-        new HeavyBlur().run(null);
-        new Denoise().run(null);
-        new ThresholdHuang().run(null);
-        new ThresholdOtsu().run(null);
-        new ConnectedCompontentsLabelling().run(null);
-        new ExcludeLabelEdges().run(null);
+    // upstream filters are evaluated first; a filter is evaluated once, which also ends cycles
+    private void evaluate(HashSet<AbstractStickyFilter> evaluated) {
+        if (!evaluated.add(this)) {
+            return;
+        }
+        AbstractStickyFilter upstream = upstream();
+        if (upstream != null) {
+            upstream.evaluate(evaluated);
+        }
+        if (dirty || sourceUpdated) {
+            recompute();
+        }
     }
 
-    protected abstract void computUnaryOperation(CLIJx clijx, ClearCLBuffer input, ClearCLBuffer output);
+    private AbstractStickyFilter upstream() {
+        ImagePlus source = this.source;
+        if (source instanceof StickyImagePlus) {
+            AbstractStickyFilter filter = ((StickyImagePlus) source).getFilter();
+            if (filters.contains(filter)) {
+                return filter;
+            }
+        }
+        return null;
+    }
 
-    protected void compute() {
+    private ArrayList<AbstractStickyFilter> downstream() {
+        ArrayList<AbstractStickyFilter> downstream = new ArrayList<>();
+        for (AbstractStickyFilter filter : filters) {
+            if (target != null && filter.source == target) {
+                downstream.add(filter);
+            }
+        }
+        return downstream;
+    }
 
-        System.out.println("Compute " + getClass().getSimpleName());
+    private void recompute() {
+        boolean changed = dirty;
+        dirty = false;
+        sourceUpdated = false;
         ImagePlus source = getSource();
         if (source == null) {
             return;
         }
 
         CLIJx clijx = CLIJx.getInstance();
-        ClearCLBuffer input = clijx.pushCurrentZStack(source);
-        ClearCLBuffer output = clijx.create(input);
+        ClearCLBuffer input;
+        AbstractStickyFilter upstream = upstream();
+        if (upstream != null && upstream.output != null) {
+            releaseSourcePyramid();
+            input = upstream.output;
+        } else {
+            ImagePyramidCache.Pyramid pyramid = ImagePyramidCache.acquire(clijx, source);
+            if (pyramid == sourcePyramid) {
+                pyramid.release();
+                if (!changed && output != null) {
+                    // another slice is shown, the pixels are the same
+                    return;
+                }
+            } else {
+                releaseSourcePyramid();
+                sourcePyramid = pyramid;
+            }
+            input = sourcePyramid.getFullResolution();
+        }
 
+        System.out.println("Compute " + getClass().getSimpleName());
+        if (output == null || !Arrays.equals(output.getDimensions(), input.getDimensions()) || output.getNativeType() != input.getNativeType()) {
+            if (output != null) {
+                output.close();
+            }
+            output = clijx.create(input);
+        }
         computUnaryOperation(clijx, input, output);
+        needsDisplay = true;
+
+        for (AbstractStickyFilter filter : downstream()) {
+            filter.dirty = true;
+        }
+    }
+
+    private boolean isShowing() {
+        return target != null && target.getWindow() != null && target.getWindow().isShowing();
+    }
 
+    private void display() {
+        CLIJx clijx = CLIJx.getInstance();
         ImagePlus result = clijx.pull(output);
-        ImagePlus target = setTarget(result);
+        if (target == null) {
+            target = new StickyImagePlus(result.getStack(), this);
+            target.show();
+        } else {
+            target.setStack(result.getStack());
+        }
         target.setDisplayRange(clijx.getMinimumOfAllPixels(output), clijx.getMaximumOfAllPixels(output));
         if (getClass().getSimpleName().contains("Label")) {
             try {
@@ -131,7 +252,85 @@ public abstract class AbstractStickyFilter implements PlugInFilter {
                 System.out.println(e);
             }
         }
-        input.close();
-        output.close();
+        needsDisplay = false;
+    }
+
+    private void releaseSourcePyramid() {
+        if (sourcePyramid != null) {
+            sourcePyramid.release();
+            sourcePyramid = null;
+        }
+    }
+
+    private void close() {
+        releaseSourcePyramid();
+        if (output != null) {
+            output.close();
+            output = null;
+        }
+    }
+
+    private static synchronized void listen() {
+        if (listening) {
+            return;
+        }
+        // called on the event dispatch thread; GPU memory and windows are handled on the scheduler's thread
+        ImagePlus.addImageListener(new ImageListener() {
+            @Override
+            public void imageOpened(ImagePlus imp) {
+            }
+
+            @Override
+            public void imageClosed(ImagePlus imp) {
+                scheduler.execute(() -> {
+                    synchronized (graph) {
+                        for (AbstractStickyFilter filter : filters) {
+                            if (filter.target == imp) {
+                                filter.close();
+                                filters.remove(filter);
+                            } else if (filter.source == imp) {
+                                filter.source = null;
+                                filter.releaseSourcePyramid();
+                            }
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void imageUpdated(ImagePlus imp) {
+                boolean updated = false;
+                for (AbstractStickyFilter filter : filters) {
+                    // results of other sticky filters arrive through the graph
+                    if (filter.source == imp && !(imp instanceof StickyImagePlus && filter.upstream() != null)) {
+                        filter.sourceUpdated = true;
+                        updated = true;
+                    }
+                }
+                if (updated) {
+                    scheduleEvaluation();
+                }
+            }
+        });
+        listening = true;
+    }
+
+
+    public static void main(String[] args) {
+        new ImageJ();
+        IJ.openImage("C:/structure/data/blobs.tif").show();
+        IJ.openImage("C:/structure/data/blobs.tif").show();
+
+        Toolbar.addPlugInTool(new InteractiveWindowPosition());
+
+        new SoftBlur().run(null);
+        new HeavyBlur().run(null);
+        new Denoise().run(null);
+        new ThresholdHuang().run(null);
+        new ThresholdOtsu().run(null);
+        new ConnectedCompontentsLabelling().run(null);
+        new ExcludeLabelEdges().run(null);
     }
+
+    protected abstract void computUnaryOperation(CLIJx clijx, ClearCLBuffer input, ClearCLBuffer output);
 }
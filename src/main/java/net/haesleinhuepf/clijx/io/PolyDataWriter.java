@@ -0,0 +1,281 @@
+package net.haesleinhuepf.clijx.io;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.CLIJx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes points and lines connecting them, e.g. centroids of touching cells, in binary VTK or PLY format. The file
+ * is streamed through a fixed size buffer; lines are requested chunk by chunk so that they never need to be in
+ * memory as a whole. Every line gets its length as scalar.
+ */
+public class PolyDataWriter {
+    public enum Format {
+        VTK_LEGACY_BINARY,
+        VTK_XML_APPENDED,
+        PLY_BINARY;
+
+        /**
+         * .ply files are written as PLY, .vtp files as VTK XML, all others as legacy VTK.
+         */
+        public static Format fromFilename(String filename) {
+            String lowerCaseFilename = filename.toLowerCase();
+            if (lowerCaseFilename.endsWith(".ply")) {
+                return PLY_BINARY;
+            } else if (lowerCaseFilename.endsWith(".vtp")) {
+                return VTK_XML_APPENDED;
+            }
+            return VTK_LEGACY_BINARY;
+        }
+    }
+
+    public interface LineSource {
+        /**
+         * Fills target with start and end point index (zero based) of count lines starting at line start.
+         */
+        void read(int start, int count, int[] target);
+    }
+
+    static final int CHUNK_SIZE = 65536;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    private PolyDataWriter(String filename, ByteOrder byteOrder) throws IOException {
+        File parent = new File(filename).getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(byteOrder);
+    }
+
+    /**
+     * @param points coordinates x, y and z of all points one after another
+     */
+    public static void write(String filename, Format format, float[] points, int numberOfLines, LineSource lines) throws IOException {
+        // legacy VTK is big endian by definition
+        PolyDataWriter writer = new PolyDataWriter(filename, format == Format.VTK_LEGACY_BINARY ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        try {
+            switch (format) {
+                case VTK_LEGACY_BINARY:
+                    writer.writeLegacyVTK(points, numberOfLines, lines);
+                    break;
+                case VTK_XML_APPENDED:
+                    writer.writeXMLVTK(points, numberOfLines, lines);
+                    break;
+                case PLY_BINARY:
+                    writer.writePLY(points, numberOfLines, lines);
+                    break;
+            }
+            writer.flush();
+        } finally {
+            writer.channel.close();
+        }
+    }
+
+    private void writeLegacyVTK(float[] points, int numberOfLines, LineSource lines) throws IOException {
+        int numberOfPoints = points.length / 3;
+        putText("# vtk DataFile Version 3.0\n" +
+                "CLIJx\n" +
+                "BINARY\n" +
+                "DATASET POLYDATA\n" +
+                "POINTS " + numberOfPoints + " float\n");
+        putFloats(points);
+
+        putText("\nLINES " + numberOfLines + " " + (numberOfLines * 3) + "\n");
+        forEachLine(numberOfLines, lines, (start, end) -> {
+            putInt(2);
+            putInt(start);
+            putInt(end);
+        });
+
+        putText("\nCELL_DATA " + numberOfLines + "\n" +
+                "SCALARS distance float 1\n" +
+                "LOOKUP_TABLE default\n");
+        forEachLine(numberOfLines, lines, (start, end) -> putFloat(distance(points, start, end)));
+        putText("\n");
+    }
+
+    private void writeXMLVTK(float[] points, int numberOfLines, LineSource lines) throws IOException {
+        int numberOfPoints = points.length / 3;
+        // every appended block starts with its size as UInt64
+        long pointsOffset = 0;
+        long connectivityOffset = pointsOffset + 8 + 12L * numberOfPoints;
+        long offsetsOffset = connectivityOffset + 8 + 8L * numberOfLines;
+        long distancesOffset = offsetsOffset + 8 + 4L * numberOfLines;
+
+        putText("<?xml version=\"1.0\"?>\n" +
+                "<VTKFile type=\"PolyData\" version=\"1.0\" byte_order=\"LittleEndian\" header_type=\"UInt64\">\n" +
+                "<PolyData>\n" +
+                "<Piece NumberOfPoints=\"" + numberOfPoints + "\" NumberOfVerts=\"0\" NumberOfLines=\"" + numberOfLines + "\" NumberOfStrips=\"0\" NumberOfPolys=\"0\">\n" +
+                "<Points>\n" +
+                "<DataArray type=\"Float32\" NumberOfComponents=\"3\" format=\"appended\" offset=\"" + pointsOffset + "\"/>\n" +
+                "</Points>\n" +
+                "<Lines>\n" +
+                "<DataArray type=\"Int32\" Name=\"connectivity\" format=\"appended\" offset=\"" + connectivityOffset + "\"/>\n" +
+                "<DataArray type=\"Int32\" Name=\"offsets\" format=\"appended\" offset=\"" + offsetsOffset + "\"/>\n" +
+                "</Lines>\n" +
+                "<CellData Scalars=\"distance\">\n" +
+                "<DataArray type=\"Float32\" Name=\"distance\" format=\"appended\" offset=\"" + distancesOffset + "\"/>\n" +
+                "</CellData>\n" +
+                "</Piece>\n" +
+                "</PolyData>\n" +
+                "<AppendedData encoding=\"raw\">\n_");
+
+        putLong(12L * numberOfPoints);
+        putFloats(points);
+
+        putLong(8L * numberOfLines);
+        forEachLine(numberOfLines, lines, (start, end) -> {
+            putInt(start);
+            putInt(end);
+        });
+
+        putLong(4L * numberOfLines);
+        for (int i = 1; i <= numberOfLines; i++) {
+            putInt(2 * i);
+        }
+
+        putLong(4L * numberOfLines);
+        forEachLine(numberOfLines, lines, (start, end) -> putFloat(distance(points, start, end)));
+
+        putText("\n</AppendedData>\n" +
+                "</VTKFile>\n");
+    }
+
+    private void writePLY(float[] points, int numberOfLines, LineSource lines) throws IOException {
+        putText("ply\n" +
+                "format binary_little_endian 1.0\n" +
+                "element vertex " + (points.length / 3) + "\n" +
+                "property float x\n" +
+                "property float y\n" +
+                "property float z\n" +
+                "element edge " + numberOfLines + "\n" +
+                "property int vertex1\n" +
+                "property int vertex2\n" +
+                "property float distance\n" +
+                "end_header\n");
+        putFloats(points);
+        forEachLine(numberOfLines, lines, (start, end) -> {
+            putInt(start);
+            putInt(end);
+            putFloat(distance(points, start, end));
+        });
+    }
+
+    private interface LineConsumer {
+        void accept(int start, int end) throws IOException;
+    }
+
+    private void forEachLine(int numberOfLines, LineSource lines, LineConsumer consumer) throws IOException {
+        int[] chunk = new int[2 * Math.min(CHUNK_SIZE, numberOfLines)];
+        for (int start = 0; start < numberOfLines; start += CHUNK_SIZE) {
+            int count = Math.min(CHUNK_SIZE, numberOfLines - start);
+            lines.read(start, count, chunk);
+            for (int i = 0; i < count; i++) {
+                consumer.accept(chunk[2 * i], chunk[2 * i + 1]);
+            }
+        }
+    }
+
+    private static float distance(float[] points, int start, int end) {
+        double squaredDistance = 0;
+        for (int d = 0; d < 3; d++) {
+            double difference = points[3 * start + d] - points[3 * end + d];
+            squaredDistance += difference * difference;
+        }
+        return (float) Math.sqrt(squaredDistance);
+    }
+
+    private void putText(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < bytes.length; i += BUFFER_SIZE) {
+            int length = Math.min(BUFFER_SIZE, bytes.length - i);
+            ensureRemaining(length);
+            buffer.put(bytes, i, length);
+        }
+    }
+
+    private void putFloats(float[] values) throws IOException {
+        for (int i = 0; i < values.length; ) {
+            ensureRemaining(4);
+            int count = Math.min(values.length - i, buffer.remaining() / 4);
+            buffer.asFloatBuffer().put(values, i, count);
+            buffer.position(buffer.position() + count * 4);
+            i += count;
+        }
+    }
+
+    private void putInt(int value) throws IOException {
+        ensureRemaining(4);
+        buffer.putInt(value);
+    }
+
+    private void putLong(long value) throws IOException {
+        ensureRemaining(8);
+        buffer.putLong(value);
+    }
+
+    private void putFloat(float value) throws IOException {
+        ensureRemaining(4);
+        buffer.putFloat(value);
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Pulls columns start ... start + count - 1 of a list image, e.g. a point list, and stores them row by row in
+     * target as float, so that only a chunk of the list is on the host at a time.
+     */
+    public static void pullColumns(CLIJx clijx, ClearCLBuffer list, int start, int count, float[] target) {
+        ClearCLBuffer chunk = clijx.create(new long[]{count, list.getHeight()}, NativeTypeEnum.Float);
+        clijx.crop(list, chunk, start, 0);
+        chunk.writeTo(FloatBuffer.wrap(target, 0, (int) (count * list.getHeight())), true);
+        clijx.release(chunk);
+    }
+
+    /**
+     * Pulls a point list image with one column per point and one row per dimension, chunk by chunk, as x, y and z
+     * coordinates one after another. z is 0 for 2D points.
+     */
+    public static float[] pullPoints(CLIJx clijx, ClearCLBuffer pointlist) {
+        int numberOfPoints = (int) pointlist.getWidth();
+        int numberOfCoordinates = (int) pointlist.getHeight();
+        float[] points = new float[numberOfPoints * 3];
+        float[] chunk = new float[Math.min(CHUNK_SIZE, numberOfPoints) * numberOfCoordinates];
+        for (int start = 0; start < numberOfPoints; start += CHUNK_SIZE) {
+            int count = Math.min(CHUNK_SIZE, numberOfPoints - start);
+            pullColumns(clijx, pointlist, start, count, chunk);
+            for (int n = 0; n < count; n++) {
+                for (int c = 0; c < Math.min(3, numberOfCoordinates); c++) {
+                    points[3 * (start + n) + c] = chunk[c * count + n];
+                }
+            }
+        }
+        return points;
+    }
+}
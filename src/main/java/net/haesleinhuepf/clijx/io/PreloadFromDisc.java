@@ -9,12 +9,16 @@ import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
 import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
 import org.scijava.plugin.Plugin;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * PreloadFromDisc
  *
- * Todo: Preloaders block memory internally when being used once. Fix this!
+ * Every loaderId keeps a buffer for the next image on the GPU. Call release(loaderId) when done; if more than
+ * maximum_number_of_preloaders are in use, the least recently used one is released.
  *
  * Author: @haesleinhuepf
  *         August 2019
@@ -22,7 +26,9 @@ import java.util.HashMap;
 
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_preloadFromDisc")
 public class PreloadFromDisc extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
-    private static HashMap<String, ImagePreloader> loaderMap = new HashMap<String, ImagePreloader>();
+    public static int maximum_number_of_preloaders = 4;
+
+    private static LinkedHashMap<String, ImagePreloader> loaderMap = new LinkedHashMap<String, ImagePreloader>(16, 0.75f, true);
 
     private String bufferedImagefilename = "";
 
@@ -34,14 +40,59 @@ public class PreloadFromDisc extends AbstractCLIJPlugin implements CLIJMacroPlug
     }
 
     private static ImagePreloader getPreloader(String id) {
+        ImagePreloader preloader;
+        ArrayList<ImagePreloader> evicted;
         synchronized (loaderMap) {
-            if (loaderMap.containsKey(id)) {
-                return loaderMap.get(id);
-            } else {
-                ImagePreloader preloader = new ImagePreloader();
-                loaderMap.put(id, preloader);
+            preloader = loaderMap.get(id);
+            if (preloader != null) {
                 return preloader;
             }
+            preloader = new ImagePreloader();
+            loaderMap.put(id, preloader);
+            evicted = evict();
+        }
+        // releasing waits for loading to finish, hence outside the lock
+        for (ImagePreloader evictedPreloader : evicted) {
+            evictedPreloader.release();
+        }
+        return preloader;
+    }
+
+    private static ArrayList<ImagePreloader> evict() {
+        ArrayList<ImagePreloader> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, ImagePreloader>> iterator = loaderMap.entrySet().iterator();
+        while (loaderMap.size() > maximum_number_of_preloaders && iterator.hasNext()) {
+            // access order: the first entry is the least recently used one
+            evicted.add(iterator.next().getValue());
+            iterator.remove();
+        }
+        return evicted;
+    }
+
+    /**
+     * Releases the GPU memory the preloader with the given id holds for preloading.
+     */
+    public static void release(String loaderId) {
+        if (loaderId == null || loaderId.length() == 0) {
+            loaderId = DEFAULT_LOADER_ID;
+        }
+        ImagePreloader preloader;
+        synchronized (loaderMap) {
+            preloader = loaderMap.remove(loaderId);
+        }
+        if (preloader != null) {
+            preloader.release();
+        }
+    }
+
+    public static void releaseAll() {
+        ArrayList<ImagePreloader> preloaders;
+        synchronized (loaderMap) {
+            preloaders = new ArrayList<>(loaderMap.values());
+            loaderMap.clear();
+        }
+        for (ImagePreloader preloader : preloaders) {
+            preloader.release();
         }
     }
 
@@ -89,7 +140,8 @@ public class PreloadFromDisc extends AbstractCLIJPlugin implements CLIJMacroPlug
                 "The first image is returned immediately, the second image is loaded in the background and " +
                 " will be returned when the plugin is called again.\n\n" +
                 " It is assumed that all images have the same size. If this is not the case, call release(image) before " +
-                " getting the second image.";
+                " getting the second image.\n\n" +
+                " For loading many images ahead, use the RingBufferPreloader.";
     }
 
     @Override
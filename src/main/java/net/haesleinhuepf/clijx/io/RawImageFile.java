@@ -0,0 +1,307 @@
+package net.haesleinhuepf.clijx.io;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A 3D image stored plane by plane in a file without compression, e.g. a raw file or an uncompressed TIFF.
+ * Regions of the image are read and written through memory mapped file regions so that the image never needs to
+ * fit into memory as a whole.
+ */
+public class RawImageFile {
+    public static long maximum_chunk_size_in_bytes = 64L * 1024 * 1024;
+
+    private final String filename;
+    private final long width;
+    private final long height;
+    private final long depth;
+    private final NativeTypeEnum type;
+    private final ByteOrder byteOrder;
+    private final long[] planeOffsets;
+
+    public RawImageFile(String filename, long width, long height, long depth, NativeTypeEnum type) {
+        this(filename, width, height, depth, type, 0, ByteOrder.nativeOrder());
+    }
+
+    public RawImageFile(String filename, long width, long height, long depth, NativeTypeEnum type, long headerOffset, ByteOrder byteOrder) {
+        this(filename, width, height, depth, type, byteOrder, contiguousPlaneOffsets(headerOffset, width * height * type.getSizeInBytes(), depth));
+    }
+
+    private RawImageFile(String filename, long width, long height, long depth, NativeTypeEnum type, ByteOrder byteOrder, long[] planeOffsets) {
+        this.filename = filename;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.type = type;
+        this.byteOrder = byteOrder;
+        this.planeOffsets = planeOffsets;
+    }
+
+    private static long[] contiguousPlaneOffsets(long headerOffset, long bytesPerPlane, long depth) {
+        long[] planeOffsets = new long[(int) depth];
+        for (int z = 0; z < depth; z++) {
+            planeOffsets[z] = headerOffset + z * bytesPerPlane;
+        }
+        return planeOffsets;
+    }
+
+    /**
+     * Creates a new raw file of the given size, e.g. for writing results tile by tile.
+     */
+    public static RawImageFile create(String filename, long width, long height, long depth, NativeTypeEnum type) throws IOException {
+        RawImageFile file = new RawImageFile(filename, width, height, depth, type);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(filename, "rw")) {
+            randomAccessFile.setLength(width * height * depth * type.getSizeInBytes());
+        }
+        return file;
+    }
+
+    /**
+     * Opens an uncompressed TIFF file. Strips within a plane must be stored contiguously.
+     */
+    public static RawImageFile openTiff(String filename) throws IOException {
+        File file = new File(filename);
+        String directory = file.getAbsoluteFile().getParent() + File.separator;
+        FileInfo[] infos = new TiffDecoder(directory, file.getName()).getTiffInfo();
+        if (infos == null || infos.length == 0) {
+            throw new IOException("Could not read TIFF header of " + filename);
+        }
+        FileInfo first = infos[0];
+        if (first.compression > FileInfo.COMPRESSION_NONE) {
+            throw new IOException("Compressed TIFF files are not supported: " + filename);
+        }
+
+        NativeTypeEnum type;
+        switch (first.fileType) {
+            case FileInfo.GRAY8:
+                type = NativeTypeEnum.UnsignedByte;
+                break;
+            case FileInfo.GRAY16_SIGNED:
+                type = NativeTypeEnum.Short;
+                break;
+            case FileInfo.GRAY16_UNSIGNED:
+                type = NativeTypeEnum.UnsignedShort;
+                break;
+            case FileInfo.GRAY32_INT:
+                type = NativeTypeEnum.Int;
+                break;
+            case FileInfo.GRAY32_UNSIGNED:
+                type = NativeTypeEnum.UnsignedInt;
+                break;
+            case FileInfo.GRAY32_FLOAT:
+                type = NativeTypeEnum.Float;
+                break;
+            default:
+                throw new IOException("Unsupported TIFF pixel type in " + filename);
+        }
+
+        long bytesPerPlane = (long) first.width * first.height * type.getSizeInBytes();
+        long[] planeOffsets;
+        if (infos.length == 1) {
+            // ImageJ stacks store all planes with a constant gap in between
+            planeOffsets = new long[Math.max(1, first.nImages)];
+            for (int z = 0; z < planeOffsets.length; z++) {
+                planeOffsets[z] = first.getOffset() + z * (bytesPerPlane + (long) first.gapBetweenImages);
+            }
+        } else {
+            planeOffsets = new long[infos.length];
+            for (int z = 0; z < infos.length; z++) {
+                planeOffsets[z] = infos[z].getOffset();
+            }
+        }
+        for (FileInfo info : infos) {
+            if (info.stripOffsets != null) {
+                for (int s = 1; s < info.stripOffsets.length; s++) {
+                    if ((long) info.stripOffsets[s] != (long) info.stripOffsets[s - 1] + info.stripLengths[s - 1]) {
+                        throw new IOException("TIFF files with non-contiguous strips are not supported: " + filename);
+                    }
+                }
+            }
+        }
+
+        ByteOrder byteOrder = first.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        return new RawImageFile(filename, first.width, first.height, planeOffsets.length, type, byteOrder, planeOffsets);
+    }
+
+    /**
+     * Reads a region of the image into the given buffer, x running fastest. The buffer is filled in native byte
+     * order from its current position on.
+     */
+    public void read(long[] origin, long[] dimensions, ByteBuffer target) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+             FileChannel channel = file.getChannel()) {
+            transfer(channel, FileChannel.MapMode.READ_ONLY, origin, dimensions, target, dimensions, new long[]{0, 0, 0});
+        }
+    }
+
+    /**
+     * Writes a region of the image from a block stored in the given buffer, e.g. the part of a tile without its
+     * margins.
+     *
+     * @param origin position of the region in the image
+     * @param dimensions size of the region
+     * @param source buffer in native byte order, containing a block of size sourceDimensions, x running fastest
+     * @param sourceOffset position of the region within the block
+     */
+    public void write(long[] origin, long[] dimensions, ByteBuffer source, long[] sourceDimensions, long[] sourceOffset) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw");
+             FileChannel channel = file.getChannel()) {
+            transfer(channel, FileChannel.MapMode.READ_WRITE, origin, dimensions, source, sourceDimensions, sourceOffset);
+        }
+    }
+
+    /**
+     * Uploads a region of the image, e.g. a z-range or a region of interest, to the given buffer of the region's
+     * size. The region is transferred in chunks of whole planes of at most maximum_chunk_size_in_bytes. If the
+     * chunk consists of complete, contiguously stored planes in native byte order, it is uploaded straight from the
+     * memory mapped file without copying it on the host.
+     */
+    public void upload(long[] origin, long[] dimensions, ClearCLBuffer target) throws IOException {
+        long bytesPerPlane = dimensions[0] * dimensions[1] * type.getSizeInBytes();
+        if (bytesPerPlane > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Planes larger than 2 GB are not supported.");
+        }
+        long planesPerChunk = Math.max(1, Math.min(dimensions[2], maximum_chunk_size_in_bytes / bytesPerPlane));
+        boolean wholePlanes = origin[0] == 0 && origin[1] == 0 && dimensions[0] == width && dimensions[1] == height;
+        boolean nativeOrder = byteOrder == ByteOrder.nativeOrder() || type.getSizeInBytes() == 1;
+
+        ByteBuffer staging = null;
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+             FileChannel channel = file.getChannel()) {
+            for (long z = 0; z < dimensions[2]; z += planesPerChunk) {
+                long planes = Math.min(planesPerChunk, dimensions[2] - z);
+                ByteBuffer chunk;
+                if (wholePlanes && nativeOrder && isContiguous(origin[2] + z, planes, bytesPerPlane)) {
+                    chunk = channel.map(FileChannel.MapMode.READ_ONLY, planeOffsets[(int) (origin[2] + z)], planes * bytesPerPlane);
+                    chunk.order(ByteOrder.nativeOrder());
+                } else {
+                    if (staging == null) {
+                        staging = ByteBuffer.allocateDirect((int) (planesPerChunk * bytesPerPlane)).order(ByteOrder.nativeOrder());
+                    }
+                    staging.clear();
+                    long[] chunkDimensions = {dimensions[0], dimensions[1], planes};
+                    transfer(channel, FileChannel.MapMode.READ_ONLY, new long[]{origin[0], origin[1], origin[2] + z}, chunkDimensions, staging, chunkDimensions, new long[]{0, 0, 0});
+                    staging.limit((int) (planes * bytesPerPlane));
+                    chunk = staging;
+                }
+
+                if (planes == dimensions[2]) {
+                    target.readFrom(chunk, true);
+                } else {
+                    // buffer origin first, then the origin within the chunk
+                    target.readFrom(chunk, new long[]{0, 0, z}, new long[]{0, 0, 0}, new long[]{dimensions[0], dimensions[1], planes}, true);
+                }
+            }
+        }
+    }
+
+    private boolean isContiguous(long firstPlane, long planes, long bytesPerPlane) {
+        for (long z = firstPlane + 1; z < firstPlane + planes; z++) {
+            if (planeOffsets[(int) z] != planeOffsets[(int) z - 1] + bytesPerPlane) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void transfer(FileChannel channel, FileChannel.MapMode mode, long[] origin, long[] dimensions, ByteBuffer memory, long[] memoryDimensions, long[] memoryOffset) throws IOException {
+        long bytesPerPixel = type.getSizeInBytes();
+        long rowBytes = width * bytesPerPixel;
+        int regionRowBytes = (int) (dimensions[0] * bytesPerPixel);
+        int memoryStart = memory.position();
+        ByteOrder memoryOrder = memory.order();
+        memory.order(ByteOrder.nativeOrder());
+
+        try {
+            for (long z = 0; z < dimensions[2]; z++) {
+                // map only the rows of this plane which belong to the region
+                MappedByteBuffer plane = channel.map(mode, planeOffsets[(int) (origin[2] + z)] + origin[1] * rowBytes, dimensions[1] * rowBytes);
+                plane.order(byteOrder);
+                for (long y = 0; y < dimensions[1]; y++) {
+                    int filePosition = (int) (y * rowBytes + origin[0] * bytesPerPixel);
+                    plane.limit(filePosition + regionRowBytes);
+                    plane.position(filePosition);
+
+                    long memoryIndex = ((memoryOffset[2] + z) * memoryDimensions[1] + memoryOffset[1] + y) * memoryDimensions[0] + memoryOffset[0];
+                    int memoryPosition = (int) (memoryStart + memoryIndex * bytesPerPixel);
+                    memory.limit(memoryPosition + regionRowBytes);
+                    memory.position(memoryPosition);
+
+                    if (mode == FileChannel.MapMode.READ_ONLY) {
+                        copy(plane, memory);
+                    } else {
+                        copy(memory, plane);
+                    }
+                }
+            }
+        } finally {
+            memory.limit(memory.capacity());
+            memory.position(memoryStart);
+            memory.order(memoryOrder);
+        }
+    }
+
+    /**
+     * Copies the remaining bytes of from to to, swapping bytes per pixel if the byte orders differ.
+     */
+    private void copy(ByteBuffer from, ByteBuffer to) {
+        int bytes = from.remaining();
+        if (from.order() == to.order() || type.getSizeInBytes() == 1) {
+            to.put(from);
+            return;
+        }
+        switch ((int) type.getSizeInBytes()) {
+            case 2:
+                to.asShortBuffer().put(from.asShortBuffer());
+                break;
+            case 4:
+                to.asIntBuffer().put(from.asIntBuffer());
+                break;
+            case 8:
+                to.asLongBuffer().put(from.asLongBuffer());
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported pixel size: " + type.getSizeInBytes());
+        }
+        from.position(from.position() + bytes);
+        to.position(to.position() + bytes);
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getWidth() {
+        return width;
+    }
+
+    public long getHeight() {
+        return height;
+    }
+
+    public long getDepth() {
+        return depth;
+    }
+
+    public long[] getDimensions() {
+        return new long[]{width, height, depth};
+    }
+
+    public NativeTypeEnum getNativeType() {
+        return type;
+    }
+
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+}
@@ -9,11 +9,8 @@ import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
 import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
 import org.scijava.plugin.Plugin;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.ByteOrder;
 
 /**
  * Author: @haesleinhuepf
@@ -31,30 +28,33 @@ public class ReadRawImageFromDisc extends AbstractCLIJPlugin implements CLIJMacr
     }
 
     public static boolean readRawImageFromDisc(CLIJ clij, ClearCLBuffer buffer, String filename) {
+        RawImageFile file = new RawImageFile(filename, buffer.getWidth(), buffer.getHeight(), buffer.getDepth(), buffer.getNativeType());
         try {
-            RandomAccessFile aFile = new RandomAccessFile(filename,"r");
-            FileChannel inChannel = aFile.getChannel();
-            long fileSize = inChannel.size();
-            ByteBuffer byteBuffer = ByteBuffer.allocate((int) fileSize);
-            inChannel.read(byteBuffer);
-            //buffer.rewind();
-            byteBuffer.flip();
-            buffer.readFrom(byteBuffer, true);
-            //for (int i = 0; i < fileSize; i++)
-            //{
-            //    System.out.print((char) buffer.get());
-            //}
-            inChannel.close();
-            aFile.close();
+            file.upload(new long[]{0, 0, 0}, file.getDimensions(), buffer);
             return true;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
         }
         return false;
     }
 
+    /**
+     * Reads a region of a raw file, e.g. a z-range, with a header of the given size in the given byte order.
+     * Returns null if the file can't be read.
+     */
+    public static ClearCLBuffer readRawImageFromDisc(CLIJ clij, String filename, long width, long height, long depth, NativeTypeEnum type, long headerOffset, ByteOrder byteOrder, long[] origin, long[] regionDimensions) {
+        RawImageFile file = new RawImageFile(filename, width, height, depth, type, headerOffset, byteOrder);
+        ClearCLBuffer buffer = clij.create(regionDimensions, type);
+        try {
+            file.upload(origin, regionDimensions, buffer);
+            return buffer;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        buffer.close();
+        return null;
+    }
+
     @Override
     public ClearCLBuffer createOutputBufferFromSource(ClearCLBuffer input) {
         Integer width = asInteger(args[2]);
@@ -70,7 +70,7 @@ public class ReadRawImageFromDisc extends AbstractCLIJPlugin implements CLIJMacr
             nativeTypeEnum = NativeTypeEnum.UnsignedByte;
         } else if (bitsPerPixel == 16) {
             nativeTypeEnum = NativeTypeEnum.UnsignedShort;
-        } else { // TODO: add other image types
+        } else { // 32 bit integer images can be read using RawImageFile
             nativeTypeEnum = NativeTypeEnum.Float;
         }
         return clij.create(new long[]{width, height, depth}, nativeTypeEnum);
@@ -89,7 +89,7 @@ public class ReadRawImageFromDisc extends AbstractCLIJPlugin implements CLIJMacr
 
     @Override
     public String getDescription() {
-        return "Reads a raw file from disc and pushes it immediately to the GPU.";
+        return "Reads a raw file from disc and pushes it immediately to the GPU. The file is memory mapped and uploaded in chunks, thus it may be larger than 2 GB.";
     }
 
     @Override
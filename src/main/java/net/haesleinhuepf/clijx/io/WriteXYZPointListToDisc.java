@@ -1,8 +1,6 @@
 package net.haesleinhuepf.clijx.io;
 
 
-import ij.ImagePlus;
-import ij.process.FloatProcessor;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
 import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
@@ -14,10 +12,13 @@ import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.real.FloatType;
 import org.scijava.plugin.Plugin;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_writeXYZPointListToDisc")
 public class WriteXYZPointListToDisc extends AbstractCLIJxPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
@@ -36,44 +37,33 @@ public class WriteXYZPointListToDisc extends AbstractCLIJxPlugin implements CLIJ
     }
 
     public static boolean writeXYZPointListToDisc(CLIJx clijx, ClearCLBuffer pointlist, String filename) {
-        StringBuilder coordinateList = new StringBuilder();
-        {
-            ClearCLBuffer pointListFloat = pointlist;
-            if (pointlist.getNativeType() != clijx.Float) {
-                pointListFloat = clijx.create(pointlist.getDimensions(), clijx.Float);
-
-            }
-            ImagePlus pointlistImp = clijx.pull(pointListFloat);
-            FloatProcessor fp = (FloatProcessor) pointlistImp.getProcessor();
-
-
-            int numberOfPoints = fp.getWidth();
-            int numberOfCoordinates = fp.getHeight();
-            System.out.println("n points: " + numberOfPoints);
-            System.out.println("n coords: " + numberOfCoordinates);
+        int numberOfPoints = (int) pointlist.getWidth();
+        int numberOfCoordinates = (int) pointlist.getHeight();
 
+        File parent = new File(filename).getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try (BufferedWriter writer = new BufferedWriter(Channels.newWriter(FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), "US-ASCII"), 1 << 20)) {
             // header
-            coordinateList.append(numberOfPoints + "\n\n");
-
-            // nth point
-            for (int n = 0; n < numberOfPoints; n++) {
-                coordinateList.append(n + " ");
-                // cth coordinate
-                for (int c = 0; c < numberOfCoordinates; c++) {
-                    coordinateList.append(fp.getf(n, c) + " ");
+            writer.write(numberOfPoints + "\n\n");
+
+            float[] chunk = new float[Math.min(PolyDataWriter.CHUNK_SIZE, numberOfPoints) * numberOfCoordinates];
+            for (int start = 0; start < numberOfPoints; start += PolyDataWriter.CHUNK_SIZE) {
+                int count = Math.min(PolyDataWriter.CHUNK_SIZE, numberOfPoints - start);
+                PolyDataWriter.pullColumns(clijx, pointlist, start, count, chunk);
+
+                // nth point
+                for (int n = 0; n < count; n++) {
+                    writer.write(Integer.toString(start + n));
+                    // cth coordinate
+                    for (int c = 0; c < numberOfCoordinates; c++) {
+                        writer.write(' ');
+                        writer.write(Float.toString(chunk[c * count + n]));
+                    }
+                    writer.write(" \n");
                 }
-                coordinateList.append("\n");
             }
-
-            if (pointListFloat != pointlist) {
-                clijx.release(pointListFloat);
-            }
-        }
-        System.out.println(coordinateList.toString());
-
-        try {
-            new File(filename).getParentFile().mkdirs();
-            Files.write(Paths.get(filename), coordinateList.toString().getBytes());
         } catch (IOException e) {
             e.printStackTrace();
             return false;
@@ -84,7 +74,7 @@ public class WriteXYZPointListToDisc extends AbstractCLIJxPlugin implements CLIJ
     @Override
     public String getDescription() {
         return "Takes a point list image representing n points (n*2 for 2D points, n*3 for 3D points) " +
-                "and exports them in XYZ format.";
+                "and exports them in XYZ format. For binary formats, see writeVTKLineListToDisc.";
     }
 
     @Override
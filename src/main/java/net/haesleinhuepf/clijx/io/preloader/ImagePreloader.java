@@ -106,6 +106,30 @@ public class ImagePreloader {
         return buffer;
     }
 
+    /**
+     * Waits for a running preload and releases the internal buffer holding the next image. The buffer returned by
+     * load is owned by the caller and stays untouched.
+     */
+    public void release() {
+        if (loader != null) {
+            try {
+                loader.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            loader = null;
+        }
+        synchronized (loaderLock) {
+            if (nextImage != null && nextImage != currentImage) {
+                nextImage.close();
+            }
+            nextImage = null;
+            currentImage = null;
+            currentFileName = "";
+            nextLoadedImageFileName = "";
+        }
+    }
+
     public void setCLIJ(CLIJ clij) {
         this.clij = clij;
     }
@@ -0,0 +1,403 @@
+package net.haesleinhuepf.clijx.io.preloader;
+
+import ij.IJ;
+import ij.ImagePlus;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.io.RawImageFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a sequence of images into a ring of GPU buffers. While the image at position i is processed, the following
+ * images are loaded in the background by a pool of I/O threads so that up to numberOfBuffers images are in flight.
+ *
+ * A buffer returned by get or tryGet stays valid until it is released. Its memory is then reused for the next image
+ * loaded into the same slot. If the ring moves on while the buffer is still in use, the slot loads the next image into
+ * a new buffer and the buffer in use is closed when it is released.
+ *
+ * The window of preloaded images only moves forward. Images before it are loaded on request into buffers of their own,
+ * which are closed when they are released.
+ */
+public class RingBufferPreloader {
+    private final CLIJ clij;
+    private final List<String> filenames;
+    private final Slot[] slots;
+    private final ExecutorService ioPool;
+    // staging buffers of loads which are not running; there are at most as many as I/O threads
+    private final ArrayList<ByteBuffer> hostBuffers = new ArrayList<>();
+    // buffers returned by get or tryGet and not released yet, with their index
+    private final IdentityHashMap<ClearCLBuffer, Integer> inUse = new IdentityHashMap<>();
+    // images requested before the window, by index
+    private final HashMap<Integer, Slot> outsideWindow = new HashMap<>();
+
+    private int windowStart = 0;
+
+    private long[] rawDimensions = null;
+    private NativeTypeEnum rawType = null;
+
+    private static class Slot {
+        int index = -1;
+        boolean released = false;
+        boolean outsideWindow = false;
+        ClearCLBuffer buffer = null;
+        Future<ClearCLBuffer> loading = null;
+    }
+
+    public RingBufferPreloader(CLIJ clij, List<String> filenames, int numberOfBuffers, int numberOfThreads) {
+        this.clij = clij;
+        this.filenames = new ArrayList<>(filenames);
+        slots = new Slot[numberOfBuffers];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot();
+        }
+        ioPool = Executors.newFixedThreadPool(numberOfThreads);
+    }
+
+    /**
+     * Lists the files in a folder matching a glob pattern such as "*.tif", sorted by name.
+     */
+    public static List<String> listFiles(String folder, String globPattern) throws IOException {
+        ArrayList<String> filenames = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(folder), globPattern)) {
+            for (Path path : stream) {
+                filenames.add(path.toString());
+            }
+        }
+        Collections.sort(filenames);
+        return filenames;
+    }
+
+    /**
+     * Raw files have no header; their size and type have to be specified before loading them.
+     */
+    public void setRawFormat(long width, long height, long depth, NativeTypeEnum type) {
+        rawDimensions = new long[]{width, height, depth};
+        rawType = type;
+    }
+
+    public int size() {
+        return filenames.size();
+    }
+
+    /**
+     * Returns the image at the given position in the sequence, waiting for it to be loaded if necessary.
+     */
+    public ClearCLBuffer get(int index) {
+        while (true) {
+            Slot slot;
+            Future<ClearCLBuffer> loading;
+            synchronized (this) {
+                slot = request(index);
+                loading = slot.loading;
+            }
+            ClearCLBuffer buffer;
+            try {
+                buffer = loading.get();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return null;
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Loading " + filenames.get(index) + " failed.", e.getCause());
+            }
+            synchronized (this) {
+                // otherwise the slot was handed over to another image or released while waiting; its buffer may be
+                // reused or closed already
+                if (slot.index == index && slot.loading == loading && slot.buffer == buffer) {
+                    inUse.put(buffer, index);
+                    return buffer;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the image at the given position in the sequence if it is loaded already; otherwise null is returned
+     * immediately and the image will be loaded in the background.
+     */
+    public synchronized ClearCLBuffer tryGet(int index) {
+        Slot slot = request(index);
+        if (!slot.loading.isDone()) {
+            return null;
+        }
+        try {
+            ClearCLBuffer buffer = slot.loading.get();
+            inUse.put(buffer, index);
+            return buffer;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return null;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Loading " + filenames.get(index) + " failed.", e.getCause());
+        }
+    }
+
+    /**
+     * Tells the preloader that the image at the given position is not needed anymore. Its buffer is then used for
+     * preloading the next image.
+     */
+    public synchronized void release(int index) {
+        Slot slot = slots[index % slots.length];
+        if (slot.index == index) {
+            slot.released = true;
+        }
+        Slot ownSlot = outsideWindow.remove(index);
+        if (ownSlot != null) {
+            // a load still running closes its buffer when done
+            ownSlot.released = true;
+            ClearCLBuffer buffer = ownSlot.buffer;
+            ownSlot.buffer = null;
+            if (buffer != null && !inUse.containsKey(buffer)) {
+                buffer.close();
+            }
+        }
+        Iterator<Map.Entry<ClearCLBuffer, Integer>> iterator = inUse.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<ClearCLBuffer, Integer> entry = iterator.next();
+            if (entry.getValue() == index) {
+                iterator.remove();
+                if (!isSlotBuffer(entry.getKey())) {
+                    // the slot loads into another buffer meanwhile
+                    entry.getKey().close();
+                }
+            }
+        }
+        while (windowStart < filenames.size()) {
+            Slot first = slots[windowStart % slots.length];
+            if (first.index != windowStart || !first.released) {
+                break;
+            }
+            windowStart++;
+        }
+        schedule();
+    }
+
+    private Slot request(int index) {
+        if (index < 0 || index >= filenames.size()) {
+            throw new IllegalArgumentException("Index " + index + " out of range [0, " + filenames.size() + ").");
+        }
+        if (index < windowStart) {
+            Slot slot = outsideWindow.get(index);
+            if (slot == null) {
+                slot = new Slot();
+                slot.index = index;
+                slot.outsideWindow = true;
+                final Slot ownSlot = slot;
+                String filename = filenames.get(index);
+                slot.loading = ioPool.submit(() -> load(ownSlot, filename));
+                outsideWindow.put(index, slot);
+            }
+            return slot;
+        }
+        if (index >= windowStart + slots.length) {
+            // images before the requested one are evicted
+            windowStart = index;
+        }
+        schedule();
+        return slots[index % slots.length];
+    }
+
+    private void schedule() {
+        for (int i = windowStart; i < Math.min(windowStart + slots.length, filenames.size()); i++) {
+            Slot slot = slots[i % slots.length];
+            if (slot.index != i) {
+                slot.index = i;
+                slot.released = false;
+                String filename = filenames.get(i);
+                Future<ClearCLBuffer> previous = slot.loading;
+                slot.loading = ioPool.submit(() -> {
+                    // the slot buffer may still be written by a former load; it was submitted earlier, so it runs already
+                    if (previous != null) {
+                        try {
+                            previous.get();
+                        } catch (ExecutionException e) {
+                            // the former image is not needed anymore
+                        }
+                    }
+                    return load(slot, filename);
+                });
+            }
+        }
+    }
+
+    private boolean isSlotBuffer(ClearCLBuffer buffer) {
+        for (Slot slot : slots) {
+            if (slot.buffer == buffer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the buffer of the slot for loading the next image, unless the former image is still in use.
+     */
+    private synchronized ClearCLBuffer takeBuffer(Slot slot) {
+        ClearCLBuffer buffer = slot.buffer;
+        slot.buffer = null;
+        if (buffer != null && inUse.containsKey(buffer)) {
+            return null;
+        }
+        return buffer;
+    }
+
+    private synchronized void putBuffer(Slot slot, ClearCLBuffer buffer) {
+        if (slot.outsideWindow && slot.released && buffer != null) {
+            // released while loading
+            buffer.close();
+            buffer = null;
+        }
+        slot.buffer = buffer;
+    }
+
+    private synchronized ByteBuffer takeHostBuffer(long sizeInBytes) {
+        for (int i = 0; i < hostBuffers.size(); i++) {
+            if (hostBuffers.get(i).capacity() >= sizeInBytes) {
+                return hostBuffers.remove(i);
+            }
+        }
+        if (!hostBuffers.isEmpty()) {
+            // too small, replaced by a larger one
+            hostBuffers.remove(hostBuffers.size() - 1);
+        }
+        return ByteBuffer.allocateDirect(Math.toIntExact(sizeInBytes)).order(ByteOrder.nativeOrder());
+    }
+
+    private synchronized void putHostBuffer(ByteBuffer hostBuffer) {
+        if (!ioPool.isShutdown()) {
+            hostBuffers.add(hostBuffer);
+        }
+    }
+
+    private ClearCLBuffer load(Slot slot, String filename) throws IOException {
+        RawImageFile file = null;
+        String lowerCaseFilename = filename.toLowerCase();
+        if (lowerCaseFilename.endsWith(".raw")) {
+            if (rawDimensions == null) {
+                throw new IllegalArgumentException("cannot load images of type raw without knowing its size. Call setRawFormat first!");
+            }
+            file = new RawImageFile(filename, rawDimensions[0], rawDimensions[1], rawDimensions[2], rawType);
+        } else if (lowerCaseFilename.endsWith(".tif") || lowerCaseFilename.endsWith(".tiff")) {
+            try {
+                file = RawImageFile.openTiff(filename);
+            } catch (IOException e) {
+                // e.g. compressed; ImageJ will open it below
+                file = null;
+            }
+        }
+
+        if (file != null) {
+            // read straight into the slot buffer
+            long[] dimensions = file.getDepth() > 1 ? file.getDimensions() : new long[]{file.getWidth(), file.getHeight()};
+            ClearCLBuffer buffer = takeBuffer(slot);
+            try {
+                if (buffer == null || buffer.getNativeType() != file.getNativeType() || !Arrays.equals(buffer.getDimensions(), dimensions)) {
+                    if (buffer != null) {
+                        buffer.close();
+                        buffer = null;
+                    }
+                    buffer = clij.create(dimensions, file.getNativeType());
+                }
+                ByteBuffer hostBuffer = takeHostBuffer(buffer.getSizeInBytes());
+                try {
+                    hostBuffer.clear();
+                    file.read(new long[]{0, 0, 0}, file.getDimensions(), hostBuffer);
+                    buffer.readFrom(hostBuffer, true);
+                } finally {
+                    putHostBuffer(hostBuffer);
+                }
+                return buffer;
+            } finally {
+                // also if loading failed, so that the buffer is closed together with the ring
+                putBuffer(slot, buffer);
+            }
+        }
+
+        ImagePlus imp = IJ.openImage(filename);
+        if (imp == null) {
+            throw new IOException("Cannot open " + filename);
+        }
+        ClearCLBuffer pushed = clij.push(imp);
+        ClearCLBuffer buffer = takeBuffer(slot);
+        if (buffer != null && buffer.getNativeType() == pushed.getNativeType() && Arrays.equals(buffer.getDimensions(), pushed.getDimensions())) {
+            clij.op().copy(pushed, buffer);
+            pushed.close();
+        } else {
+            if (buffer != null) {
+                buffer.close();
+            }
+            buffer = pushed;
+        }
+        putBuffer(slot, buffer);
+        return buffer;
+    }
+
+    /**
+     * Stops loading and releases all GPU buffers of the ring and the staging buffers in host memory.
+     */
+    public void close() {
+        ArrayList<Future<ClearCLBuffer>> loadings = new ArrayList<>();
+        synchronized (this) {
+            ioPool.shutdownNow();
+            hostBuffers.clear();
+            for (Slot slot : slots) {
+                if (slot.loading != null) {
+                    loadings.add(slot.loading);
+                }
+            }
+            for (Slot slot : outsideWindow.values()) {
+                loadings.add(slot.loading);
+            }
+        }
+        // loading takes the lock for handing over buffers, so it is waited for without holding it
+        for (Future<ClearCLBuffer> loading : loadings) {
+            try {
+                loading.get();
+            } catch (Exception e) {
+                // loading was cancelled or failed; the buffer is released anyway
+            }
+        }
+        synchronized (this) {
+            for (Slot slot : outsideWindow.values()) {
+                if (slot.buffer != null && !inUse.containsKey(slot.buffer)) {
+                    slot.buffer.close();
+                }
+                slot.buffer = null;
+            }
+            outsideWindow.clear();
+            for (ClearCLBuffer buffer : inUse.keySet()) {
+                if (!isSlotBuffer(buffer)) {
+                    buffer.close();
+                }
+            }
+            inUse.clear();
+            for (Slot slot : slots) {
+                if (slot.buffer != null) {
+                    slot.buffer.close();
+                    slot.buffer = null;
+                }
+                slot.index = -1;
+                slot.loading = null;
+            }
+        }
+    }
+}
@@ -16,9 +16,12 @@ import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
 import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
 import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clijx.registration.DeformableRegistration2D;
+import net.haesleinhuepf.clijx.utilities.PhaseCorrelation;
 import org.scijava.plugin.Plugin;
 
+import java.nio.FloatBuffer;
 import java.util.HashMap;
+import java.util.stream.IntStream;
 
 
 /**
@@ -27,6 +30,13 @@ import java.util.HashMap;
  */
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_particleImageVelocimetry")
 public class ParticleImageVelocimetry extends AbstractCLIJ2Plugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
+    // evaluate all shifts in one kernel instead of stacking one cross-correlation image per shift
+    public static boolean use_fused_displacement_search = true;
+    // refine the best shift by fitting a parabola to its neighbors; only with use_fused_displacement_search
+    public static boolean subpixel_fit = false;
+    // determine one vector per window by phase correlation on the CPU; cost doesn't depend on the maximum delta
+    public static boolean use_phase_correlation = false;
+    public static int phase_correlation_window_size = 32;
 
     @Override
     public boolean executeCL() {
@@ -52,6 +62,10 @@ public class ParticleImageVelocimetry extends AbstractCLIJ2Plugin implements CLI
     }
 
     public static boolean particleImageVelocimetry(CLIJ2 clij2, ClearCLBuffer input1, ClearCLBuffer input2, ClearCLBuffer vfX, ClearCLBuffer vfY, ClearCLBuffer vfZ, Integer maxDeltaX, Integer maxDeltaY, Integer maxDeltaZ) {
+        if (use_phase_correlation) {
+            return phaseCorrelationDisplacements(clij2, input1, input2, vfX, vfY, vfZ, maxDeltaX, maxDeltaY, maxDeltaZ);
+        }
+
         // prepare cross-correlation analysis
         int meanRangeX = 3;
         int scanRangeX = meanRangeX; // has influence on precision / correctness
@@ -63,6 +77,15 @@ public class ParticleImageVelocimetry extends AbstractCLIJ2Plugin implements CLI
         ClearCLBuffer meanInput1 = clij2.create(input1);
         ClearCLBuffer meanInput2 = clij2.create(input2);
 
+        if (use_fused_displacement_search) {
+            clij2.meanBox(input1, meanInput1, meanRangeX, meanRangeY, meanRangeZ);
+            clij2.meanBox(input2, meanInput2, meanRangeX, meanRangeY, meanRangeZ);
+            displacementSearch(clij2, input1, meanInput1, input2, meanInput2, vfX, vfY, vfZ, scanRangeX, scanRangeY, scanRangeZ, maxDeltaX, maxDeltaY, maxDeltaZ, subpixel_fit);
+
+            meanInput1.close();
+            meanInput2.close();
+            return true;
+        }
 
         ClearCLBuffer crossCorrCoeff = clij2.create(input1.getDimensions(), NativeTypeEnum.Float);
         ClearCLBuffer crossCorrCoeffStack = clij2.create(new long[]{
@@ -86,6 +109,98 @@ public class ParticleImageVelocimetry extends AbstractCLIJ2Plugin implements CLI
         return true;
     }
 
+    /**
+     * Determines for every pixel the shift with maximum cross-correlation coefficient within the given search range.
+     * Only the best shift is kept per pixel, memory consumption doesn't depend on the search range.
+     */
+    public static boolean displacementSearch(CLIJ2 clij2, ClearCLBuffer input1, ClearCLBuffer meanInput1, ClearCLBuffer input2, ClearCLBuffer meanInput2, ClearCLBuffer vfX, ClearCLBuffer vfY, ClearCLBuffer vfZ, int scanRangeX, int scanRangeY, int scanRangeZ, int maxDeltaX, int maxDeltaY, int maxDeltaZ, boolean subpixel) {
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src1", input1);
+        parameters.put("mean_src1", meanInput1);
+        parameters.put("src2", input2);
+        parameters.put("mean_src2", meanInput2);
+        parameters.put("dst_delta_x", vfX);
+        parameters.put("dst_delta_y", vfY);
+        parameters.put("dst_delta_z", vfZ);
+        parameters.put("radiusx", scanRangeX);
+        parameters.put("radiusy", scanRangeY);
+        parameters.put("radiusz", scanRangeZ);
+        parameters.put("max_delta_x", maxDeltaX);
+        parameters.put("max_delta_y", maxDeltaY);
+        parameters.put("max_delta_z", maxDeltaZ);
+        parameters.put("subpixel", subpixel ? 1 : 0);
+
+        clij2.execute(ParticleImageVelocimetry.class, "piv_displacement_search_x.cl", "displacement_search", input1.getDimensions(), input1.getDimensions(), parameters);
+        return true;
+    }
+
+    /**
+     * Determines the shift of windows of phase_correlation_window_size, overlapping by half their size, by phase
+     * correlation. All pixels in the center of a window get its shift.
+     */
+    public static boolean phaseCorrelationDisplacements(CLIJ2 clij2, ClearCLBuffer input1, ClearCLBuffer input2, ClearCLBuffer vfX, ClearCLBuffer vfY, ClearCLBuffer vfZ, int maxDeltaX, int maxDeltaY, int maxDeltaZ) {
+        int width = (int) input1.getWidth();
+        int height = (int) input1.getHeight();
+        int depth = input1.getDimension() > 2 ? (int) input1.getDepth() : 1;
+
+        float[] image1 = pullFloat(clij2, input1);
+        float[] image2 = pullFloat(clij2, input2);
+
+        // the window must be large enough to contain the maximum shift twice
+        int windowSize = Math.max(phase_correlation_window_size, 4 * Math.max(maxDeltaX, Math.max(maxDeltaY, maxDeltaZ)));
+        int windowDepth = depth > 1 ? Math.min(windowSize, depth) : 1;
+        int step = Math.max(1, windowSize / 2);
+        int stepZ = Math.max(1, windowDepth / 2);
+        PhaseCorrelation correlation = new PhaseCorrelation(windowSize, windowSize, windowDepth);
+        int[] maximumShift = {maxDeltaX, maxDeltaY, maxDeltaZ};
+
+        int tilesX = (width + step - 1) / step;
+        int tilesY = (height + step - 1) / step;
+        int tilesZ = (depth + stepZ - 1) / stepZ;
+
+        float[][] deltas = new float[3][width * height * depth];
+        IntStream.range(0, tilesX * tilesY * tilesZ).parallel().forEach(tile -> {
+            int tileX = (tile % tilesX) * step;
+            int tileY = ((tile / tilesX) % tilesY) * step;
+            int tileZ = (tile / tilesX / tilesY) * stepZ;
+
+            double[] shift = correlation.shift(image1, image2, width, height, depth,
+                    tileX + (step - windowSize) / 2, tileY + (step - windowSize) / 2, tileZ + (stepZ - windowDepth) / 2, maximumShift);
+
+            for (int z = tileZ; z < Math.min(tileZ + stepZ, depth); z++) {
+                for (int y = tileY; y < Math.min(tileY + step, height); y++) {
+                    for (int x = tileX; x < Math.min(tileX + step, width); x++) {
+                        int index = (z * height + y) * width + x;
+                        for (int d = 0; d < 3; d++) {
+                            deltas[d][index] = (float) shift[d];
+                        }
+                    }
+                }
+            }
+        });
+
+        pushFloat(clij2, deltas[0], vfX);
+        pushFloat(clij2, deltas[1], vfY);
+        pushFloat(clij2, deltas[2], vfZ);
+        return true;
+    }
+
+    private static float[] pullFloat(CLIJ2 clij2, ClearCLBuffer buffer) {
+        ClearCLBuffer temp = clij2.create(buffer.getDimensions(), NativeTypeEnum.Float);
+        clij2.copy(buffer, temp);
+        float[] array = new float[(int) temp.getVolume()];
+        temp.writeTo(FloatBuffer.wrap(array), true);
+        temp.close();
+        return array;
+    }
+
+    private static void pushFloat(CLIJ2 clij2, float[] array, ClearCLBuffer destination) {
+        ClearCLBuffer temp = clij2.create(destination.getDimensions(), NativeTypeEnum.Float);
+        temp.readFrom(FloatBuffer.wrap(array), true);
+        clij2.copy(temp, destination);
+        temp.close();
+    }
+
     private static void analyseShift(CLIJ2 clij2, ClearCLBuffer input1, ClearCLBuffer input2, ClearCLBuffer vfX, ClearCLBuffer vfY, ClearCLBuffer vfZ, int maxDeltaX, int maxDeltaY, int maxDeltaZ, int scanRangeX, int scanRangeY, int scanRangeZ, ClearCLBuffer meanInput1, ClearCLBuffer meanInput2, ClearCLBuffer crossCorrCoeff, ClearCLBuffer crossCorrCoeffStack) {
 
         int count = 0;
@@ -0,0 +1,111 @@
+inline float cross_correlation_coefficient(
+    IMAGE_src1_TYPE src1,
+    IMAGE_mean_src1_TYPE mean_src1,
+    IMAGE_src2_TYPE src2,
+    IMAGE_mean_src2_TYPE mean_src2,
+    int x, int y, int z,
+    int radiusx, int radiusy, int radiusz,
+    int ix, int iy, int iz)
+{
+    const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+    float sum1 = 0;
+    float sum2 = 0;
+    float sum3 = 0;
+    for(int kx = -radiusx; kx < radiusx + 1; kx++)
+    {
+        for(int ky = -radiusy; ky < radiusy + 1; ky++)
+        {
+            for(int kz = -radiusz; kz < radiusz + 1; kz++)
+            {
+                float Ia = READ_IMAGE(src1, sampler, POS_src1_INSTANCE(x + kx, y + ky, z + kz, 0)).x;
+                float meanIa = READ_IMAGE(mean_src1, sampler, POS_mean_src1_INSTANCE(x + kx, y + ky, z + kz, 0)).x;
+
+                float Ib = READ_IMAGE(src2, sampler, POS_src2_INSTANCE(x + kx + ix, y + ky + iy, z + kz + iz, 0)).x;
+                float meanIb = READ_IMAGE(mean_src2, sampler, POS_mean_src2_INSTANCE(x + kx + ix, y + ky + iy, z + kz + iz, 0)).x;
+
+                sum1 = sum1 + (Ia - meanIa) * (Ib - meanIb);
+                sum2 = sum2 + (Ia - meanIa) * (Ia - meanIa);
+                sum3 = sum3 + (Ib - meanIb) * (Ib - meanIb);
+            }
+        }
+    }
+    return sum1 / sqrt(sum2 * sum3);
+}
+
+// vertex of the parabola through (-1, minus), (0, center), (1, plus)
+inline float subpixel_offset(float minus, float center, float plus) {
+    float denominator = minus - 2 * center + plus;
+    if (denominator >= 0 || isnan(denominator)) {
+        return 0;
+    }
+    return clamp((minus - plus) / (2 * denominator), -0.5f, 0.5f);
+}
+
+__kernel void displacement_search(
+    IMAGE_src1_TYPE src1,
+    IMAGE_mean_src1_TYPE mean_src1,
+    IMAGE_src2_TYPE src2,
+    IMAGE_mean_src2_TYPE mean_src2,
+    IMAGE_dst_delta_x_TYPE dst_delta_x,
+    IMAGE_dst_delta_y_TYPE dst_delta_y,
+    IMAGE_dst_delta_z_TYPE dst_delta_z,
+    int radiusx,
+    int radiusy,
+    int radiusz,
+    int max_delta_x,
+    int max_delta_y,
+    int max_delta_z,
+    int subpixel)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+
+    // same order as the shifts were stacked formerly; the first maximum wins
+    float best = -INFINITY;
+    int best_x = -max_delta_x;
+    int best_y = -max_delta_y;
+    int best_z = -max_delta_z;
+    for (int ix = -max_delta_x; ix <= max_delta_x; ix++) {
+        for (int iy = -max_delta_y; iy <= max_delta_y; iy++) {
+            for (int iz = -max_delta_z; iz <= max_delta_z; iz++) {
+                float value = cross_correlation_coefficient(src1, mean_src1, src2, mean_src2, x, y, z, radiusx, radiusy, radiusz, ix, iy, iz);
+                if (value > best) {
+                    best = value;
+                    best_x = ix;
+                    best_y = iy;
+                    best_z = iz;
+                }
+            }
+        }
+    }
+
+    float delta_x = best_x;
+    float delta_y = best_y;
+    float delta_z = best_z;
+    if (subpixel != 0 && best > -INFINITY) {
+        if (best_x > -max_delta_x && best_x < max_delta_x) {
+            delta_x += subpixel_offset(
+                cross_correlation_coefficient(src1, mean_src1, src2, mean_src2, x, y, z, radiusx, radiusy, radiusz, best_x - 1, best_y, best_z),
+                best,
+                cross_correlation_coefficient(src1, mean_src1, src2, mean_src2, x, y, z, radiusx, radiusy, radiusz, best_x + 1, best_y, best_z));
+        }
+        if (best_y > -max_delta_y && best_y < max_delta_y) {
+            delta_y += subpixel_offset(
+                cross_correlation_coefficient(src1, mean_src1, src2, mean_src2, x, y, z, radiusx, radiusy, radiusz, best_x, best_y - 1, best_z),
+                best,
+                cross_correlation_coefficient(src1, mean_src1, src2, mean_src2, x, y, z, radiusx, radiusy, radiusz, best_x, best_y + 1, best_z));
+        }
+        if (best_z > -max_delta_z && best_z < max_delta_z) {
+            delta_z += subpixel_offset(
+                cross_correlation_coefficient(src1, mean_src1, src2, mean_src2, x, y, z, radiusx, radiusy, radiusz, best_x, best_y, best_z - 1),
+                best,
+                cross_correlation_coefficient(src1, mean_src1, src2, mean_src2, x, y, z, radiusx, radiusy, radiusz, best_x, best_y, best_z + 1));
+        }
+    }
+
+    WRITE_dst_delta_x_IMAGE(dst_delta_x, POS_dst_delta_x_INSTANCE(x, y, z, 0), CONVERT_dst_delta_x_PIXEL_TYPE(delta_x));
+    WRITE_dst_delta_y_IMAGE(dst_delta_y, POS_dst_delta_y_INSTANCE(x, y, z, 0), CONVERT_dst_delta_y_PIXEL_TYPE(delta_y));
+    WRITE_dst_delta_z_IMAGE(dst_delta_z, POS_dst_delta_z_INSTANCE(x, y, z, 0), CONVERT_dst_delta_z_PIXEL_TYPE(delta_z));
+}
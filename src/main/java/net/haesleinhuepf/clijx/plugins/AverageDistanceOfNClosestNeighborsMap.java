@@ -9,6 +9,7 @@ import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
 import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
+import net.haesleinhuepf.clijx.utilities.SparseLabelAdjacency;
 import org.scijava.plugin.Plugin;
 
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_averageDistanceOfNClosestNeighborsMap")
@@ -36,6 +37,10 @@ public class AverageDistanceOfNClosestNeighborsMap extends AbstractCLIJ2Plugin i
 
     public static boolean averageDistanceOfNClosestNeighborsMap(CLIJ2 clij2, ClearCLBuffer pushed, ClearCLBuffer result, Integer n) {
         int number_of_labels = (int)clij2.maximumOfAllPixels(pushed);
+        if (SparseLabelAdjacency.isRecommended(number_of_labels)) {
+            return SparseLabelAdjacency.averageDistanceOfNClosestNeighborsMap(clij2, pushed, result, number_of_labels, n);
+        }
+
 
         ClearCLBuffer pointlist = clij2.create(number_of_labels, pushed.getDimension());
         clij2.centroidsOfLabels(pushed, pointlist);
@@ -1,6 +1,5 @@
 package net.haesleinhuepf.clijx.plugins;
 
-import ij.ImagePlus;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.clearcl.ClearCLImage;
 import net.haesleinhuepf.clij.clearcl.ClearCLKernel;
@@ -14,10 +13,9 @@ import net.haesleinhuepf.clij2.plugins.NonzeroMinimumBox;
 import net.haesleinhuepf.clij2.plugins.SetNonZeroPixelsToPixelIndex;
 import net.haesleinhuepf.clijx.CLIJx;
 import net.haesleinhuepf.clijx.utilities.AbstractCLIJxPlugin;
+import net.haesleinhuepf.clijx.utilities.IterateUntilStable;
 import org.scijava.plugin.Plugin;
 
-import java.nio.ByteBuffer;
-
 import static net.haesleinhuepf.clij2.plugins.ConnectedComponentsLabeling.*;
 
 /**
@@ -53,56 +51,34 @@ public class ConnectedComponentsLabelingInplace extends AbstractCLIJxPlugin impl
         ClearCLBuffer temp3 = clijx.create(output);
 
         ClearCLBuffer flag = clijx.create(new long[]{1,1,1}, NativeTypeEnum.Byte);
-        ByteBuffer aByteBufferWithAZero = ByteBuffer.allocate(1);
-        aByteBufferWithAZero.put((byte)0);
-        flag.readFrom(aByteBufferWithAZero, true);
 
         SetNonZeroPixelsToPixelIndex.setNonZeroPixelsToPixelIndex(clijx, output, temp1);
 
         clijx.set(temp2, 0f);
 
+        ClearCLKernel[] flipflopkernels = new ClearCLKernel[2];
 
-        final int[] iterationCount = {0};
-        int flagValue = 1;
-
-        ClearCLKernel flipkernel = null;
-        ClearCLKernel flopkernel = null;
-
-        while (flagValue > 0) {
-            if (iterationCount[0] % 2 == 0) {
-                //NonzeroMinimumBox.nonzeroMinimumBox(clijx, temp1, flag, temp2, null).close();
-                if (flipkernel == null) {
-                    flipkernel = NonzeroMinimumBox.nonzeroMinimumBox(clijx, temp1, flag, temp2, flipkernel);
+        new IterateUntilStable(flag).run(iteration -> {
+            if (iteration % 2 == 0) {
+                if (flipflopkernels[0] == null) {
+                    flipflopkernels[0] = NonzeroMinimumBox.nonzeroMinimumBox(clijx, temp1, flag, temp2, null);
                 } else {
-                    flipkernel.run(true);
+                    flipflopkernels[0].run(false);
                 }
             } else {
-                //NonzeroMinimumBox.nonzeroMinimumBox(clijx, temp2, flag, temp1, null).close();
-
-                if (flopkernel == null) {
-                    flopkernel = NonzeroMinimumBox.nonzeroMinimumBox(clijx, temp2, flag, temp1, flopkernel);
+                if (flipflopkernels[1] == null) {
+                    flipflopkernels[1] = NonzeroMinimumBox.nonzeroMinimumBox(clijx, temp2, flag, temp1, null);
                 } else {
-                    flopkernel.run(true);
+                    flipflopkernels[1].run(false);
                 }
-
             }
+        });
 
-            ImagePlus flagImp = clijx.pull(flag);
-            flagValue = flagImp.getProcessor().get(0,0);
-            flag.readFrom(aByteBufferWithAZero, true);
-            iterationCount[0] = iterationCount[0] + 1;
-        }
-
-        if (iterationCount[0] % 2 == 0) {
-            clijx.copy(temp1, temp3);
-        } else {
-            clijx.copy(temp1, temp3);
-        }
-        if (flipkernel != null) {
-            flipkernel.close();
-        }
-        if (flopkernel != null) {
-            flopkernel.close();
+        clijx.copy(temp1, temp3);
+        for (ClearCLKernel kernel : flipflopkernels) {
+            if (kernel != null) {
+                kernel.close();
+            }
         }
 
 
@@ -39,6 +39,10 @@ public class ExtendedDepthOfFocusSobelProjection extends AbstractCLIJ2Plugin imp
     public static boolean extendedDepthOfFocusVarianceProjection(CLIJ2 clij2, ClearCLImageInterface src, ClearCLImageInterface dst, Float sigma) {
         assertDifferent(src, dst);
 
+        if (src instanceof ClearCLBuffer && dst instanceof ClearCLBuffer && src.getDimensions().length > 2 && src.getDepth() > StreamingExtendedDepthOfFocusProjection.slab_depth) {
+            return StreamingExtendedDepthOfFocusProjection.project(clij2, (ClearCLBuffer) src, (ClearCLBuffer) dst, null, StreamingExtendedDepthOfFocusProjection.FocusMeasure.SOBEL, 0, 0, sigma);
+        }
+
         ClearCLBuffer sobel = clij2.create(src.getDimensions(), NativeTypeEnum.Float);
         SobelSliceBySlice.sobelSliceBySlice(clij2, src, sobel);
 
@@ -39,6 +39,10 @@ public class ExtendedDepthOfFocusTenengradProjection extends AbstractCLIJ2Plugin
     public static boolean extendedDepthOfFocusTenengradProjection(CLIJ2 clij2, ClearCLImageInterface src, ClearCLImageInterface dst, Float sigma) {
         assertDifferent(src, dst);
 
+        if (src instanceof ClearCLBuffer && dst instanceof ClearCLBuffer && src.getDimensions().length > 2 && src.getDepth() > StreamingExtendedDepthOfFocusProjection.slab_depth) {
+            return StreamingExtendedDepthOfFocusProjection.project(clij2, (ClearCLBuffer) src, (ClearCLBuffer) dst, null, StreamingExtendedDepthOfFocusProjection.FocusMeasure.TENENGRAD, 0, 0, sigma);
+        }
+
         ClearCLBuffer tenengrad = clij2.create(src.getDimensions(), NativeTypeEnum.Float);
         TenengradSliceBySlice.tenengradSliceBySlice(clij2, src, tenengrad);
 
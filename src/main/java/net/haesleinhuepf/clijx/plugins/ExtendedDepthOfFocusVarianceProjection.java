@@ -40,6 +40,10 @@ public class ExtendedDepthOfFocusVarianceProjection extends AbstractCLIJ2Plugin
     public static boolean extendedDepthOfFocusVarianceProjection(CLIJ2 clij2, ClearCLImageInterface src, ClearCLImageInterface dst, Integer radius_x, Integer radius_y, Float sigma) {
         assertDifferent(src, dst);
 
+        if (src instanceof ClearCLBuffer && dst instanceof ClearCLBuffer && src.getDimensions().length > 2 && src.getDepth() > StreamingExtendedDepthOfFocusProjection.slab_depth) {
+            return StreamingExtendedDepthOfFocusProjection.project(clij2, (ClearCLBuffer) src, (ClearCLBuffer) dst, null, StreamingExtendedDepthOfFocusProjection.FocusMeasure.VARIANCE, radius_x, radius_y, sigma);
+        }
+
         ClearCLBuffer variance = clij2.create(src.getDimensions(), NativeTypeEnum.Float);
         VarianceSphere.varianceSphere(clij2, src, variance, radius_x, radius_y, 0);
 
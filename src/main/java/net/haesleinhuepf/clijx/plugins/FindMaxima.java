@@ -18,10 +18,10 @@ import net.haesleinhuepf.clij2.plugins.StatisticsOfLabelledPixels;
 import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
 import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.utilities.IterateUntilStable;
 import net.imglib2.img.array.ArrayImgs;
 import org.scijava.plugin.Plugin;
 
-import java.nio.FloatBuffer;
 import java.util.HashMap;
 
 import static net.haesleinhuepf.clij.utilities.CLIJUtilities.assertDifferent;
@@ -94,52 +94,35 @@ public class FindMaxima extends AbstractCLIJ2Plugin implements CLIJMacroPlugin,
         //clij2.show(initially_labeled_spots, "initially_labeled_spots");
         //if (true) return true;
 
-        float[] flag_arr = new float[]{0};
-        FloatBuffer flag_buffer = FloatBuffer.wrap(flag_arr);
         ClearCLBuffer flag = clij2.create(1, 1, 1);
 
 
         //clij2.show(initially_labeled_spots, "before");
 
-        ClearCLBuffer touching_labels = initially_labeled_spots;
-        ClearCLBuffer former_touching_labels = initially_labeled_spots;
+        ClearCLBuffer[] threshold_lists = {threshold_list, threshold_list2};
 
         long timeout = 60000;
-        long start_Time = System.currentTimeMillis();
-        for (int i = 0; i > -1; i++) { // endless loop
-            if (System.currentTimeMillis() - start_Time > timeout) {
-                System.err.println("Warning: Time out while applying Find Maxima on GPU: CLIJx_findMxima.");
-                break;
-            }
-
-            flag_arr[0] = 0;
-            flag.readFrom(flag_buffer, true);
-
-            //System.out.println("-------------------------- " + i);
-            if (i % 2 == 0) {
-                touching_labels = labelled_spots2;
-            } else {
-                touching_labels = labelled_spots1;
-            }
-            localThreshold(clij2, input, flag, threshold_list, former_touching_labels, touching_labels);
+        IterateUntilStable loop = new IterateUntilStable(flag);
+        int iterationCount = loop.run(i -> {
+            ClearCLBuffer former = i == 0 ? initially_labeled_spots : (i % 2 == 0 ? labelled_spots1 : labelled_spots2);
+            ClearCLBuffer touching = i % 2 == 0 ? labelled_spots2 : labelled_spots1;
+            localThreshold(clij2, input, flag, threshold_lists[0], former, touching);
 
             // adapt threshold
             {
-                clij2.maximumOfTouchingNeighbors(threshold_list, touching_labels, threshold_list2);
-                ClearCLBuffer holder = threshold_list;
-                threshold_list = threshold_list2;
-                threshold_list2 = holder;
+                clij2.maximumOfTouchingNeighbors(threshold_lists[0], touching, threshold_lists[1]);
+                ClearCLBuffer holder = threshold_lists[0];
+                threshold_lists[0] = threshold_lists[1];
+                threshold_lists[1] = holder;
             }
-
-            //clij2.show(touching_labels, "value " + i);
-            //clij2.print(flag);
-
-            flag.writeTo(flag_buffer, true);
-            if (flag_arr[0] == 0) {
-                break;
-            }
-            former_touching_labels = touching_labels;
+        }, timeout);
+        if (loop.isTimedOut()) {
+            System.err.println("Warning: Time out while applying Find Maxima on GPU: CLIJx_findMxima.");
         }
+
+        // once stable, the last two label maps are equal
+        ClearCLBuffer touching_labels = (iterationCount - 1) % 2 == 0 ? labelled_spots2 : labelled_spots1;
+        ClearCLBuffer former_touching_labels = iterationCount == 1 ? initially_labeled_spots : (touching_labels == labelled_spots2 ? labelled_spots1 : labelled_spots2);
         clij2.closeIndexGapsInLabelMap(touching_labels, former_touching_labels);
 
         mergeTouchingLabelsSpecial(clij2, initially_labeled_spots, former_touching_labels, intensities, touching_labels);
@@ -150,8 +133,8 @@ public class FindMaxima extends AbstractCLIJ2Plugin implements CLIJMacroPlugin,
         labelled_spots2.close();
         flag.close();
         intensities.close();
-        threshold_list.close();
-        threshold_list2.close();
+        threshold_lists[0].close();
+        threshold_lists[1].close();
 
 
         ResultsTable table = new ResultsTable();
@@ -11,9 +11,6 @@ import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
 import org.scijava.plugin.Plugin;
 
-import java.nio.FloatBuffer;
-import java.util.ArrayList;
-
 /**
  * Author: @haesleinhuepf
  *         August 2020
@@ -37,70 +34,7 @@ public class GenerateIntegerGreyValueCooccurrenceCountMatrixHalfBox extends Abst
     }
 
     public static boolean generateIntegerGreyValueCooccurrenceCountMatrixHalfBox(CLIJ2 clij2, ClearCLBuffer src_label_map1, ClearCLBuffer dst_cooccurrence_matrix) {
-        int num_threads = (int) src_label_map1.getDepth();
-
-        long[][][] counts = new long[num_threads][(int)dst_cooccurrence_matrix.getWidth()][(int)dst_cooccurrence_matrix.getHeight()];
-
-        Thread[] threads = new Thread[num_threads];
-        Statistician[] statisticians = new Statistician[num_threads];
-
-        ArrayList<float[]> buffers = new ArrayList<>();
-
-        for (int i = 0; i < num_threads; i++) {
-            float[] image_slice;
-            if (i == 0) {
-                ClearCLBuffer image_slice_buffer = clij2.create(src_label_map1.getWidth(), src_label_map1.getHeight());
-                clij2.copySlice(src_label_map1, image_slice_buffer, i);
-                image_slice = new float[(int) (image_slice_buffer.getWidth() * image_slice_buffer.getHeight())];
-                image_slice_buffer.writeTo(FloatBuffer.wrap(image_slice), true);
-
-                buffers.add(image_slice);
-            } else {
-                image_slice = buffers.get(i);
-            }
-
-            float[] image_next_slice;
-            if (i < num_threads - 1) {
-                ClearCLBuffer image_next_slice_buffer = clij2.create(src_label_map1.getWidth(), src_label_map1.getHeight());
-                clij2.copySlice(src_label_map1, image_next_slice_buffer, i + 1);
-                image_next_slice = new float[(int) (image_next_slice_buffer.getWidth() * image_next_slice_buffer.getHeight())];
-                image_next_slice_buffer.writeTo(FloatBuffer.wrap(image_next_slice), true);
-
-                buffers.add(image_next_slice);
-            } else {
-                image_next_slice = null;
-            }
-
-
-            statisticians[i] = new Statistician(counts[i], image_slice, image_next_slice, (int)src_label_map1.getWidth(), (int)src_label_map1.getHeight());
-            threads[i] = new Thread(statisticians[i]);
-            threads[i].start();
-        }
-        for (int i = 0; i < num_threads; i++) {
-            try {
-                threads[i].join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        buffers.clear();
-
-        float[][] matrix = new float[(int)dst_cooccurrence_matrix.getWidth()][(int)dst_cooccurrence_matrix.getHeight()];
-
-        for (int t = 0; t < num_threads; t++) {
-            for (int j = 0; j < counts[0].length; j++) {
-                for (int k = 0; k < counts[0][0].length; k++) {
-                    matrix[j][k] += counts[t][j][k];
-                }
-            }
-        }
-
-        ClearCLBuffer countMatrix = clij2.pushMat(matrix);
-        clij2.copy(countMatrix, dst_cooccurrence_matrix);
-        countMatrix.close();
-
-        return true;
+        return IntegerGreyValueCooccurrenceCounter.count(clij2, src_label_map1, dst_cooccurrence_matrix, IntegerGreyValueCooccurrenceCounter.Neighborhood.HALF_BOX);
     }
 
     @Override
@@ -113,87 +47,6 @@ public class GenerateIntegerGreyValueCooccurrenceCountMatrixHalfBox extends Abst
         return "Measurement";
     }
 
-
-    private static class Statistician implements Runnable{
-        private final int width;
-        private final int height;
-
-        long[][] counts;
-
-        private float[] image;
-        private float[] image_next_slice;
-
-        Statistician(long[][] counts, float[] image, float[] image_next_slice, int width, int height) {
-            this.counts = counts;
-            this.image = image;
-            this.image_next_slice = image_next_slice;
-            this.width = width;
-            this.height = height;
-        }
-
-        @Override
-        public void run() {
-
-            int x = 0;
-            int y = 0;
-            for (int i = 0; i < image.length; i++) {
-                int value_1 = (int) image[i];
-                int value_2;
-
-                // right
-                if (x < width - 1) {
-                    value_2 = (int) image[i + 1];
-                    counts[value_1][value_2]++;
-                    counts[value_2][value_1]++;
-               }
-                // bottom
-                if (y < height - 1) {
-                    value_2 = (int) image[i + width];
-                    counts[value_1][value_2]++;
-                    counts[value_2][value_1]++;
-                }
-                // bottom, right
-                if (x < width - 1 && y < height - 1) {
-                    value_2 = (int) image[i + width + 1];
-                    counts[value_1][value_2]++;
-                    counts[value_2][value_1]++;
-                }
-
-                // top, right
-                if (y > 0 && x < width - 1) {
-                    value_2 = (int) image[i - width + 1];
-                    counts[value_1][value_2]++;
-                    counts[value_2][value_1]++;
-                }
-
-                // next plane
-                if (image_next_slice != null) {
-                    for (int delta_x = -1; delta_x <= 1; delta_x ++) {
-                        for (int delta_y = -1; delta_y <= 1; delta_y ++) {
-                            int index = i + delta_x + width * delta_y;
-                            if (x + delta_x < width &&
-                                x - delta_x >= 0 &&
-                                y + delta_y < height &&
-                                y - delta_y >= 0 &&
-                                index >= 0 && index < image_next_slice.length) {
-                                value_2 = (int) image_next_slice[index];
-                                counts[value_1][value_2]++;
-                                counts[value_2][value_1]++;
-                            }
-                        }
-                    }
-                }
-
-                x++;
-                if (x >= width) {
-                    x = 0;
-                    y++;
-                }
-            }
-        }
-    }
-
-
     @Override
     public ClearCLBuffer createOutputBufferFromSource(ClearCLBuffer input)
     {
@@ -206,7 +59,8 @@ public class GenerateIntegerGreyValueCooccurrenceCountMatrixHalfBox extends Abst
     public String getDescription() {
         return "Takes an image and assumes its grey values are integers. It builds up a grey-level co-occurrence matrix of neighboring (" +
                 "west, south-west, south, south-east, in 3D 9 pixels on the next plane) pixel intensities. \n\n"+
-                "Major parts of this operation run on the CPU.";
+                "Major parts of this operation run on the CPU, slab-wise in a fixed number of threads. " +
+                "Alternatively, counting can be done on the GPU by setting IntegerGreyValueCooccurrenceCounter.count_on_device.";
     }
 
     @Override
@@ -12,6 +12,7 @@ import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij2.utilities.HasAuthor;
 import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
+import net.haesleinhuepf.clijx.utilities.MaxTree;
 import org.scijava.plugin.Plugin;
 
 import java.nio.FloatBuffer;
@@ -25,6 +26,9 @@ import static ij.plugin.filter.Analyzer.setOption;
  */
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_greyLevelAtttributeFiltering")
 public class GreyLevelAtttributeFiltering extends AbstractCLIJ2Plugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation, HasAuthor, IsCategorized, HasClassifiedInputOutput {
+    // set to false for the former implementation thresholding the image once per histogram bin
+    public static boolean use_max_tree = true;
+
     @Override
     public String getInputType() {
         return "Image";
@@ -43,7 +47,8 @@ public class GreyLevelAtttributeFiltering extends AbstractCLIJ2Plugin implements
             "below a minimum pixel count.\n"+
             "All the binary images for each gray level are combined to form the final image. The output is a grayscale image, where bright objects\n"+ 
             "below pixel count are removed.\n"+
-            "It is recommended that low values be used for number of bins, especially for large 3D images, or it may take long time.";
+            "By default, a max-tree of the image is built on the CPU in a single pass and objects are removed at their exact grey level; \n" +
+            "the number of bins is ignored then. Otherwise, it is recommended that low values be used for number of bins, especially for large 3D images, or it may take long time.";
     }
 
     @Override
@@ -74,6 +79,9 @@ public class GreyLevelAtttributeFiltering extends AbstractCLIJ2Plugin implements
     }
 
     public static boolean greyLevelAtttributeFiltering(CLIJ2 clij2, ClearCLBuffer image, ClearCLBuffer dst_filtered_image, Integer number_of_bins, Integer min_pixel_count) {
+        if (use_max_tree) {
+            return greyLevelAttributeFiltering(clij2, image, dst_filtered_image, MaxTree.Attribute.AREA, min_pixel_count);
+        }
 
         // get minimum and maximum intensity in the image stack
         float min = (float) clij2.minimumOfAllPixels(image);
@@ -183,6 +191,32 @@ public class GreyLevelAtttributeFiltering extends AbstractCLIJ2Plugin implements
         return true;
     }
 
+    /**
+     * Removes bright components with the given attribute below minimum_attribute, e.g. volume, largest bounding box
+     * extent or mean intensity. Pixels of removed components get the grey level of the surrounding component.
+     */
+    public static boolean greyLevelAttributeFiltering(CLIJ2 clij2, ClearCLBuffer image, ClearCLBuffer dst_filtered_image, MaxTree.Attribute attribute, double minimum_attribute) {
+        long time = System.currentTimeMillis();
+
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        int depth = image.getDimension() > 2 ? (int) image.getDepth() : 1;
+
+        ClearCLBuffer float_image = clij2.create(image.getDimensions(), NativeTypeEnum.Float);
+        clij2.copy(image, float_image);
+        float[] values = new float[width * height * depth];
+        float_image.writeTo(FloatBuffer.wrap(values), true);
+
+        float[] filtered = new MaxTree(values, width, height, depth).filter(attribute, minimum_attribute);
+
+        float_image.readFrom(FloatBuffer.wrap(filtered), true);
+        clij2.copy(float_image, dst_filtered_image);
+        float_image.close();
+
+        System.out.println("Max-tree filtering took " + (System.currentTimeMillis() - time) + " msec");
+        return true;
+    }
+
 
 
     @Override
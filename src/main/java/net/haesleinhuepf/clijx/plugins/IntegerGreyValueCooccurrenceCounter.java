@@ -0,0 +1,225 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts grey value co-occurrences of neighboring pixels for GenerateIntegerGreyValueCooccurrenceCountMatrixHalfBox
+ * and ...HalfDiamond.
+ *
+ * The image is pulled slab-wise, one transfer per slab including one overlapping plane. The planes of a slab are
+ * distributed to a fixed number of workers, each counting into its own long histogram, which are summed up after
+ * every slab. Memory is hence bounded by the slab size and number_of_threads histograms, independent of the image
+ * depth. Grey values outside the range of the matrix are not counted.
+ *
+ * Alternatively, count_on_device counts with atomic increments on the GPU without pulling the image. Counts of a
+ * single pair of grey values must stay below 2^31 then.
+ */
+public class IntegerGreyValueCooccurrenceCounter {
+    public static int number_of_threads = Runtime.getRuntime().availableProcessors();
+    public static boolean count_on_device = false;
+    public static long maximum_slab_size_in_bytes = 64L * 1024 * 1024;
+    public static long maximum_histogram_memory_in_bytes = 256L * 1024 * 1024;
+
+    enum Neighborhood {
+        HALF_BOX,
+        HALF_DIAMOND
+    }
+
+    static boolean count(CLIJ2 clij2, ClearCLBuffer src, ClearCLBuffer dst_cooccurrence_matrix, Neighborhood neighborhood) {
+        int levels = (int) dst_cooccurrence_matrix.getWidth();
+        if (count_on_device) {
+            return countOnDevice(clij2, src, dst_cooccurrence_matrix, neighborhood);
+        }
+
+        int width = (int) src.getWidth();
+        int height = (int) src.getHeight();
+        int depth = src.getDimension() > 2 ? (int) src.getDepth() : 1;
+        int planeSize = width * height;
+
+        int planesPerSlab = (int) Math.max(1, Math.min(depth, maximum_slab_size_in_bytes / 4 / planeSize - 1));
+        int numberOfWorkers = (int) Math.max(1, Math.min(Math.min(number_of_threads, planesPerSlab),
+                maximum_histogram_memory_in_bytes / 8 / ((long) levels * levels)));
+
+        float[] slab = new float[planeSize * Math.min(planesPerSlab + 1, depth)];
+        long[][] histograms = new long[numberOfWorkers][levels * levels];
+        long[] counts = new long[levels * levels];
+
+        ExecutorService workers = Executors.newFixedThreadPool(numberOfWorkers);
+        try {
+            for (int z0 = 0; z0 < depth; z0 += planesPerSlab) {
+                int planes = Math.min(planesPerSlab, depth - z0);
+                int pulledPlanes = Math.min(planes + 1, depth - z0);
+                pullSlab(clij2, src, slab, z0, pulledPlanes);
+
+                AtomicInteger nextPlane = new AtomicInteger(0);
+                ArrayList<Future<?>> futures = new ArrayList<>();
+                for (long[] histogram : histograms) {
+                    futures.add(workers.submit(() -> {
+                        int z;
+                        while ((z = nextPlane.getAndIncrement()) < planes) {
+                            int nextPlaneOffset = z + 1 < pulledPlanes ? (z + 1) * planeSize : -1;
+                            if (neighborhood == Neighborhood.HALF_BOX) {
+                                countHalfBox(histogram, levels, slab, z * planeSize, nextPlaneOffset, width, height);
+                            } else {
+                                countHalfDiamond(histogram, levels, slab, z * planeSize, nextPlaneOffset, width, height);
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+
+                for (long[] histogram : histograms) {
+                    for (int i = 0; i < counts.length; i++) {
+                        counts[i] += histogram[i];
+                        histogram[i] = 0;
+                    }
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            workers.shutdown();
+        }
+
+        float[] matrix = new float[levels * levels];
+        for (int i = 0; i < counts.length; i++) {
+            matrix[i] = counts[i];
+        }
+        ClearCLBuffer countMatrix = clij2.create(new long[]{levels, levels}, NativeTypeEnum.Float);
+        countMatrix.readFrom(FloatBuffer.wrap(matrix), true);
+        clij2.copy(countMatrix, dst_cooccurrence_matrix);
+        countMatrix.close();
+        return true;
+    }
+
+    private static void pullSlab(CLIJ2 clij2, ClearCLBuffer src, float[] slab, int z0, int planes) {
+        ClearCLBuffer slabBuffer;
+        if (src.getDimension() > 2) {
+            slabBuffer = clij2.create(new long[]{src.getWidth(), src.getHeight(), planes}, NativeTypeEnum.Float);
+            clij2.crop(src, slabBuffer, 0, 0, z0);
+        } else {
+            slabBuffer = clij2.create(new long[]{src.getWidth(), src.getHeight()}, NativeTypeEnum.Float);
+            clij2.copy(src, slabBuffer);
+        }
+        slabBuffer.writeTo(FloatBuffer.wrap(slab, 0, (int) (src.getWidth() * src.getHeight() * planes)), true);
+        slabBuffer.close();
+    }
+
+    private static void countPair(long[] histogram, int levels, int value_1, int value_2) {
+        if (value_1 < 0 || value_2 < 0 || value_1 >= levels || value_2 >= levels) {
+            return;
+        }
+        histogram[value_1 * levels + value_2]++;
+        histogram[value_2 * levels + value_1]++;
+    }
+
+    // west, south-west, south, south-east and 9 pixels on the next plane
+    static void countHalfBox(long[] histogram, int levels, float[] slab, int planeOffset, int nextPlaneOffset, int width, int height) {
+        int planeSize = width * height;
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < planeSize; i++) {
+            int value_1 = (int) slab[planeOffset + i];
+
+            // right
+            if (x < width - 1) {
+                countPair(histogram, levels, value_1, (int) slab[planeOffset + i + 1]);
+            }
+            // bottom
+            if (y < height - 1) {
+                countPair(histogram, levels, value_1, (int) slab[planeOffset + i + width]);
+            }
+            // bottom, right
+            if (x < width - 1 && y < height - 1) {
+                countPair(histogram, levels, value_1, (int) slab[planeOffset + i + width + 1]);
+            }
+            // top, right
+            if (y > 0 && x < width - 1) {
+                countPair(histogram, levels, value_1, (int) slab[planeOffset + i - width + 1]);
+            }
+
+            // next plane
+            if (nextPlaneOffset >= 0) {
+                for (int delta_x = -1; delta_x <= 1; delta_x ++) {
+                    for (int delta_y = -1; delta_y <= 1; delta_y ++) {
+                        int index = i + delta_x + width * delta_y;
+                        if (x + delta_x < width &&
+                            x - delta_x >= 0 &&
+                            y + delta_y < height &&
+                            y - delta_y >= 0 &&
+                            index >= 0 && index < planeSize) {
+                            countPair(histogram, levels, value_1, (int) slab[nextPlaneOffset + index]);
+                        }
+                    }
+                }
+            }
+
+            x++;
+            if (x >= width) {
+                x = 0;
+                y++;
+            }
+        }
+    }
+
+    // left, bottom and back
+    static void countHalfDiamond(long[] histogram, int levels, float[] slab, int planeOffset, int nextPlaneOffset, int width, int height) {
+        int planeSize = width * height;
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < planeSize; i++) {
+            int value_1 = (int) slab[planeOffset + i];
+
+            // right
+            if (x < width - 1) {
+                countPair(histogram, levels, value_1, (int) slab[planeOffset + i + 1]);
+            }
+            // bottom
+            if (y < height - 1) {
+                countPair(histogram, levels, value_1, (int) slab[planeOffset + i + width]);
+            }
+            // next plane
+            if (nextPlaneOffset >= 0) {
+                countPair(histogram, levels, value_1, (int) slab[nextPlaneOffset + i]);
+            }
+
+            x++;
+            if (x >= width) {
+                x = 0;
+                y++;
+            }
+        }
+    }
+
+    private static boolean countOnDevice(CLIJ2 clij2, ClearCLBuffer src, ClearCLBuffer dst_cooccurrence_matrix, Neighborhood neighborhood) {
+        ClearCLBuffer histogram = clij2.create(dst_cooccurrence_matrix.getDimensions(), NativeTypeEnum.Int);
+        clij2.set(histogram, 0);
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("dst_histogram", histogram);
+        parameters.put("depth", src.getDimension() > 2 ? (int) src.getDepth() : 1);
+        parameters.put("half_box", neighborhood == Neighborhood.HALF_BOX ? 1 : 0);
+
+        long[] globalSizes = src.getDimension() > 2 ? src.getDimensions() : new long[]{src.getWidth(), src.getHeight(), 1};
+        clij2.execute(IntegerGreyValueCooccurrenceCounter.class, "integer_grey_value_cooccurrence_count_x.cl", "integer_grey_value_cooccurrence_count", globalSizes, globalSizes, parameters);
+
+        clij2.copy(histogram, dst_cooccurrence_matrix);
+        histogram.close();
+        return true;
+    }
+}
@@ -1,9 +1,8 @@
 package net.haesleinhuepf.clijx.plugins;
 
 
-import ij.IJ;
-import ij.measure.ResultsTable;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
 import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
 import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
@@ -11,21 +10,16 @@ import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
 import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
-import net.haesleinhuepf.clijx.weka.ApplyWekaToTable;
-import net.haesleinhuepf.clijx.weka.CLIJxWeka2;
+import net.haesleinhuepf.clijx.utilities.KMeansClustering;
+import net.haesleinhuepf.clijx.utilities.ModelCache;
+import net.haesleinhuepf.clijx.utilities.SparseLabelAdjacency;
 import net.haesleinhuepf.clijx.weka.GenerateLabelFeatureImage;
-import org.apache.commons.math3.ml.clustering.CentroidCluster;
-import org.apache.commons.math3.ml.clustering.Clusterable;
-import org.apache.commons.math3.ml.clustering.DoublePoint;
-import org.apache.commons.math3.ml.clustering.KMeansPlusPlusClusterer;
-import org.apache.commons.math3.ml.distance.EuclideanDistance;
 import org.scijava.plugin.Plugin;
 
-import javax.xml.transform.Result;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
 
 /**
  *
@@ -35,9 +29,6 @@ import java.util.List;
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_kMeansLabelClusterer")
 public class KMeansLabelClusterer extends AbstractCLIJ2Plugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation, IsCategorized, HasClassifiedInputOutput {
 
-    private static String last_loaded_filename = "";
-    private static List<CentroidCluster<DoublePoint>> centroids = null;
-
     @Override
     public String getParameterHelpText() {
         return "Image input, Image label_map, ByRef Image destination, String features, String modelfilename, Number number_of_classes, Number neighbor_radius, Boolean train";
@@ -45,7 +36,7 @@ public class KMeansLabelClusterer extends AbstractCLIJ2Plugin implements CLIJMac
 
     @Override
     public Object[] getDefaultValues() {
-        return new Object[]{null, null, null, GenerateLabelFeatureImage.defaultFeatures(), "kmeans_clusterer.model.csv", 2, 0, true};
+        return new Object[]{null, null, null, GenerateLabelFeatureImage.defaultFeatures(), "kmeans_clusterer.model", 2, 0, true};
     }
 
     @Override
@@ -70,48 +61,56 @@ public class KMeansLabelClusterer extends AbstractCLIJ2Plugin implements CLIJMac
             System.out.println("Model " + model_filename + " not found. Will train new KMeansLabelClusterer.");
             train = true;
         }
-        if (centroids != null) {
-            if (num_classes != centroids.size()) {
-                System.out.println("Number of classes doesn't match to trained model. Will train new KMeansLabelClusterer.");
-                train = true;
-            }
+        if (clij2.maximumOfAllPixels(labelMap) == 0) {
+            System.out.println("No labels to cluster.");
+            clij2.set(output, 0);
+            return true;
         }
 
         ClearCLBuffer featureImage = GenerateLabelFeatureImage.generateLabelFeatureImage(clij2, input, labelMap, features);
-        clij2.print(featureImage);
-
-        ResultsTable table = new ResultsTable();
-        clij2.pullToResultsTable(featureImage, table);
-        featureImage.close();
-
-        if (!(centroids != null && last_loaded_filename.compareTo(model_filename) == 0)) {
-            centroids = centroidsFromDisc(model_filename);
-            last_loaded_filename = model_filename;
-            System.out.println("Load model");
+        int num_labels = (int) featureImage.getWidth();
+        int num_features = (int) featureImage.getHeight();
+
+        KMeansClustering model = null;
+        if (!train) {
+            try {
+                model = ModelCache.get(model_filename, null, KMeansClustering::load);
+            } catch (IOException e) {
+                System.out.println("Model " + model_filename + " cannot be read. Will train new KMeansLabelClusterer.");
+            }
         }
-        if (centroids != null && centroids.size() > 0) {
-            // check if number of features fits
-            int num_trained_features = centroids.get(0).getCenter().getPoint().length;
-            if (featureImage.getHeight() != num_trained_features) {
+        if (model != null) {
+            if (num_classes != model.getNumberOfClusters()) {
+                System.out.println("Number of classes doesn't match to trained model. Will train new KMeansLabelClusterer.");
+                train = true;
+            }
+            if (num_features != model.getNumberOfFeatures()) {
                 System.out.println("Number of features doesn't match. Will train new KMeansLabelClusterer.");
                 train = true;
             }
         }
-        if (centroids == null || centroids.size() == 0 || train || num_classes != centroids.size()) {
+        if (model == null || train) {
             System.out.println("Train model");
-            centroids = trainKMeansClustering(table, model_filename, num_classes);
+            float[] feature_values = new float[num_labels * num_features];
+            featureImage.writeTo(FloatBuffer.wrap(feature_values), true);
+            model = KMeansClustering.train(feature_values, num_labels, num_classes, 0);
+            train = true;
         }
 
-        predictKMeansClustering(table, centroids, "CLASS");
-
-        ClearCLBuffer vector = clij2.create(table.size(), 1, 1);
-        clij2.pushResultsTableColumn(vector, table, "CLASS");
-
-        ClearCLBuffer vector_with_background = clij2.create(table.size() + 1, 1, 1);
+        ClearCLBuffer vector_with_background = clij2.create(num_labels + 1, 1, 1);
         clij2.set(vector_with_background, 0);
-        clij2.paste(vector, vector_with_background, 1, 0, 0);
+        predictKMeansClustering(clij2, model, featureImage, vector_with_background);
+        featureImage.close();
 
-        if (neighbor_radius > 0) {
+        if (neighbor_radius > 0 && SparseLabelAdjacency.isRecommended(num_labels)) {
+            SparseLabelAdjacency adjacency = SparseLabelAdjacency.fromTouchingLabels(clij2, labelMap, num_labels).withoutBackground();
+            for (int i = 1; i < neighbor_radius; i++) {
+                adjacency = adjacency.neighborsOfNeighbors();
+            }
+            float[] classes = SparseLabelAdjacency.pullVector(vector_with_background);
+            vector_with_background.readFrom(FloatBuffer.wrap(adjacency.reduce(classes, SparseLabelAdjacency.Reduction.MODE)), true);
+            clij2.setColumn(vector_with_background, 0, 0);
+        } else if (neighbor_radius > 0) {
             int number_of_labels = (int) clij2.maximumOfAllPixels(labelMap);
             ClearCLBuffer touch_matrix = clij2.create(number_of_labels + 1, number_of_labels + 1);
             clij2.generateTouchMatrix(labelMap, touch_matrix);
@@ -136,111 +135,55 @@ public class KMeansLabelClusterer extends AbstractCLIJ2Plugin implements CLIJMac
 
         clij2.replaceIntensities(labelMap, vector_with_background, output);
 
-        vector.close();
         vector_with_background.close();
 
         if (train) {
-            centroidsToDisc(centroids, model_filename);
-            System.out.println("Saved model to " + model_filename);
-        }
-
-        return true;
-    }
-
-    public static void centroidsToDisc(List<CentroidCluster<DoublePoint>> centroids, String filename) {
-        ResultsTable table = new ResultsTable();
-        int j = 0;
-        for (CentroidCluster<DoublePoint> centroid : centroids) {
-            double[] point = centroid.getCenter().getPoint();
-            for (int i = 0; i < point.length; i++) {
-                table.setValue(i, j, point[i]);
+            try {
+                model.save(model_filename);
+                ModelCache.put(model_filename, null, model);
+                System.out.println("Saved model to " + model_filename);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            j++;
-        }
-        table.save(filename);
-    }
-
-    public static List<CentroidCluster<DoublePoint>> centroidsFromDisc(String filename) {
-        List<CentroidCluster<DoublePoint>> list = new ArrayList<>();
-        ResultsTable table;
-        try {
-            table = ResultsTable.open(filename);
-        } catch (IOException e) {
-            return list;
         }
 
-        for (int j = 0; j < table.size(); j++) {
-            String[] elements = table.getRowAsString(j).split("\t");
-            double[] values = new double[elements.length];
-            for (int i = 0; i < elements.length; i++) {
-                values[i] = Double.parseDouble(elements[i]);
-            }
-            list.add(new CentroidCluster<>(new DoublePoint(values)));
-        }
-        return list;
-    }
-
-    private static List<CentroidCluster<DoublePoint>> trainKMeansClustering(ResultsTable table, String model_filename, int num_classes) {
-        KMeansPlusPlusClusterer<DoublePoint> clusterer = new KMeansPlusPlusClusterer<DoublePoint>(num_classes);
-
-        List<DoublePoint> list = tableToList(table);
-        List<CentroidCluster<DoublePoint>> clusters = clusterer.cluster(list);
-
-        return clusters;
-    }
-
-    private static void predictKMeansClustering(ResultsTable table, List<CentroidCluster<DoublePoint>> clusters, String column_to_add) {
-
-        double[] prediction = predictKMeansClustering(table, clusters);
-        for (int i = 0; i < prediction.length; i++) {
-            table.setValue(column_to_add, i, prediction[i]);
-        }
+        return true;
     }
 
-    private static double[] predictKMeansClustering(ResultsTable table, List<CentroidCluster<DoublePoint>> clusters) {
-        int num_classes = clusters.size();
-
-        List<DoublePoint> list = tableToList(table);
-        double[] classes = new double[list.size()];
-        EuclideanDistance ed = new EuclideanDistance();
-        for (int row = 0; row < table.size(); row++) {
-            int klass = 0; // not classified
-            double min_distance = Double.MAX_VALUE;
-            for (int k = 0; k < num_classes; k++) {
-                Clusterable center = clusters.get(k).getCenter();
-                double distance = ed.compute(center.getPoint(), list.get(row).getPoint());
-                if (distance < min_distance) {
-                    min_distance = distance;
-                    klass = k + 1; // because 0 corresponds to background
-                }
+    /**
+     * Writes the class of every label, determined by the nearest center, into classes_destination at position
+     * label index; the background at position 0 is not touched.
+     */
+    public static void predictKMeansClustering(CLIJ2 clij2, KMeansClustering model, ClearCLBuffer featureImage, ClearCLBuffer classes_destination) {
+        // centers as point list, one column per center
+        int num_classes = model.getNumberOfClusters();
+        int num_features = model.getNumberOfFeatures();
+        double[] centers = model.getCenters();
+        float[] center_list = new float[num_classes * num_features];
+        for (int k = 0; k < num_classes; k++) {
+            for (int f = 0; f < num_features; f++) {
+                center_list[f * num_classes + k] = (float) centers[k * num_features + f];
             }
-            classes[row] = klass;
         }
-        return classes;
-    }
-
+        ClearCLBuffer center_image = clij2.create(new long[]{num_classes, num_features}, NativeTypeEnum.Float);
+        center_image.readFrom(FloatBuffer.wrap(center_list), true);
 
-    public static List<DoublePoint> tableToList(ResultsTable table) {
-        List<DoublePoint> list = new ArrayList<DoublePoint>();
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src_features", featureImage);
+        parameters.put("src_centers", center_image);
+        parameters.put("dst_classes", classes_destination);
 
-        for (int row = 0; row < table.size(); row++) {
-            String[] elements = table.getRowAsString(row).split("\t");
-            double[] values = new double[elements.length];
-            int i = 0;
-            for (String elem : elements) {
-                values[i] = Double.parseDouble(elem);
-                i++;
-            }
-            list.add(new DoublePoint(values));
-        }
-        return list;
+        long[] globalSizes = new long[]{featureImage.getWidth()};
+        clij2.activateSizeIndependentKernelCompilation();
+        clij2.execute(KMeansLabelClusterer.class, "k_means_predict_x.cl", "k_means_predict", globalSizes, globalSizes, parameters);
+        center_image.close();
     }
 
-
     @Override
     public String getDescription() {
         return "Applies K-Means clustering to an image and a corresponding label map. \n\n" +
-                "See also: https://commons.apache.org/proper/commons-math/javadocs/api-3.6/org/apache/commons/math3/ml/clustering/KMeansPlusPlusClusterer.html\n" +
+                "Clustering uses k-means++ initialization followed by Lloyd iterations or, for many labels, mini-batch k-means.\n" +
+                "Models are saved in a binary format unless the filename ends with .csv.\n" +
                 "Make sure that the handed over feature list is the same used while training the model.\n" +
                 "The neighbor_radius specifies a correction step which allows to use a region where the mode of \n" +
                 "classification results (the most popular class) will be determined after clustering.";
@@ -257,7 +200,7 @@ public class KMeansLabelClusterer extends AbstractCLIJ2Plugin implements CLIJMac
     }
 
     public static void invalidateCache() {
-        last_loaded_filename = "";
+        ModelCache.clear();
     }
 
     @Override
@@ -9,6 +9,7 @@ import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
 import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
+import net.haesleinhuepf.clijx.utilities.SparseLabelAdjacency;
 import org.scijava.plugin.Plugin;
 
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_localMaximumTouchingNeighborCountMap")
@@ -35,6 +36,10 @@ public class LocalMaximumTouchingNeighborCountMap extends AbstractCLIJ2Plugin im
 
     public static boolean localMaximumTouchingNeighborCountMap(CLIJ2 clij2, ClearCLBuffer pushed, ClearCLBuffer result) {
         int number_of_labels = (int)clij2.maximumOfAllPixels(pushed);
+        if (SparseLabelAdjacency.isRecommended(number_of_labels)) {
+            return SparseLabelAdjacency.touchingNeighborCountMap(clij2, pushed, result, number_of_labels, SparseLabelAdjacency.Reduction.MAXIMUM);
+        }
+
         ClearCLBuffer touch_matrix = clij2.create(number_of_labels + 1, number_of_labels + 1);
         clij2.generateTouchMatrix(pushed, touch_matrix);
 
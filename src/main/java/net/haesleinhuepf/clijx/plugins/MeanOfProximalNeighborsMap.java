@@ -9,6 +9,7 @@ import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
 import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
+import net.haesleinhuepf.clijx.utilities.SparseLabelAdjacency;
 import org.scijava.plugin.Plugin;
 
 /**
@@ -51,6 +52,10 @@ public class MeanOfProximalNeighborsMap extends AbstractCLIJ2Plugin implements C
     public static boolean meanOfProximalNeighborsMap(CLIJ2 clij2, ClearCLBuffer parametric_map, ClearCLBuffer label_map, ClearCLBuffer parametric_map_destination, Float min_distance, Float max_distance) {
 
         int number_of_labels = (int) clij2.maximumOfAllPixels(label_map);
+        if (SparseLabelAdjacency.isRecommended(number_of_labels)) {
+            return SparseLabelAdjacency.proximalNeighborsMap(clij2, parametric_map, label_map, parametric_map_destination, number_of_labels, min_distance, max_distance, SparseLabelAdjacency.Reduction.MEAN);
+        }
+
         ClearCLBuffer centroids = clij2.create(new long[]{number_of_labels, label_map.getDimension()});
         clij2.centroidsOfLabels(label_map, centroids);
 
@@ -11,6 +11,7 @@ import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
 import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
+import net.haesleinhuepf.clijx.utilities.SparseLabelAdjacency;
 import org.scijava.plugin.Plugin;
 
 import java.nio.FloatBuffer;
@@ -40,6 +41,9 @@ public class MergeTouchingLabels extends AbstractCLIJ2Plugin implements CLIJMacr
 
     public static boolean mergeTouchingLabels(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer output) {
         int number_of_objects = (int) clij2.maximumOfAllPixels(input);
+        if (SparseLabelAdjacency.isRecommended(number_of_objects)) {
+            return SparseLabelAdjacency.mergeTouchingLabels(clij2, input, output, number_of_objects);
+        }
 
         ClearCLBuffer touch_matrix = clij2.create(number_of_objects + 1, number_of_objects + 1);
         clij2.generateTouchMatrix(input, touch_matrix);
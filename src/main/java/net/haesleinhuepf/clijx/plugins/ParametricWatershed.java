@@ -1,6 +1,5 @@
 package net.haesleinhuepf.clijx.plugins;
 
-import ij.ImagePlus;
 import net.haesleinhuepf.clij.CLIJ;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.clearcl.ClearCLKernel;
@@ -14,9 +13,9 @@ import net.haesleinhuepf.clij2.plugins.ConnectedComponentsLabeling;
 import net.haesleinhuepf.clij2.plugins.Watershed;
 import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
+import net.haesleinhuepf.clijx.utilities.IterateUntilStable;
 import org.scijava.plugin.Plugin;
 
-import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 /**
@@ -122,50 +121,34 @@ public class ParametricWatershed extends AbstractCLIJ2Plugin implements CLIJMacr
 
     static boolean eliminateWrongMaxima(CLIJ2 clij2, ClearCLBuffer maximaIn, ClearCLBuffer distanceMapIn, ClearCLBuffer maximaOut) {
         ClearCLBuffer flag = clij2.create(new long[]{1,1,1}, NativeTypeEnum.Byte);
-        ByteBuffer aByteBufferWithAZero = ByteBuffer.allocate(1);
-        aByteBufferWithAZero.put((byte)0);
-        flag.readFrom(aByteBufferWithAZero, true);
 
         clij2.set(maximaOut, 0f);
 
-        final int[] iterationCount = {0};
-        int flagValue = 1;
+        ClearCLKernel[] flipflopkernels = new ClearCLKernel[2];
 
-        ClearCLKernel flipkernel = null;
-        ClearCLKernel flopkernel = null;
-
-        while (flagValue > 0) {
-            if (iterationCount[0] % 2 == 0) {
-                if (flipkernel == null) {
-                    flipkernel = eliminateWrongMaxima(clij2, maximaIn, distanceMapIn, flag, maximaOut, flipkernel);
+        int iterationCount = new IterateUntilStable(flag).run(iteration -> {
+            if (iteration % 2 == 0) {
+                if (flipflopkernels[0] == null) {
+                    flipflopkernels[0] = eliminateWrongMaxima(clij2, maximaIn, distanceMapIn, flag, maximaOut, null);
                 } else {
-                    flipkernel.run(true);
+                    flipflopkernels[0].run(false);
                 }
-                //clijx.saveAsTIF(maximaOut, "c:/structure/temp/max/" + iterationCount[0] + ".tif");
             } else {
-                if (flopkernel == null) {
-                    flopkernel = eliminateWrongMaxima(clij2, maximaOut, distanceMapIn, flag, maximaIn, flopkernel);
+                if (flipflopkernels[1] == null) {
+                    flipflopkernels[1] = eliminateWrongMaxima(clij2, maximaOut, distanceMapIn, flag, maximaIn, null);
                 } else {
-                    flopkernel.run(true);
+                    flipflopkernels[1].run(false);
                 }
-                //clijx.saveAsTIF(maximaIn, "c:/structure/temp/max/" + iterationCount[0] + ".tif");
             }
+        });
 
-            ImagePlus flagImp = clij2.pull(flag);
-            flagValue = flagImp.getProcessor().get(0,0);
-            flag.readFrom(aByteBufferWithAZero, true);
-            iterationCount[0] = iterationCount[0] + 1;
-            //System.out.println("cyclingf " + iterationCount[0]);
-        }
-
-        if (iterationCount[0] % 2 == 0) {
+        if (iterationCount % 2 == 0) {
            clij2.copy(maximaIn, maximaOut);
         }
-        if (flipkernel != null) {
-            flipkernel.close();
-        }
-        if (flopkernel != null) {
-            flopkernel.close();
+        for (ClearCLKernel kernel : flipflopkernels) {
+            if (kernel != null) {
+                kernel.close();
+            }
         }
         flag.close();
 
@@ -175,56 +158,37 @@ public class ParametricWatershed extends AbstractCLIJ2Plugin implements CLIJMacr
     static boolean dilateLabelsUntilNoChange(CLIJ2 clij2, ClearCLBuffer distanceMapIn, ClearCLBuffer labelMapIn, ClearCLBuffer distanceMapOut, ClearCLBuffer labelMapOut) {
 
         ClearCLBuffer flag = clij2.create(new long[]{1,1,1}, NativeTypeEnum.Byte);
-        ByteBuffer aByteBufferWithAZero = ByteBuffer.allocate(1);
-        aByteBufferWithAZero.put((byte)0);
-        flag.readFrom(aByteBufferWithAZero, true);
 
         clij2.set(labelMapOut, 0f);
         clij2.set(distanceMapOut, 0f);
 
+        ClearCLKernel[] flipflopkernels = new ClearCLKernel[2];
 
-        final int[] iterationCount = {0};
-        int flagValue = 1;
-
-        ClearCLKernel flipkernel = null;
-        ClearCLKernel flopkernel = null;
-
-        while (flagValue > 0) {
-            if (iterationCount[0] % 2 == 0) {
-                if (flipkernel == null) {
-                    flipkernel = dilateLabelsUntilNoChange(clij2, distanceMapIn, labelMapIn, flag, distanceMapOut, labelMapOut, flipkernel);
+        int iterationCount = new IterateUntilStable(flag).run(iteration -> {
+            if (iteration % 2 == 0) {
+                if (flipflopkernels[0] == null) {
+                    flipflopkernels[0] = dilateLabelsUntilNoChange(clij2, distanceMapIn, labelMapIn, flag, distanceMapOut, labelMapOut, null);
                 } else {
-                    flipkernel.run(true);
+                    flipflopkernels[0].run(false);
                 }
-                //clijx.saveAsTIF(distanceMapOut, "c:/structure/temp/dst/" + iterationCount[0] + ".tif");
-                //clijx.saveAsTIF(labelMapOut, "c:/structure/temp/lab/" + iterationCount[0] + ".tif");
             } else {
-                if (flopkernel == null) {
-                    flopkernel = dilateLabelsUntilNoChange(clij2, distanceMapOut, labelMapOut, flag, distanceMapIn, labelMapIn, flopkernel);
+                if (flipflopkernels[1] == null) {
+                    flipflopkernels[1] = dilateLabelsUntilNoChange(clij2, distanceMapOut, labelMapOut, flag, distanceMapIn, labelMapIn, null);
                 } else {
-                    flopkernel.run(true);
+                    flipflopkernels[1].run(false);
                 }
-                //clijx.saveAsTIF(distanceMapIn, "c:/structure/temp/dst/" + iterationCount[0] + ".tif");
-                //clijx.saveAsTIF(labelMapOut, "c:/structure/temp/lab/" + iterationCount[0] + ".tif");
             }
-
-            ImagePlus flagImp = clij2.pull(flag);
-            flagValue = flagImp.getProcessor().get(0,0);
-            flag.readFrom(aByteBufferWithAZero, true);
-            iterationCount[0] = iterationCount[0] + 1;
-            //System.out.println("cycling " + iterationCount[0]);
-        }
+        });
         flag.close();
 
-        if (iterationCount[0] % 2 == 0) {
+        if (iterationCount % 2 == 0) {
             clij2.copy(labelMapIn, labelMapOut);
             clij2.copy(distanceMapIn, distanceMapOut);
         }
-        if (flipkernel != null) {
-            flipkernel.close();
-        }
-        if (flopkernel != null) {
-            flopkernel.close();
+        for (ClearCLKernel kernel : flipflopkernels) {
+            if (kernel != null) {
+                kernel.close();
+            }
         }
 
         return true;
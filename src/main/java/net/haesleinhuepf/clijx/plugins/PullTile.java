@@ -12,6 +12,7 @@ import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
 import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
 import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
 import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.tilor.TileGrid;
 import org.scijava.plugin.Plugin;
 
 /**
@@ -95,28 +96,23 @@ public class PullTile extends AbstractCLIJ2Plugin implements CLIJMacroPlugin, CL
     }
 
     public static void pullTile(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer output, Integer tileX, Integer tileY, Integer tileZ, Integer width, Integer height, Integer depth, Integer marginWidth, Integer marginHeight, Integer marginDepth) {
-
-        ClearCLBuffer temp = clij2.create(new long[]{width, height, depth}, input.getNativeType());
-
-        int zEnd = (tileZ + 1) * depth;
-        int zStart = tileZ * depth;
-
-        if (tileX == 0) {
-            marginWidth = 0;
-        }
-        if (tileY == 0) {
-            marginHeight = 0;
-        }
-        if (tileZ == 0) {
-            marginDepth = 0;
-        }
-
-        clij2.crop(input, temp, marginWidth, marginHeight, marginDepth);
-        clij2.paste(temp, output, tileX * width, tileY * height, tileZ * depth);
-
+        TileGrid.Tile tile = new TileGrid(output, width, height, depth, marginWidth, marginHeight, marginDepth).getTile(tileX, tileY, tileZ);
+        ClearCLBuffer temp = clij2.create(tile.getCoreDimensions(), input.getNativeType());
+        pullTile(clij2, input, output, temp, tile);
         clij2.release(temp);
     }
 
+    /**
+     * Pastes a tile without its margins into the output image using a given temporary buffer of the size of the
+     * tile without margins, e.g. a staging buffer which is reused for several tiles.
+     */
+    public static void pullTile(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer output, ClearCLBuffer temp, TileGrid.Tile tile) {
+        long[] coreOffset = tile.getCoreOffset();
+        long[] coreOrigin = tile.getCoreOrigin();
+        clij2.crop(input, temp, coreOffset[0], coreOffset[1], coreOffset[2]);
+        clij2.paste(temp, output, coreOrigin[0], coreOrigin[1], coreOrigin[2]);
+    }
+
     @Override
     public ClearCLBuffer createOutputBufferFromSource(ClearCLBuffer input) {
 
@@ -13,6 +13,7 @@ import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
 import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
 import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
 import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.tilor.TileGrid;
 import org.scijava.plugin.Plugin;
 
 /**
@@ -118,38 +119,21 @@ public class PushTile extends AbstractCLIJ2Plugin implements CLIJMacroPlugin, CL
     }
 
     public static ClearCLBuffer pushTile(CLIJ2 clij2, ClearCLBuffer input, Integer tileX, Integer tileY, Integer tileZ, Integer width, Integer height, Integer depth, Integer marginWidth, Integer marginHeight, Integer marginDepth) {
-        long startX = tileX * width - marginWidth;
-        long startY = tileY * height - marginHeight;
-        long endX = (tileX + 1) * width + marginWidth - 1;
-        long endY = (tileY + 1) * height + marginHeight - 1;
-
-        if (startX < 0) {
-            startX = 0;
-        }
-        if (startY < 0) {
-            startY = 0;
-        }
-        if (endX >= input.getWidth()) {
-            endX = input.getWidth() - 1;
-        }
-        if (endY >= input.getHeight()) {
-            endY = input.getHeight() - 1;
-        }
-
-        long endZ = (tileZ + 1) * depth + marginDepth;
-        long startZ = tileZ * depth - marginDepth;
-        if (startZ < 0) {
-            startZ = 0;
-        }
-        if (endZ >= input.getDepth()) {
-            endZ = input.getDepth() - 1;
-        }
-
-        ClearCLBuffer output = clij2.create(new long[]{endX - startX + 1, endY - startY + 1, endZ - startZ + 1}, input.getNativeType());
-        clij2.crop(input, output, startX, startY, startZ);
+        TileGrid.Tile tile = new TileGrid(input, width, height, depth, marginWidth, marginHeight, marginDepth).getTile(tileX, tileY, tileZ);
+        ClearCLBuffer output = clij2.create(tile.getDimensions(), input.getNativeType());
+        pushTile(clij2, input, output, tile);
         return output;
     }
 
+    /**
+     * Crops a tile including its margins into an existing buffer, e.g. a staging buffer which is reused for
+     * several tiles. The output must have the size of the tile including its margins.
+     */
+    public static void pushTile(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer output, TileGrid.Tile tile) {
+        long[] origin = tile.getOrigin();
+        clij2.crop(input, output, origin[0], origin[1], origin[2]);
+    }
+
 
         @Override
     public ClearCLBuffer createOutputBufferFromSource(ClearCLBuffer input) {
@@ -11,6 +11,7 @@ import ij.process.ImageProcessor;
 import ij.process.LUT;
 import net.haesleinhuepf.clij.CLIJ;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
 import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
 import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
@@ -18,14 +19,19 @@ import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
 import net.haesleinhuepf.clijx.CLIJx;
 import net.haesleinhuepf.clijx.gui.Utilities;
 import net.haesleinhuepf.clijx.utilities.AbstractCLIJxPlugin;
+import net.haesleinhuepf.clijx.utilities.ImagePyramidCache;
 import net.imglib2.realtransform.AffineTransform3D;
 import org.scijava.plugin.Plugin;
 
 import javax.swing.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Show3DWithTipTilt
@@ -61,12 +67,23 @@ public class Show3DWithTipTilt extends AbstractCLIJxPlugin implements CLIJMacroP
         return "2D";
     }
 
+    // project by ray-marching through the stack instead of transforming the whole stack first
+    public static boolean use_ray_marching = true;
+
     CLIJx clijx;
 
     ClearCLBuffer myBuffer = null;
     ClearCLBuffer transformed = null;
     ClearCLBuffer myMaxProjection = null;
 
+    // levels of detail of my_source; myBuffer is its full resolution
+    private ImagePyramidCache.Pyramid pyramid = null;
+    private boolean showsPreview = false;
+
+    private ExecutorService renderer = null;
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean(false);
+    private volatile boolean previewRequested = false;
+
     double old_angleX = -1;
     double old_angleY = -1;
     double angleX = 0;
@@ -106,8 +123,7 @@ public class Show3DWithTipTilt extends AbstractCLIJxPlugin implements CLIJMacroP
             viewers.put(viewerName, viewer);
         } else {
             synchronized (viewer) {
-                viewer.myBuffer.close();
-                viewer.myBuffer = null;
+                viewer.releasePyramid();
             }
         }
         viewer.synchronise_windows = synchronise_windows;
@@ -145,52 +161,76 @@ public class Show3DWithTipTilt extends AbstractCLIJxPlugin implements CLIJMacroP
     }
 
     private void refresh(boolean callingMySelf) {
+        refresh(callingMySelf, false);
+    }
+
+    /**
+     * Renders the view; a preview is rendered from a coarse level of detail while the mouse is dragged.
+     */
+    private void refresh(boolean callingMySelf, boolean preview) {
         synchronized (this) {
+            if (clijx == null) {
+                // the viewer was closed while a refresh was pending
+                return;
+            }
             int min_z = 0;
             int max_z = my_source.getNSlices() - 1;
             System.out.println("AngleX " + angleX);
             System.out.println("Old angle X " + old_angleX);
 
+            boolean sourceChanged = pyramid != null && pyramid.isOutdated();
+            if (sourceChanged) {
+                pyramid.release();
+                pyramid = null;
+                myBuffer = null;
+            }
             if (
+                    sourceChanged ||
                     old_angleX != angleX ||
                     old_angleY != angleY ||
                     old_translateX != translateX ||
-                    old_translateY != translateY
+                    old_translateY != translateY ||
+                    (showsPreview && !preview)
             ) {
                 if (myBuffer == null) {
-                    myBuffer = clijx.pushCurrentZStack(my_source);
+                    pyramid = ImagePyramidCache.acquire(clijx, my_source);
+                    myBuffer = pyramid.getFullResolution();
                 }
 
                 // System.out.println(myBuffer);
                 //System.out.println("Angle: " + angleX + "/" + angleY);
                 //transformed = clijx.create(new long[]{myBuffer.getWidth(), myBuffer.getHeight(), (long)(myBuffer.getDepth() * 1.5)}, myBuffer.getNativeType());
-                if (transformed == null) {
-                    transformed = clijx.create(new long[]{
-                            (long) (myBuffer.getWidth() * scale1X),
-                            (long) (myBuffer.getHeight() * scale1Y),
-                            (long) (myBuffer.getDepth() * scale1Z)}, myBuffer.getNativeType());
+                long transformedWidth = (long) (myBuffer.getWidth() * scale1X);
+                long transformedHeight = (long) (myBuffer.getHeight() * scale1Y);
+                long transformedDepth = (long) (myBuffer.getDepth() * scale1Z);
+                if (transformed == null && !use_ray_marching) {
+                    transformed = clijx.create(new long[]{transformedWidth, transformedHeight, transformedDepth}, myBuffer.getNativeType());
                 }
                 if (myMaxProjection == null) {
-                    myMaxProjection = clijx.create(new long[]{transformed.getWidth(), transformed.getHeight()}, transformed.getNativeType());
+                    myMaxProjection = clijx.create(new long[]{transformedWidth, transformedHeight}, myBuffer.getNativeType());
                 }
                 AffineTransform3D at = new AffineTransform3D();
                 at.scale(scale1X, scale1Y, scale1Z);
                 at.translate(translateX, translateY, 0);
-                at.translate(-transformed.getWidth() / 2, -transformed.getHeight() / 2, 0);
+                at.translate(-transformedWidth / 2, -transformedHeight / 2, 0);
                 at.rotate(1, angleX / 180.0 * Math.PI);
                 at.rotate(0, angleY / 180.0 * Math.PI);
-                at.translate(transformed.getWidth() / 2, transformed.getHeight() / 2, 0);
+                at.translate(transformedWidth / 2, transformedHeight / 2, 0);
 
-                //# Execute operation on GPU
-                clijx.affineTransform3D(myBuffer, transformed, at);
+                if (use_ray_marching) {
+                    showsPreview = rayMarchProjection(at, (int) Math.min(max_z + 1, transformedDepth), preview);
+                } else {
+                    //# Execute operation on GPU
+                    clijx.affineTransform3D(myBuffer, transformed, at);
 
 
-                if (projection.compareTo("Max") == 0) {
-                    clijx.maximumZProjectionBounded(transformed, myMaxProjection, min_z, max_z);
-                } else if (projection.compareTo("Min") == 0) {
-                    clijx.minimumZProjectionBounded(transformed, myMaxProjection, min_z, max_z);
-                } else if (projection.compareTo("Mean") == 0) {
-                    clijx.meanZProjectionBounded(transformed, myMaxProjection, min_z, max_z);
+                    if (projection.compareTo("Max") == 0) {
+                        clijx.maximumZProjectionBounded(transformed, myMaxProjection, min_z, max_z);
+                    } else if (projection.compareTo("Min") == 0) {
+                        clijx.minimumZProjectionBounded(transformed, myMaxProjection, min_z, max_z);
+                    } else if (projection.compareTo("Mean") == 0) {
+                        clijx.meanZProjectionBounded(transformed, myMaxProjection, min_z, max_z);
+                    }
                 }
 
                 LUT lut = null;
@@ -261,12 +301,82 @@ public class Show3DWithTipTilt extends AbstractCLIJxPlugin implements CLIJMacroP
                     viewer.angleY = angleY;
                     viewer.translateX = translateX;
                     viewer.translateY = translateY;
-                    viewer.refresh(false);
+                    viewer.refresh(false, preview);
                 }
             }
         }
     }
 
+    /**
+     * Refreshes the view in the background. Latest request wins: requests arriving while a frame is rendered replace
+     * each other, so that only the most recent view is rendered next and stale frames are dropped.
+     */
+    private void requestRefresh(boolean preview) {
+        previewRequested = preview;
+        if (refreshScheduled.compareAndSet(false, true)) {
+            if (renderer == null) {
+                renderer = Executors.newSingleThreadExecutor();
+            }
+            renderer.submit(() -> {
+                refreshScheduled.set(false);
+                try {
+                    refresh(true, previewRequested);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return true if a coarse level of detail was rendered
+     */
+    private boolean rayMarchProjection(AffineTransform3D at, int numberOfPlanes, boolean preview) {
+        int level = preview ? pyramid.getPreviewLevel(ImagePyramidCache.preview_maximum_voxels) : 0;
+        int blockSize = 1 << level;
+        ImagePyramidCache.Reduction reduction = ImagePyramidCache.Reduction.ofProjection(projection);
+        ClearCLBuffer source = pyramid.getLevel(level, reduction);
+
+        // from target to source coordinates, both in units of the pyramid level
+        AffineTransform3D targetToSource = new AffineTransform3D();
+        targetToSource.scale(blockSize);
+        targetToSource.preConcatenate(at.inverse());
+        targetToSource.scale(1.0 / blockSize);
+        double[] rowPacked = targetToSource.getRowPackedCopy();
+        float[] matrix = new float[rowPacked.length];
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = (float) rowPacked[i];
+        }
+        ClearCLBuffer matrixBuffer = clijx.create(new long[]{matrix.length, 1}, NativeTypeEnum.Float);
+        matrixBuffer.readFrom(FloatBuffer.wrap(matrix), true);
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", source);
+        parameters.put("dst", myMaxProjection);
+        parameters.put("mat", matrixBuffer);
+        parameters.put("projection", reduction.ordinal());
+        parameters.put("number_of_planes", numberOfPlanes);
+        parameters.put("block_size", blockSize);
+        long[] globalSizes = {
+                (myMaxProjection.getWidth() + blockSize - 1) / blockSize,
+                (myMaxProjection.getHeight() + blockSize - 1) / blockSize
+        };
+        clijx.execute(Show3DWithTipTilt.class, "show_3d_with_tip_tilt_x.cl", "ray_march_projection", myMaxProjection.getDimensions(), globalSizes, parameters);
+        matrixBuffer.close();
+        return level > 0;
+    }
+
+    private void releasePyramid() {
+        if (pyramid != null) {
+            pyramid.release();
+            // my_source is a copy nobody else shows
+            ImagePyramidCache.invalidate(my_source);
+            pyramid = null;
+            myBuffer = null;
+        }
+        showsPreview = false;
+    }
+
     private class TipTiltMouseHandler extends PlugInTool {
 
         public TipTiltMouseHandler(){}
@@ -309,13 +419,24 @@ public class Show3DWithTipTilt extends AbstractCLIJxPlugin implements CLIJMacroP
                         angleX = angleStartX - deltaX / 5;
                         angleY = angleStartY + deltaY / 5;
                     }
-                    refresh();
+                    requestRefresh(true);
                     //System.out.println("Refreshing...");
                     return;
                 }
             }
         }
 
+        @Override
+        public void mouseReleased(ImagePlus imp, MouseEvent e) {
+            for (Show3DWithTipTilt viewer : viewers.values()) {
+                if (imp == viewer.my_display) {
+                    // refine the preview shown while dragging
+                    requestRefresh(false);
+                    return;
+                }
+            }
+        }
+
         @Override
         public String getToolName() {
             return "CLIJx Tip/tilt";
@@ -353,15 +474,22 @@ public class Show3DWithTipTilt extends AbstractCLIJxPlugin implements CLIJMacroP
     }
 
 
-    private void finish() {
-        my_source = null;
+    private synchronized void finish() {
         my_display = null;
         viewers.remove(viewerName);
 
+        if (renderer != null) {
+            renderer.shutdown();
+            renderer = null;
+        }
+
         //ImagePlus.removeImageListener(this);
-        clijx.release(myBuffer);
+        releasePyramid();
+        my_source = null;
         clijx.release(myMaxProjection);
-        clijx.release(transformed);
+        if (transformed != null) {
+            clijx.release(transformed);
+        }
 
         clijx = null;
     }
@@ -9,6 +9,7 @@ import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
 import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
+import net.haesleinhuepf.clijx.utilities.SparseLabelAdjacency;
 import org.scijava.plugin.Plugin;
 
 /**
@@ -56,6 +57,10 @@ public class StandardDeviationOfTouchingNeighborsMap extends AbstractCLIJ2Plugin
         }
 
         int number_of_labels = (int) clij2.maximumOfAllPixels(label_map);
+        if (SparseLabelAdjacency.isRecommended(number_of_labels)) {
+            return SparseLabelAdjacency.touchingNeighborsMap(clij2, parametric_map, label_map, parametric_map_destination, number_of_labels, radius, ignore_touching_background, SparseLabelAdjacency.Reduction.STANDARD_DEVIATION);
+        }
+
         ClearCLBuffer touch_matrix = clij2.create(new long[]{number_of_labels + 1, number_of_labels + 1});
 
         clij2.generateTouchMatrix(label_map, touch_matrix);
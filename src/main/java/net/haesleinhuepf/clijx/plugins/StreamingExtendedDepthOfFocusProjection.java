@@ -0,0 +1,153 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+import java.util.HashMap;
+
+/**
+ * Extended depth of focus projection walking through a stack in slabs of planes. Per pixel, only the best focus
+ * score so far, the intensity at that position and its Z-position (altitude) are kept; memory is hence about three
+ * slabs instead of two float copies of the whole stack.
+ *
+ * Focus measures and their blur act within planes, so slabs don't need to overlap and results equal those of
+ * ExtendedDepthOfFocusVarianceProjection, ...SobelProjection and ...TenengradProjection. Slabs can be taken from a
+ * stack in GPU memory or pushed one by one, e.g. from a virtual stack on disk.
+ */
+public class StreamingExtendedDepthOfFocusProjection {
+    // stacks deeper than this are projected slab-wise by the extended depth of focus projections
+    public static int slab_depth = 64;
+
+    public enum FocusMeasure {
+        VARIANCE,
+        SOBEL,
+        TENENGRAD
+    }
+
+    private final CLIJ2 clij2;
+    private final FocusMeasure measure;
+    private final int radiusX;
+    private final int radiusY;
+    private final float sigma;
+
+    private final ClearCLBuffer bestScore;
+    private final ClearCLBuffer bestValue;
+    private final ClearCLBuffer altitude;
+    private int numberOfPlanes = 0;
+
+    /**
+     * The radii are only used for the variance.
+     */
+    public StreamingExtendedDepthOfFocusProjection(CLIJ2 clij2, long width, long height, FocusMeasure measure, int radius_x, int radius_y, float sigma) {
+        this.clij2 = clij2;
+        this.measure = measure;
+        this.radiusX = radius_x;
+        this.radiusY = radius_y;
+        this.sigma = sigma;
+
+        bestScore = clij2.create(new long[]{width, height}, NativeTypeEnum.Float);
+        bestValue = clij2.create(new long[]{width, height}, NativeTypeEnum.Float);
+        altitude = clij2.create(new long[]{width, height}, NativeTypeEnum.Float);
+        clij2.set(bestScore, Float.NEGATIVE_INFINITY);
+        clij2.set(bestValue, 0);
+        clij2.set(altitude, 0);
+    }
+
+    /**
+     * Takes the next planes into account; slabs must be handed over in Z order.
+     */
+    public void add(ClearCLBuffer slab) {
+        ClearCLBuffer score = clij2.create(slab.getDimensions(), NativeTypeEnum.Float);
+        switch (measure) {
+            case VARIANCE:
+                VarianceSphere.varianceSphere(clij2, slab, score, radiusX, radiusY, 0);
+                break;
+            case SOBEL:
+                SobelSliceBySlice.sobelSliceBySlice(clij2, slab, score);
+                break;
+            case TENENGRAD:
+                TenengradSliceBySlice.tenengradSliceBySlice(clij2, slab, score);
+                break;
+        }
+        ClearCLBuffer blurred = clij2.create(score);
+        clij2.gaussianBlur3D(score, blurred, sigma, sigma, 0);
+        score.close();
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", slab);
+        parameters.put("score", blurred);
+        parameters.put("best_score", bestScore);
+        parameters.put("best_value", bestValue);
+        parameters.put("altitude", altitude);
+        parameters.put("z_offset", numberOfPlanes);
+        clij2.execute(StreamingExtendedDepthOfFocusProjection.class, "extended_depth_of_focus_update_x.cl", "extended_depth_of_focus_update", bestScore.getDimensions(), bestScore.getDimensions(), parameters);
+        blurred.close();
+
+        numberOfPlanes += slab.getDimension() > 2 ? slab.getDepth() : 1;
+    }
+
+    public void getProjection(ClearCLBuffer destination) {
+        clij2.copy(bestValue, destination);
+    }
+
+    public void getAltitude(ClearCLBuffer destination) {
+        clij2.copy(altitude, destination);
+    }
+
+    public void close() {
+        bestScore.close();
+        bestValue.close();
+        altitude.close();
+    }
+
+    /**
+     * Projects a stack in GPU memory slab by slab.
+     *
+     * @param altitude_destination Z-position of the best focus per pixel, or null
+     */
+    public static boolean project(CLIJ2 clij2, ClearCLBuffer src, ClearCLBuffer dst, ClearCLBuffer altitude_destination, FocusMeasure measure, int radius_x, int radius_y, float sigma) {
+        StreamingExtendedDepthOfFocusProjection projection = new StreamingExtendedDepthOfFocusProjection(clij2, src.getWidth(), src.getHeight(), measure, radius_x, radius_y, sigma);
+        long depth = src.getDepth();
+        for (long z0 = 0; z0 < depth; z0 += slab_depth) {
+            ClearCLBuffer slab = clij2.create(new long[]{src.getWidth(), src.getHeight(), Math.min(slab_depth, depth - z0)}, src.getNativeType());
+            clij2.crop3D(src, slab, 0, 0, z0);
+            projection.add(slab);
+            slab.close();
+        }
+        projection.getProjection(dst);
+        if (altitude_destination != null) {
+            projection.getAltitude(altitude_destination);
+        }
+        projection.close();
+        return true;
+    }
+
+    /**
+     * Projects a stack which doesn't need to fit in GPU memory, e.g. a virtual stack; planes are pushed slab by slab.
+     *
+     * @param altitude_destination Z-position of the best focus per pixel, or null
+     */
+    public static boolean project(CLIJ2 clij2, ImagePlus imp, ClearCLBuffer dst, ClearCLBuffer altitude_destination, FocusMeasure measure, int radius_x, int radius_y, float sigma) {
+        StreamingExtendedDepthOfFocusProjection projection = new StreamingExtendedDepthOfFocusProjection(clij2, imp.getWidth(), imp.getHeight(), measure, radius_x, radius_y, sigma);
+        ImageStack stack = imp.getStack();
+        int depth = stack.getSize();
+        for (int z0 = 0; z0 < depth; z0 += slab_depth) {
+            ImageStack slabStack = new ImageStack(imp.getWidth(), imp.getHeight());
+            for (int z = z0; z < Math.min(z0 + slab_depth, depth); z++) {
+                slabStack.addSlice(stack.getProcessor(z + 1));
+            }
+            ClearCLBuffer slab = clij2.push(new ImagePlus("slab", slabStack));
+            projection.add(slab);
+            slab.close();
+        }
+        projection.getProjection(dst);
+        if (altitude_destination != null) {
+            projection.getAltitude(altitude_destination);
+        }
+        projection.close();
+        return true;
+    }
+}
@@ -0,0 +1,32 @@
+__kernel void extended_depth_of_focus_update(
+    IMAGE_src_TYPE src,
+    IMAGE_score_TYPE score,
+    IMAGE_best_score_TYPE best_score,
+    IMAGE_best_value_TYPE best_value,
+    IMAGE_altitude_TYPE altitude,
+    int z_offset
+) {
+  const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+  const int x = get_global_id(0);
+  const int y = get_global_id(1);
+  const int depth = GET_IMAGE_DEPTH(score);
+
+  float best = READ_best_score_IMAGE(best_score, sampler, POS_best_score_INSTANCE(x, y, 0, 0)).x;
+  float value = READ_best_value_IMAGE(best_value, sampler, POS_best_value_INSTANCE(x, y, 0, 0)).x;
+  float position = READ_altitude_IMAGE(altitude, sampler, POS_altitude_INSTANCE(x, y, 0, 0)).x;
+
+  // the first maximum wins, as in argMaximumZProjection
+  for (int z = 0; z < depth; z++) {
+    float s = READ_score_IMAGE(score, sampler, POS_score_INSTANCE(x, y, z, 0)).x;
+    if (s > best || z + z_offset == 0) {
+      best = s;
+      value = READ_src_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z, 0)).x;
+      position = z + z_offset;
+    }
+  }
+
+  WRITE_best_score_IMAGE(best_score, POS_best_score_INSTANCE(x, y, 0, 0), CONVERT_best_score_PIXEL_TYPE(best));
+  WRITE_best_value_IMAGE(best_value, POS_best_value_INSTANCE(x, y, 0, 0), CONVERT_best_value_PIXEL_TYPE(value));
+  WRITE_altitude_IMAGE(altitude, POS_altitude_INSTANCE(x, y, 0, 0), CONVERT_altitude_PIXEL_TYPE(position));
+}
@@ -0,0 +1,67 @@
+inline void count_pair(IMAGE_dst_histogram_TYPE dst_histogram, int levels, int value_1, int value_2) {
+  // grey values outside the matrix are not counted
+  if (value_1 < 0 || value_2 < 0 || value_1 >= levels || value_2 >= levels) {
+    return;
+  }
+  atomic_inc(&dst_histogram[value_1 * levels + value_2]);
+  atomic_inc(&dst_histogram[value_2 * levels + value_1]);
+}
+
+__kernel void integer_grey_value_cooccurrence_count(
+    IMAGE_src_TYPE src,
+    IMAGE_dst_histogram_TYPE dst_histogram,
+    int depth,
+    int half_box
+) {
+  const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+  const int x = get_global_id(0);
+  const int y = get_global_id(1);
+  const int z = get_global_id(2);
+  const int width = get_global_size(0);
+  const int height = get_global_size(1);
+  const int levels = GET_IMAGE_WIDTH(dst_histogram);
+
+  const int value_1 = (int) READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z, 0)).x;
+
+  // right
+  if (x < width - 1) {
+    count_pair(dst_histogram, levels, value_1, (int) READ_IMAGE(src, sampler, POS_src_INSTANCE(x + 1, y, z, 0)).x);
+  }
+  // bottom
+  if (y < height - 1) {
+    count_pair(dst_histogram, levels, value_1, (int) READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y + 1, z, 0)).x);
+  }
+
+  if (half_box) {
+    // bottom, right
+    if (x < width - 1 && y < height - 1) {
+      count_pair(dst_histogram, levels, value_1, (int) READ_IMAGE(src, sampler, POS_src_INSTANCE(x + 1, y + 1, z, 0)).x);
+    }
+    // top, right
+    if (y > 0 && x < width - 1) {
+      count_pair(dst_histogram, levels, value_1, (int) READ_IMAGE(src, sampler, POS_src_INSTANCE(x + 1, y - 1, z, 0)).x);
+    }
+    // next plane; neighbors are addressed by index within the plane as on the CPU
+    if (z < depth - 1) {
+      const int i = y * width + x;
+      for (int delta_x = -1; delta_x <= 1; delta_x ++) {
+        for (int delta_y = -1; delta_y <= 1; delta_y ++) {
+          int index = i + delta_x + width * delta_y;
+          if (x + delta_x < width &&
+              x - delta_x >= 0 &&
+              y + delta_y < height &&
+              y - delta_y >= 0 &&
+              index >= 0 && index < width * height) {
+            count_pair(dst_histogram, levels, value_1, (int) READ_IMAGE(src, sampler, POS_src_INSTANCE(index % width, index / width, z + 1, 0)).x);
+          }
+        }
+      }
+    }
+  } else {
+    // next plane
+    if (z < depth - 1) {
+      count_pair(dst_histogram, levels, value_1, (int) READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z + 1, 0)).x);
+    }
+  }
+}
@@ -0,0 +1,29 @@
+__kernel void k_means_predict(
+    IMAGE_src_features_TYPE src_features,
+    IMAGE_src_centers_TYPE src_centers,
+    IMAGE_dst_classes_TYPE dst_classes
+) {
+  const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+  // features and centers are organized like point lists: one column per sample / center, one row per feature
+  const int sample = get_global_id(0);
+  const int feature_count = GET_IMAGE_HEIGHT(src_features);
+  const int center_count = GET_IMAGE_WIDTH(src_centers);
+
+  float minimum_squared_distance = INFINITY;
+  int klass = 0;
+  for (int k = 0; k < center_count; k++) {
+    float squared_distance = 0;
+    for (int f = 0; f < feature_count; f++) {
+      float difference = READ_IMAGE(src_features, sampler, POS_src_features_INSTANCE(sample, f, 0, 0)).x -
+                         READ_IMAGE(src_centers, sampler, POS_src_centers_INSTANCE(k, f, 0, 0)).x;
+      squared_distance += difference * difference;
+    }
+    if (squared_distance < minimum_squared_distance) {
+      minimum_squared_distance = squared_distance;
+      klass = k + 1; // because 0 corresponds to background
+    }
+  }
+
+  WRITE_dst_classes_IMAGE(dst_classes, POS_dst_classes_INSTANCE(sample + 1, 0, 0, 0), CONVERT_dst_classes_PIXEL_TYPE(klass));
+}
@@ -0,0 +1,68 @@
+// projection: 0 = maximum, 1 = minimum, 2 = mean
+
+__kernel void ray_march_projection(
+    IMAGE_src_TYPE src,
+    IMAGE_dst_TYPE dst,
+    IMAGE_mat_TYPE mat,
+    int projection,
+    int number_of_planes,
+    int block_size
+) {
+  const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+  const int i = get_global_id(0);
+  const int j = get_global_id(1);
+
+  const int width = GET_IMAGE_WIDTH(src);
+  const int height = GET_IMAGE_HEIGHT(src);
+  const int depth = GET_IMAGE_DEPTH(src);
+
+  // source position of the ray in front of the first plane; every plane moves it along the third matrix column
+  const float x = i + 0.5f;
+  const float y = j + 0.5f;
+  const float x0 = mat[0] * x + mat[1] * y + mat[3];
+  const float y0 = mat[4] * x + mat[5] * y + mat[7];
+  const float z0 = mat[8] * x + mat[9] * y + mat[11];
+
+  const int planes = (number_of_planes + block_size - 1) / block_size;
+
+  float result = 0;
+  if (projection == 0) {
+    result = -FLT_MAX;
+  } else if (projection == 1) {
+    result = FLT_MAX;
+  }
+  for (int k = 0; k < planes; k++) {
+    const float z = k + 0.5f;
+    const int sx = (int) floor(x0 + mat[2] * z);
+    const int sy = (int) floor(y0 + mat[6] * z);
+    const int sz = (int) floor(z0 + mat[10] * z);
+
+    // outside the stack counts as zero, as in the transformed volume
+    float value = 0;
+    if (sx >= 0 && sy >= 0 && sz >= 0 && sx < width && sy < height && sz < depth) {
+      value = READ_src_IMAGE(src, sampler, POS_src_INSTANCE(sx, sy, sz, 0)).x;
+    }
+    if (projection == 0) {
+      result = max(result, value);
+    } else if (projection == 1) {
+      result = min(result, value);
+    } else {
+      result = result + value;
+    }
+  }
+  if (projection == 2) {
+    result = result / planes;
+  }
+
+  // coarse levels of detail fill a block of pixels
+  for (int dy = 0; dy < block_size; dy++) {
+    for (int dx = 0; dx < block_size; dx++) {
+      const int tx = i * block_size + dx;
+      const int ty = j * block_size + dy;
+      if (tx < GET_IMAGE_WIDTH(dst) && ty < GET_IMAGE_HEIGHT(dst)) {
+        WRITE_dst_IMAGE(dst, POS_dst_INSTANCE(tx, ty, 0, 0), CONVERT_dst_PIXEL_TYPE(result));
+      }
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package net.haesleinhuepf.clijx.plugins.tenengradfusion;
 
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
 import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
 import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
@@ -17,6 +18,10 @@ import static net.haesleinhuepf.clij.utilities.CLIJUtilities.assertDifferent;
  * June 2019
  */
 public abstract class AbstractTenengradFusion extends AbstractCLIJxPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation, HasAuthor {
+    // accumulate weighted sum and sum of weights view by view instead of keeping all weights; used for more than 12 views anyway
+    public static boolean incremental_fusion = false;
+    // fuse slabs of the given number of planes one after another in incremental fusion; 0 fuses the whole stack at once
+    public static int slab_depth = 0;
 
     @Override
     public boolean executeCL() {
@@ -48,9 +53,6 @@ public abstract class AbstractTenengradFusion extends AbstractCLIJxPlugin implem
         for (int i = 0; i < clImagesIn.length; i++) {
             assertDifferent(clImagesIn[i], clImageOut);
         }
-        if (clImagesIn.length > 12) {
-            throw new IllegalArgumentException("Error: tenengradFusion does not support more than 12 stacks.");
-        }
         if (clImagesIn.length == 1) {
             return clijx.copy(clImagesIn[0], clImageOut);
         }
@@ -60,6 +62,9 @@ public abstract class AbstractTenengradFusion extends AbstractCLIJxPlugin implem
         if (clImagesIn[0].getNativeType() != clijx.Float) {
             System.out.println("Warning: tenengradFusion may only work on float images!");
         }
+        if (incremental_fusion || slab_depth > 0 || clImagesIn.length > 12) {
+            return incrementalTenengradFusion(clijx, clImageOut, blurSigmas, exponent, clImagesIn);
+        }
 
         HashMap<String, Object> lFusionParameters = new HashMap<>();
 
@@ -107,6 +112,91 @@ public abstract class AbstractTenengradFusion extends AbstractCLIJxPlugin implem
     }
 
 
+    /**
+     * Fuses any number of views holding only the sums of weighted intensities and weights besides one weight image
+     * on the GPU. With slab_depth, memory is limited to a few slabs, extended by the blur radius in Z.
+     */
+    public static boolean incrementalTenengradFusion(CLIJx clijx, ClearCLBuffer clImageOut, float[] blurSigmas, float exponent, ClearCLBuffer... clImagesIn) {
+        long[] dimensions = clImagesIn[0].getDimensions();
+        long depth = clImagesIn[0].getDimension() > 2 ? clImagesIn[0].getDepth() : 1;
+        long slabDepth = (slab_depth > 0 && clImagesIn[0].getDimension() > 2) ? Math.min(slab_depth, depth) : depth;
+        // planes needed around a slab for the sobel operator and the blur
+        long halo = slabDepth < depth ? (long) Math.ceil(4 * blurSigmas[2]) + 1 : 0;
+
+        for (long z0 = 0; z0 < depth; z0 += slabDepth) {
+            long coreDepth = Math.min(slabDepth, depth - z0);
+            long start = Math.max(0, z0 - halo);
+            long end = Math.min(depth, z0 + coreDepth + halo);
+            boolean wholeStack = start == 0 && end == depth;
+
+            long[] slabDimensions = dimensions.clone();
+            long[] coreDimensions = dimensions.clone();
+            if (dimensions.length > 2) {
+                slabDimensions[2] = end - start;
+                coreDimensions[2] = coreDepth;
+            }
+
+            ClearCLBuffer slab = wholeStack ? null : clijx.create(slabDimensions, clImagesIn[0].getNativeType());
+            ClearCLBuffer temporaryImage = clijx.create(slabDimensions, NativeTypeEnum.Float);
+            ClearCLBuffer temporaryImage2 = null;
+            if (Math.abs(exponent - 1.0f) > 0.0001) {
+                temporaryImage2 = clijx.create(slabDimensions, NativeTypeEnum.Float);
+            }
+            ClearCLBuffer weight = clijx.create(slabDimensions, NativeTypeEnum.Float);
+            ClearCLBuffer weightedSum = clijx.create(coreDimensions, NativeTypeEnum.Float);
+            ClearCLBuffer weightSum = clijx.create(coreDimensions, NativeTypeEnum.Float);
+            clijx.set(weightedSum, 0);
+            clijx.set(weightSum, 0);
+
+            for (int i = 0; i < clImagesIn.length; i++) {
+                ClearCLBuffer source = clImagesIn[i];
+                if (!wholeStack) {
+                    clijx.crop3D(clImagesIn[i], slab, 0, 0, start);
+                    source = slab;
+                }
+
+                HashMap<String, Object> parameters = new HashMap<>();
+                parameters.put("src", source);
+                parameters.put("dst", temporaryImage);
+                clijx.execute(AbstractTenengradFusion.class, "tenengrad_weight_unnormalized_x.cl", "tenengrad_weight_unnormalized", temporaryImage.getDimensions(), temporaryImage.getDimensions(), parameters);
+
+                if (temporaryImage2 != null) {
+                    clijx.power(temporaryImage, temporaryImage2, exponent);
+                    clijx.gaussianBlur(temporaryImage2, weight, blurSigmas[0], blurSigmas[1], blurSigmas[2]);
+                } else {
+                    clijx.gaussianBlur(temporaryImage, weight, blurSigmas[0], blurSigmas[1], blurSigmas[2]);
+                }
+
+                parameters = new HashMap<>();
+                parameters.put("src", source);
+                parameters.put("weight", weight);
+                parameters.put("weighted_sum", weightedSum);
+                parameters.put("weight_sum", weightSum);
+                parameters.put("offset_z", (int) (z0 - start));
+                clijx.execute(AbstractTenengradFusion.class, "tenengrad_fusion_incremental_x.cl", "tenengrad_fusion_accumulate", weightedSum.getDimensions(), weightedSum.getDimensions(), parameters);
+            }
+
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("weighted_sum", weightedSum);
+            parameters.put("weight_sum", weightSum);
+            parameters.put("dst", clImageOut);
+            parameters.put("dst_offset_z", (int) z0);
+            clijx.execute(AbstractTenengradFusion.class, "tenengrad_fusion_incremental_x.cl", "tenengrad_fusion_normalize", weightedSum.getDimensions(), weightedSum.getDimensions(), parameters);
+
+            if (slab != null) {
+                slab.close();
+            }
+            temporaryImage.close();
+            if (temporaryImage2 != null) {
+                temporaryImage2.close();
+            }
+            weight.close();
+            weightedSum.close();
+            weightSum.close();
+        }
+        return true;
+    }
+
     protected String getParameterHelpText(int num_images) {
         StringBuilder result = new StringBuilder();
         for (int i = 0; i < num_images; i++) {
@@ -0,0 +1,41 @@
+__kernel void tenengrad_fusion_accumulate(
+    IMAGE_src_TYPE src,
+    IMAGE_weight_TYPE weight,
+    IMAGE_weighted_sum_TYPE weighted_sum,
+    IMAGE_weight_sum_TYPE weight_sum,
+    int offset_z
+) {
+  const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+  const int x = get_global_id(0);
+  const int y = get_global_id(1);
+  const int z = get_global_id(2);
+
+  // src and weight may contain additional planes before and after the planes accumulated here
+  const float v = (float)READ_src_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z + offset_z, 0)).x;
+  const float w = READ_weight_IMAGE(weight, sampler, POS_weight_INSTANCE(x, y, z + offset_z, 0)).x;
+
+  const float sum = READ_weighted_sum_IMAGE(weighted_sum, sampler, POS_weighted_sum_INSTANCE(x, y, z, 0)).x;
+  const float wsum = READ_weight_sum_IMAGE(weight_sum, sampler, POS_weight_sum_INSTANCE(x, y, z, 0)).x;
+
+  WRITE_weighted_sum_IMAGE(weighted_sum, POS_weighted_sum_INSTANCE(x, y, z, 0), CONVERT_weighted_sum_PIXEL_TYPE(sum + w * v));
+  WRITE_weight_sum_IMAGE(weight_sum, POS_weight_sum_INSTANCE(x, y, z, 0), CONVERT_weight_sum_PIXEL_TYPE(wsum + w));
+}
+
+__kernel void tenengrad_fusion_normalize(
+    IMAGE_weighted_sum_TYPE weighted_sum,
+    IMAGE_weight_sum_TYPE weight_sum,
+    IMAGE_dst_TYPE dst,
+    int dst_offset_z
+) {
+  const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+  const int x = get_global_id(0);
+  const int y = get_global_id(1);
+  const int z = get_global_id(2);
+
+  const float sum = READ_weighted_sum_IMAGE(weighted_sum, sampler, POS_weighted_sum_INSTANCE(x, y, z, 0)).x;
+  const float wsum = READ_weight_sum_IMAGE(weight_sum, sampler, POS_weight_sum_INSTANCE(x, y, z, 0)).x + 1e-30f; // add small epsilon to avoid wsum = 0
+
+  WRITE_dst_IMAGE(dst, POS_dst_INSTANCE(x, y, z + dst_offset_z, 0), CONVERT_dst_PIXEL_TYPE(sum / wsum));
+}
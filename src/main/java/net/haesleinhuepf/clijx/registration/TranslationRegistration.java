@@ -7,9 +7,12 @@ import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
 import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
 import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
 import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import net.haesleinhuepf.clijx.utilities.PhaseCorrelation;
 import net.imglib2.realtransform.AffineTransform3D;
 import org.scijava.plugin.Plugin;
 
+import java.nio.FloatBuffer;
+
 /**
  *
  * Author: haesleinhuepf
@@ -18,6 +21,8 @@ import org.scijava.plugin.Plugin;
 
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_translationRegistration")
 public class TranslationRegistration extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
+    // determine the translation by phase correlation of the whole images instead of centers of mass
+    public static boolean use_phase_correlation = false;
 
     @Override
     public String getParameterHelpText() {
@@ -33,11 +38,37 @@ public class TranslationRegistration extends AbstractCLIJPlugin implements CLIJM
     }
 
     public static boolean translationRegistration(CLIJ clij, ClearCLBuffer input1, ClearCLBuffer input2, ClearCLBuffer output) {
+        if (use_phase_correlation) {
+            double[] shift = phaseCorrelationShift(clij, input1, input2);
+            AffineTransform3D at = new AffineTransform3D();
+            at.translate(-shift[0], -shift[1], -shift[2]);
+            clij.op().affineTransform3D(input2, output, at);
+            return true;
+        }
 
         double[] center =centerOfMass(clij, input1);
         return translationRegistration(clij, input2, output, center);
     }
 
+    /**
+     * Returns the translation of the content of input2 against input1 in x, y and z.
+     */
+    public static double[] phaseCorrelationShift(CLIJ clij, ClearCLBuffer input1, ClearCLBuffer input2) {
+        int width = (int) input1.getWidth();
+        int height = (int) input1.getHeight();
+        int depth = input1.getDimension() > 2 ? (int) input1.getDepth() : 1;
+        return PhaseCorrelation.shift(pullFloat(clij, input1), pullFloat(clij, input2), width, height, depth);
+    }
+
+    private static float[] pullFloat(CLIJ clij, ClearCLBuffer buffer) {
+        ClearCLBuffer temp = clij.create(buffer.getDimensions(), NativeTypeEnum.Float);
+        clij.op().copy(buffer, temp);
+        float[] array = new float[(int) temp.getVolume()];
+        temp.writeTo(FloatBuffer.wrap(array), true);
+        temp.close();
+        return array;
+    }
+
     static double[] centerOfMass(CLIJ clij, ClearCLBuffer input1) {
         ClearCLBuffer thresholded = clij.create(input1.getDimensions(), NativeTypeEnum.Byte);
         clij.op().automaticThreshold(input1, thresholded, "default");
@@ -76,7 +107,8 @@ public class TranslationRegistration extends AbstractCLIJPlugin implements CLIJM
     @Override
     public String getDescription() {
         return "Measures center of mass of thresholded objects in the two input images and translates" +
-                " the second image so that it better fits to the first image.";
+                " the second image so that it better fits to the first image. Alternatively, the translation can be" +
+                " determined by phase correlation by setting TranslationRegistration.use_phase_correlation.";
     }
 
     @Override
@@ -1,14 +1,31 @@
 package net.haesleinhuepf.clijx.registration;
 
 
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.ResultsTable;
 import net.haesleinhuepf.clij.CLIJ;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
 import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
 import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
 import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import net.imglib2.realtransform.AffineTransform3D;
 import org.scijava.plugin.Plugin;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Registers timelapse data by translating every frame onto the first one.
+ *
+ * Measuring and applying translations are separated: translations measured on one channel can be stored in a table
+ * and applied to other channels without measuring again. For hyperstacks (2D+t or 3D+t, any number of channels),
+ * reading the next frame from the ImagePlus and storing the last result overlap with processing the current frame on
+ * the GPU. The reference frame is measured once per run.
+ */
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_translationTimelapseRegistration")
 public class TranslationTimelapseRegistration extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
 
@@ -26,26 +43,219 @@ public class TranslationTimelapseRegistration extends AbstractCLIJPlugin impleme
     }
 
     public static boolean translationTimelapseRegistration(CLIJ clij, ClearCLBuffer input, ClearCLBuffer destination) {
-        ClearCLBuffer slice1 = clij.create(new long[] {input.getWidth(), input.getHeight()}, input.getNativeType());
+        double[][] translations = measureTranslations(clij, input);
+        return applyTranslations(clij, input, destination, translations);
+    }
 
-        ClearCLBuffer registered = clij.create(slice1);
-        double[] center = null;
+    /**
+     * Measures the translation of every slice of a 2D+t stack onto the first slice.
+     *
+     * @return translation in x, y and z per frame
+     */
+    public static double[][] measureTranslations(CLIJ clij, ClearCLBuffer input) {
+        ClearCLBuffer slice = clij.create(new long[] {input.getWidth(), input.getHeight()}, input.getNativeType());
+        Reference reference = null;
+        double[][] translations = new double[(int) input.getDepth()][];
         for (int t = 0; t < input.getDepth(); t++) {
-            clij.op().copySlice(input, slice1, t);
-
+            clij.op().copySlice(input, slice, t);
             if (t == 0) {
-                center = TranslationRegistration.centerOfMass(clij, slice1);
-                clij.op().copySlice(slice1, destination, t);
-            } else {
-                TranslationRegistration.translationRegistration(clij, slice1, registered, center);
-                clij.op().copySlice(registered, destination, t);
+                reference = new Reference(clij, slice);
             }
+            translations[t] = reference.translationOf(slice);
+        }
+        reference.close();
+        slice.close();
+        return translations;
+    }
+
+    /**
+     * Translates every slice of a 2D+t stack by the given translations, e.g. measured on another channel.
+     */
+    public static boolean applyTranslations(CLIJ clij, ClearCLBuffer input, ClearCLBuffer destination, double[][] translations) {
+        ClearCLBuffer slice = clij.create(new long[] {input.getWidth(), input.getHeight()}, input.getNativeType());
+        ClearCLBuffer registered = clij.create(slice);
+        for (int t = 0; t < input.getDepth() && t < translations.length; t++) {
+            clij.op().copySlice(input, slice, t);
+            translate(clij, slice, registered, translations[t]);
+            clij.op().copySlice(registered, destination, t);
         }
-        slice1.close();
+        slice.close();
         registered.close();
         return true;
     }
 
+    /**
+     * Measures the translation of every frame of a 2D+t or 3D+t hyperstack onto the first frame in the given
+     * channel (starting at 1).
+     */
+    public static double[][] measureTranslations(CLIJ clij, ImagePlus hyperstack, int channel) {
+        int frames = hyperstack.getNFrames();
+        double[][] translations = new double[frames][];
+
+        ExecutorService loader = Executors.newSingleThreadExecutor();
+        Reference reference = null;
+        try {
+            Future<ImagePlus> next = loader.submit(() -> frame(hyperstack, channel, 1));
+            for (int t = 1; t <= frames; t++) {
+                ImagePlus current = next.get();
+                if (t < frames) {
+                    final int nextFrame = t + 1;
+                    next = loader.submit(() -> frame(hyperstack, channel, nextFrame));
+                }
+
+                ClearCLBuffer buffer = clij.push(current);
+                if (t == 1) {
+                    reference = new Reference(clij, buffer);
+                }
+                translations[t - 1] = reference.translationOf(buffer);
+                buffer.close();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            loader.shutdown();
+            if (reference != null) {
+                reference.close();
+            }
+        }
+        return translations;
+    }
+
+    /**
+     * Translates all channels of every frame of a 2D+t or 3D+t hyperstack by the given translations.
+     *
+     * @return the registered hyperstack
+     */
+    public static ImagePlus applyTranslations(CLIJ clij, ImagePlus hyperstack, double[][] translations) {
+        int channels = hyperstack.getNChannels();
+        int slices = hyperstack.getNSlices();
+        int frames = Math.min(hyperstack.getNFrames(), translations.length);
+        ImageStack result = ImageStack.create(hyperstack.getWidth(), hyperstack.getHeight(), hyperstack.getStackSize(), hyperstack.getBitDepth());
+
+        ExecutorService loader = Executors.newSingleThreadExecutor();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            Future<ImagePlus> next = loader.submit(() -> frame(hyperstack, 1, 1));
+            Future<?> written = null;
+            for (int i = 0; i < frames * channels; i++) {
+                final int t = i / channels + 1;
+                final int c = i % channels + 1;
+                ImagePlus current = next.get();
+                if (i + 1 < frames * channels) {
+                    final int nextFrame = (i + 1) / channels + 1;
+                    final int nextChannel = (i + 1) % channels + 1;
+                    next = loader.submit(() -> frame(hyperstack, nextChannel, nextFrame));
+                }
+
+                ClearCLBuffer buffer = clij.push(current);
+                ClearCLBuffer registered = clij.create(buffer);
+                translate(clij, buffer, registered, translations[t - 1]);
+                ImagePlus registeredImp = clij.pull(registered);
+                buffer.close();
+                registered.close();
+
+                if (written != null) {
+                    written.get();
+                }
+                written = writer.submit(() -> {
+                    for (int z = 1; z <= slices; z++) {
+                        result.setPixels(registeredImp.getStack().getPixels(z), hyperstack.getStackIndex(c, z, t));
+                    }
+                });
+            }
+            if (written != null) {
+                written.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            loader.shutdown();
+            writer.shutdown();
+        }
+
+        ImagePlus imp = new ImagePlus(hyperstack.getTitle() + "_registered", result);
+        imp.setDimensions(channels, slices, hyperstack.getNFrames());
+        imp.setCalibration(hyperstack.getCalibration());
+        return imp;
+    }
+
+    private static ImagePlus frame(ImagePlus hyperstack, int channel, int frame) {
+        ImageStack stack = new ImageStack(hyperstack.getWidth(), hyperstack.getHeight());
+        for (int z = 1; z <= hyperstack.getNSlices(); z++) {
+            stack.addSlice(hyperstack.getStack().getProcessor(hyperstack.getStackIndex(channel, z, frame)));
+        }
+        return new ImagePlus("frame", stack);
+    }
+
+    private static void translate(CLIJ clij, ClearCLBuffer input, ClearCLBuffer output, double[] translation) {
+        AffineTransform3D at = new AffineTransform3D();
+        at.translate(translation);
+        clij.op().affineTransform3D(input, output, at);
+    }
+
+    public static ResultsTable translationsToTable(double[][] translations) {
+        ResultsTable table = new ResultsTable();
+        for (int t = 0; t < translations.length; t++) {
+            table.incrementCounter();
+            table.addValue("Frame", t);
+            table.addValue("Translation_X", translations[t][0]);
+            table.addValue("Translation_Y", translations[t][1]);
+            table.addValue("Translation_Z", translations[t][2]);
+        }
+        return table;
+    }
+
+    public static double[][] translationsFromTable(ResultsTable table) {
+        double[][] translations = new double[table.size()][3];
+        for (int t = 0; t < table.size(); t++) {
+            translations[t][0] = table.getValue("Translation_X", t);
+            translations[t][1] = table.getValue("Translation_Y", t);
+            translations[t][2] = table.getValue("Translation_Z", t);
+        }
+        return translations;
+    }
+
+    /**
+     * Statistics of the reference frame, measured once: its center of mass, or a copy of it for phase correlation.
+     */
+    private static class Reference {
+        private final CLIJ clij;
+        private double[] center;
+        private ClearCLBuffer image;
+
+        Reference(CLIJ clij, ClearCLBuffer reference) {
+            this.clij = clij;
+            if (TranslationRegistration.use_phase_correlation) {
+                image = clij.create(reference);
+                clij.op().copy(reference, image);
+            } else {
+                center = TranslationRegistration.centerOfMass(clij, reference);
+            }
+        }
+
+        double[] translationOf(ClearCLBuffer frame) {
+            double[] translation = new double[3];
+            if (image != null) {
+                double[] shift = TranslationRegistration.phaseCorrelationShift(clij, image, frame);
+                for (int d = 0; d < 3; d++) {
+                    translation[d] = -shift[d];
+                }
+            } else {
+                double[] frameCenter = TranslationRegistration.centerOfMass(clij, frame);
+                for (int d = 0; d < translation.length && d < frameCenter.length; d++) {
+                    translation[d] = center[d] - frameCenter[d];
+                }
+            }
+            return translation;
+        }
+
+        void close() {
+            if (image != null) {
+                image.close();
+            }
+        }
+    }
+
     @Override
     public String getDescription() {
         return "Applies 2D translation registration to every pair of t, t+1 slices of a 2D+t image stack.";
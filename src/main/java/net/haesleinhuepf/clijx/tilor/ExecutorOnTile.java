@@ -1,123 +1,180 @@
 package net.haesleinhuepf.clijx.tilor;
 
-import net.haesleinhuepf.clij.CLIJ;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
 import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
+import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clijx.plugins.PullTile;
 import net.haesleinhuepf.clijx.plugins.PushTile;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 public class ExecutorOnTile implements Runnable {
 
-    private static Object pushPullMutex = new Object();
-
     private AbstractCLIJ2Plugin master;
     private AbstractCLIJ2Plugin client;
+    private TilePipeline pipeline;
     private HashMap<String, ClearCLBuffer> parameters;
     private Object[] args;
-    private final int tileX;
-    private final int tileY;
-    private final int tileZ;
-    private final int tileWidth;
-    private final int tileHeight;
-    private final int tileDepth;
-    private final int marginWidth;
-    private final int marginHeight;
-    private final int marginDepth;
-
-    boolean finished = false;
+    private final TileGrid.Tile tile;
+
+    private final String[] imageParameterNames;
+    private Object[] newArgs;
+    private long computeDurationInNanos = 0;
+
+    volatile boolean finished = false;
 
     ExecutorOnTile(AbstractCLIJ2Plugin master,
                    AbstractCLIJ2Plugin client,
                    HashMap<String, ClearCLBuffer> parameters,
                    Object[] args,
-                   int tileX, int tileY, int tileZ,
-                   int tileWidth,
-                   int tileHeight,
-                   int tileDepth,
-                   int marginWidth,
-                   int marginHeight,
-                   int marginDepth
+                   TileGrid.Tile tile
+    ) {
+        this(master, client, null, parameters, args, tile);
+    }
+
+    ExecutorOnTile(AbstractCLIJ2Plugin master,
+                   AbstractCLIJ2Plugin client,
+                   TilePipeline pipeline,
+                   HashMap<String, ClearCLBuffer> parameters,
+                   Object[] args,
+                   TileGrid.Tile tile
     ) {
         this.master = master;
         this.client = client;
+        this.pipeline = pipeline;
         this.parameters = parameters;
         this.args = args;
-        this.tileX = tileX;
-        this.tileY = tileY;
-        this.tileZ = tileZ;
-        this.tileWidth = tileWidth;
-        this.tileHeight = tileHeight;
-        this.tileDepth = tileDepth;
-        this.marginWidth = marginWidth;
-        this.marginHeight = marginHeight;
-        this.marginDepth = marginDepth;
-    }
+        this.tile = tile;
 
-    @Override
-    public void run() {
-        long time = System.currentTimeMillis();
         String[] argumentNames = client.getParameterHelpText().split(",");
-
-        Object[] newArgs = new Object[args.length];
+        imageParameterNames = new String[argumentNames.length];
         for (int a = 0; a < argumentNames.length; a++) {
             String[] parameterParts = argumentNames[a].trim().split(" ");
             String parameterType = parameterParts[0];
             String parameterName = parameterParts[1];
-            boolean byRef = false;
             if (parameterType.compareTo("ByRef") == 0) {
                 parameterType = parameterParts[1];
                 parameterName = parameterParts[2];
-                byRef = true;
             }
 
             if (parameterType.compareTo("Image") == 0) {
-                ClearCLBuffer wholeImage = parameters.get(parameterName);
-                synchronized (pushPullMutex) {
-                    //System.out.println("push " + parameterName);
-                    ClearCLBuffer tileOnMaster = PushTile.pushTile(master.getCLIJ2(), wholeImage, tileX, tileY, tileZ, tileWidth, tileHeight, tileDepth, marginWidth, marginHeight, marginDepth);
-                    ClearCLBuffer tileOnClient = client.getCLIJ2().transfer(tileOnMaster);
-                    //client.getCLIJ2().show(tileOnClient, "tile on client");
-                    master.getCLIJ2().release(tileOnMaster);
-                    newArgs[a] = tileOnClient;
-                    //System.out.println("args depth" + ((ClearCLBuffer)newArgs[a]).getDepth());
-                }
+                imageParameterNames[a] = parameterName;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long time = System.currentTimeMillis();
+
+        upload();
+        compute();
+        download();
+
+        System.out.println("Processing a tile on " + client.getCLIJ2().getGPUName() + " took " + (System.currentTimeMillis() - time) + " ms.");
+        finished = true;
+    }
+
+    void upload() {
+        newArgs = new Object[args.length];
+        for (int a = 0; a < imageParameterNames.length; a++) {
+            if (imageParameterNames[a] != null) {
+                ClearCLBuffer wholeImage = parameters.get(imageParameterNames[a]);
+                newArgs[a] = pushTileToClient(wholeImage);
             } else {
                 newArgs[a] = args[a];
             }
         }
+    }
 
-        client.setArgs(newArgs);
-        if (client instanceof CLIJOpenCLProcessor) {
-            ((CLIJOpenCLProcessor) client).executeCL();
+    void compute() {
+        // the upload and download stages of the pipeline use the same CLIJ2
+        synchronized (client.getCLIJ2()) {
+            long start = System.nanoTime();
+            client.setArgs(newArgs);
+            if (client instanceof CLIJOpenCLProcessor) {
+                ((CLIJOpenCLProcessor) client).executeCL();
+            }
+            computeDurationInNanos = System.nanoTime() - start;
         }
+    }
 
-        for (int a = 0; a < argumentNames.length; a++) {
-            String[] parameterParts = argumentNames[a].trim().split(" ");
-            String parameterType = parameterParts[0];
-            String parameterName = parameterParts[1];
-            boolean byRef = false;
-            if (parameterType.compareTo("ByRef") == 0) {
-                parameterType = parameterParts[1];
-                parameterName = parameterParts[2];
-                byRef = true;
+    void download() {
+        for (int a = 0; a < imageParameterNames.length; a++) {
+            if (imageParameterNames[a] != null) {
+                ClearCLBuffer wholeImage = parameters.get(imageParameterNames[a]);
+                pullTileFromClient((ClearCLBuffer) newArgs[a], wholeImage);
             }
+        }
+    }
 
-            if (parameterType.compareTo("Image") == 0) {
-                ClearCLBuffer wholeImage = parameters.get(parameterName);
-                synchronized (pushPullMutex) {
-                    ClearCLBuffer tileOnMaster = master.getCLIJ2().transfer((ClearCLBuffer) newArgs[a]);
-                    PullTile.pullTile(master.getCLIJ2(), tileOnMaster, wholeImage, tileX, tileY, tileZ, tileWidth, tileHeight, tileDepth, marginWidth, marginHeight, marginDepth);
-                    master.getCLIJ2().release(tileOnMaster);
-                    client.getCLIJ2().release((ClearCLBuffer) newArgs[a]);
-                }
-                client.getCLIJ2().release((ClearCLBuffer) newArgs[a]);
+    private ClearCLBuffer pushTileToClient(ClearCLBuffer wholeImage) {
+        CLIJ2 masterCLIJ2 = master.getCLIJ2();
+        if (pipeline == null) {
+            synchronized (masterCLIJ2) {
+                ClearCLBuffer tileOnMaster = masterCLIJ2.create(tile.getDimensions(), wholeImage.getNativeType());
+                PushTile.pushTile(masterCLIJ2, wholeImage, tileOnMaster, tile);
+                ClearCLBuffer tileOnClient = client.getCLIJ2().transfer(tileOnMaster);
+                masterCLIJ2.release(tileOnMaster);
+                return tileOnClient;
             }
         }
 
-        System.out.println("Processing a tile on " + client.getCLIJ2().getGPUName() + " took " + (System.currentTimeMillis() - time) + " ms.");
-        finished = true;
+        // CLIJ2 is not thread-safe; the client device is shared with the other stages of the pipeline
+        CLIJ2 clientCLIJ2 = client.getCLIJ2();
+        long[] dimensions = tile.getDimensions();
+        ClearCLBuffer tileOnClient;
+        synchronized (clientCLIJ2) {
+            tileOnClient = pipeline.getClientPool().acquire(dimensions, wholeImage.getNativeType());
+        }
+        ByteBuffer hostBuffer = pipeline.getUploadBuffer(tileOnClient.getSizeInBytes());
+
+        // the master device is shared among all pipelines
+        synchronized (masterCLIJ2) {
+            ClearCLBuffer tileOnMaster = pipeline.getMasterPool().acquire(dimensions, wholeImage.getNativeType());
+            PushTile.pushTile(masterCLIJ2, wholeImage, tileOnMaster, tile);
+            tileOnMaster.writeTo(hostBuffer, true);
+            pipeline.getMasterPool().release(tileOnMaster);
+        }
+        synchronized (clientCLIJ2) {
+            tileOnClient.readFrom(hostBuffer, true);
+        }
+        return tileOnClient;
+    }
+
+    private void pullTileFromClient(ClearCLBuffer tileOnClient, ClearCLBuffer wholeImage) {
+        CLIJ2 masterCLIJ2 = master.getCLIJ2();
+        if (pipeline == null) {
+            synchronized (masterCLIJ2) {
+                ClearCLBuffer tileOnMaster = masterCLIJ2.transfer(tileOnClient);
+                ClearCLBuffer temp = masterCLIJ2.create(tile.getCoreDimensions(), tileOnMaster.getNativeType());
+                PullTile.pullTile(masterCLIJ2, tileOnMaster, wholeImage, temp, tile);
+                masterCLIJ2.release(temp);
+                masterCLIJ2.release(tileOnMaster);
+            }
+            client.getCLIJ2().release(tileOnClient);
+            return;
+        }
+
+        ByteBuffer hostBuffer = pipeline.getDownloadBuffer(tileOnClient.getSizeInBytes());
+        synchronized (client.getCLIJ2()) {
+            tileOnClient.writeTo(hostBuffer, true);
+            pipeline.getClientPool().release(tileOnClient);
+        }
+
+        synchronized (masterCLIJ2) {
+            ClearCLBuffer tileOnMaster = pipeline.getMasterPool().acquire(tileOnClient.getDimensions(), tileOnClient.getNativeType());
+            ClearCLBuffer temp = pipeline.getMasterPool().acquire(tile.getCoreDimensions(), tileOnClient.getNativeType());
+            tileOnMaster.readFrom(hostBuffer, true);
+            PullTile.pullTile(masterCLIJ2, tileOnMaster, wholeImage, temp, tile);
+            pipeline.getMasterPool().release(tileOnMaster);
+            pipeline.getMasterPool().release(temp);
+        }
+    }
+
+    long getComputeDurationInNanos() {
+        return computeDurationInNanos;
     }
 
     public AbstractCLIJ2Plugin getPlugin() {
@@ -0,0 +1,170 @@
+package net.haesleinhuepf.clijx.tilor;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.io.RawImageFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Processes images which are stored in files tile by tile without ever loading the whole image. Every tile is
+ * read from disc including its margins, processed on one of the available OpenCL devices and the tile without its
+ * margins is written to the output file. Thus, memory consumption depends on the tile size only.
+ *
+ * Image parameters of the plugin are passed as RawImageFile. Images marked as "ByRef" in the parameter help text
+ * are written, all other images are read.
+ */
+public class FileTilor {
+
+    private final AbstractCLIJ2Plugin master;
+    private final ArrayList<AbstractCLIJ2Plugin> clients = new ArrayList<>();
+
+    public FileTilor(AbstractCLIJ2Plugin master) {
+        this.master = master;
+
+        ArrayList names = CLIJ.getAvailableDeviceNames();
+        for (int i = 0; i < names.size(); i++) {
+            try {
+                AbstractCLIJ2Plugin clone = master.getClass().newInstance();
+                clone.setCLIJ2(new CLIJ2(new CLIJ(i)));
+                clients.add(clone);
+            } catch (InstantiationException e) {
+                e.printStackTrace();
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void execute(Object[] args, int tileWidth, int tileHeight, int tileDepth, int marginWidth, int marginHeight, int marginDepth) {
+        long time = System.currentTimeMillis();
+
+        String[] argumentNames = master.getParameterHelpText().split(",");
+        boolean[] isInput = new boolean[argumentNames.length];
+        boolean[] isOutput = new boolean[argumentNames.length];
+        RawImageFile anyImage = null;
+        for (int a = 0; a < argumentNames.length; a++) {
+            String[] parameterParts = argumentNames[a].trim().split(" ");
+            String parameterType = parameterParts[0];
+            boolean byRef = false;
+            if (parameterType.compareTo("ByRef") == 0) {
+                parameterType = parameterParts[1];
+                byRef = true;
+            }
+
+            if (parameterType.compareTo("Image") == 0) {
+                if (!(args[a] instanceof RawImageFile)) {
+                    throw new IllegalArgumentException("Parameter " + argumentNames[a].trim() + " must be a RawImageFile.");
+                }
+                isOutput[a] = byRef;
+                isInput[a] = !byRef;
+                if (anyImage == null || !byRef) {
+                    anyImage = (RawImageFile) args[a];
+                }
+            }
+        }
+
+        TileGrid tileGrid = new TileGrid(anyImage.getDimensions(), new long[]{tileWidth, tileHeight, tileDepth}, new long[]{marginWidth, marginHeight, marginDepth});
+        ConcurrentLinkedQueue<TileGrid.Tile> tileQueue = new ConcurrentLinkedQueue<>();
+        for (int z = 0; z < tileGrid.getNumberOfTilesZ(); z++) {
+            for (int y = 0; y < tileGrid.getNumberOfTilesY(); y++) {
+                for (int x = 0; x < tileGrid.getNumberOfTilesX(); x++) {
+                    tileQueue.add(tileGrid.getTile(x, y, z));
+                }
+            }
+        }
+
+        ArrayList<ExecutorService> deviceExecutors = new ArrayList<>();
+        ArrayList<Future<Integer>> futures = new ArrayList<>();
+        for (AbstractCLIJ2Plugin client : clients) {
+            ExecutorService deviceExecutor = Executors.newSingleThreadExecutor();
+            deviceExecutors.add(deviceExecutor);
+            futures.add(deviceExecutor.submit(() -> processTiles(client, tileQueue, args, isInput, isOutput)));
+        }
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                int count = futures.get(i).get();
+                System.out.println(clients.get(i).getCLIJ2().getGPUName() + " processed " + count + " tiles.");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (ExecutorService deviceExecutor : deviceExecutors) {
+                deviceExecutor.shutdownNow();
+            }
+        }
+
+        System.out.println("FileTilor took " + (System.currentTimeMillis() - time) + " ms.");
+    }
+
+    private int processTiles(AbstractCLIJ2Plugin client, ConcurrentLinkedQueue<TileGrid.Tile> tileQueue, Object[] args, boolean[] isInput, boolean[] isOutput) throws IOException {
+        StagingBufferPool pool = new StagingBufferPool(client.getCLIJ2());
+        ByteBuffer hostBuffer = null;
+        int count = 0;
+        try {
+            TileGrid.Tile tile;
+            while ((tile = tileQueue.poll()) != null) {
+                long[] dimensions = tile.getDimensions();
+
+                Object[] newArgs = new Object[isInput.length];
+                for (int a = 0; a < isInput.length; a++) {
+                    if (isInput[a] || isOutput[a]) {
+                        RawImageFile file = (RawImageFile) args[a];
+                        ClearCLBuffer buffer = pool.acquire(dimensions, file.getNativeType());
+                        if (isInput[a]) {
+                            hostBuffer = TilePipeline.ensureCapacity(hostBuffer, buffer.getSizeInBytes());
+                            file.read(tile.getOrigin(), dimensions, hostBuffer);
+                            buffer.readFrom(hostBuffer, true);
+                        }
+                        newArgs[a] = buffer;
+                    } else {
+                        newArgs[a] = args[a];
+                    }
+                }
+
+                client.setArgs(newArgs);
+                if (client instanceof CLIJOpenCLProcessor) {
+                    ((CLIJOpenCLProcessor) client).executeCL();
+                }
+
+                for (int a = 0; a < isInput.length; a++) {
+                    if (isOutput[a]) {
+                        RawImageFile file = (RawImageFile) args[a];
+                        ClearCLBuffer buffer = (ClearCLBuffer) newArgs[a];
+                        hostBuffer = TilePipeline.ensureCapacity(hostBuffer, buffer.getSizeInBytes());
+                        buffer.writeTo(hostBuffer, true);
+                        file.write(tile.getCoreOrigin(), tile.getCoreDimensions(), hostBuffer, dimensions, tile.getCoreOffset());
+                    }
+                    if (isInput[a] || isOutput[a]) {
+                        pool.release((ClearCLBuffer) newArgs[a]);
+                    }
+                }
+                count++;
+            }
+        } finally {
+            pool.close();
+        }
+        return count;
+    }
+
+    public static void main(String... args) throws IOException {
+        RawImageFile input = RawImageFile.openTiff("src/test/resources/stack.tif");
+        RawImageFile output = RawImageFile.create("stack_blurred.raw", input.getWidth(), input.getHeight(), input.getDepth(), NativeTypeEnum.Float);
+
+        new FileTilor(new net.haesleinhuepf.clijx.clij2wrappers.GaussianBlur3D()).execute(new Object[]{input, output, 2, 2, 2}, 64, 64, 16, 6, 6, 6);
+    }
+}
@@ -0,0 +1,46 @@
+package net.haesleinhuepf.clijx.tilor;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Keeps tile buffers on one device so that they can be reused for the next tile of the same size instead of
+ * creating and releasing them for every tile.
+ */
+class StagingBufferPool {
+    private final CLIJ2 clij2;
+    private final ArrayList<ClearCLBuffer> available = new ArrayList<>();
+    private final ArrayList<ClearCLBuffer> allocated = new ArrayList<>();
+
+    StagingBufferPool(CLIJ2 clij2) {
+        this.clij2 = clij2;
+    }
+
+    synchronized ClearCLBuffer acquire(long[] dimensions, NativeTypeEnum type) {
+        for (ClearCLBuffer buffer : available) {
+            if (buffer.getNativeType() == type && Arrays.equals(buffer.getDimensions(), dimensions)) {
+                available.remove(buffer);
+                return buffer;
+            }
+        }
+        ClearCLBuffer buffer = clij2.create(dimensions, type);
+        allocated.add(buffer);
+        return buffer;
+    }
+
+    synchronized void release(ClearCLBuffer buffer) {
+        available.add(buffer);
+    }
+
+    synchronized void close() {
+        for (ClearCLBuffer buffer : allocated) {
+            clij2.release(buffer);
+        }
+        allocated.clear();
+        available.clear();
+    }
+}
@@ -0,0 +1,172 @@
+package net.haesleinhuepf.clijx.tilor;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+
+/**
+ * Divides an image into tiles. Tiles at the image border may be smaller than the given tile size so that every
+ * voxel is covered. Every tile carries a margin (halo) which is clipped at the image border per axis.
+ */
+public class TileGrid {
+    private final long[] imageDimensions;
+    private final long[] tileDimensions;
+    private final long[] margins;
+    private final int[] numberOfTiles;
+
+    public TileGrid(ClearCLBuffer image, long tileWidth, long tileHeight, long tileDepth, long marginWidth, long marginHeight, long marginDepth) {
+        this(new long[]{image.getWidth(), image.getHeight(), image.getDepth()}, new long[]{tileWidth, tileHeight, tileDepth}, new long[]{marginWidth, marginHeight, marginDepth});
+    }
+
+    public TileGrid(long[] imageDimensions, long[] tileDimensions, long[] margins) {
+        this.imageDimensions = new long[3];
+        this.tileDimensions = new long[3];
+        this.margins = new long[3];
+        numberOfTiles = new int[3];
+        for (int d = 0; d < 3; d++) {
+            this.imageDimensions[d] = d < imageDimensions.length ? imageDimensions[d] : 1;
+            this.tileDimensions[d] = Math.max(1, Math.min(tileDimensions[d], this.imageDimensions[d]));
+            this.margins[d] = Math.max(0, margins[d]);
+            numberOfTiles[d] = (int) ((this.imageDimensions[d] + this.tileDimensions[d] - 1) / this.tileDimensions[d]);
+        }
+    }
+
+    public int getNumberOfTilesX() {
+        return numberOfTiles[0];
+    }
+
+    public int getNumberOfTilesY() {
+        return numberOfTiles[1];
+    }
+
+    public int getNumberOfTilesZ() {
+        return numberOfTiles[2];
+    }
+
+    public int getNumberOfTiles() {
+        return numberOfTiles[0] * numberOfTiles[1] * numberOfTiles[2];
+    }
+
+    public long[] getTileDimensions() {
+        return tileDimensions.clone();
+    }
+
+    public Tile getTile(int tileX, int tileY, int tileZ) {
+        int[] index = {tileX, tileY, tileZ};
+        long[] origin = new long[3];
+        long[] dimensions = new long[3];
+        long[] coreOrigin = new long[3];
+        long[] coreDimensions = new long[3];
+        for (int d = 0; d < 3; d++) {
+            if (index[d] < 0 || index[d] >= numberOfTiles[d]) {
+                throw new IllegalArgumentException("Tile index " + index[d] + " out of range [0, " + numberOfTiles[d] + ") in dimension " + d + ".");
+            }
+            coreOrigin[d] = index[d] * tileDimensions[d];
+            coreDimensions[d] = Math.min(tileDimensions[d], imageDimensions[d] - coreOrigin[d]);
+
+            origin[d] = Math.max(0, coreOrigin[d] - margins[d]);
+            long end = Math.min(imageDimensions[d], coreOrigin[d] + coreDimensions[d] + margins[d]);
+            dimensions[d] = end - origin[d];
+        }
+        return new Tile(index, origin, dimensions, coreOrigin, coreDimensions);
+    }
+
+    /**
+     * Determines the largest tile size where a tile including its margins needs at most the given number of bytes.
+     * The tile size is then reduced so that the image is divided into tiles of about equal size instead of
+     * leaving a small remainder tile at the border.
+     *
+     * @param bytesPerVoxel sum of bytes per voxel of all images which are processed tile by tile
+     */
+    public static long[] determineTileDimensions(long[] imageDimensions, long[] margins, long bytesPerVoxel, long bytesPerTile) {
+        long[] dimensions = new long[3];
+        long[] haloMargins = new long[3];
+        for (int d = 0; d < 3; d++) {
+            dimensions[d] = d < imageDimensions.length ? imageDimensions[d] : 1;
+            haloMargins[d] = Math.max(0, margins[d]);
+        }
+
+        long low = 1;
+        long high = Math.max(dimensions[0], Math.max(dimensions[1], dimensions[2]));
+        if (voxelsPerTile(dimensions, haloMargins, low) * bytesPerVoxel > bytesPerTile) {
+            throw new IllegalArgumentException("Not enough memory for processing tiles with margins of " + haloMargins[0] + "/" + haloMargins[1] + "/" + haloMargins[2] + " voxels.");
+        }
+        while (low < high) {
+            long middle = (low + high + 1) / 2;
+            if (voxelsPerTile(dimensions, haloMargins, middle) * bytesPerVoxel <= bytesPerTile) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        long[] tileDimensions = new long[3];
+        for (int d = 0; d < 3; d++) {
+            long tileSize = Math.min(low, dimensions[d]);
+            long numberOfTiles = (dimensions[d] + tileSize - 1) / tileSize;
+            tileDimensions[d] = (dimensions[d] + numberOfTiles - 1) / numberOfTiles;
+        }
+        return tileDimensions;
+    }
+
+    private static long voxelsPerTile(long[] dimensions, long[] margins, long tileSize) {
+        long voxels = 1;
+        for (int d = 0; d < 3; d++) {
+            voxels *= Math.min(dimensions[d], Math.min(tileSize, dimensions[d]) + 2 * margins[d]);
+        }
+        return voxels;
+    }
+
+    public static class Tile {
+        private final int[] index;
+        private final long[] origin;
+        private final long[] dimensions;
+        private final long[] coreOrigin;
+        private final long[] coreDimensions;
+
+        Tile(int[] index, long[] origin, long[] dimensions, long[] coreOrigin, long[] coreDimensions) {
+            this.index = index;
+            this.origin = origin;
+            this.dimensions = dimensions;
+            this.coreOrigin = coreOrigin;
+            this.coreDimensions = coreDimensions;
+        }
+
+        public int[] getIndex() {
+            return index.clone();
+        }
+
+        /**
+         * Position of the tile including its clipped margins in the image.
+         */
+        public long[] getOrigin() {
+            return origin.clone();
+        }
+
+        /**
+         * Size of the tile including its clipped margins.
+         */
+        public long[] getDimensions() {
+            return dimensions.clone();
+        }
+
+        /**
+         * Position of the tile without margins in the image.
+         */
+        public long[] getCoreOrigin() {
+            return coreOrigin.clone();
+        }
+
+        /**
+         * Size of the tile without margins. It is smaller than the tile size of the grid at the image border.
+         */
+        public long[] getCoreDimensions() {
+            return coreDimensions.clone();
+        }
+
+        /**
+         * Position of the tile without margins within the tile including its margins.
+         */
+        public long[] getCoreOffset() {
+            return new long[]{coreOrigin[0] - origin[0], coreOrigin[1] - origin[1], coreOrigin[2] - origin[2]};
+        }
+    }
+}
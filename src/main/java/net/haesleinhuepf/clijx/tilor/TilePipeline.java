@@ -0,0 +1,134 @@
+package net.haesleinhuepf.clijx.tilor;
+
+import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Processes tiles on one device in three stages: While tile N is computed, tile N+1 is uploaded and tile N-1 is
+ * downloaded. Device and host staging buffers are reused across tiles.
+ *
+ * The stages share the client's CLIJ2, which is not thread-safe. Every call into it is made holding its lock, as calls
+ * into the master's CLIJ2 are; hence transfers to and from the client device wait for its kernels, whereas staging
+ * through the master device and host memory overlaps with computation.
+ */
+class TilePipeline {
+    static final int TILES_IN_FLIGHT = 3;
+
+    private final AbstractCLIJ2Plugin client;
+    private final StagingBufferPool masterPool;
+    private final StagingBufferPool clientPool;
+
+    private final ExecutorService uploader = Executors.newSingleThreadExecutor();
+    private final ExecutorService computer = Executors.newSingleThreadExecutor();
+    private final ExecutorService downloader = Executors.newSingleThreadExecutor();
+    private final Semaphore tilesInFlight = new Semaphore(TILES_IN_FLIGHT);
+
+    private ByteBuffer uploadBuffer = null;
+    private ByteBuffer downloadBuffer = null;
+
+    private long computeDurationInNanos = 0;
+    private long wallDurationInNanos = 0;
+
+    TilePipeline(AbstractCLIJ2Plugin master, AbstractCLIJ2Plugin client) {
+        this.client = client;
+        masterPool = new StagingBufferPool(master.getCLIJ2());
+        clientPool = new StagingBufferPool(client.getCLIJ2());
+    }
+
+    /**
+     * Takes tiles from the given queue until it is empty and returns the number of tiles processed on this device.
+     */
+    int process(Queue<int[]> tileQueue, Function<int[], ExecutorOnTile> executorFactory) throws InterruptedException {
+        long start = System.nanoTime();
+
+        ArrayList<CompletableFuture<Void>> pending = new ArrayList<>();
+        while (true) {
+            // only take a tile from the queue if there is a free slot; otherwise other devices may steal it
+            tilesInFlight.acquire();
+            int[] tile = tileQueue.poll();
+            if (tile == null) {
+                tilesInFlight.release();
+                break;
+            }
+
+            ExecutorOnTile executor = executorFactory.apply(tile);
+            pending.add(CompletableFuture.runAsync(executor::upload, uploader)
+                    .thenRunAsync(() -> {
+                        executor.compute();
+                        computeDurationInNanos += executor.getComputeDurationInNanos();
+                    }, computer)
+                    .thenRunAsync(executor::download, downloader)
+                    .whenComplete((result, exception) -> tilesInFlight.release()));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+
+        wallDurationInNanos += System.nanoTime() - start;
+        return pending.size();
+    }
+
+    StagingBufferPool getMasterPool() {
+        return masterPool;
+    }
+
+    StagingBufferPool getClientPool() {
+        return clientPool;
+    }
+
+    /**
+     * Only to be called from the upload stage.
+     */
+    ByteBuffer getUploadBuffer(long sizeInBytes) {
+        uploadBuffer = ensureCapacity(uploadBuffer, sizeInBytes);
+        return uploadBuffer;
+    }
+
+    /**
+     * Only to be called from the download stage.
+     */
+    ByteBuffer getDownloadBuffer(long sizeInBytes) {
+        downloadBuffer = ensureCapacity(downloadBuffer, sizeInBytes);
+        return downloadBuffer;
+    }
+
+    static ByteBuffer ensureCapacity(ByteBuffer buffer, long sizeInBytes) {
+        // a ByteBuffer holds at most 2 GB; larger tiles fail here instead of silently being truncated
+        int capacity = Math.toIntExact(sizeInBytes);
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Ratio of time spent computing to total time, 1.0 means transfers were completely hidden behind computation.
+     */
+    double getOverlapEfficiency() {
+        if (wallDurationInNanos == 0) {
+            return 0;
+        }
+        return (double) computeDurationInNanos / wallDurationInNanos;
+    }
+
+    String getDeviceName() {
+        return client.getCLIJ2().getGPUName();
+    }
+
+    void close() {
+        uploader.shutdownNow();
+        computer.shutdownNow();
+        downloader.shutdownNow();
+        masterPool.close();
+        clientPool.close();
+    }
+}
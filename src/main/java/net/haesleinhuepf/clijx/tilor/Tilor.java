@@ -5,9 +5,15 @@ import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
 import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.gui.MemoryDisplay;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static net.haesleinhuepf.clij2.AbstractCLIJ2Plugin.asInteger;
 
@@ -25,9 +31,7 @@ public class Tilor{
     int tileIndexX;
     int tileIndexY;
     int tileIndexZ;
-    private int numTilesX;
-    private int numTilesY;
-    private int numTilesZ;
+    private TileGrid tileGrid;
 
     Object mutex = new Object();
     CLIJ2[] clij2s = null;
@@ -38,6 +42,17 @@ public class Tilor{
         USE_MASTER_CLIJ = useMasterClij;
     }
 
+    private static boolean USE_POLLING_SCHEDULER = false;
+
+    /**
+     * The polling scheduler starts a thread per tile and checks every 100 ms if a device became idle. It is kept for
+     * comparison; by default, every device runs its own single-threaded executor which takes tiles from a shared
+     * queue as soon as it finished the former tile.
+     */
+    public static void setUsePollingScheduler(boolean usePollingScheduler) {
+        USE_POLLING_SCHEDULER = usePollingScheduler;
+    }
+
     public Tilor(AbstractCLIJ2Plugin master, ArrayList<AbstractCLIJ2Plugin> clients) {
         synchronized (mutex) {
             if (clij2s == null) {
@@ -105,10 +120,119 @@ public class Tilor{
         tileIndexY = 0;
         tileIndexZ = 0;
 
-        numTilesX = (int) (anyImage.getWidth() / tileWidth);
-        numTilesY = (int) (anyImage.getHeight() / tileHeight);
-        numTilesZ = (int) (anyImage.getDepth() / tileDepth);
+        if (tileWidth <= 0 || tileHeight <= 0 || tileDepth <= 0) {
+            long[] tileDimensions = determineTileDimensions(clients, imageParameters, anyImage);
+            tileWidth = (int) tileDimensions[0];
+            tileHeight = (int) tileDimensions[1];
+            tileDepth = (int) tileDimensions[2];
+            System.out.println("Tile size: " + tileWidth + "/" + tileHeight + "/" + tileDepth);
+        }
+        tileGrid = new TileGrid(anyImage, tileWidth, tileHeight, tileDepth, marginWidth, marginHeight, marginDepth);
+
+        if (USE_POLLING_SCHEDULER) {
+            executePolling(clients, args, imageParameters);
+        } else {
+            executeScheduled(clients, args, imageParameters);
+        }
+
+        //clijx.stopWatch("");
+        for (int a = 0; a < argumentNames.length; a++) {
+            String[] parameterParts = argumentNames[a].trim().split(" ");
+            String parameterType = parameterParts[0];
+            String parameterName = parameterParts[1];
+            boolean byRef = false;
+            if (parameterType.compareTo("ByRef") == 0) {
+                parameterType = parameterParts[1];
+                parameterName = parameterParts[2];
+                byRef = true;
+            }
+
+            if (parameterType.compareTo("Image") == 0) {
+                //ClearCLBuffer buffer = imageParameters.get(parameterName);
+                //master.getCLIJ2().copy(buffer, (ClearCLBuffer)args[a]);
+                //master.getCLIJ2().release(buffer);
+            }
+        }
+        //clijx.stopWatch("Combined images");
+
+        System.out.println("Tilor took " + (System.currentTimeMillis() - time) + " ms.");
+    }
+
+    /**
+     * Determines the tile size from the free memory of the smallest device so that all tiles in flight of all
+     * images, including their margins, fit into half of it. On the master device, the whole images are taken into
+     * account as well.
+     */
+    private long[] determineTileDimensions(ArrayList<AbstractCLIJ2Plugin> clients, HashMap<String, ClearCLBuffer> imageParameters, ClearCLBuffer anyImage) {
+        long bytesPerVoxel = 0;
+        long bytesOfWholeImages = 0;
+        for (ClearCLBuffer image : imageParameters.values()) {
+            bytesPerVoxel += image.getNativeType().getSizeInBytes();
+            bytesOfWholeImages += image.getSizeInBytes();
+        }
+
+        long availableBytes = Long.MAX_VALUE;
+        for (AbstractCLIJ2Plugin client : clients) {
+            long deviceBytes = client.getCLIJ2().getCLIJ().getGPUMemoryInBytes() - MemoryDisplay.getUsedMemoryInBytes(client.getCLIJ2());
+            if (client.getCLIJ2().getGPUName().compareTo(master.getCLIJ2().getGPUName()) == 0) {
+                deviceBytes -= bytesOfWholeImages;
+            }
+            availableBytes = Math.min(availableBytes, deviceBytes);
+        }
+
+        long bytesPerTile = availableBytes / 2 / TilePipeline.TILES_IN_FLIGHT;
+        return TileGrid.determineTileDimensions(
+                new long[]{anyImage.getWidth(), anyImage.getHeight(), anyImage.getDepth()},
+                new long[]{marginWidth, marginHeight, marginDepth},
+                bytesPerVoxel,
+                bytesPerTile);
+    }
 
+    private void executeScheduled(ArrayList<AbstractCLIJ2Plugin> clients, Object[] args, HashMap<String, ClearCLBuffer> imageParameters) {
+        // all tiles go in one queue; every device takes the next tile as soon as it is idle
+        ConcurrentLinkedQueue<int[]> tileQueue = new ConcurrentLinkedQueue<>();
+        for (int z = 0; z < tileGrid.getNumberOfTilesZ(); z++) {
+            for (int y = 0; y < tileGrid.getNumberOfTilesY(); y++) {
+                for (int x = 0; x < tileGrid.getNumberOfTilesX(); x++) {
+                    tileQueue.add(new int[]{x, y, z});
+                }
+            }
+        }
+
+        ArrayList<ExecutorService> deviceExecutors = new ArrayList<>();
+        ArrayList<TilePipeline> pipelines = new ArrayList<>();
+        ArrayList<Future<Integer>> futures = new ArrayList<>();
+        for (AbstractCLIJ2Plugin plugin : clients) {
+            ExecutorService deviceExecutor = Executors.newSingleThreadExecutor();
+            deviceExecutors.add(deviceExecutor);
+            TilePipeline pipeline = new TilePipeline(master, plugin);
+            pipelines.add(pipeline);
+            futures.add(deviceExecutor.submit(() -> pipeline.process(tileQueue, tile ->
+                    new ExecutorOnTile(master, plugin, pipeline, imageParameters, args, tileGrid.getTile(tile[0], tile[1], tile[2]))
+            )));
+        }
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                int count = futures.get(i).get();
+                TilePipeline pipeline = pipelines.get(i);
+                System.out.println(pipeline.getDeviceName() + " processed " + count + " tiles, overlap efficiency (compute time / wall time): " + pipeline.getOverlapEfficiency());
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (ExecutorService deviceExecutor : deviceExecutors) {
+                deviceExecutor.shutdownNow();
+            }
+            for (TilePipeline pipeline : pipelines) {
+                pipeline.close();
+            }
+        }
+    }
+
+    private void executePolling(ArrayList<AbstractCLIJ2Plugin> clients, Object[] args, HashMap<String, ClearCLBuffer> imageParameters) {
         boolean addMoreProcessors = true;
 
         ArrayList<ExecutorOnTile> executors = new ArrayList<ExecutorOnTile>();
@@ -141,46 +265,24 @@ public class Tilor{
                 break;
             }
         }
-
-        //clijx.stopWatch("");
-        for (int a = 0; a < argumentNames.length; a++) {
-            String[] parameterParts = argumentNames[a].trim().split(" ");
-            String parameterType = parameterParts[0];
-            String parameterName = parameterParts[1];
-            boolean byRef = false;
-            if (parameterType.compareTo("ByRef") == 0) {
-                parameterType = parameterParts[1];
-                parameterName = parameterParts[2];
-                byRef = true;
-            }
-
-            if (parameterType.compareTo("Image") == 0) {
-                //ClearCLBuffer buffer = imageParameters.get(parameterName);
-                //master.getCLIJ2().copy(buffer, (ClearCLBuffer)args[a]);
-                //master.getCLIJ2().release(buffer);
-            }
-        }
-        //clijx.stopWatch("Combined images");
-
-        System.out.println("Tilor took " + (System.currentTimeMillis() - time) + " ms.");
     }
 
     private boolean addExecutor(Object[] args, HashMap<String, ClearCLBuffer> imageParameters, ArrayList<ExecutorOnTile> executors, AbstractCLIJ2Plugin plugin) {
 
-        ExecutorOnTile executor = new ExecutorOnTile(master, plugin, imageParameters, args, tileIndexX, tileIndexY, tileIndexZ, tileWidth, tileHeight, tileDepth, marginWidth, marginHeight, marginDepth);
+        ExecutorOnTile executor = new ExecutorOnTile(master, plugin, imageParameters, args, tileGrid.getTile(tileIndexX, tileIndexY, tileIndexZ));
         new Thread(executor).start();
         executors.add(executor);
 
         tileIndexX++;
         // System.out.println("\t" + tileIndexX + "\t" + tileIndexY + "\t" + tileIndexZ);
-        if (tileIndexX >= numTilesX) {
+        if (tileIndexX >= tileGrid.getNumberOfTilesX()) {
             //System.out.println("TilesX over");
             tileIndexX = 0;
             tileIndexY ++;
-            if (tileIndexY >= numTilesY) {
+            if (tileIndexY >= tileGrid.getNumberOfTilesY()) {
                 tileIndexY = 0;
                 tileIndexZ++;
-                if (tileIndexZ >= numTilesZ) {
+                if (tileIndexZ >= tileGrid.getNumberOfTilesZ()) {
                     return false;
                 }
             }
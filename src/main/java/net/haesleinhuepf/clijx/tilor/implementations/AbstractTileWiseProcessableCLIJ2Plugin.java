@@ -39,7 +39,9 @@ abstract class AbstractTileWiseProcessableCLIJ2Plugin extends AbstractCLIJ2Plugi
                     "xt version (Experimental)\n" +
                     "This is operation is processed in tiles and distributed among all available OpenCL devices. " +
                     "It is recommended to use this operation for 3D images only, " +
-                    "because on typical 2D images it may not make much sense performance wise.";
+                    "because on typical 2D images it may not make much sense performance wise. " +
+                    "Tiles at the image border may be smaller than the given tile size. " +
+                    "If any tile size is set to 0, the tile size is determined from the available GPU memory.";
         }
         return "";
     }
@@ -0,0 +1,388 @@
+package net.haesleinhuepf.clijx.utilities;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.gui.MemoryDisplay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the stacks shown in image windows in GPU memory, shared by interactive GUI tools such as
+ * Show3DWithTipTilt, InteractiveMaximumZProjection, Segmentation3D and ImageRegistration3D. Stacks are identified by
+ * ImagePlus id, channel, frame and modification count; several tools showing the same image upload it once. Besides
+ * the full resolution, coarser levels of detail are computed on demand, each half as large in x, y and z, e.g. for
+ * previews while the user changes parameters.
+ *
+ * Pyramids are reference counted: tools acquire a pyramid and release it when they close. Released pyramids stay
+ * cached until their image changes or is closed, or until memory becomes tight: before uploading, the least recently
+ * used released pyramids are dropped while more than maximum_memory_fraction of the GPU memory would be in use.
+ *
+ * Modifications are noticed from ImageJ's image updated events which change the pixels of the shown plane without a
+ * change of the shown channel, slice or frame; changes of LUT or display range don't count. Tools changing pixels
+ * otherwise, e.g. of planes not shown, should call invalidate().
+ */
+public class ImagePyramidCache {
+    public static double maximum_memory_fraction = 0.5;
+    // interactive tools preview on the finest level with at most this number of voxels
+    public static long preview_maximum_voxels = 128 * 128 * 128;
+
+    public enum Reduction {
+        MAXIMUM,
+        MINIMUM,
+        MEAN;
+
+        /**
+         * Returns the reduction matching a "Max", "Min" or "Mean" projection, so that previews look alike.
+         */
+        public static Reduction ofProjection(String projection) {
+            if (projection.compareTo("Min") == 0) {
+                return MINIMUM;
+            } else if (projection.compareTo("Mean") == 0) {
+                return MEAN;
+            }
+            return MAXIMUM;
+        }
+    }
+
+    private static final LinkedHashMap<Key, Pyramid> cache = new LinkedHashMap<>(16, 0.75f, true);
+    // by ImagePlus id
+    private static final HashMap<Integer, Integer> modificationCounts = new HashMap<>();
+    private static final HashMap<Integer, int[]> shownPositions = new HashMap<>();
+    private static final HashMap<Integer, Integer> shownPixelHashes = new HashMap<>();
+    private static boolean listening = false;
+
+    private static long numberOfHits = 0;
+    private static long numberOfMisses = 0;
+
+    private static class Key {
+        final int imageId;
+        final int channel;
+        final int frame;
+        final int modificationCount;
+        final Object context;
+
+        Key(ImagePlus imp, Object context) {
+            this.imageId = imp.getID();
+            this.channel = imp.getC();
+            this.frame = imp.getT();
+            this.modificationCount = modificationCounts.getOrDefault(imageId, 0);
+            this.context = context;
+        }
+
+        boolean sameStack(Key other) {
+            return imageId == other.imageId && channel == other.channel && frame == other.frame && context == other.context;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return sameStack(other) && modificationCount == other.modificationCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((imageId * 31 + channel) * 31 + frame) * 31 + modificationCount + System.identityHashCode(context);
+        }
+    }
+
+    /**
+     * Levels of detail of one stack. Level 0 is the stack in full resolution; it and all coarser levels are owned by
+     * the cache and must not be closed by tools.
+     */
+    public static class Pyramid {
+        private final CLIJ2 clij2;
+        private final Key key;
+        private final ClearCLBuffer fullResolution;
+        private final EnumMap<Reduction, ArrayList<ClearCLBuffer>> coarseLevels = new EnumMap<>(Reduction.class);
+
+        private int references = 0;
+        // replaced by a newer version of the stack or its image was closed; closed once released
+        private boolean outdated = false;
+
+        private Pyramid(CLIJ2 clij2, Key key, ClearCLBuffer fullResolution) {
+            this.clij2 = clij2;
+            this.key = key;
+            this.fullResolution = fullResolution;
+        }
+
+        public ClearCLBuffer getFullResolution() {
+            return fullResolution;
+        }
+
+        /**
+         * Returns the given level of detail; blocks of 2x2x2 voxels of the next finer level are reduced to their
+         * maximum, minimum or mean, e.g. matching the projection shown.
+         */
+        public synchronized ClearCLBuffer getLevel(int level, Reduction reduction) {
+            if (level == 0) {
+                return fullResolution;
+            }
+            ArrayList<ClearCLBuffer> levels = coarseLevels.computeIfAbsent(reduction, r -> new ArrayList<>());
+            while (levels.size() < level) {
+                ClearCLBuffer finer = levels.isEmpty() ? fullResolution : levels.get(levels.size() - 1);
+                ClearCLBuffer coarser = clij2.create(new long[]{
+                        (finer.getWidth() + 1) / 2,
+                        (finer.getHeight() + 1) / 2,
+                        (finer.getDepth() + 1) / 2}, finer.getNativeType());
+
+                HashMap<String, Object> parameters = new HashMap<>();
+                parameters.put("src", finer);
+                parameters.put("dst", coarser);
+                parameters.put("reduction", reduction.ordinal());
+                clij2.execute(ImagePyramidCache.class, "image_pyramid_downsample_x.cl", "image_pyramid_downsample", coarser.getDimensions(), coarser.getDimensions(), parameters);
+                levels.add(coarser);
+            }
+            return levels.get(level - 1);
+        }
+
+        /**
+         * Returns the finest level with at most the given number of voxels.
+         */
+        public int getPreviewLevel(long maximum_voxels) {
+            long width = fullResolution.getWidth();
+            long height = fullResolution.getHeight();
+            long depth = fullResolution.getDepth();
+            int level = 0;
+            while (width * height * depth > maximum_voxels && width * height * depth > 1) {
+                width = (width + 1) / 2;
+                height = (height + 1) / 2;
+                depth = (depth + 1) / 2;
+                level++;
+            }
+            return level;
+        }
+
+        /**
+         * Returns true if the image changed or was closed since the pyramid was acquired; tools showing the image
+         * should release it and acquire the current one.
+         */
+        public boolean isOutdated() {
+            synchronized (cache) {
+                return outdated;
+            }
+        }
+
+        /**
+         * Hands the pyramid back to the cache; it must not be used anymore by the releasing tool.
+         */
+        public void release() {
+            synchronized (cache) {
+                references--;
+                if (references == 0 && outdated) {
+                    close();
+                }
+            }
+        }
+
+        private synchronized long getSizeInBytes() {
+            long bytes = fullResolution.getSizeInBytes();
+            for (ArrayList<ClearCLBuffer> levels : coarseLevels.values()) {
+                for (ClearCLBuffer level : levels) {
+                    bytes += level.getSizeInBytes();
+                }
+            }
+            return bytes;
+        }
+
+        private synchronized void close() {
+            fullResolution.close();
+            for (ArrayList<ClearCLBuffer> levels : coarseLevels.values()) {
+                for (ClearCLBuffer level : levels) {
+                    level.close();
+                }
+            }
+            coarseLevels.clear();
+        }
+    }
+
+    /**
+     * Returns the pyramid of the current Z-stack (current channel and frame) of the given image and uploads it if it
+     * is not cached. Every acquired pyramid must be released.
+     */
+    public static Pyramid acquire(CLIJ2 clij2, ImagePlus imp) {
+        synchronized (cache) {
+            listen();
+            if (!shownPositions.containsKey(imp.getID())) {
+                shownPositions.put(imp.getID(), shownPosition(imp));
+                shownPixelHashes.put(imp.getID(), shownPixelHash(imp));
+            }
+
+            Key key = new Key(imp, clij2);
+            Pyramid pyramid = cache.get(key);
+            if (pyramid == null) {
+                remove(key);
+                long bytes = (long) imp.getWidth() * imp.getHeight() * imp.getNSlices() * ((imp.getBitDepth() + 7) / 8);
+                evict(clij2, bytes);
+                pyramid = new Pyramid(clij2, key, clij2.pushCurrentZStack(imp));
+                cache.put(key, pyramid);
+                numberOfMisses++;
+            } else {
+                numberOfHits++;
+            }
+            pyramid.references++;
+            return pyramid;
+        }
+    }
+
+    /**
+     * Marks the pixels of the given image as changed; pyramids acquired afterwards are uploaded again.
+     */
+    public static void invalidate(ImagePlus imp) {
+        synchronized (cache) {
+            modificationCounts.merge(imp.getID(), 1, Integer::sum);
+            removeImage(imp.getID());
+        }
+    }
+
+    // former versions of the same stack are not needed anymore
+    private static void remove(Key key) {
+        Iterator<Pyramid> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            Pyramid pyramid = iterator.next();
+            if (pyramid.key.sameStack(key)) {
+                iterator.remove();
+                discard(pyramid);
+            }
+        }
+    }
+
+    private static void removeImage(int imageId) {
+        Iterator<Pyramid> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            Pyramid pyramid = iterator.next();
+            if (pyramid.key.imageId == imageId) {
+                iterator.remove();
+                discard(pyramid);
+            }
+        }
+    }
+
+    private static void discard(Pyramid pyramid) {
+        if (pyramid.references == 0) {
+            pyramid.close();
+        } else {
+            pyramid.outdated = true;
+        }
+    }
+
+    // drops least recently used pyramids nobody uses until the given number of bytes fits
+    private static void evict(CLIJ2 clij2, long bytes) {
+        long limit = (long) (clij2.getCLIJ().getGPUMemoryInBytes() * maximum_memory_fraction);
+        long used = MemoryDisplay.getUsedMemoryInBytes(clij2);
+        Iterator<Map.Entry<Key, Pyramid>> iterator = cache.entrySet().iterator();
+        while (used + bytes > limit && iterator.hasNext()) {
+            Pyramid pyramid = iterator.next().getValue();
+            if (pyramid.references == 0 && pyramid.clij2 == clij2) {
+                used -= pyramid.getSizeInBytes();
+                iterator.remove();
+                pyramid.close();
+            }
+        }
+    }
+
+    private static int[] shownPosition(ImagePlus imp) {
+        return new int[]{imp.getC(), imp.getZ(), imp.getT()};
+    }
+
+    private static int shownPixelHash(ImagePlus imp) {
+        ImageProcessor ip = imp.getProcessor();
+        Object pixels = ip == null ? null : ip.getPixels();
+        if (pixels instanceof byte[]) {
+            return Arrays.hashCode((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            return Arrays.hashCode((short[]) pixels);
+        } else if (pixels instanceof float[]) {
+            return Arrays.hashCode((float[]) pixels);
+        } else if (pixels instanceof int[]) {
+            return Arrays.hashCode((int[]) pixels);
+        }
+        return System.identityHashCode(pixels);
+    }
+
+    private static void listen() {
+        if (listening) {
+            return;
+        }
+        ImagePlus.addImageListener(new ImageListener() {
+            @Override
+            public void imageOpened(ImagePlus imp) {
+            }
+
+            @Override
+            public void imageClosed(ImagePlus imp) {
+                synchronized (cache) {
+                    removeImage(imp.getID());
+                    modificationCounts.remove(imp.getID());
+                    shownPositions.remove(imp.getID());
+                    shownPixelHashes.remove(imp.getID());
+                }
+            }
+
+            @Override
+            public void imageUpdated(ImagePlus imp) {
+                synchronized (cache) {
+                    // images no tool acquired are not tracked
+                    if (!shownPositions.containsKey(imp.getID())) {
+                        return;
+                    }
+                    // browsing through channels, slices and frames sends updates as well as changing LUT or display range
+                    int[] position = shownPosition(imp);
+                    int pixelHash = shownPixelHash(imp);
+                    int[] former = shownPositions.put(imp.getID(), position);
+                    Integer formerPixelHash = shownPixelHashes.put(imp.getID(), pixelHash);
+                    if (Arrays.equals(former, position) && formerPixelHash != null && formerPixelHash != pixelHash) {
+                        modificationCounts.merge(imp.getID(), 1, Integer::sum);
+                        removeImage(imp.getID());
+                    }
+                }
+            }
+        });
+        listening = true;
+    }
+
+    /**
+     * Closes all pyramids nobody uses.
+     */
+    public static void clear() {
+        synchronized (cache) {
+            Iterator<Pyramid> iterator = cache.values().iterator();
+            while (iterator.hasNext()) {
+                Pyramid pyramid = iterator.next();
+                if (pyramid.references == 0) {
+                    iterator.remove();
+                    pyramid.close();
+                }
+            }
+        }
+    }
+
+    public static long getNumberOfHits() {
+        synchronized (cache) {
+            return numberOfHits;
+        }
+    }
+
+    public static long getNumberOfMisses() {
+        synchronized (cache) {
+            return numberOfMisses;
+        }
+    }
+
+    public static String getStatistics() {
+        synchronized (cache) {
+            return "Image pyramid cache: " + cache.size() + " pyramids, " + numberOfHits + " hits, " + numberOfMisses + " misses";
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package net.haesleinhuepf.clijx.utilities;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Runs an iterative operation, e.g. dilating labels, until it doesn't change the image anymore. Every iteration
+ * sets a flag image to a non-zero value if it changed something. Instead of reading the flag after every iteration,
+ * a batch of iterations is enqueued without waiting and the flag is read once per batch. The batch size doubles as
+ * long as the image keeps changing, thus the number of host synchronizations grows logarithmically with the number
+ * of iterations.
+ *
+ * Iterations after convergence don't change the image anymore; the operation must hence be stable once the flag
+ * stays zero for an iteration.
+ */
+public class IterateUntilStable {
+    public static int maximum_iterations_per_check = 32;
+
+    public interface Iteration {
+        /**
+         * Enqueues one iteration. Kernels should be run without waiting for them to finish.
+         */
+        void run(int iteration);
+    }
+
+    private final ClearCLBuffer flag;
+    private final ByteBuffer zeros;
+    private final ByteBuffer flagValue;
+
+    private int numberOfIterations = 0;
+    private int numberOfChecks = 0;
+    private boolean timedOut = false;
+
+    public IterateUntilStable(ClearCLBuffer flag) {
+        this.flag = flag;
+        int sizeInBytes = (int) flag.getSizeInBytes();
+        // direct buffers allow writing the flag without waiting
+        zeros = ByteBuffer.allocateDirect(sizeInBytes).order(ByteOrder.nativeOrder());
+        flagValue = ByteBuffer.allocateDirect(sizeInBytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Runs iterations until the flag stays zero and returns the number of iterations, which may exceed the number
+     * of iterations needed by less than one batch.
+     */
+    public int run(Iteration iteration) {
+        return run(iteration, Long.MAX_VALUE);
+    }
+
+    public int run(Iteration iteration, long timeoutInMillis) {
+        long startTime = System.currentTimeMillis();
+        flag.readFrom(zeros, true);
+
+        int iterationsPerCheck = 1;
+        while (true) {
+            for (int i = 0; i < iterationsPerCheck; i++) {
+                iteration.run(numberOfIterations);
+                numberOfIterations++;
+            }
+
+            // the only point where the host waits for the device
+            flagValue.clear();
+            flag.writeTo(flagValue, true);
+            numberOfChecks++;
+            if (isZero(flagValue)) {
+                return numberOfIterations;
+            }
+            if (System.currentTimeMillis() - startTime > timeoutInMillis) {
+                timedOut = true;
+                return numberOfIterations;
+            }
+
+            flag.readFrom(zeros, false);
+            iterationsPerCheck = Math.min(iterationsPerCheck * 2, maximum_iterations_per_check);
+        }
+    }
+
+    private static boolean isZero(ByteBuffer buffer) {
+        for (int i = 0; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getNumberOfIterations() {
+        return numberOfIterations;
+    }
+
+    public int getNumberOfChecks() {
+        return numberOfChecks;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+}
@@ -0,0 +1,219 @@
+package net.haesleinhuepf.clijx.utilities;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A k-d tree over a point list, e.g. label centroids, answering n-nearest-neighbor and within-distance queries in
+ * logarithmic time per point instead of comparing all pairs of points.
+ *
+ * The tree is stored implicitly in a permutation of the point indices: the point in the middle of every index range
+ * splits the range along the dimension of the largest extent. Points with NaN coordinates, e.g. the background
+ * entry of a centroid list, are not indexed.
+ */
+public class KDTree {
+    private static final int LEAF_SIZE = 8;
+
+    private final float[] points;
+    private final int dimension;
+    private final int[] indices;
+    private final byte[] splitDimensions;
+
+    /**
+     * @param points coordinates of point i at points[i * dimension + d]
+     */
+    public KDTree(float[] points, int dimension) {
+        this.points = points;
+        this.dimension = dimension;
+
+        int numberOfPoints = points.length / dimension;
+        int[] validIndices = new int[numberOfPoints];
+        int count = 0;
+        for (int i = 0; i < numberOfPoints; i++) {
+            boolean valid = true;
+            for (int d = 0; d < dimension; d++) {
+                valid = valid && !Float.isNaN(points[i * dimension + d]);
+            }
+            if (valid) {
+                validIndices[count++] = i;
+            }
+        }
+        indices = Arrays.copyOf(validIndices, count);
+        splitDimensions = new byte[count];
+        build(0, count);
+    }
+
+    public int size() {
+        return indices.length;
+    }
+
+    private void build(int from, int to) {
+        if (to - from <= LEAF_SIZE) {
+            return;
+        }
+        int splitDimension = 0;
+        float largestExtent = -1;
+        for (int d = 0; d < dimension; d++) {
+            float minimum = Float.POSITIVE_INFINITY;
+            float maximum = Float.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                float value = coordinate(indices[i], d);
+                minimum = Math.min(minimum, value);
+                maximum = Math.max(maximum, value);
+            }
+            if (maximum - minimum > largestExtent) {
+                largestExtent = maximum - minimum;
+                splitDimension = d;
+            }
+        }
+        int middle = (from + to) >>> 1;
+        select(from, to - 1, middle, splitDimension);
+        splitDimensions[middle] = (byte) splitDimension;
+        build(from, middle);
+        build(middle + 1, to);
+    }
+
+    /**
+     * Partially sorts indices[left..right] so that indices[k] holds the point with the k-th smallest coordinate.
+     */
+    private void select(int left, int right, int k, int d) {
+        while (right > left) {
+            float pivot = coordinate(indices[(left + right) >>> 1], d);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (coordinate(indices[i], d) < pivot) {
+                    i++;
+                }
+                while (coordinate(indices[j], d) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int temp = indices[i];
+                    indices[i] = indices[j];
+                    indices[j] = temp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private float coordinate(int point, int d) {
+        return points[point * dimension + d];
+    }
+
+    private float squaredDistance(int point, int other) {
+        float sum = 0;
+        for (int d = 0; d < dimension; d++) {
+            float difference = points[point * dimension + d] - points[other * dimension + d];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    /**
+     * Determines the n points closest to the given point, excluding the point itself, closest first.
+     *
+     * @param neighbors_destination array of length n or larger receiving the point indices
+     * @param distances_destination array of length n or larger receiving the distances, may be null
+     * @return the number of neighbors found, less than n if there are not enough points
+     */
+    public int nearest(int point, int n, int[] neighbors_destination, float[] distances_destination) {
+        if (n <= 0) {
+            return 0;
+        }
+        float[] squaredDistances = new float[n];
+        int count = nearest(point, n, 0, indices.length, neighbors_destination, squaredDistances, 0);
+        if (distances_destination != null) {
+            for (int i = 0; i < count; i++) {
+                distances_destination[i] = (float) Math.sqrt(squaredDistances[i]);
+            }
+        }
+        return count;
+    }
+
+    private int nearest(int point, int n, int from, int to, int[] neighbors, float[] squaredDistances, int count) {
+        if (to - from <= LEAF_SIZE) {
+            for (int i = from; i < to; i++) {
+                count = insert(point, indices[i], n, neighbors, squaredDistances, count);
+            }
+            return count;
+        }
+        int middle = (from + to) >>> 1;
+        int splitDimension = splitDimensions[middle];
+        float difference = coordinate(point, splitDimension) - coordinate(indices[middle], splitDimension);
+
+        count = insert(point, indices[middle], n, neighbors, squaredDistances, count);
+        // search the half containing the point first; the other one only if it may contain closer points
+        if (difference < 0) {
+            count = nearest(point, n, from, middle, neighbors, squaredDistances, count);
+            if (count < n || difference * difference < squaredDistances[count - 1]) {
+                count = nearest(point, n, middle + 1, to, neighbors, squaredDistances, count);
+            }
+        } else {
+            count = nearest(point, n, middle + 1, to, neighbors, squaredDistances, count);
+            if (count < n || difference * difference < squaredDistances[count - 1]) {
+                count = nearest(point, n, from, middle, neighbors, squaredDistances, count);
+            }
+        }
+        return count;
+    }
+
+    private int insert(int point, int candidate, int n, int[] neighbors, float[] squaredDistances, int count) {
+        if (candidate == point) {
+            return count;
+        }
+        float squaredDistance = squaredDistance(point, candidate);
+        if (count == n && squaredDistance >= squaredDistances[n - 1]) {
+            return count;
+        }
+        int position = Math.min(count, n - 1);
+        while (position > 0 && squaredDistances[position - 1] > squaredDistance) {
+            squaredDistances[position] = squaredDistances[position - 1];
+            neighbors[position] = neighbors[position - 1];
+            position--;
+        }
+        squaredDistances[position] = squaredDistance;
+        neighbors[position] = candidate;
+        return Math.min(count + 1, n);
+    }
+
+    /**
+     * Hands all points within max_distance of the given point, excluding the point itself, to the consumer.
+     */
+    public void withinDistance(int point, float max_distance, IntConsumer consumer) {
+        withinDistance(point, max_distance * max_distance, 0, indices.length, consumer);
+    }
+
+    private void withinDistance(int point, float squaredMaximumDistance, int from, int to, IntConsumer consumer) {
+        if (to - from <= LEAF_SIZE) {
+            for (int i = from; i < to; i++) {
+                if (indices[i] != point && squaredDistance(point, indices[i]) <= squaredMaximumDistance) {
+                    consumer.accept(indices[i]);
+                }
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        int splitDimension = splitDimensions[middle];
+        float difference = coordinate(point, splitDimension) - coordinate(indices[middle], splitDimension);
+
+        if (indices[middle] != point && squaredDistance(point, indices[middle]) <= squaredMaximumDistance) {
+            consumer.accept(indices[middle]);
+        }
+        if (difference <= 0 || difference * difference <= squaredMaximumDistance) {
+            withinDistance(point, squaredMaximumDistance, from, middle, consumer);
+        }
+        if (difference >= 0 || difference * difference <= squaredMaximumDistance) {
+            withinDistance(point, squaredMaximumDistance, middle + 1, to, consumer);
+        }
+    }
+}
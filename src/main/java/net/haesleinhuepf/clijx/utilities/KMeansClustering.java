@@ -0,0 +1,298 @@
+package net.haesleinhuepf.clijx.utilities;
+
+import ij.measure.ResultsTable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * K-means clustering on primitive arrays. Small data sets are clustered with Lloyd's algorithm, large ones with
+ * mini-batch k-means; both start from a k-means++ initialization. Assigning samples to their nearest center runs
+ * multi-threaded.
+ *
+ * Features are handed over feature-major as pulled from a feature image with one column per sample and one row per
+ * feature: feature f of sample i is at features[f * number_of_samples + i].
+ *
+ * Models are saved in a compact binary format, or as CSV table with one row per center if the filename ends with
+ * .csv, as former versions did.
+ */
+public class KMeansClustering {
+    public static int mini_batch_size = 1024;
+    public static int maximum_iterations = 300;
+
+    // "KMNS"
+    private static final int MAGIC = 0x4B4D4E53;
+    private static final int VERSION = 1;
+
+    private final int numberOfClusters;
+    private final int numberOfFeatures;
+    private final double[] centers;
+
+    /**
+     * @param centers feature f of center k at centers[k * number_of_features + f]
+     */
+    public KMeansClustering(double[] centers, int number_of_clusters, int number_of_features) {
+        this.centers = centers;
+        this.numberOfClusters = number_of_clusters;
+        this.numberOfFeatures = number_of_features;
+    }
+
+    public int getNumberOfClusters() {
+        return numberOfClusters;
+    }
+
+    public int getNumberOfFeatures() {
+        return numberOfFeatures;
+    }
+
+    public double[] getCenters() {
+        return centers;
+    }
+
+    public static KMeansClustering train(float[] features, int number_of_samples, int number_of_clusters, long seed) {
+        if (number_of_samples <= 0) {
+            throw new IllegalArgumentException("K-means clustering needs at least one sample.");
+        }
+        int numberOfFeatures = features.length / number_of_samples;
+        // sample-major copy, so that the features of one sample are next to each other
+        float[] samples = new float[features.length];
+        for (int f = 0; f < numberOfFeatures; f++) {
+            for (int i = 0; i < number_of_samples; i++) {
+                samples[i * numberOfFeatures + f] = features[f * number_of_samples + i];
+            }
+        }
+
+        Random random = new Random(seed);
+        double[] centers = initializeKMeansPlusPlus(samples, number_of_samples, numberOfFeatures, number_of_clusters, random);
+        KMeansClustering clustering = new KMeansClustering(centers, number_of_clusters, numberOfFeatures);
+        if (number_of_samples <= mini_batch_size) {
+            clustering.lloyd(samples, number_of_samples);
+        } else {
+            clustering.miniBatch(samples, number_of_samples, random);
+        }
+        return clustering;
+    }
+
+    private static double[] initializeKMeansPlusPlus(float[] samples, int numberOfSamples, int numberOfFeatures, int numberOfClusters, Random random) {
+        double[] centers = new double[numberOfClusters * numberOfFeatures];
+        double[] squaredDistances = new double[numberOfSamples];
+        Arrays.fill(squaredDistances, Double.MAX_VALUE);
+
+        int chosen = random.nextInt(numberOfSamples);
+        for (int k = 0; k < numberOfClusters; k++) {
+            for (int f = 0; f < numberOfFeatures; f++) {
+                centers[k * numberOfFeatures + f] = samples[chosen * numberOfFeatures + f];
+            }
+            if (k == numberOfClusters - 1) {
+                break;
+            }
+            final int center = k;
+            IntStream.range(0, numberOfSamples).parallel().forEach(i ->
+                    squaredDistances[i] = Math.min(squaredDistances[i], squaredDistance(samples, i, centers, center, numberOfFeatures))
+            );
+
+            // the next center is drawn with a probability proportional to the squared distance to the closest center
+            double sum = 0;
+            for (double squaredDistance : squaredDistances) {
+                sum += squaredDistance;
+            }
+            double threshold = random.nextDouble() * sum;
+            chosen = numberOfSamples - 1;
+            for (int i = 0; i < numberOfSamples; i++) {
+                threshold -= squaredDistances[i];
+                if (threshold <= 0) {
+                    chosen = i;
+                    break;
+                }
+            }
+        }
+        return centers;
+    }
+
+    private void lloyd(float[] samples, int numberOfSamples) {
+        int[] assignment = new int[numberOfSamples];
+        Arrays.fill(assignment, -1);
+        double[] sums = new double[centers.length];
+        int[] counts = new int[numberOfClusters];
+        for (int iteration = 0; iteration < maximum_iterations; iteration++) {
+            boolean changed = IntStream.range(0, numberOfSamples).parallel().map(i -> {
+                int nearest = nearest(samples, i);
+                int formerAssignment = assignment[i];
+                assignment[i] = nearest;
+                return nearest == formerAssignment ? 0 : 1;
+            }).sum() > 0;
+            if (!changed) {
+                return;
+            }
+
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < numberOfSamples; i++) {
+                int k = assignment[i];
+                counts[k]++;
+                for (int f = 0; f < numberOfFeatures; f++) {
+                    sums[k * numberOfFeatures + f] += samples[i * numberOfFeatures + f];
+                }
+            }
+            for (int k = 0; k < numberOfClusters; k++) {
+                // empty clusters keep their center
+                if (counts[k] > 0) {
+                    for (int f = 0; f < numberOfFeatures; f++) {
+                        centers[k * numberOfFeatures + f] = sums[k * numberOfFeatures + f] / counts[k];
+                    }
+                }
+            }
+        }
+    }
+
+    private void miniBatch(float[] samples, int numberOfSamples, Random random) {
+        int[] batch = new int[mini_batch_size];
+        int[] assignment = new int[mini_batch_size];
+        long[] counts = new long[numberOfClusters];
+        double tolerance = 1e-6 * totalVariance(samples, numberOfSamples);
+
+        for (int iteration = 0; iteration < maximum_iterations; iteration++) {
+            for (int b = 0; b < batch.length; b++) {
+                batch[b] = random.nextInt(numberOfSamples);
+            }
+            IntStream.range(0, batch.length).parallel().forEach(b -> assignment[b] = nearest(samples, batch[b]));
+
+            // every center moves towards its samples with a learning rate decreasing with the number of samples seen
+            double squaredMovement = 0;
+            for (int b = 0; b < batch.length; b++) {
+                int k = assignment[b];
+                counts[k]++;
+                double learningRate = 1.0 / counts[k];
+                for (int f = 0; f < numberOfFeatures; f++) {
+                    double step = learningRate * (samples[batch[b] * numberOfFeatures + f] - centers[k * numberOfFeatures + f]);
+                    centers[k * numberOfFeatures + f] += step;
+                    squaredMovement += step * step;
+                }
+            }
+            if (iteration > 0 && squaredMovement < tolerance) {
+                return;
+            }
+        }
+    }
+
+    private double totalVariance(float[] samples, int numberOfSamples) {
+        double variance = 0;
+        for (int f = 0; f < numberOfFeatures; f++) {
+            double sum = 0;
+            double squaredSum = 0;
+            for (int i = 0; i < numberOfSamples; i++) {
+                double value = samples[i * numberOfFeatures + f];
+                sum += value;
+                squaredSum += value * value;
+            }
+            double mean = sum / numberOfSamples;
+            variance += squaredSum / numberOfSamples - mean * mean;
+        }
+        return variance;
+    }
+
+    private int nearest(float[] samples, int sample) {
+        int nearest = 0;
+        double minimumSquaredDistance = Double.MAX_VALUE;
+        for (int k = 0; k < numberOfClusters; k++) {
+            double squaredDistance = squaredDistance(samples, sample, centers, k, numberOfFeatures);
+            if (squaredDistance < minimumSquaredDistance) {
+                minimumSquaredDistance = squaredDistance;
+                nearest = k;
+            }
+        }
+        return nearest;
+    }
+
+    private static double squaredDistance(float[] samples, int sample, double[] centers, int center, int numberOfFeatures) {
+        double sum = 0;
+        for (int f = 0; f < numberOfFeatures; f++) {
+            double difference = samples[sample * numberOfFeatures + f] - centers[center * numberOfFeatures + f];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the index of the nearest center + 1 for every sample; 0 is reserved for the background.
+     */
+    public int[] predict(float[] features, int number_of_samples) {
+        int[] classes = new int[number_of_samples];
+        IntStream.range(0, number_of_samples).parallel().forEach(i -> {
+            double minimumSquaredDistance = Double.MAX_VALUE;
+            for (int k = 0; k < numberOfClusters; k++) {
+                double sum = 0;
+                for (int f = 0; f < numberOfFeatures; f++) {
+                    double difference = features[f * number_of_samples + i] - centers[k * numberOfFeatures + f];
+                    sum += difference * difference;
+                }
+                if (sum < minimumSquaredDistance) {
+                    minimumSquaredDistance = sum;
+                    classes[i] = k + 1;
+                }
+            }
+        });
+        return classes;
+    }
+
+    public void save(String filename) throws IOException {
+        if (filename.toLowerCase().endsWith(".csv")) {
+            ResultsTable table = new ResultsTable();
+            for (int k = 0; k < numberOfClusters; k++) {
+                for (int f = 0; f < numberOfFeatures; f++) {
+                    table.setValue(f, k, centers[k * numberOfFeatures + f]);
+                }
+            }
+            table.save(filename);
+            return;
+        }
+        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeInt(numberOfClusters);
+            stream.writeInt(numberOfFeatures);
+            for (double value : centers) {
+                stream.writeDouble(value);
+            }
+        }
+    }
+
+    public static KMeansClustering load(String filename) throws IOException {
+        if (filename.toLowerCase().endsWith(".csv")) {
+            ResultsTable table = ResultsTable.open(filename);
+            int numberOfClusters = table.size();
+            int numberOfFeatures = table.getLastColumn() + 1;
+            double[] centers = new double[numberOfClusters * numberOfFeatures];
+            for (int k = 0; k < numberOfClusters; k++) {
+                for (int f = 0; f < numberOfFeatures; f++) {
+                    centers[k * numberOfFeatures + f] = table.getValueAsDouble(f, k);
+                }
+            }
+            return new KMeansClustering(centers, numberOfClusters, numberOfFeatures);
+        }
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
+            if (stream.readInt() != MAGIC) {
+                throw new IOException(filename + " is not a k-means model.");
+            }
+            int version = stream.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported k-means model version " + version + " in " + filename);
+            }
+            int numberOfClusters = stream.readInt();
+            int numberOfFeatures = stream.readInt();
+            double[] centers = new double[numberOfClusters * numberOfFeatures];
+            for (int i = 0; i < centers.length; i++) {
+                centers[i] = stream.readDouble();
+            }
+            return new KMeansClustering(centers, numberOfClusters, numberOfFeatures);
+        }
+    }
+}
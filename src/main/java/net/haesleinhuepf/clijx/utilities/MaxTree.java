@@ -0,0 +1,239 @@
+package net.haesleinhuepf.clijx.utilities;
+
+import java.util.Arrays;
+
+/**
+ * Max-tree (component tree) of a 2D or 3D grey value image, built in a single pass with union-find on pixels sorted
+ * by intensity. Every node is a connected component of pixels with intensity above or equal the node's grey level;
+ * neighborhood is the box (8 / 26 neighbors). Nodes are represented by their canonical pixel, all other pixels
+ * point to the canonical pixel of the node they belong to.
+ *
+ * The tree allows attribute filtering with exact grey levels: components not fulfilling the criterion are merged
+ * into their parent component.
+ *
+ * Reference: Berger et al., "Effective component tree computation with application to pattern recognition in
+ * astronomical imaging", ICIP 2007
+ */
+public class MaxTree {
+    public enum Attribute {
+        // number of pixels / voxels
+        AREA,
+        // largest width, height or depth of the bounding box
+        BOUNDING_BOX_EXTENT,
+        MEAN_INTENSITY
+    }
+
+    private final float[] values;
+    private final int width;
+    private final int height;
+    private final int depth;
+
+    // pixels in ascending order of intensity
+    private final int[] sorted;
+    private final int[] parent;
+
+    public MaxTree(float[] values, int width, int height, int depth) {
+        this.values = values;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+
+        sorted = sort(values);
+        parent = new int[values.length];
+        build();
+    }
+
+    private static int[] sort(float[] values) {
+        // intensity in the upper, pixel index in the lower 32 bits
+        long[] keys = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            int bits = Float.floatToIntBits(values[i]);
+            if (bits < 0) {
+                bits ^= 0x7fffffff;
+            }
+            keys[i] = ((long) bits << 32) | i;
+        }
+        Arrays.parallelSort(keys);
+
+        int[] sorted = new int[values.length];
+        for (int i = 0; i < keys.length; i++) {
+            sorted[i] = (int) keys[i];
+        }
+        return sorted;
+    }
+
+    private void build() {
+        int[] zpar = new int[values.length];
+        Arrays.fill(zpar, -1);
+
+        int[] neighbors = new int[26];
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            int p = sorted[i];
+            parent[p] = p;
+            zpar[p] = p;
+
+            int numberOfNeighbors = neighbors(p, neighbors);
+            for (int j = 0; j < numberOfNeighbors; j++) {
+                int n = neighbors[j];
+                // only neighbors which are brighter or were processed before
+                if (zpar[n] < 0) {
+                    continue;
+                }
+                int r = findRoot(zpar, n);
+                if (r != p) {
+                    parent[r] = p;
+                    zpar[r] = p;
+                }
+            }
+        }
+
+        // all pixels of a node point to its canonical pixel
+        for (int p : sorted) {
+            int q = parent[p];
+            if (values[parent[q]] == values[q]) {
+                parent[p] = parent[q];
+            }
+        }
+    }
+
+    private static int findRoot(int[] zpar, int p) {
+        int root = p;
+        while (zpar[root] != root) {
+            root = zpar[root];
+        }
+        while (zpar[p] != root) {
+            int next = zpar[p];
+            zpar[p] = root;
+            p = next;
+        }
+        return root;
+    }
+
+    private int neighbors(int p, int[] neighbors) {
+        int planeSize = width * height;
+        int z = p / planeSize;
+        int y = (p % planeSize) / width;
+        int x = p % width;
+
+        int count = 0;
+        for (int dz = -1; dz <= 1; dz++) {
+            if (z + dz < 0 || z + dz >= depth) {
+                continue;
+            }
+            for (int dy = -1; dy <= 1; dy++) {
+                if (y + dy < 0 || y + dy >= height) {
+                    continue;
+                }
+                for (int dx = -1; dx <= 1; dx++) {
+                    if (x + dx < 0 || x + dx >= width || (dx == 0 && dy == 0 && dz == 0)) {
+                        continue;
+                    }
+                    neighbors[count] = p + dx + dy * width + dz * planeSize;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int getRoot() {
+        return sorted[0];
+    }
+
+    public int getParent(int pixel) {
+        return parent[pixel];
+    }
+
+    public boolean isCanonical(int pixel) {
+        return pixel == getRoot() || values[parent[pixel]] != values[pixel];
+    }
+
+    /**
+     * Returns the attribute of every node at its canonical pixel; values at other pixels are undefined.
+     */
+    public double[] computeAttribute(Attribute attribute) {
+        switch (attribute) {
+            case AREA:
+                return computeArea();
+            case MEAN_INTENSITY:
+                double[] area = computeArea();
+                double[] sum = new double[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    sum[i] = values[i];
+                }
+                accumulate(sum);
+                for (int i = 0; i < sum.length; i++) {
+                    sum[i] = sum[i] / area[i];
+                }
+                return sum;
+            case BOUNDING_BOX_EXTENT:
+                return computeBoundingBoxExtent();
+        }
+        throw new IllegalArgumentException("Unknown attribute " + attribute);
+    }
+
+    private double[] computeArea() {
+        double[] area = new double[values.length];
+        Arrays.fill(area, 1);
+        accumulate(area);
+        return area;
+    }
+
+    // children are processed before their parents in descending order
+    private void accumulate(double[] attribute) {
+        for (int i = sorted.length - 1; i > 0; i--) {
+            int p = sorted[i];
+            attribute[parent[p]] += attribute[p];
+        }
+    }
+
+    private double[] computeBoundingBoxExtent() {
+        int planeSize = width * height;
+        int[][] minima = new int[3][values.length];
+        int[][] maxima = new int[3][values.length];
+        for (int p = 0; p < values.length; p++) {
+            int[] position = {p % width, (p % planeSize) / width, p / planeSize};
+            for (int d = 0; d < 3; d++) {
+                minima[d][p] = position[d];
+                maxima[d][p] = position[d];
+            }
+        }
+        for (int i = sorted.length - 1; i > 0; i--) {
+            int p = sorted[i];
+            int q = parent[p];
+            for (int d = 0; d < 3; d++) {
+                minima[d][q] = Math.min(minima[d][q], minima[d][p]);
+                maxima[d][q] = Math.max(maxima[d][q], maxima[d][p]);
+            }
+        }
+
+        double[] extent = new double[values.length];
+        for (int p = 0; p < values.length; p++) {
+            for (int d = 0; d < 3; d++) {
+                extent[p] = Math.max(extent[p], maxima[d][p] - minima[d][p] + 1);
+            }
+        }
+        return extent;
+    }
+
+    /**
+     * Removes all components with an attribute below the given minimum. Pixels of removed components get the grey
+     * level of the closest ancestor component which is kept; the root is always kept.
+     */
+    public float[] filter(Attribute attribute, double minimum_attribute) {
+        double[] attributes = computeAttribute(attribute);
+
+        float[] result = new float[values.length];
+        // parents are processed before their children in ascending order
+        for (int p : sorted) {
+            if (p == getRoot()) {
+                result[p] = values[p];
+            } else if (isCanonical(p) && attributes[p] >= minimum_attribute) {
+                result[p] = values[p];
+            } else {
+                result[p] = result[parent[p]];
+            }
+        }
+        return result;
+    }
+}
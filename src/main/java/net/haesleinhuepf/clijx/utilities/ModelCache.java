@@ -0,0 +1,178 @@
+package net.haesleinhuepf.clijx.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps recently used classifier models, e.g. of WekaRegionalLabelClassifier and KMeansLabelClusterer, in memory.
+ * Models are identified by file path, modification time and size, hence a model overwritten on disk is loaded
+ * again. The least recently used models are dropped when more than maximum_number_of_models are cached.
+ *
+ * The cache can be used from several threads; a model requested by several threads at once is loaded once. Models
+ * depending on a GPU context, such as CLIJxWeka2, are cached per context.
+ */
+public class ModelCache {
+    public static int maximum_number_of_models = 8;
+
+    public interface Loader<T> {
+        T load(String filename) throws IOException;
+    }
+
+    private static final LinkedHashMap<Key, FutureTask<Object>> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static long numberOfHits = 0;
+    private static long numberOfMisses = 0;
+    private static long loadTimeInMillis = 0;
+
+    private static class Key {
+        final String path;
+        final long lastModified;
+        final long size;
+        final Object context;
+
+        Key(String filename, Object context) {
+            File file = new File(filename).getAbsoluteFile();
+            this.path = file.getPath();
+            this.lastModified = file.lastModified();
+            this.size = file.length();
+            this.context = context;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return path.equals(other.path) && lastModified == other.lastModified && size == other.size && context == other.context;
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + Long.hashCode(lastModified) + System.identityHashCode(context);
+        }
+    }
+
+    /**
+     * Returns the cached model of the given file or loads it.
+     *
+     * @param context object the model depends on, e.g. a CLIJ2 instance, or null
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T get(String filename, Object context, Loader<T> loader) throws IOException {
+        Key key = new Key(filename, context);
+        FutureTask<Object> loading;
+        boolean load = false;
+        synchronized (cache) {
+            loading = cache.get(key);
+            if (loading == null) {
+                removeOutdated(key);
+                loading = new FutureTask<>(() -> loader.load(filename));
+                cache.put(key, loading);
+                evict();
+                numberOfMisses++;
+                load = true;
+            } else {
+                numberOfHits++;
+            }
+        }
+
+        if (load) {
+            long time = System.currentTimeMillis();
+            loading.run();
+            synchronized (cache) {
+                loadTimeInMillis += System.currentTimeMillis() - time;
+            }
+        }
+
+        try {
+            return (T) loading.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Loading " + filename + " was interrupted.", e);
+        } catch (ExecutionException e) {
+            synchronized (cache) {
+                cache.remove(key);
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Loading " + filename + " failed.", e.getCause());
+        }
+    }
+
+    /**
+     * Adds a model which was just saved to the given file, e.g. after training.
+     */
+    public static void put(String filename, Object context, Object model) {
+        Key key = new Key(filename, context);
+        FutureTask<Object> loaded = new FutureTask<>(() -> model);
+        loaded.run();
+        synchronized (cache) {
+            removeOutdated(key);
+            cache.put(key, loaded);
+            evict();
+        }
+    }
+
+    // former versions of the same file are not needed anymore
+    private static void removeOutdated(Key key) {
+        Iterator<Key> iterator = cache.keySet().iterator();
+        while (iterator.hasNext()) {
+            Key other = iterator.next();
+            if (other.path.equals(key.path) && other.context == key.context) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void evict() {
+        Iterator<Map.Entry<Key, FutureTask<Object>>> iterator = cache.entrySet().iterator();
+        while (cache.size() > maximum_number_of_models && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public static long getNumberOfHits() {
+        synchronized (cache) {
+            return numberOfHits;
+        }
+    }
+
+    public static long getNumberOfMisses() {
+        synchronized (cache) {
+            return numberOfMisses;
+        }
+    }
+
+    public static long getLoadTimeInMillis() {
+        synchronized (cache) {
+            return loadTimeInMillis;
+        }
+    }
+
+    public static void resetStatistics() {
+        synchronized (cache) {
+            numberOfHits = 0;
+            numberOfMisses = 0;
+            loadTimeInMillis = 0;
+        }
+    }
+
+    public static String getStatistics() {
+        synchronized (cache) {
+            return "Model cache: " + cache.size() + " models, " + numberOfHits + " hits, " + numberOfMisses + " misses, " + loadTimeInMillis + " ms loading";
+        }
+    }
+}
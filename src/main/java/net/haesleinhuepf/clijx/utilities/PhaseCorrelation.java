@@ -0,0 +1,272 @@
+package net.haesleinhuepf.clijx.utilities;
+
+/**
+ * Determines translations between two images by phase correlation on the CPU: both images are windowed (Hann),
+ * zero-padded to power-of-two sizes and Fourier transformed; the inverse transform of the normalized cross-power
+ * spectrum peaks at the shift. The peak is refined to subpixel precision by fitting a gaussian (a parabola to the
+ * logarithm) along every axis.
+ *
+ * Cost depends on the window size only, not on the maximum shift searched for. Shifts are limited to less than half
+ * the window size.
+ *
+ * Images are handed over as float arrays, x running fastest, then y, then z.
+ */
+public class PhaseCorrelation {
+    // relative to the strongest frequency; regularizes normalizing frequencies which carry noise only
+    public static double regularization = 0.001;
+
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final int paddedWidth;
+    private final int paddedHeight;
+    private final int paddedDepth;
+
+    private final float[] windowX;
+    private final float[] windowY;
+    private final float[] windowZ;
+
+    /**
+     * Prepares comparing regions of the given size; depth is 1 for 2D.
+     */
+    public PhaseCorrelation(int width, int height, int depth) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        paddedWidth = nextPowerOfTwo(width);
+        paddedHeight = nextPowerOfTwo(height);
+        paddedDepth = nextPowerOfTwo(depth);
+
+        windowX = hann(width);
+        windowY = hann(height);
+        windowZ = hann(depth);
+    }
+
+    private static int nextPowerOfTwo(int n) {
+        int power = 1;
+        while (power < n) {
+            power *= 2;
+        }
+        return power;
+    }
+
+    private static float[] hann(int n) {
+        float[] window = new float[n];
+        for (int i = 0; i < n; i++) {
+            window[i] = n > 1 ? (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * (i + 0.5) / n)) : 1;
+        }
+        return window;
+    }
+
+    /**
+     * Returns the translation by which the content of image2 is shifted against image1 in x, y and z.
+     */
+    public static double[] shift(float[] image1, float[] image2, int width, int height, int depth) {
+        return new PhaseCorrelation(width, height, depth).shift(image1, image2, width, height, depth, 0, 0, 0, null);
+    }
+
+    /**
+     * Returns the translation by which the content of image2 is shifted against image1 within the region starting
+     * at x0, y0, z0. Positions outside the images are clamped to the edge.
+     *
+     * @param maximum_shift maximum shift per dimension or null for half the region size
+     */
+    public double[] shift(float[] image1, float[] image2, int image_width, int image_height, int image_depth, int x0, int y0, int z0, int[] maximum_shift) {
+        int size = paddedWidth * paddedHeight * paddedDepth;
+        double[] real1 = new double[size];
+        double[] imaginary1 = new double[size];
+        double[] real2 = new double[size];
+        double[] imaginary2 = new double[size];
+
+        extractRegion(image1, image_width, image_height, image_depth, x0, y0, z0, real1);
+        extractRegion(image2, image_width, image_height, image_depth, x0, y0, z0, real2);
+
+        fft3D(real1, imaginary1, false);
+        fft3D(real2, imaginary2, false);
+
+        // normalized cross-power spectrum conj(F1) * F2
+        double maximumMagnitude = 0;
+        for (int i = 0; i < size; i++) {
+            double real = real1[i] * real2[i] + imaginary1[i] * imaginary2[i];
+            double imaginary = real1[i] * imaginary2[i] - imaginary1[i] * real2[i];
+            real1[i] = real;
+            imaginary1[i] = imaginary;
+            real2[i] = Math.sqrt(real * real + imaginary * imaginary);
+            maximumMagnitude = Math.max(maximumMagnitude, real2[i]);
+        }
+        double epsilon = regularization * maximumMagnitude;
+        for (int i = 0; i < size; i++) {
+            real1[i] = real1[i] / (real2[i] + epsilon + Double.MIN_VALUE);
+            imaginary1[i] = imaginary1[i] / (real2[i] + epsilon + Double.MIN_VALUE);
+        }
+        fft3D(real1, imaginary1, true);
+
+        int maximumX = maximumShift(maximum_shift, 0, width, paddedWidth);
+        int maximumY = maximumShift(maximum_shift, 1, height, paddedHeight);
+        int maximumZ = maximumShift(maximum_shift, 2, depth, paddedDepth);
+
+        double best = Double.NEGATIVE_INFINITY;
+        int bestX = 0;
+        int bestY = 0;
+        int bestZ = 0;
+        for (int z = -maximumZ; z <= maximumZ; z++) {
+            for (int y = -maximumY; y <= maximumY; y++) {
+                for (int x = -maximumX; x <= maximumX; x++) {
+                    double value = real1[index(x, y, z)];
+                    if (value > best) {
+                        best = value;
+                        bestX = x;
+                        bestY = y;
+                        bestZ = z;
+                    }
+                }
+            }
+        }
+
+        return new double[]{
+                bestX + subpixelOffset(real1[index(bestX - 1, bestY, bestZ)], best, real1[index(bestX + 1, bestY, bestZ)], paddedWidth),
+                bestY + subpixelOffset(real1[index(bestX, bestY - 1, bestZ)], best, real1[index(bestX, bestY + 1, bestZ)], paddedHeight),
+                bestZ + subpixelOffset(real1[index(bestX, bestY, bestZ - 1)], best, real1[index(bestX, bestY, bestZ + 1)], paddedDepth)
+        };
+    }
+
+    private static int maximumShift(int[] maximum_shift, int dimension, int size, int paddedSize) {
+        int maximum = (paddedSize - 1) / 2;
+        // beyond the region size, shifts correlate zero padding only
+        maximum = Math.min(maximum, size - 1);
+        if (maximum_shift != null && dimension < maximum_shift.length) {
+            maximum = Math.min(maximum, maximum_shift[dimension]);
+        }
+        return Math.max(maximum, 0);
+    }
+
+    // vertex of the parabola through (-1, minus), (0, center), (1, plus), in logarithmic scale if possible
+    private static double subpixelOffset(double minus, double center, double plus, int paddedSize) {
+        if (minus > 0 && center > 0 && plus > 0) {
+            minus = Math.log(minus);
+            center = Math.log(center);
+            plus = Math.log(plus);
+        }
+        double denominator = minus - 2 * center + plus;
+        if (paddedSize < 3 || denominator >= 0) {
+            return 0;
+        }
+        return Math.max(-0.5, Math.min(0.5, (minus - plus) / (2 * denominator)));
+    }
+
+    // negative positions wrap around, as in the periodic correlation
+    private int index(int x, int y, int z) {
+        x = (x + paddedWidth) % paddedWidth;
+        y = (y + paddedHeight) % paddedHeight;
+        z = (z + paddedDepth) % paddedDepth;
+        return (z * paddedHeight + y) * paddedWidth + x;
+    }
+
+    private void extractRegion(float[] image, int imageWidth, int imageHeight, int imageDepth, int x0, int y0, int z0, double[] destination) {
+        double sum = 0;
+        for (int z = 0; z < depth; z++) {
+            int iz = Math.max(0, Math.min(imageDepth - 1, z0 + z));
+            for (int y = 0; y < height; y++) {
+                int iy = Math.max(0, Math.min(imageHeight - 1, y0 + y));
+                for (int x = 0; x < width; x++) {
+                    int ix = Math.max(0, Math.min(imageWidth - 1, x0 + x));
+                    double value = image[(iz * imageHeight + iy) * imageWidth + ix];
+                    destination[(z * paddedHeight + y) * paddedWidth + x] = value;
+                    sum += value;
+                }
+            }
+        }
+
+        // subtract the mean, so that the window doesn't dominate the spectrum
+        double mean = sum / (width * height * depth);
+        for (int z = 0; z < depth; z++) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int i = (z * paddedHeight + y) * paddedWidth + x;
+                    destination[i] = (destination[i] - mean) * windowX[x] * windowY[y] * windowZ[z];
+                }
+            }
+        }
+    }
+
+    private void fft3D(double[] real, double[] imaginary, boolean inverse) {
+        int maximumSize = Math.max(paddedWidth, Math.max(paddedHeight, paddedDepth));
+        double[] lineReal = new double[maximumSize];
+        double[] lineImaginary = new double[maximumSize];
+
+        for (int z = 0; z < paddedDepth; z++) {
+            for (int y = 0; y < paddedHeight; y++) {
+                transformLine(real, imaginary, (z * paddedHeight + y) * paddedWidth, 1, paddedWidth, lineReal, lineImaginary, inverse);
+            }
+        }
+        if (paddedHeight > 1) {
+            for (int z = 0; z < paddedDepth; z++) {
+                for (int x = 0; x < paddedWidth; x++) {
+                    transformLine(real, imaginary, z * paddedHeight * paddedWidth + x, paddedWidth, paddedHeight, lineReal, lineImaginary, inverse);
+                }
+            }
+        }
+        if (paddedDepth > 1) {
+            for (int y = 0; y < paddedHeight; y++) {
+                for (int x = 0; x < paddedWidth; x++) {
+                    transformLine(real, imaginary, y * paddedWidth + x, paddedWidth * paddedHeight, paddedDepth, lineReal, lineImaginary, inverse);
+                }
+            }
+        }
+    }
+
+    private static void transformLine(double[] real, double[] imaginary, int offset, int stride, int n, double[] lineReal, double[] lineImaginary, boolean inverse) {
+        for (int i = 0; i < n; i++) {
+            lineReal[i] = real[offset + i * stride];
+            lineImaginary[i] = imaginary[offset + i * stride];
+        }
+        fft(lineReal, lineImaginary, n, inverse);
+        for (int i = 0; i < n; i++) {
+            real[offset + i * stride] = lineReal[i];
+            imaginary[offset + i * stride] = lineImaginary[i];
+        }
+    }
+
+    // iterative radix-2 Cooley-Tukey; the inverse is not normalized as only the position of the peak matters
+    static void fft(double[] real, double[] imaginary, int n, boolean inverse) {
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double temp = real[i];
+                real[i] = real[j];
+                real[j] = temp;
+                temp = imaginary[i];
+                imaginary[i] = imaginary[j];
+                imaginary[j] = temp;
+            }
+        }
+
+        for (int length = 2; length <= n; length <<= 1) {
+            double angle = 2 * Math.PI / length * (inverse ? 1 : -1);
+            double stepReal = Math.cos(angle);
+            double stepImaginary = Math.sin(angle);
+            for (int start = 0; start < n; start += length) {
+                double twiddleReal = 1;
+                double twiddleImaginary = 0;
+                for (int k = 0; k < length / 2; k++) {
+                    int even = start + k;
+                    int odd = even + length / 2;
+                    double oddReal = real[odd] * twiddleReal - imaginary[odd] * twiddleImaginary;
+                    double oddImaginary = real[odd] * twiddleImaginary + imaginary[odd] * twiddleReal;
+                    real[odd] = real[even] - oddReal;
+                    imaginary[odd] = imaginary[even] - oddImaginary;
+                    real[even] += oddReal;
+                    imaginary[even] += oddImaginary;
+
+                    double nextTwiddleReal = twiddleReal * stepReal - twiddleImaginary * stepImaginary;
+                    twiddleImaginary = twiddleReal * stepImaginary + twiddleImaginary * stepReal;
+                    twiddleReal = nextTwiddleReal;
+                }
+            }
+        }
+    }
+}
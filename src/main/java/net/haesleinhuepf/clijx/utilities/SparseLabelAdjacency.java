@@ -0,0 +1,562 @@
+package net.haesleinhuepf.clijx.utilities;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.plugins.ReadValuesFromMap;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Neighborhood relationships between labels stored as compressed sparse rows (CSR) instead of a dense touch matrix
+ * of size (number_of_labels + 1)^2. Node 0 stands for the background, as in touch matrices. Relationships are
+ * symmetric and a label is never its own neighbor.
+ *
+ * Neighbor-map plugins switch to this representation when the number of labels reaches label_count_threshold.
+ * Proximal and n-nearest neighbors are determined using a KDTree over the label centroids.
+ * Reductions give the same results as the dense kernels: like CLIJ2's minimum, maximum, mean, median and standard
+ * deviation of touching neighbors, they take the label itself into account; like CLIJx' mode of touching neighbors,
+ * the mode is determined among the neighbors only.
+ */
+public class SparseLabelAdjacency {
+    /**
+     * A dense float touch matrix for 4096 labels takes 64 MB.
+     */
+    public static int label_count_threshold = 4096;
+
+    public enum Reduction {
+        MINIMUM,
+        MAXIMUM,
+        MEAN,
+        MEDIAN,
+        MODE,
+        STANDARD_DEVIATION
+    }
+
+    private final int numberOfNodes;
+    private final int[] offsets;
+    private final int[] neighbors;
+
+    private SparseLabelAdjacency(int numberOfNodes, int[] offsets, int[] neighbors) {
+        this.numberOfNodes = numberOfNodes;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+    }
+
+    public static boolean isRecommended(int number_of_labels) {
+        return number_of_labels >= label_count_threshold;
+    }
+
+    /**
+     * Determines which labels touch each other, including the background, in a single pass over the label map.
+     * The label map is pulled slab-wise; voxels are compared with their right, lower and next-plane neighbors.
+     */
+    public static SparseLabelAdjacency fromTouchingLabels(CLIJ2 clij2, ClearCLBuffer label_map, int number_of_labels) {
+        int width = (int) label_map.getWidth();
+        int height = (int) label_map.getHeight();
+        int depth = label_map.getDimension() > 2 ? (int) label_map.getDepth() : 1;
+        long numberOfNodes = number_of_labels + 1;
+
+        // the last plane of a slab is the first plane of the next one
+        int planesPerSlab = (int) Math.max(2, Math.min(depth, (64L * 1024 * 1024 / 4) / ((long) width * height)));
+        float[] slab = new float[width * height * planesPerSlab];
+        LongHashSet edges = new LongHashSet();
+
+        for (int z0 = 0; z0 < depth; z0 += planesPerSlab - 1) {
+            int planes = Math.min(planesPerSlab, depth - z0);
+            if (z0 > 0 && planes < 2) {
+                break;
+            }
+            ClearCLBuffer slabBuffer;
+            if (label_map.getDimension() > 2) {
+                slabBuffer = clij2.create(new long[]{width, height, planes}, NativeTypeEnum.Float);
+                clij2.crop(label_map, slabBuffer, 0, 0, z0);
+            } else {
+                slabBuffer = clij2.create(new long[]{width, height}, NativeTypeEnum.Float);
+                clij2.copy(label_map, slabBuffer);
+            }
+            slabBuffer.writeTo(FloatBuffer.wrap(slab, 0, width * height * planes), true);
+            clij2.release(slabBuffer);
+
+            for (int z = 0; z < planes; z++) {
+                for (int y = 0; y < height; y++) {
+                    int index = (z * height + y) * width;
+                    for (int x = 0; x < width; x++, index++) {
+                        int label = (int) slab[index];
+                        if (x + 1 < width) {
+                            addEdge(edges, numberOfNodes, label, (int) slab[index + 1]);
+                        }
+                        if (y + 1 < height) {
+                            addEdge(edges, numberOfNodes, label, (int) slab[index + width]);
+                        }
+                        if (z + 1 < planes) {
+                            addEdge(edges, numberOfNodes, label, (int) slab[index + width * height]);
+                        }
+                    }
+                }
+            }
+        }
+        return fromEdges(number_of_labels + 1, edges);
+    }
+
+    /**
+     * Connects labels whose centroids are at least min_distance and at most max_distance apart.
+     *
+     * @param centroids coordinates of node i at centroids[i * dimension + d]; nodes with NaN coordinates, e.g. the
+     *                  background, are not connected.
+     */
+    public static SparseLabelAdjacency fromProximalCentroids(float[] centroids, int dimension, float min_distance, float max_distance) {
+        int numberOfNodes = centroids.length / dimension;
+        KDTree tree = new KDTree(centroids, dimension);
+        LongHashSet edges = new LongHashSet();
+        double squaredMinimumDistance = (double) min_distance * min_distance;
+        for (int i = 0; i < numberOfNodes; i++) {
+            if (isValid(centroids, dimension, i)) {
+                final int node = i;
+                tree.withinDistance(i, max_distance, j -> {
+                    if (j > node && squaredDistance(centroids, dimension, node, j) >= squaredMinimumDistance) {
+                        addEdge(edges, numberOfNodes, node, j);
+                    }
+                });
+            }
+        }
+        return fromEdges(numberOfNodes, edges);
+    }
+
+    /**
+     * Connects every label with the n labels with the closest centroids. The connections are symmetric, hence a
+     * label may have more than n neighbors.
+     */
+    public static SparseLabelAdjacency fromNNearestCentroids(float[] centroids, int dimension, int n) {
+        int numberOfNodes = centroids.length / dimension;
+        KDTree tree = new KDTree(centroids, dimension);
+        LongHashSet edges = new LongHashSet();
+        int[] nearest = new int[n];
+        for (int i = 0; i < numberOfNodes; i++) {
+            if (isValid(centroids, dimension, i)) {
+                int count = tree.nearest(i, n, nearest, null);
+                for (int k = 0; k < count; k++) {
+                    addEdge(edges, numberOfNodes, i, nearest[k]);
+                }
+            }
+        }
+        return fromEdges(numberOfNodes, edges);
+    }
+
+    private static boolean isValid(float[] centroids, int dimension, int i) {
+        for (int d = 0; d < dimension; d++) {
+            if (Float.isNaN(centroids[i * dimension + d])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double squaredDistance(float[] centroids, int dimension, int i, int j) {
+        double squaredDistance = 0;
+        for (int d = 0; d < dimension; d++) {
+            double difference = centroids[i * dimension + d] - centroids[j * dimension + d];
+            squaredDistance += difference * difference;
+        }
+        return squaredDistance;
+    }
+
+    private static void addEdge(LongHashSet edges, long numberOfNodes, int a, int b) {
+        if (a == b) {
+            return;
+        }
+        if (a < b) {
+            edges.add(a * numberOfNodes + b);
+        } else {
+            edges.add(b * numberOfNodes + a);
+        }
+    }
+
+    private static SparseLabelAdjacency fromEdges(int numberOfNodes, LongHashSet edges) {
+        int[] offsets = new int[numberOfNodes + 1];
+        edges.forEach(key -> {
+            offsets[(int) (key / numberOfNodes) + 1]++;
+            offsets[(int) (key % numberOfNodes) + 1]++;
+        });
+        for (int i = 0; i < numberOfNodes; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] neighbors = new int[offsets[numberOfNodes]];
+        int[] fill = Arrays.copyOf(offsets, numberOfNodes);
+        edges.forEach(key -> {
+            int a = (int) (key / numberOfNodes);
+            int b = (int) (key % numberOfNodes);
+            neighbors[fill[a]++] = b;
+            neighbors[fill[b]++] = a;
+        });
+        for (int i = 0; i < numberOfNodes; i++) {
+            Arrays.sort(neighbors, offsets[i], offsets[i + 1]);
+        }
+        return new SparseLabelAdjacency(numberOfNodes, offsets, neighbors);
+    }
+
+    /**
+     * Returns a copy where the background (node 0) is nobody's neighbor.
+     */
+    public SparseLabelAdjacency withoutBackground() {
+        int[] newOffsets = new int[numberOfNodes + 1];
+        int[] newNeighbors = new int[neighbors.length];
+        int count = 0;
+        for (int i = 0; i < numberOfNodes; i++) {
+            newOffsets[i] = count;
+            if (i > 0) {
+                for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                    if (neighbors[k] != 0) {
+                        newNeighbors[count++] = neighbors[k];
+                    }
+                }
+            }
+        }
+        newOffsets[numberOfNodes] = count;
+        return new SparseLabelAdjacency(numberOfNodes, newOffsets, Arrays.copyOf(newNeighbors, count));
+    }
+
+    /**
+     * Returns neighbors and neighbors of neighbors, the sparse counterpart of neighborsOfNeighbors.
+     */
+    public SparseLabelAdjacency neighborsOfNeighbors() {
+        int[] newOffsets = new int[numberOfNodes + 1];
+        int[] newNeighbors = new int[neighbors.length * 2 + 16];
+        int[] lastVisitor = new int[numberOfNodes];
+        Arrays.fill(lastVisitor, -1);
+        int count = 0;
+        for (int i = 0; i < numberOfNodes; i++) {
+            newOffsets[i] = count;
+            lastVisitor[i] = i;
+            for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                int neighbor = neighbors[k];
+                for (int l = -1; l < offsets[neighbor + 1] - offsets[neighbor]; l++) {
+                    int candidate = l < 0 ? neighbor : neighbors[offsets[neighbor] + l];
+                    if (lastVisitor[candidate] != i) {
+                        lastVisitor[candidate] = i;
+                        if (count == newNeighbors.length) {
+                            newNeighbors = Arrays.copyOf(newNeighbors, newNeighbors.length * 2);
+                        }
+                        newNeighbors[count++] = candidate;
+                    }
+                }
+            }
+            Arrays.sort(newNeighbors, newOffsets[i], count);
+        }
+        newOffsets[numberOfNodes] = count;
+        return new SparseLabelAdjacency(numberOfNodes, newOffsets, Arrays.copyOf(newNeighbors, count));
+    }
+
+    public int getNumberOfNodes() {
+        return numberOfNodes;
+    }
+
+    public int getNumberOfNeighbors(int node) {
+        return offsets[node + 1] - offsets[node];
+    }
+
+    public int[] getNeighbors(int node) {
+        return Arrays.copyOfRange(neighbors, offsets[node], offsets[node + 1]);
+    }
+
+    public float[] countNeighbors() {
+        float[] counts = new float[numberOfNodes];
+        for (int i = 0; i < numberOfNodes; i++) {
+            counts[i] = getNumberOfNeighbors(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Determines for every node the minimum, maximum, mean, median or standard deviation of its own value and the
+     * values of its neighbors, or the mode of the values of its neighbors. Nodes without neighbors get 0 as mode.
+     * The mode is determined among values rounded down to integers; ties are resolved towards the smaller value.
+     */
+    public float[] reduce(float[] values, Reduction reduction) {
+        boolean include_self = reduction != Reduction.MODE;
+        float[] result = new float[numberOfNodes];
+        float[] neighborhood = new float[16];
+        for (int i = 0; i < numberOfNodes; i++) {
+            int count = getNumberOfNeighbors(i) + (include_self ? 1 : 0);
+            if (count == 0) {
+                // only the mode leaves out the node itself
+                result[i] = 0;
+                continue;
+            }
+            if (neighborhood.length < count) {
+                neighborhood = new float[count * 2];
+            }
+            for (int k = 0; k < getNumberOfNeighbors(i); k++) {
+                neighborhood[k] = values[neighbors[offsets[i] + k]];
+            }
+            if (include_self) {
+                neighborhood[count - 1] = values[i];
+            }
+            result[i] = reduce(neighborhood, count, reduction);
+        }
+        return result;
+    }
+
+    private static float reduce(float[] values, int count, Reduction reduction) {
+        switch (reduction) {
+            case MINIMUM: {
+                float minimum = values[0];
+                for (int k = 1; k < count; k++) {
+                    minimum = Math.min(minimum, values[k]);
+                }
+                return minimum;
+            }
+            case MAXIMUM: {
+                float maximum = values[0];
+                for (int k = 1; k < count; k++) {
+                    maximum = Math.max(maximum, values[k]);
+                }
+                return maximum;
+            }
+            case MEAN: {
+                double sum = 0;
+                for (int k = 0; k < count; k++) {
+                    sum += values[k];
+                }
+                return (float) (sum / count);
+            }
+            case STANDARD_DEVIATION: {
+                double sum = 0;
+                for (int k = 0; k < count; k++) {
+                    sum += values[k];
+                }
+                double mean = sum / count;
+                double squaredSum = 0;
+                for (int k = 0; k < count; k++) {
+                    squaredSum += (values[k] - mean) * (values[k] - mean);
+                }
+                return (float) Math.sqrt(squaredSum / count);
+            }
+            case MEDIAN: {
+                Arrays.sort(values, 0, count);
+                if (count % 2 == 0) {
+                    return (values[count / 2 - 1] + values[count / 2]) / 2;
+                }
+                return values[count / 2];
+            }
+            case MODE: {
+                for (int k = 0; k < count; k++) {
+                    values[k] = (int) values[k];
+                }
+                Arrays.sort(values, 0, count);
+                float mode = values[0];
+                int modeCount = 0;
+                for (int k = 0; k < count; ) {
+                    int l = k;
+                    while (l < count && values[l] == values[k]) {
+                        l++;
+                    }
+                    if (l - k > modeCount) {
+                        modeCount = l - k;
+                        mode = values[k];
+                    }
+                    k = l;
+                }
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown reduction: " + reduction);
+    }
+
+    // GPU helpers
+
+    /**
+     * Reads the value of every label from a parametric map as vector of size number_of_labels + 1.
+     */
+    public static float[] readValuesFromMap(CLIJ2 clij2, ClearCLBuffer label_map, ClearCLBuffer parametric_map, int number_of_labels) {
+        ClearCLBuffer intensities = clij2.create(new long[]{number_of_labels + 1, 1, 1}, NativeTypeEnum.Float);
+        ReadValuesFromMap.readValuesFromMap(clij2, label_map, parametric_map, intensities);
+        float[] values = pullVector(intensities);
+        intensities.close();
+        return values;
+    }
+
+    public static float[] pullVector(ClearCLBuffer vector) {
+        float[] values = new float[(int) vector.getWidth()];
+        vector.writeTo(FloatBuffer.wrap(values), true);
+        return values;
+    }
+
+    /**
+     * Determines label centroids as node-major coordinate array; the background (node 0) gets NaN coordinates.
+     */
+    public static float[] centroidsOfLabels(CLIJ2 clij2, ClearCLBuffer label_map, int number_of_labels) {
+        int dimension = label_map.getDimension();
+        ClearCLBuffer pointlist = clij2.create(new long[]{number_of_labels, dimension}, NativeTypeEnum.Float);
+        clij2.centroidsOfLabels(label_map, pointlist);
+        float[] list = new float[number_of_labels * dimension];
+        pointlist.writeTo(FloatBuffer.wrap(list), true);
+        pointlist.close();
+
+        float[] centroids = new float[(number_of_labels + 1) * dimension];
+        Arrays.fill(centroids, 0, dimension, Float.NaN);
+        for (int i = 0; i < number_of_labels; i++) {
+            for (int d = 0; d < dimension; d++) {
+                centroids[(i + 1) * dimension + d] = list[d * number_of_labels + i];
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * Writes values[label] into all pixels of every label. Values of the background are set to 0.
+     */
+    public static void replaceIntensities(CLIJ2 clij2, ClearCLBuffer label_map, float[] values, ClearCLBuffer destination) {
+        values[0] = 0;
+        ClearCLBuffer vector = clij2.create(new long[]{values.length, 1, 1}, NativeTypeEnum.Float);
+        vector.readFrom(FloatBuffer.wrap(values), true);
+        clij2.replaceIntensities(label_map, vector, destination);
+        vector.close();
+    }
+
+    // counterparts of neighbor-map plugins
+
+    public static boolean touchingNeighborsMap(CLIJ2 clij2, ClearCLBuffer parametric_map, ClearCLBuffer label_map, ClearCLBuffer parametric_map_destination, int number_of_labels, int radius, boolean ignore_touching_background, Reduction reduction) {
+        SparseLabelAdjacency adjacency = fromTouchingLabels(clij2, label_map, number_of_labels);
+        if (ignore_touching_background) {
+            adjacency = adjacency.withoutBackground();
+        }
+        for (int i = 1; i < radius; i++) {
+            adjacency = adjacency.neighborsOfNeighbors();
+            if (ignore_touching_background) {
+                adjacency = adjacency.withoutBackground();
+            }
+        }
+        float[] values = readValuesFromMap(clij2, label_map, parametric_map, number_of_labels);
+        replaceIntensities(clij2, label_map, adjacency.reduce(values, reduction), parametric_map_destination);
+        return true;
+    }
+
+    public static boolean proximalNeighborsMap(CLIJ2 clij2, ClearCLBuffer parametric_map, ClearCLBuffer label_map, ClearCLBuffer parametric_map_destination, int number_of_labels, float min_distance, float max_distance, Reduction reduction) {
+        float[] centroids = centroidsOfLabels(clij2, label_map, number_of_labels);
+        SparseLabelAdjacency adjacency = fromProximalCentroids(centroids, label_map.getDimension(), min_distance, max_distance);
+        float[] values = readValuesFromMap(clij2, label_map, parametric_map, number_of_labels);
+        replaceIntensities(clij2, label_map, adjacency.reduce(values, reduction), parametric_map_destination);
+        return true;
+    }
+
+    public static boolean nNearestNeighborsMap(CLIJ2 clij2, ClearCLBuffer parametric_map, ClearCLBuffer label_map, ClearCLBuffer parametric_map_destination, int number_of_labels, int n, Reduction reduction) {
+        float[] centroids = centroidsOfLabels(clij2, label_map, number_of_labels);
+        SparseLabelAdjacency adjacency = fromNNearestCentroids(centroids, label_map.getDimension(), n);
+        float[] values = readValuesFromMap(clij2, label_map, parametric_map, number_of_labels);
+        replaceIntensities(clij2, label_map, adjacency.reduce(values, reduction), parametric_map_destination);
+        return true;
+    }
+
+    /**
+     * Replaces every label by the number of touching neighbors, including the background, or, if a reduction is
+     * given, by the minimum, mean, etc. of this count among its neighbors.
+     */
+    public static boolean touchingNeighborCountMap(CLIJ2 clij2, ClearCLBuffer label_map, ClearCLBuffer destination, int number_of_labels, Reduction reduction) {
+        SparseLabelAdjacency adjacency = fromTouchingLabels(clij2, label_map, number_of_labels);
+        float[] counts = adjacency.countNeighbors();
+        replaceIntensities(clij2, label_map, reduction == null ? counts : adjacency.reduce(counts, reduction), destination);
+        return true;
+    }
+
+    public static boolean averageDistanceOfNClosestNeighborsMap(CLIJ2 clij2, ClearCLBuffer label_map, ClearCLBuffer destination, int number_of_labels, int n) {
+        int dimension = label_map.getDimension();
+        float[] centroids = centroidsOfLabels(clij2, label_map, number_of_labels);
+        KDTree tree = new KDTree(centroids, dimension);
+        float[] averages = new float[number_of_labels + 1];
+        n = Math.max(0, n);
+        int[] nearest = new int[n];
+        float[] distances = new float[n];
+        for (int i = 1; i <= number_of_labels; i++) {
+            if (!isValid(centroids, dimension, i)) {
+                continue;
+            }
+            int count = tree.nearest(i, n, nearest, distances);
+            double sum = 0;
+            for (int k = 0; k < count; k++) {
+                sum += distances[k];
+            }
+            // labels without neighbors keep 0
+            if (count > 0) {
+                averages[i] = (float) (sum / count);
+            }
+        }
+        replaceIntensities(clij2, label_map, averages, destination);
+        return true;
+    }
+
+    /**
+     * Replaces every label by the largest label index among itself and its touching neighbors.
+     */
+    public static boolean mergeTouchingLabels(CLIJ2 clij2, ClearCLBuffer input, ClearCLBuffer output, int number_of_labels) {
+        SparseLabelAdjacency adjacency = fromTouchingLabels(clij2, input, number_of_labels).withoutBackground();
+        float[] indices = new float[number_of_labels + 1];
+        for (int i = 1; i <= number_of_labels; i++) {
+            int maximum = i;
+            for (int k = adjacency.offsets[i]; k < adjacency.offsets[i + 1]; k++) {
+                maximum = Math.max(maximum, adjacency.neighbors[k]);
+            }
+            indices[i] = maximum;
+        }
+        ClearCLBuffer temp = clij2.create(output);
+        replaceIntensities(clij2, input, indices, temp);
+        clij2.closeIndexGapsInLabelMap(temp, output);
+        temp.close();
+        return true;
+    }
+
+    /**
+     * Open addressing hash set of non-negative long keys.
+     */
+    private static class LongHashSet {
+        private static final long EMPTY = -1;
+        private long[] keys = new long[1024];
+        private int size = 0;
+
+        LongHashSet() {
+            Arrays.fill(keys, EMPTY);
+        }
+
+        void add(long key) {
+            if (size * 2 >= keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int index = hash(key) & mask;
+            while (keys[index] != EMPTY) {
+                if (keys[index] == key) {
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            size++;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            keys = new long[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+            for (long key : oldKeys) {
+                if (key != EMPTY) {
+                    add(key);
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            key *= 0x9E3779B97F4A7C15L;
+            return (int) (key ^ (key >>> 32));
+        }
+
+        void forEach(java.util.function.LongConsumer consumer) {
+            for (long key : keys) {
+                if (key != EMPTY) {
+                    consumer.accept(key);
+                }
+            }
+        }
+    }
+}
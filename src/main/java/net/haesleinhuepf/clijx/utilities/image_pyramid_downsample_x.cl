@@ -0,0 +1,44 @@
+// reduction: 0 = maximum, 1 = minimum, 2 = mean
+
+__kernel void image_pyramid_downsample(
+    IMAGE_src_TYPE src,
+    IMAGE_dst_TYPE dst,
+    int reduction
+) {
+  const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+  const int x = get_global_id(0);
+  const int y = get_global_id(1);
+  const int z = get_global_id(2);
+
+  // maximum and minimum keep bright and dark details visible in coarse levels, e.g. in projections
+  float result = 0;
+  int count = 0;
+  for (int dz = 0; dz < 2; dz++) {
+    for (int dy = 0; dy < 2; dy++) {
+      for (int dx = 0; dx < 2; dx++) {
+        const int sx = x * 2 + dx;
+        const int sy = y * 2 + dy;
+        const int sz = z * 2 + dz;
+        if (sx < GET_IMAGE_WIDTH(src) && sy < GET_IMAGE_HEIGHT(src) && sz < GET_IMAGE_DEPTH(src)) {
+          float value = READ_src_IMAGE(src, sampler, POS_src_INSTANCE(sx, sy, sz, 0)).x;
+          if (count == 0) {
+            result = value;
+          } else if (reduction == 0) {
+            result = max(result, value);
+          } else if (reduction == 1) {
+            result = min(result, value);
+          } else {
+            result = result + value;
+          }
+          count++;
+        }
+      }
+    }
+  }
+  if (reduction == 2) {
+    result = result / count;
+  }
+
+  WRITE_dst_IMAGE(dst, POS_dst_INSTANCE(x, y, z, 0), CONVERT_dst_PIXEL_TYPE(result));
+}
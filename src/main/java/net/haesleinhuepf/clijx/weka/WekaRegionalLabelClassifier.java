@@ -13,17 +13,17 @@ import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
 import net.haesleinhuepf.clijx.plugins.GenerateProximalNeighborsMatrix;
+import net.haesleinhuepf.clijx.utilities.ModelCache;
 import org.scijava.plugin.Plugin;
 import weka.filters.supervised.instance.ClassBalancer;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
 
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_wekaRegionalLabelClassifier")
 public class WekaRegionalLabelClassifier extends AbstractCLIJ2Plugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation, IsCategorized, HasClassifiedInputOutput {
 
-    private static CLIJxWeka2 clijxWeka2 = null;
-    private static String last_loaded_filename = "";
-
     @Override
     public String getParameterHelpText() {
         return "Image input, Image label_map, ByRef Image destination, String features, String modelfilename, Number radius_of_maximum, Number radius_of_minimum, Number radius_of_mean, Number radius_of_standard_deviation";
@@ -65,10 +65,13 @@ public class WekaRegionalLabelClassifier extends AbstractCLIJ2Plugin implements
         featureImage.close();
 
 
-        if (!(clijxWeka2 != null && last_loaded_filename.compareTo(model_filename) == 0)) {
-            clijxWeka2 = new CLIJxWeka2(clij2, null, model_filename);
-            last_loaded_filename = model_filename;
-            System.out.println("Load model");
+        CLIJxWeka2 clijxWeka2;
+        try {
+            clijxWeka2 = ModelCache.get(model_filename, clij2, filename -> new CLIJxWeka2(clij2, null, filename));
+        } catch (IOException e) {
+            e.printStackTrace();
+            clij2.set(output, 0);
+            return true;
         }
 
         ApplyWekaToTable.applyWekaToTable(clij2, table, "CLASS", clijxWeka2);
@@ -117,10 +120,19 @@ public class WekaRegionalLabelClassifier extends AbstractCLIJ2Plugin implements
 
             ClearCLBuffer feature_image_t = clij2.create(featureImage.getHeight(), featureImage.getWidth());
             clij2.transposeXY(featureImage, feature_image_t);
+            int num_features = (int) feature_image_t.getHeight();
+            int num_statistics = num_blocks - 1;
 
             ClearCLBuffer feature_image_extd_t = clij2.create(feature_image_t.getWidth(), feature_image_t.getHeight() * num_blocks);
-            ClearCLBuffer vector_in = clij2.create(feature_image_t.getWidth(), 1);
-            ClearCLBuffer vector_out = clij2.create(feature_image_t.getWidth(), 1);
+            clij2.paste(feature_image_t, feature_image_extd_t, 0, 0);
+
+            // the statistics of every feature follow the features in the order maximum, minimum, mean, standard deviation
+            int[] radii = {radius_of_maximum, radius_of_minimum, radius_of_mean, radius_of_standard_deviation};
+            int[] rows = new int[radii.length];
+            int count = num_features;
+            for (int s = 0; s < radii.length; s++) {
+                rows[s] = radii[s] > 0 ? count++ : -1;
+            }
 
             int num_labels = (int) clij2.maximumOfAllPixels(labelMap);
             ClearCLBuffer neighbor_matrix = clij2.create(new long[]{num_labels + 1, num_labels + 1}, NativeTypeEnum.UnsignedByte);
@@ -130,45 +142,20 @@ public class WekaRegionalLabelClassifier extends AbstractCLIJ2Plugin implements
             clij2.generateDistanceMatrix(centroids, centroids, distance_matrix);
             centroids.close();
 
-            int count = 0;
-            clij2.paste(feature_image_t, feature_image_extd_t, 0, 0);
-            count += feature_image_t.getHeight();
-
-            // neighborize it
-            for (int f = 0; f < feature_image_t.getHeight(); f++) {
-                // read a feature vector
-                clij2.crop(feature_image_t, vector_in, 0, f);
-
-                if (radius_of_maximum > 0) {
-                    GenerateProximalNeighborsMatrix.generateProximalNeighborsMatrix(clij2, distance_matrix, neighbor_matrix, (float)0, (float)radius_of_maximum);
-                    clij2.maximumOfTouchingNeighbors(vector_in, neighbor_matrix, vector_out);
-                    clij2.paste(vector_out, feature_image_extd_t, 0, count);
-                    count++;
-                }
-                if (radius_of_minimum > 0) {
-                    GenerateProximalNeighborsMatrix.generateProximalNeighborsMatrix(clij2, distance_matrix, neighbor_matrix, (float)0, (float)radius_of_minimum);
-                    clij2.minimumOfTouchingNeighbors(vector_in, neighbor_matrix, vector_out);
-                    clij2.paste(vector_out, feature_image_extd_t, 0, count);
-                    count++;
-                }
-                if (radius_of_mean > 0) {
-                    GenerateProximalNeighborsMatrix.generateProximalNeighborsMatrix(clij2, distance_matrix, neighbor_matrix, (float)0, (float)radius_of_mean);
-                    clij2.meanOfTouchingNeighbors(vector_in, neighbor_matrix, vector_out);
-                    clij2.paste(vector_out, feature_image_extd_t, 0, count);
-                    count++;
-                }
-                if (radius_of_standard_deviation > 0) {
-                    GenerateProximalNeighborsMatrix.generateProximalNeighborsMatrix(clij2, distance_matrix, neighbor_matrix, (float)0, (float)radius_of_standard_deviation);
-                    clij2.standardDeviationOfTouchingNeighbors(vector_in, neighbor_matrix, vector_out);
-                    clij2.paste(vector_out, feature_image_extd_t, 0, count);
-                    count++;
+            // neighbor matrices are generated once per radius; every statistic is determined for all features at once
+            for (int s = 0; s < radii.length; s++) {
+                if (radii[s] > 0 && firstIndexOf(radii, radii[s]) == s) {
+                    GenerateProximalNeighborsMatrix.generateProximalNeighborsMatrix(clij2, distance_matrix, neighbor_matrix, (float) 0, (float) radii[s]);
+                    for (int t = s; t < radii.length; t++) {
+                        if (radii[t] == radii[s]) {
+                            statisticOfNeighborsOfFeatures(clij2, feature_image_t, neighbor_matrix, feature_image_extd_t, t, rows[t], num_statistics);
+                        }
+                    }
                 }
             }
-            feature_image_t.close();
-            vector_in.close();
-            vector_out.close();
             neighbor_matrix.close();
             distance_matrix.close();
+            feature_image_t.close();
 
             ClearCLBuffer feature_image_extd = clij2.create(feature_image_extd_t.getHeight(), feature_image_extd_t.getWidth());
             clij2.transposeXY(feature_image_extd_t, feature_image_extd);
@@ -180,6 +167,34 @@ public class WekaRegionalLabelClassifier extends AbstractCLIJ2Plugin implements
         return featureImage;
     }
 
+    /**
+     * Determines the maximum (statistic 0), minimum (1), mean (2) or standard deviation (3) of every feature (rows in
+     * features) among every label (columns in features, without background) and its neighbors. The statistic of
+     * feature f is written into row row_offset + f * row_stride of destination.
+     */
+    private static void statisticOfNeighborsOfFeatures(CLIJ2 clij2, ClearCLBuffer features, ClearCLBuffer neighbor_matrix, ClearCLBuffer destination, int statistic, int row_offset, int row_stride) {
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src_features", features);
+        parameters.put("src_neighbor_matrix", neighbor_matrix);
+        parameters.put("dst_features", destination);
+        parameters.put("statistic", statistic);
+        parameters.put("row_offset", row_offset);
+        parameters.put("row_stride", row_stride);
+
+        long[] globalSizes = new long[]{features.getWidth(), features.getHeight()};
+        clij2.activateSizeIndependentKernelCompilation();
+        clij2.execute(WekaRegionalLabelClassifier.class, "statistic_of_neighbors_of_features_x.cl", "statistic_of_neighbors_of_features", globalSizes, globalSizes, parameters);
+    }
+
+    private static int firstIndexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     @Override
     public String getDescription() {
         return "Applies a pre-trained CLIJx-Weka model to an image and a corresponding label map to classify labeled objects.\n\n" +
@@ -199,7 +214,7 @@ public class WekaRegionalLabelClassifier extends AbstractCLIJ2Plugin implements
     }
 
     public static void invalidateCache() {
-        last_loaded_filename = "";
+        ModelCache.clear();
     }
 
 
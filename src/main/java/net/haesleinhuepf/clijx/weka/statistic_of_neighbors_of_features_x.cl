@@ -0,0 +1,66 @@
+__kernel void statistic_of_neighbors_of_features(
+    IMAGE_src_features_TYPE src_features,
+    IMAGE_src_neighbor_matrix_TYPE src_neighbor_matrix,
+    IMAGE_dst_features_TYPE dst_features,
+    int statistic,
+    int row_offset,
+    int row_stride
+) {
+  const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+  // one work item per label and feature; feature columns don't contain the background, matrix columns do
+  const int column = get_global_id(0);
+  const int feature = get_global_id(1);
+  const int column_count = get_global_size(0);
+  const int label_id = column + 1;
+  const int label_count = min(GET_IMAGE_WIDTH(src_neighbor_matrix), column_count + 1);
+
+  // the label itself is taken into account, as in the *_of_touching_neighbors kernels
+  float own_value = READ_IMAGE(src_features, sampler, POS_src_features_INSTANCE(column, feature, 0, 0)).x;
+  float minimum = own_value;
+  float maximum = own_value;
+  float sum = own_value;
+  int count = 1;
+  for (int neighbor = 1; neighbor < label_count; neighbor++) {
+    if (neighbor == label_id) {
+      continue;
+    }
+    float touching = (neighbor < label_id) ?
+        READ_IMAGE(src_neighbor_matrix, sampler, POS_src_neighbor_matrix_INSTANCE(neighbor, label_id, 0, 0)).x :
+        READ_IMAGE(src_neighbor_matrix, sampler, POS_src_neighbor_matrix_INSTANCE(label_id, neighbor, 0, 0)).x;
+    if (touching > 0) {
+      float value = READ_IMAGE(src_features, sampler, POS_src_features_INSTANCE(neighbor - 1, feature, 0, 0)).x;
+      minimum = min(minimum, value);
+      maximum = max(maximum, value);
+      sum = sum + value;
+      count++;
+    }
+  }
+
+  float result;
+  if (statistic == 0) {
+    result = maximum;
+  } else if (statistic == 1) {
+    result = minimum;
+  } else if (statistic == 2) {
+    result = sum / count;
+  } else {
+    float mean = sum / count;
+    float squared_sum = (own_value - mean) * (own_value - mean);
+    for (int neighbor = 1; neighbor < label_count; neighbor++) {
+      if (neighbor == label_id) {
+        continue;
+      }
+      float touching = (neighbor < label_id) ?
+          READ_IMAGE(src_neighbor_matrix, sampler, POS_src_neighbor_matrix_INSTANCE(neighbor, label_id, 0, 0)).x :
+          READ_IMAGE(src_neighbor_matrix, sampler, POS_src_neighbor_matrix_INSTANCE(label_id, neighbor, 0, 0)).x;
+      if (touching > 0) {
+        float value = READ_IMAGE(src_features, sampler, POS_src_features_INSTANCE(neighbor - 1, feature, 0, 0)).x;
+        squared_sum = squared_sum + (value - mean) * (value - mean);
+      }
+    }
+    result = sqrt(squared_sum / count);
+  }
+
+  WRITE_IMAGE(dst_features, POS_dst_features_INSTANCE(column, row_offset + feature * row_stride, 0, 0), CONVERT_dst_features_PIXEL_TYPE(result));
+}
@@ -0,0 +1,154 @@
+package net.haesleinhuepf.clijx.framor;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DeviceAdmissionTest {
+    private static final long MEGA_BYTE = 1024 * 1024;
+
+    @Test
+    public void testFirstFrameIsMeasuredAlone() {
+        DeviceAdmission admission = new DeviceAdmission("test", 1000 * MEGA_BYTE, 0, 64, 0.2);
+        assertEquals(1, admission.getLimit());
+        assertTrue(admission.startMeasurement());
+        assertFalse(admission.startMeasurement());
+
+        // 800 MB usable
+        admission.reportPeakMemory(100 * MEGA_BYTE);
+        assertEquals(8, admission.getLimit());
+        assertFalse(admission.startMeasurement());
+    }
+
+    @Test
+    public void testLimitFollowsFreeMemory() {
+        // 800 MB usable, of which 300 MB are in use by others
+        DeviceAdmission admission = new DeviceAdmission("test", 1000 * MEGA_BYTE, 300 * MEGA_BYTE, 64, 0.2);
+        assertTrue(admission.startMeasurement());
+        admission.reportPeakMemory(100 * MEGA_BYTE);
+        assertEquals(5, admission.getLimit());
+    }
+
+    @Test
+    public void testLimitIsCappedByMaximumConcurrencyOnly() {
+        DeviceAdmission admission = new DeviceAdmission("test", 1000 * MEGA_BYTE, 0, 16, 0.2);
+        assertTrue(admission.startMeasurement());
+        admission.reportPeakMemory(MEGA_BYTE);
+        assertEquals(16, admission.getLimit());
+    }
+
+    @Test
+    public void testCancelledMeasurementIsRepeated() {
+        DeviceAdmission admission = new DeviceAdmission("test", 1000 * MEGA_BYTE, 0, 64, 0.2);
+        assertTrue(admission.startMeasurement());
+        admission.cancelMeasurement();
+        assertEquals(1, admission.getLimit());
+        assertTrue(admission.startMeasurement());
+    }
+
+    @Test
+    public void testLimitGoesDownOnFailureAndUpAgain() throws InterruptedException {
+        DeviceAdmission admission = new DeviceAdmission("test", 1000 * MEGA_BYTE, 0, 64, 0.2);
+        admission.startMeasurement();
+        admission.reportPeakMemory(200 * MEGA_BYTE);
+        assertEquals(4, admission.getLimit());
+
+        for (int i = 0; i < 4; i++) {
+            admission.acquire();
+        }
+        admission.reportAllocationFailure();
+        assertEquals(3, admission.getLimit());
+        for (int i = 0; i < 4; i++) {
+            admission.release();
+        }
+
+        // as many successful frames as admitted raise the limit again
+        admission.reportSuccess();
+        admission.reportSuccess();
+        assertEquals(3, admission.getLimit());
+        admission.reportSuccess();
+        assertEquals(4, admission.getLimit());
+
+        // not above what the memory allows
+        for (int i = 0; i < 100; i++) {
+            admission.reportSuccess();
+        }
+        assertEquals(4, admission.getLimit());
+    }
+
+    @Test
+    public void testRepeatedFailuresNeedMoreSuccesses() throws InterruptedException {
+        DeviceAdmission admission = new DeviceAdmission("test", 1000 * MEGA_BYTE, 0, 64, 0.2);
+        admission.startMeasurement();
+        admission.reportPeakMemory(200 * MEGA_BYTE);
+        for (int admitted = 4; admitted >= 3; admitted--) {
+            for (int i = 0; i < admitted; i++) {
+                admission.acquire();
+            }
+            admission.reportAllocationFailure();
+            for (int i = 0; i < admitted; i++) {
+                admission.release();
+            }
+        }
+        assertEquals(2, admission.getLimit());
+
+        // after the second failure, twice as many frames as admitted
+        for (int i = 0; i < 3; i++) {
+            admission.reportSuccess();
+        }
+        assertEquals(2, admission.getLimit());
+        admission.reportSuccess();
+        assertEquals(3, admission.getLimit());
+        for (int i = 0; i < 5; i++) {
+            admission.reportSuccess();
+        }
+        assertEquals(3, admission.getLimit());
+        admission.reportSuccess();
+        assertEquals(4, admission.getLimit());
+    }
+
+    @Test
+    public void testFailureOfASingleFrameKeepsOneFrameAdmitted() throws InterruptedException {
+        DeviceAdmission admission = new DeviceAdmission("test", 1000 * MEGA_BYTE, 0, 64, 0.2);
+        admission.acquire();
+        admission.reportAllocationFailure();
+        assertEquals(1, admission.getLimit());
+        // backing off gives the admission back and takes it again
+        admission.backOff(1);
+        admission.release();
+        admission.acquire();
+        admission.release();
+    }
+
+    @Test
+    public void testBackOffWaitsForLessActiveFrames() throws InterruptedException {
+        DeviceAdmission admission = new DeviceAdmission("test", 1000 * MEGA_BYTE, 0, 64, 0.2);
+        admission.startMeasurement();
+        admission.reportPeakMemory(400 * MEGA_BYTE);
+        assertEquals(2, admission.getLimit());
+        admission.acquire();
+        admission.acquire();
+        admission.reportAllocationFailure();
+        assertEquals(1, admission.getLimit());
+
+        CountDownLatch admittedAgain = new CountDownLatch(1);
+        Thread failed = new Thread(() -> {
+            try {
+                admission.backOff(1);
+                admittedAgain.countDown();
+                admission.release();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        failed.start();
+        // the other frame is still active
+        assertFalse(admittedAgain.await(200, TimeUnit.MILLISECONDS));
+        admission.release();
+        assertTrue(admittedAgain.await(10, TimeUnit.SECONDS));
+        failed.join();
+    }
+}
@@ -0,0 +1,69 @@
+package net.haesleinhuepf.clijx.io;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.CLIJx;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class RawImageFileTest {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 6;
+    private static final int DEPTH = 5;
+
+    @Test
+    public void testUploadInSeveralChunks() throws IOException {
+        // whole planes are uploaded straight from the mapped file
+        testUpload(new long[]{0, 0, 0}, new long[]{WIDTH, HEIGHT, DEPTH});
+    }
+
+    @Test
+    public void testUploadRegionInSeveralChunks() throws IOException {
+        // parts of planes are copied to a staging buffer first
+        testUpload(new long[]{2, 1, 1}, new long[]{5, 4, DEPTH - 1});
+    }
+
+    private void testUpload(long[] origin, long[] dimensions) throws IOException {
+        File rawFile = File.createTempFile("raw_image_file", ".raw");
+        rawFile.deleteOnExit();
+        try (RandomAccessFile file = new RandomAccessFile(rawFile, "rw")) {
+            ByteBuffer bytes = ByteBuffer.allocate(WIDTH * HEIGHT * DEPTH * 4).order(ByteOrder.nativeOrder());
+            for (int i = 0; i < WIDTH * HEIGHT * DEPTH; i++) {
+                bytes.putFloat(i);
+            }
+            file.write(bytes.array());
+        }
+        RawImageFile image = new RawImageFile(rawFile.getPath(), WIDTH, HEIGHT, DEPTH, NativeTypeEnum.Float);
+
+        long formerChunkSize = RawImageFile.maximum_chunk_size_in_bytes;
+        // two planes per chunk; the last chunk holds a single plane
+        RawImageFile.maximum_chunk_size_in_bytes = 2 * dimensions[0] * dimensions[1] * 4;
+        CLIJx clijx = CLIJx.getInstance();
+        ClearCLBuffer buffer = clijx.create(dimensions, NativeTypeEnum.Float);
+        try {
+            image.upload(origin, dimensions, buffer);
+
+            ByteBuffer result = ByteBuffer.allocateDirect((int) buffer.getSizeInBytes()).order(ByteOrder.nativeOrder());
+            buffer.writeTo(result, true);
+            for (int z = 0; z < dimensions[2]; z++) {
+                for (int y = 0; y < dimensions[1]; y++) {
+                    for (int x = 0; x < dimensions[0]; x++) {
+                        long expected = ((origin[2] + z) * HEIGHT + origin[1] + y) * WIDTH + origin[0] + x;
+                        int index = (int) ((z * dimensions[1] + y) * dimensions[0] + x);
+                        assertEquals("plane " + z, expected, result.getFloat(index * 4), 0);
+                    }
+                }
+            }
+        } finally {
+            RawImageFile.maximum_chunk_size_in_bytes = formerChunkSize;
+            buffer.close();
+        }
+    }
+}
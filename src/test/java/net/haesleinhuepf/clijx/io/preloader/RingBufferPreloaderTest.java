@@ -0,0 +1,134 @@
+package net.haesleinhuepf.clijx.io.preloader;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class RingBufferPreloaderTest {
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 3;
+    private static final int NUMBER_OF_IMAGES = 10;
+    private static final int NUMBER_OF_BUFFERS = 3;
+
+    private RingBufferPreloader preloader;
+
+    @Before
+    public void setUp() throws IOException {
+        // every pixel of image i is i
+        ArrayList<String> filenames = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_IMAGES; i++) {
+            File rawFile = File.createTempFile("ring_buffer_preloader", ".raw");
+            rawFile.deleteOnExit();
+            try (RandomAccessFile file = new RandomAccessFile(rawFile, "rw")) {
+                ByteBuffer bytes = ByteBuffer.allocate(WIDTH * HEIGHT * 4).order(ByteOrder.nativeOrder());
+                for (int p = 0; p < WIDTH * HEIGHT; p++) {
+                    bytes.putFloat(i);
+                }
+                file.write(bytes.array());
+            }
+            filenames.add(rawFile.getPath());
+        }
+        preloader = new RingBufferPreloader(CLIJ.getInstance(), filenames, NUMBER_OF_BUFFERS, 2);
+        preloader.setRawFormat(WIDTH, HEIGHT, 1, NativeTypeEnum.Float);
+    }
+
+    @After
+    public void tearDown() {
+        preloader.close();
+    }
+
+    @Test
+    public void testImagesComeInOrder() {
+        for (int i = 0; i < NUMBER_OF_IMAGES; i++) {
+            ClearCLBuffer buffer = preloader.get(i);
+            assertImage(i, buffer);
+            preloader.release(i);
+        }
+    }
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        ClearCLBuffer first = preloader.get(0);
+        preloader.release(0);
+        // image 3 goes to the slot of image 0
+        ClearCLBuffer fourth = preloader.get(NUMBER_OF_BUFFERS);
+        assertSame(first, fourth);
+        assertImage(NUMBER_OF_BUFFERS, fourth);
+        preloader.release(NUMBER_OF_BUFFERS);
+    }
+
+    @Test
+    public void testBufferInUseIsKeptWhenTheWindowMoves() {
+        ClearCLBuffer second = preloader.get(1);
+
+        // the window jumps ahead; image 7 goes to the slot of image 1, which is still in use
+        for (int i = 5; i < 5 + NUMBER_OF_BUFFERS; i++) {
+            assertImage(i, preloader.get(i));
+        }
+        assertImage(1, second);
+        assertNotSame(second, preloader.get(7));
+
+        preloader.release(1);
+        for (int i = 5; i < 5 + NUMBER_OF_BUFFERS; i++) {
+            preloader.release(i);
+        }
+        assertImage(8, preloader.get(8));
+        preloader.release(8);
+    }
+
+    @Test
+    public void testImagesBeforeTheWindowAreLoadedOnTheirOwn() {
+        ClearCLBuffer sixth = preloader.get(5);
+
+        // going back doesn't move the window; the preloaded images stay
+        ClearCLBuffer third = preloader.get(2);
+        assertImage(2, third);
+        assertSame(sixth, preloader.get(5));
+        assertImage(5, sixth);
+
+        preloader.release(2);
+        // released images before the window are loaded again on request
+        assertImage(2, preloader.get(2));
+        preloader.release(2);
+        preloader.release(5);
+
+        for (int i = 6; i < NUMBER_OF_IMAGES; i++) {
+            assertImage(i, preloader.get(i));
+            preloader.release(i);
+        }
+    }
+
+    @Test
+    public void testTryGetLoadsInTheBackground() throws InterruptedException {
+        ClearCLBuffer buffer = null;
+        for (int attempt = 0; attempt < 1000 && buffer == null; attempt++) {
+            buffer = preloader.tryGet(4);
+            Thread.sleep(10);
+        }
+        assertNotNull(buffer);
+        assertImage(4, buffer);
+        preloader.release(4);
+    }
+
+    private static void assertImage(int expected, ClearCLBuffer buffer) {
+        assertArrayEquals(new long[]{WIDTH, HEIGHT}, buffer.getDimensions());
+        float[] pixels = new float[WIDTH * HEIGHT];
+        buffer.writeTo(FloatBuffer.wrap(pixels), true);
+        for (float pixel : pixels) {
+            assertEquals(expected, pixel, 0);
+        }
+    }
+}
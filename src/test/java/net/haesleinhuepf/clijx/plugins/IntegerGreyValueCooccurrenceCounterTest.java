@@ -0,0 +1,81 @@
+package net.haesleinhuepf.clijx.plugins;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.imglib2.img.array.ArrayImgs;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.*;
+
+public class IntegerGreyValueCooccurrenceCounterTest {
+    // 2 x 2 x 2 pixels; 3 is outside of the 3 x 3 matrix and not counted
+    private static final float[] IMAGE = {
+            0, 1,
+            1, 2,
+
+            3, 0,
+            0, 1
+    };
+
+    // right and bottom neighbors and the pixel on the next plane
+    private static final float[] HALF_DIAMOND = {
+            0, 6, 0,
+            6, 0, 3,
+            0, 3, 0
+    };
+
+    // additionally the diagonal neighbors and the neighborhood on the next plane
+    private static final float[] HALF_BOX = {
+            2, 7, 3,
+            7, 2, 3,
+            3, 3, 0
+    };
+
+    @Test
+    public void testCountOnHost() {
+        testCount(false, IntegerGreyValueCooccurrenceCounter.maximum_slab_size_in_bytes);
+    }
+
+    @Test
+    public void testCountOnHostPlaneByPlane() {
+        // one plane and the overlapping next one per slab
+        testCount(false, 2 * 2 * 2 * 4);
+    }
+
+    @Test
+    public void testCountOnDevice() {
+        testCount(true, IntegerGreyValueCooccurrenceCounter.maximum_slab_size_in_bytes);
+    }
+
+    private void testCount(boolean countOnDevice, long slabSizeInBytes) {
+        boolean formerCountOnDevice = IntegerGreyValueCooccurrenceCounter.count_on_device;
+        long formerSlabSize = IntegerGreyValueCooccurrenceCounter.maximum_slab_size_in_bytes;
+        IntegerGreyValueCooccurrenceCounter.count_on_device = countOnDevice;
+        IntegerGreyValueCooccurrenceCounter.maximum_slab_size_in_bytes = slabSizeInBytes;
+
+        CLIJx clijx = CLIJx.getInstance();
+        ClearCLBuffer image = clijx.push(ArrayImgs.floats(IMAGE, 2, 2, 2));
+        ClearCLBuffer matrix = clijx.create(new long[]{3, 3}, NativeTypeEnum.Float);
+        try {
+            GenerateIntegerGreyValueCooccurrenceCountMatrixHalfDiamond.generateIntegerGreyValueCooccurrenceCountMatrixHalfDiamond(clijx, image, matrix);
+            assertArrayEquals(HALF_DIAMOND, pull(matrix), 0);
+
+            GenerateIntegerGreyValueCooccurrenceCountMatrixHalfBox.generateIntegerGreyValueCooccurrenceCountMatrixHalfBox(clijx, image, matrix);
+            assertArrayEquals(HALF_BOX, pull(matrix), 0);
+        } finally {
+            IntegerGreyValueCooccurrenceCounter.count_on_device = formerCountOnDevice;
+            IntegerGreyValueCooccurrenceCounter.maximum_slab_size_in_bytes = formerSlabSize;
+            image.close();
+            matrix.close();
+        }
+    }
+
+    private static float[] pull(ClearCLBuffer matrix) {
+        float[] values = new float[(int) (matrix.getWidth() * matrix.getHeight())];
+        matrix.writeTo(FloatBuffer.wrap(values), true);
+        return values;
+    }
+}
@@ -2,6 +2,11 @@ package net.haesleinhuepf.clijx.plugins.tenengradfusion;
 
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clijx.CLIJx;
+import net.imglib2.img.array.ArrayImgs;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -22,4 +27,62 @@ public class AbstractTenengradFusionTest {
 
         assertTrue(clijx.sumOfAllPixels(buffer2) != 0);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testIncrementalFusionEqualsFixedViewKernels() {
+        for (int numberOfViews = 2; numberOfViews <= 4; numberOfViews++) {
+            testIncrementalFusionEqualsFixedViewKernels(numberOfViews, 1.0f);
+        }
+        testIncrementalFusionEqualsFixedViewKernels(3, 2.0f);
+    }
+
+    private void testIncrementalFusionEqualsFixedViewKernels(int numberOfViews, float exponent) {
+        int width = 32;
+        int height = 24;
+        int depth = 20;
+        float[] sigmas = {2, 2, 1.5f};
+
+        CLIJx clijx = CLIJx.getInstance();
+        Random random = new Random(numberOfViews);
+        ClearCLBuffer[] views = new ClearCLBuffer[numberOfViews];
+        for (int v = 0; v < numberOfViews; v++) {
+            // every view is sharp in another part of the stack
+            float[] pixels = new float[width * height * depth];
+            for (int i = 0; i < pixels.length; i++) {
+                int z = i / width / height;
+                float sharpness = 1.0f + (z * numberOfViews / depth == v ? 20 : 0);
+                pixels[i] = 100 + random.nextFloat() * sharpness;
+            }
+            views[v] = clijx.push(ArrayImgs.floats(pixels, width, height, depth));
+        }
+        ClearCLBuffer fixed = clijx.create(views[0]);
+        ClearCLBuffer incremental = clijx.create(views[0]);
+
+        boolean formerIncrementalFusion = AbstractTenengradFusion.incremental_fusion;
+        int formerSlabDepth = AbstractTenengradFusion.slab_depth;
+        try {
+            AbstractTenengradFusion.incremental_fusion = false;
+            AbstractTenengradFusion.slab_depth = 0;
+            AbstractTenengradFusion.tenengradFusion(clijx, fixed, sigmas, exponent, views);
+
+            // slabs thinner than their halo, and a last slab which is thinner than the others
+            AbstractTenengradFusion.slab_depth = 3;
+            AbstractTenengradFusion.tenengradFusion(clijx, incremental, sigmas, exponent, views);
+        } finally {
+            AbstractTenengradFusion.incremental_fusion = formerIncrementalFusion;
+            AbstractTenengradFusion.slab_depth = formerSlabDepth;
+        }
+
+        float[] expected = new float[width * height * depth];
+        float[] result = new float[width * height * depth];
+        fixed.writeTo(FloatBuffer.wrap(expected), true);
+        incremental.writeTo(FloatBuffer.wrap(result), true);
+        assertArrayEquals(numberOfViews + " views, exponent " + exponent, expected, result, 0.01f);
+
+        for (ClearCLBuffer view : views) {
+            view.close();
+        }
+        fixed.close();
+        incremental.close();
+    }
+}
@@ -0,0 +1,67 @@
+package net.haesleinhuepf.clijx.tilor;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.clij2wrappers.Mean3DBox;
+import net.haesleinhuepf.clijx.io.RawImageFile;
+import net.imglib2.img.array.ArrayImgs;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FileTilorTest {
+    @Test
+    public void testTileWiseEqualsInMemory() throws IOException {
+        int width = 37;
+        int height = 29;
+        int depth = 11;
+        float[] pixels = new float[width * height * depth];
+        Random random = new Random(3);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextFloat() * 100;
+        }
+
+        File inputFile = File.createTempFile("file_tilor_input", ".raw");
+        File outputFile = File.createTempFile("file_tilor_output", ".raw");
+        inputFile.deleteOnExit();
+        outputFile.deleteOnExit();
+        try (RandomAccessFile file = new RandomAccessFile(inputFile, "rw")) {
+            ByteBuffer bytes = ByteBuffer.allocate(pixels.length * 4).order(ByteOrder.nativeOrder());
+            bytes.asFloatBuffer().put(pixels);
+            file.write(bytes.array());
+        }
+
+        RawImageFile input = new RawImageFile(inputFile.getPath(), width, height, depth, NativeTypeEnum.Float);
+        RawImageFile output = RawImageFile.create(outputFile.getPath(), width, height, depth, NativeTypeEnum.Float);
+
+        // tiles don't divide the image evenly and margins are larger than the radius
+        new FileTilor(new Mean3DBox()).execute(new Object[]{input, output, 1, 1, 1}, 16, 16, 4, 2, 2, 2);
+
+        CLIJx clijx = CLIJx.getInstance();
+        ClearCLBuffer source = clijx.push(ArrayImgs.floats(pixels, width, height, depth));
+        ClearCLBuffer destination = clijx.create(source);
+        clijx.mean3DBox(source, destination, 1, 1, 1);
+        float[] expected = new float[pixels.length];
+        ByteBuffer expectedBytes = ByteBuffer.allocateDirect(pixels.length * 4).order(ByteOrder.nativeOrder());
+        destination.writeTo(expectedBytes, true);
+        expectedBytes.asFloatBuffer().get(expected);
+        source.close();
+        destination.close();
+
+        ByteBuffer resultBytes = ByteBuffer.allocateDirect(pixels.length * 4).order(ByteOrder.nativeOrder());
+        output.read(new long[]{0, 0, 0}, output.getDimensions(), resultBytes);
+        FloatBuffer result = resultBytes.asFloatBuffer();
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("at index " + i, expected[i], result.get(i), 0.001);
+        }
+    }
+}
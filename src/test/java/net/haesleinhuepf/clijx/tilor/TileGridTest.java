@@ -0,0 +1,66 @@
+package net.haesleinhuepf.clijx.tilor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TileGridTest {
+    @Test
+    public void testRemainderTiles() {
+        TileGrid grid = new TileGrid(new long[]{10, 7, 1}, new long[]{4, 4, 4}, new long[]{2, 2, 2});
+
+        assertEquals(3, grid.getNumberOfTilesX());
+        assertEquals(2, grid.getNumberOfTilesY());
+        assertEquals(1, grid.getNumberOfTilesZ());
+
+        // every voxel is covered exactly once by the tile cores
+        int[] coverage = new int[10 * 7];
+        for (int y = 0; y < grid.getNumberOfTilesY(); y++) {
+            for (int x = 0; x < grid.getNumberOfTilesX(); x++) {
+                TileGrid.Tile tile = grid.getTile(x, y, 0);
+                long[] origin = tile.getCoreOrigin();
+                long[] dimensions = tile.getCoreDimensions();
+                for (long j = origin[1]; j < origin[1] + dimensions[1]; j++) {
+                    for (long i = origin[0]; i < origin[0] + dimensions[0]; i++) {
+                        coverage[(int) (j * 10 + i)]++;
+                    }
+                }
+            }
+        }
+        for (int count : coverage) {
+            assertEquals(1, count);
+        }
+    }
+
+    @Test
+    public void testHaloClipping() {
+        TileGrid grid = new TileGrid(new long[]{10, 7, 1}, new long[]{4, 4, 4}, new long[]{2, 2, 2});
+
+        TileGrid.Tile first = grid.getTile(0, 0, 0);
+        assertArrayEquals(new long[]{0, 0, 0}, first.getOrigin());
+        assertArrayEquals(new long[]{6, 6, 1}, first.getDimensions());
+        assertArrayEquals(new long[]{0, 0, 0}, first.getCoreOffset());
+
+        TileGrid.Tile last = grid.getTile(2, 1, 0);
+        assertArrayEquals(new long[]{8, 4, 0}, last.getCoreOrigin());
+        assertArrayEquals(new long[]{2, 3, 1}, last.getCoreDimensions());
+        assertArrayEquals(new long[]{6, 2, 0}, last.getOrigin());
+        assertArrayEquals(new long[]{4, 5, 1}, last.getDimensions());
+        assertArrayEquals(new long[]{2, 2, 0}, last.getCoreOffset());
+    }
+
+    @Test
+    public void testDetermineTileDimensions() {
+        long[] imageDimensions = {2048, 2048, 700};
+        long[] margins = {5, 5, 5};
+        long bytesPerTile = 256L * 1024 * 1024;
+        long[] tileDimensions = TileGrid.determineTileDimensions(imageDimensions, margins, 4, bytesPerTile);
+
+        long voxels = 1;
+        for (int d = 0; d < 3; d++) {
+            assertTrue(tileDimensions[d] > 0);
+            voxels *= Math.min(imageDimensions[d], tileDimensions[d] + 2 * margins[d]);
+        }
+        assertTrue(voxels * 4 <= bytesPerTile);
+    }
+}
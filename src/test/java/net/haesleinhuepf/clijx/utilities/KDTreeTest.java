@@ -0,0 +1,144 @@
+package net.haesleinhuepf.clijx.utilities;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class KDTreeTest {
+    @Test
+    public void testNearest2D() {
+        testNearest(2, 200, new int[]{1, 3, 8, 50, 300});
+    }
+
+    @Test
+    public void testNearest3D() {
+        testNearest(3, 150, new int[]{1, 6, 20});
+    }
+
+    @Test
+    public void testWithinDistance2D() {
+        testWithinDistance(2, 200, new float[]{0, 5, 12, 200});
+    }
+
+    @Test
+    public void testWithinDistance3D() {
+        testWithinDistance(3, 150, new float[]{3, 15, 40});
+    }
+
+    @Test
+    public void testNoNeighborsRequested() {
+        KDTree tree = new KDTree(randomPoints(2, 50, new Random(1)), 2);
+        assertEquals(0, tree.nearest(3, 0, new int[0], new float[0]));
+        assertEquals(0, tree.nearest(3, -2, new int[0], null));
+    }
+
+    private void testNearest(int dimension, int numberOfPoints, int[] ns) {
+        float[] points = randomPoints(dimension, numberOfPoints, new Random(dimension));
+        KDTree tree = new KDTree(points, dimension);
+        for (int n : ns) {
+            int[] neighbors = new int[n];
+            float[] distances = new float[n];
+            for (int i = 0; i < numberOfPoints; i++) {
+                if (isNaN(points, dimension, i)) {
+                    continue;
+                }
+                ArrayList<Integer> expected = bruteForceByDistance(points, dimension, i);
+                int count = tree.nearest(i, n, neighbors, distances);
+                assertEquals("count of point " + i, Math.min(n, expected.size()), count);
+                for (int k = 0; k < count; k++) {
+                    // neighbors at equal distances may come in any order
+                    assertEquals("neighbor " + k + " of point " + i, distance(points, dimension, i, expected.get(k)), distances[k], 0.0001);
+                    assertEquals(distance(points, dimension, i, neighbors[k]), distances[k], 0.0001);
+                    assertTrue(i != neighbors[k]);
+                    assertFalse(isNaN(points, dimension, neighbors[k]));
+                }
+                assertEquals("neighbors are reported once", count, distinct(neighbors, count));
+            }
+        }
+    }
+
+    private void testWithinDistance(int dimension, int numberOfPoints, float[] maxDistances) {
+        float[] points = randomPoints(dimension, numberOfPoints, new Random(dimension + 10));
+        KDTree tree = new KDTree(points, dimension);
+        for (float maxDistance : maxDistances) {
+            for (int i = 0; i < numberOfPoints; i++) {
+                if (isNaN(points, dimension, i)) {
+                    continue;
+                }
+                TreeSet<Integer> expected = new TreeSet<>();
+                for (int j : bruteForceByDistance(points, dimension, i)) {
+                    if (squaredDistance(points, dimension, i, j) <= maxDistance * maxDistance) {
+                        expected.add(j);
+                    }
+                }
+                ArrayList<Integer> found = new ArrayList<>();
+                tree.withinDistance(i, maxDistance, found::add);
+                assertEquals("points are reported once", expected.size(), found.size());
+                assertEquals("neighbors of point " + i, expected, new TreeSet<>(found));
+            }
+        }
+    }
+
+    private static float[] randomPoints(int dimension, int numberOfPoints, Random random) {
+        float[] points = new float[dimension * numberOfPoints];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random.nextInt(100) + random.nextFloat();
+        }
+        // the first entry is NaN like the background of a centroid list, some more are sprinkled in
+        for (int i = 0; i < numberOfPoints; i += 17) {
+            points[i * dimension + random.nextInt(dimension)] = Float.NaN;
+        }
+        return points;
+    }
+
+    private static ArrayList<Integer> bruteForceByDistance(float[] points, int dimension, int point) {
+        ArrayList<Integer> others = new ArrayList<>();
+        for (int j = 0; j < points.length / dimension; j++) {
+            if (j != point && !isNaN(points, dimension, j)) {
+                others.add(j);
+            }
+        }
+        others.sort((a, b) -> Double.compare(distance(points, dimension, point, a), distance(points, dimension, point, b)));
+        return others;
+    }
+
+    private static int distinct(int[] values, int count) {
+        TreeSet<Integer> set = new TreeSet<>();
+        for (int k = 0; k < count; k++) {
+            set.add(values[k]);
+        }
+        return set.size();
+    }
+
+    // computed like the tree does, so that points right at the maximum distance are classified alike
+    private static float squaredDistance(float[] points, int dimension, int a, int b) {
+        float sum = 0;
+        for (int d = 0; d < dimension; d++) {
+            float difference = points[a * dimension + d] - points[b * dimension + d];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    private static double distance(float[] points, int dimension, int a, int b) {
+        double sum = 0;
+        for (int d = 0; d < dimension; d++) {
+            double difference = points[a * dimension + d] - points[b * dimension + d];
+            sum += difference * difference;
+        }
+        return Math.sqrt(sum);
+    }
+
+    private static boolean isNaN(float[] points, int dimension, int point) {
+        for (int d = 0; d < dimension; d++) {
+            if (Float.isNaN(points[point * dimension + d])) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
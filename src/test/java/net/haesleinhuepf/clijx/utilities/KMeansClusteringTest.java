@@ -0,0 +1,132 @@
+package net.haesleinhuepf.clijx.utilities;
+
+import ij.measure.ResultsTable;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.plugins.KMeansLabelClusterer;
+import net.imglib2.img.array.ArrayImgs;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KMeansClusteringTest {
+    private static final int NUMBER_OF_FEATURES = 2;
+    private static final double[][] CLUSTER_CENTERS = {{0, 0}, {100, 0}, {0, 100}};
+
+    @Test
+    public void testLloydSeparatesClusters() {
+        testSeparatesClusters(150);
+    }
+
+    @Test
+    public void testMiniBatchSeparatesClusters() {
+        testSeparatesClusters(3 * KMeansClustering.mini_batch_size);
+    }
+
+    private void testSeparatesClusters(int numberOfSamples) {
+        float[] features = separableFeatures(numberOfSamples);
+        KMeansClustering model = KMeansClustering.train(features, numberOfSamples, CLUSTER_CENTERS.length, 0);
+        int[] classes = model.predict(features, numberOfSamples);
+
+        // every cluster gets a class of its own
+        int[] classOfCluster = new int[CLUSTER_CENTERS.length];
+        for (int i = 0; i < numberOfSamples; i++) {
+            int cluster = i % CLUSTER_CENTERS.length;
+            if (i < CLUSTER_CENTERS.length) {
+                classOfCluster[cluster] = classes[i];
+            }
+            assertEquals("sample " + i, classOfCluster[cluster], classes[i]);
+        }
+        assertTrue(classOfCluster[0] != classOfCluster[1]);
+        assertTrue(classOfCluster[0] != classOfCluster[2]);
+        assertTrue(classOfCluster[1] != classOfCluster[2]);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        KMeansClustering model = new KMeansClustering(new double[]{0.1, -2.5, 3e10, 4, Math.PI, -0.0}, 3, NUMBER_OF_FEATURES);
+        File file = File.createTempFile("kmeans", ".model");
+        file.deleteOnExit();
+        model.save(file.getPath());
+
+        KMeansClustering loaded = KMeansClustering.load(file.getPath());
+        assertEquals(3, loaded.getNumberOfClusters());
+        assertEquals(NUMBER_OF_FEATURES, loaded.getNumberOfFeatures());
+        assertArrayEquals(model.getCenters(), loaded.getCenters(), 0);
+    }
+
+    @Test
+    public void testLoadLegacyCSV() throws IOException {
+        // written like former versions did: one row per center, one column per feature
+        double[][] centers = {{1.5, 2}, {-3, 4.25}, {5, 6}};
+        ResultsTable table = new ResultsTable();
+        for (int k = 0; k < centers.length; k++) {
+            for (int f = 0; f < NUMBER_OF_FEATURES; f++) {
+                table.setValue(f, k, centers[k][f]);
+            }
+        }
+        File file = File.createTempFile("kmeans", ".csv");
+        file.deleteOnExit();
+        table.save(file.getPath());
+
+        KMeansClustering loaded = KMeansClustering.load(file.getPath());
+        assertEquals(centers.length, loaded.getNumberOfClusters());
+        assertEquals(NUMBER_OF_FEATURES, loaded.getNumberOfFeatures());
+        for (int k = 0; k < centers.length; k++) {
+            for (int f = 0; f < NUMBER_OF_FEATURES; f++) {
+                assertEquals(centers[k][f], loaded.getCenters()[k * NUMBER_OF_FEATURES + f], 0.0001);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTrainWithoutSamples() {
+        KMeansClustering.train(new float[0], 0, 3, 0);
+    }
+
+    @Test
+    public void testPredictionOnDeviceEqualsCPU() {
+        int numberOfSamples = 500;
+        float[] features = new float[numberOfSamples * NUMBER_OF_FEATURES];
+        Random random = new Random(2);
+        for (int i = 0; i < features.length; i++) {
+            features[i] = random.nextFloat() * 100;
+        }
+        KMeansClustering model = KMeansClustering.train(features, numberOfSamples, 4, 0);
+        int[] expected = model.predict(features, numberOfSamples);
+
+        CLIJx clijx = CLIJx.getInstance();
+        ClearCLBuffer featureImage = clijx.push(ArrayImgs.floats(features, numberOfSamples, NUMBER_OF_FEATURES));
+        ClearCLBuffer classes = clijx.create(new long[]{numberOfSamples + 1, 1, 1}, NativeTypeEnum.Float);
+        clijx.set(classes, 0);
+        KMeansLabelClusterer.predictKMeansClustering(clijx, model, featureImage, classes);
+        float[] result = new float[numberOfSamples + 1];
+        classes.writeTo(FloatBuffer.wrap(result), true);
+        featureImage.close();
+        classes.close();
+
+        assertEquals("background", 0, result[0], 0);
+        for (int i = 0; i < numberOfSamples; i++) {
+            assertEquals("sample " + i, expected[i], result[i + 1], 0);
+        }
+    }
+
+    // feature-major, sample i belongs to cluster i % 3
+    private static float[] separableFeatures(int numberOfSamples) {
+        float[] features = new float[numberOfSamples * NUMBER_OF_FEATURES];
+        Random random = new Random(1);
+        for (int i = 0; i < numberOfSamples; i++) {
+            double[] center = CLUSTER_CENTERS[i % CLUSTER_CENTERS.length];
+            for (int f = 0; f < NUMBER_OF_FEATURES; f++) {
+                features[f * numberOfSamples + i] = (float) (center[f] + random.nextGaussian() * 5);
+            }
+        }
+        return features;
+    }
+}
@@ -0,0 +1,97 @@
+package net.haesleinhuepf.clijx.utilities;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class MaxTreeTest {
+    private static final int[] MINIMUM_AREAS = {1, 2, 3, 5, 10, 40, 1000};
+
+    @Test
+    public void testAreaOpening2D() {
+        for (int seed = 0; seed < 10; seed++) {
+            testAreaOpening(12, 10, 1, seed);
+        }
+    }
+
+    @Test
+    public void testAreaOpening3D() {
+        for (int seed = 0; seed < 10; seed++) {
+            testAreaOpening(6, 5, 4, seed);
+        }
+    }
+
+    private void testAreaOpening(int width, int height, int depth, int seed) {
+        // few grey levels, so that there are plateaus
+        Random random = new Random(seed);
+        float[] values = new float[width * height * depth];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(6) - 2;
+        }
+        MaxTree tree = new MaxTree(values, width, height, depth);
+        for (int minimumArea : MINIMUM_AREAS) {
+            float[] expected = bruteForceAreaOpening(values, width, height, depth, minimumArea);
+            float[] result = tree.filter(MaxTree.Attribute.AREA, minimumArea);
+            assertArrayEquals("seed " + seed + ", minimum area " + minimumArea, expected, result, 0);
+        }
+    }
+
+    /**
+     * Every pixel gets the highest grey level at which its connected component of pixels above or equal that level
+     * has the minimum area; the lowest grey level of the image is always kept.
+     */
+    private static float[] bruteForceAreaOpening(float[] values, int width, int height, int depth, int minimumArea) {
+        TreeSet<Float> levels = new TreeSet<>();
+        for (float value : values) {
+            levels.add(value);
+        }
+        float[] result = new float[values.length];
+        for (int p = 0; p < values.length; p++) {
+            result[p] = levels.first();
+            for (float level : levels) {
+                if (level > values[p]) {
+                    break;
+                }
+                if (componentArea(values, width, height, depth, p, level) >= minimumArea) {
+                    result[p] = level;
+                }
+            }
+        }
+        return result;
+    }
+
+    // flood fill in the box neighborhood
+    private static int componentArea(float[] values, int width, int height, int depth, int start, float level) {
+        boolean[] visited = new boolean[values.length];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        visited[start] = true;
+        queue.add(start);
+        int area = 0;
+        while (!queue.isEmpty()) {
+            int p = queue.poll();
+            area++;
+            int x = p % width;
+            int y = (p / width) % height;
+            int z = p / width / height;
+            for (int dz = -1; dz <= 1; dz++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        if (x + dx < 0 || x + dx >= width || y + dy < 0 || y + dy >= height || z + dz < 0 || z + dz >= depth) {
+                            continue;
+                        }
+                        int n = p + dx + (dy + dz * height) * width;
+                        if (!visited[n] && values[n] >= level) {
+                            visited[n] = true;
+                            queue.add(n);
+                        }
+                    }
+                }
+            }
+        }
+        return area;
+    }
+}
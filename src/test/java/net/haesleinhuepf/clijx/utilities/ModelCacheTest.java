@@ -0,0 +1,145 @@
+package net.haesleinhuepf.clijx.utilities;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ModelCacheTest {
+    private int formerMaximumNumberOfModels;
+
+    @Before
+    public void setUp() {
+        formerMaximumNumberOfModels = ModelCache.maximum_number_of_models;
+        ModelCache.clear();
+        ModelCache.resetStatistics();
+    }
+
+    @After
+    public void tearDown() {
+        ModelCache.maximum_number_of_models = formerMaximumNumberOfModels;
+        ModelCache.clear();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedModelIsEvicted() throws IOException {
+        ModelCache.maximum_number_of_models = 2;
+        String a = modelFile("a");
+        String b = modelFile("b");
+        String c = modelFile("c");
+        AtomicInteger loads = new AtomicInteger();
+        ModelCache.Loader<String> loader = filename -> {
+            loads.incrementAndGet();
+            return filename;
+        };
+
+        ModelCache.get(a, null, loader);
+        ModelCache.get(b, null, loader);
+        // a becomes the most recently used model, hence b is dropped for c
+        ModelCache.get(a, null, loader);
+        ModelCache.get(c, null, loader);
+        assertEquals(3, loads.get());
+
+        ModelCache.get(a, null, loader);
+        ModelCache.get(c, null, loader);
+        assertEquals(3, loads.get());
+        ModelCache.get(b, null, loader);
+        assertEquals(4, loads.get());
+        assertEquals(3, ModelCache.getNumberOfHits());
+        assertEquals(4, ModelCache.getNumberOfMisses());
+    }
+
+    @Test
+    public void testConcurrentRequestsLoadOnce() throws Exception {
+        String filename = modelFile("concurrent");
+        int numberOfThreads = 8;
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch requested = new CountDownLatch(numberOfThreads);
+        ModelCache.Loader<Object> loader = name -> {
+            loads.incrementAndGet();
+            try {
+                // the other threads ask for the model while it is loading
+                requested.await(1, TimeUnit.SECONDS);
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new Object();
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        try {
+            ArrayList<Future<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < numberOfThreads; i++) {
+                futures.add(executor.submit((Callable<Object>) () -> {
+                    requested.countDown();
+                    return ModelCache.get(filename, null, loader);
+                }));
+            }
+            Object model = futures.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<Object> future : futures) {
+                assertSame(model, future.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testChangedFileIsLoadedAgain() throws IOException {
+        File file = new File(modelFile("changed"));
+        AtomicInteger loads = new AtomicInteger();
+        ModelCache.Loader<Integer> loader = filename -> loads.incrementAndGet();
+
+        assertEquals(1, (int) ModelCache.get(file.getPath(), null, loader));
+        assertEquals(1, (int) ModelCache.get(file.getPath(), null, loader));
+
+        // same size, other modification time
+        assertTrue(file.setLastModified(file.lastModified() - 60000));
+        assertEquals(2, (int) ModelCache.get(file.getPath(), null, loader));
+
+        // same modification time, other size
+        long lastModified = file.lastModified();
+        try (FileWriter writer = new FileWriter(file, true)) {
+            writer.write("more");
+        }
+        assertTrue(file.setLastModified(lastModified));
+        assertEquals(3, (int) ModelCache.get(file.getPath(), null, loader));
+        assertEquals(3, (int) ModelCache.get(file.getPath(), null, loader));
+    }
+
+    @Test
+    public void testModelsArePerContext() throws IOException {
+        String filename = modelFile("context");
+        Object context = new Object();
+        AtomicInteger loads = new AtomicInteger();
+        ModelCache.Loader<Integer> loader = name -> loads.incrementAndGet();
+
+        assertEquals(1, (int) ModelCache.get(filename, null, loader));
+        assertEquals(2, (int) ModelCache.get(filename, context, loader));
+        assertEquals(1, (int) ModelCache.get(filename, null, loader));
+    }
+
+    private static String modelFile(String content) throws IOException {
+        File file = File.createTempFile("model_cache", ".model");
+        file.deleteOnExit();
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+        return file.getPath();
+    }
+}
@@ -0,0 +1,71 @@
+package net.haesleinhuepf.clijx.utilities;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PhaseCorrelationTest {
+    @Test
+    public void testIntegerShift2D() {
+        int width = 64;
+        int height = 64;
+        float[] image1 = blobs(width, height, 1, 0, 0, 0);
+        float[] image2 = blobs(width, height, 1, 5, -3, 0);
+
+        double[] shift = PhaseCorrelation.shift(image1, image2, width, height, 1);
+
+        assertEquals(5, shift[0], 0.2);
+        assertEquals(-3, shift[1], 0.2);
+        assertEquals(0, shift[2], 0.0);
+    }
+
+    @Test
+    public void testSubpixelShift3D() {
+        int width = 48;
+        int height = 48;
+        int depth = 24;
+        float[] image1 = blobs(width, height, depth, 0, 0, 0);
+        float[] image2 = blobs(width, height, depth, 2.5, 1, -1.5);
+
+        double[] shift = PhaseCorrelation.shift(image1, image2, width, height, depth);
+
+        assertEquals(2.5, shift[0], 0.2);
+        assertEquals(1, shift[1], 0.2);
+        assertEquals(-1.5, shift[2], 0.2);
+    }
+
+    @Test
+    public void testMaximumShift() {
+        int width = 32;
+        int height = 32;
+        float[] image1 = blobs(width, height, 1, 0, 0, 0);
+        float[] image2 = blobs(width, height, 1, 6, 0, 0);
+
+        PhaseCorrelation correlation = new PhaseCorrelation(width, height, 1);
+        double[] shift = correlation.shift(image1, image2, width, height, 1, 0, 0, 0, new int[]{3, 3, 0});
+
+        assertTrue(Math.abs(shift[0]) <= 3.5);
+    }
+
+    // gaussian blobs at random positions, also outside the image, moved by the given shift
+    private static float[] blobs(int width, int height, int depth, double shiftX, double shiftY, double shiftZ) {
+        Random random = new Random(7);
+        float[] image = new float[width * height * depth];
+        for (int b = 0; b < 2 * depth + 60; b++) {
+            double cx = random.nextDouble() * (width + 10) - 5 + shiftX;
+            double cy = random.nextDouble() * (height + 10) - 5 + shiftY;
+            double cz = random.nextDouble() * (depth + 10) - 5 + shiftZ;
+            for (int z = 0; z < depth; z++) {
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        double squaredDistance = (x - cx) * (x - cx) + (y - cy) * (y - cy) + (depth > 1 ? (z - cz) * (z - cz) : 0);
+                        image[(z * height + y) * width + x] += (float) Math.exp(-squaredDistance / 4);
+                    }
+                }
+            }
+        }
+        return image;
+    }
+}
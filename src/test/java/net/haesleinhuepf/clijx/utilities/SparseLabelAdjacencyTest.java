@@ -0,0 +1,242 @@
+package net.haesleinhuepf.clijx.utilities;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.plugins.AverageDistanceOfNClosestNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.LocalMaximumTouchingNeighborCountMap;
+import net.haesleinhuepf.clijx.plugins.LocalMeanTouchingNeighborCountMap;
+import net.haesleinhuepf.clijx.plugins.LocalMinimumTouchingNeighborCountMap;
+import net.haesleinhuepf.clijx.plugins.LocalStandardDeviationTouchingNeighborCountMap;
+import net.haesleinhuepf.clijx.plugins.MaximumOfNNearestNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.MaximumOfProximalNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.MaximumOfTouchingNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.MeanOfNNearestNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.MeanOfProximalNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.MeanOfTouchingNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.MergeTouchingLabels;
+import net.haesleinhuepf.clijx.plugins.MinimumOfNNearestNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.MinimumOfProximalNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.MinimumOfTouchingNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.ModeOfNNearestNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.ModeOfProximalNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.ModeOfTouchingNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.StandardDeviationOfNNearestNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.StandardDeviationOfProximalNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.StandardDeviationOfTouchingNeighborsMap;
+import net.haesleinhuepf.clijx.plugins.TouchingNeighborCountMap;
+import net.imglib2.img.array.ArrayImgs;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SparseLabelAdjacencyTest {
+    private static final int WIDTH = 26;
+    private static final int HEIGHT = 22;
+
+    private interface NeighborMap {
+        void apply(CLIJ2 clij2, ClearCLBuffer parametric_map, ClearCLBuffer label_map, ClearCLBuffer destination);
+    }
+
+    @Test
+    public void testTouchingNeighborsMaps() {
+        for (int radius = 1; radius <= 2; radius++) {
+            for (boolean ignore_background : new boolean[]{false, true}) {
+                final int r = radius;
+                final boolean b = ignore_background;
+                assertSparseEqualsDense((clij2, values, labels, destination) -> MinimumOfTouchingNeighborsMap.minimumOfTouchingNeighborsMap(clij2, values, labels, destination, r, b));
+                assertSparseEqualsDense((clij2, values, labels, destination) -> MaximumOfTouchingNeighborsMap.maximumOfTouchingNeighborsMap(clij2, values, labels, destination, r, b));
+                assertSparseEqualsDense((clij2, values, labels, destination) -> MeanOfTouchingNeighborsMap.meanOfTouchingNeighborsMap(clij2, values, labels, destination, r, b));
+                assertSparseEqualsDense((clij2, values, labels, destination) -> StandardDeviationOfTouchingNeighborsMap.standardDeviationOfTouchingNeighborsMap(clij2, values, labels, destination, r, b));
+                assertSparseEqualsDense((clij2, values, labels, destination) -> ModeOfTouchingNeighborsMap.modeOfTouchingNeighborsMap(clij2, values, labels, destination, r, b));
+            }
+        }
+    }
+
+    @Test
+    public void testTouchingNeighborCountMaps() {
+        assertSparseEqualsDense((clij2, values, labels, destination) -> LocalMinimumTouchingNeighborCountMap.localMinimumTouchingNeighborCountMap(clij2, labels, destination));
+        assertSparseEqualsDense((clij2, values, labels, destination) -> LocalMaximumTouchingNeighborCountMap.localMaximumTouchingNeighborCountMap(clij2, labels, destination));
+        assertSparseEqualsDense((clij2, values, labels, destination) -> LocalMeanTouchingNeighborCountMap.localMeanTouchingNeighborCountMap(clij2, labels, destination));
+        assertSparseEqualsDense((clij2, values, labels, destination) -> LocalStandardDeviationTouchingNeighborCountMap.localStandardDeviationTouchingNeighborCountMap(clij2, labels, destination));
+    }
+
+    @Test
+    public void testTouchingNeighborCountMap() {
+        assertSparseEqualsDense((clij2, values, labels, destination) -> TouchingNeighborCountMap.touchingNeighborCountMap(clij2, labels, destination));
+    }
+
+    @Test
+    public void testMergeTouchingLabels() {
+        assertSparseEqualsDense((clij2, values, labels, destination) -> MergeTouchingLabels.mergeTouchingLabels(clij2, labels, destination));
+    }
+
+    @Test
+    public void testProximalNeighborsMaps() {
+        float[][] distanceRanges = {{0, 8}, {6, 14}, {0, 1000}};
+        for (float[] range : distanceRanges) {
+            final float min = range[0];
+            final float max = range[1];
+            assertSparseEqualsDense(scatteredLabelMap(), (clij2, values, labels, destination) -> MinimumOfProximalNeighborsMap.minimumOfProximalNeighborsMap(clij2, values, labels, destination, min, max));
+            assertSparseEqualsDense(scatteredLabelMap(), (clij2, values, labels, destination) -> MaximumOfProximalNeighborsMap.maximumOfProximalNeighborsMap(clij2, values, labels, destination, min, max));
+            assertSparseEqualsDense(scatteredLabelMap(), (clij2, values, labels, destination) -> MeanOfProximalNeighborsMap.meanOfProximalNeighborsMap(clij2, values, labels, destination, min, max));
+            assertSparseEqualsDense(scatteredLabelMap(), (clij2, values, labels, destination) -> StandardDeviationOfProximalNeighborsMap.standardDeviationOfProximalNeighborsMap(clij2, values, labels, destination, min, max));
+            assertSparseEqualsDense(scatteredLabelMap(), (clij2, values, labels, destination) -> ModeOfProximalNeighborsMap.modeOfProximalNeighborsMap(clij2, values, labels, destination, min, max));
+        }
+    }
+
+    @Test
+    public void testNNearestNeighborsMaps() {
+        for (int n = 1; n <= 3; n++) {
+            final int k = n;
+            assertSparseEqualsDense(scatteredLabelMap(), (clij2, values, labels, destination) -> MinimumOfNNearestNeighborsMap.minimumOfNNearestNeighborsMap(clij2, values, labels, destination, k));
+            assertSparseEqualsDense(scatteredLabelMap(), (clij2, values, labels, destination) -> MaximumOfNNearestNeighborsMap.maximumOfNNearestNeighborsMap(clij2, values, labels, destination, k));
+            assertSparseEqualsDense(scatteredLabelMap(), (clij2, values, labels, destination) -> MeanOfNNearestNeighborsMap.meanOfNNearestNeighborsMap(clij2, values, labels, destination, k));
+            assertSparseEqualsDense(scatteredLabelMap(), (clij2, values, labels, destination) -> StandardDeviationOfNNearestNeighborsMap.standardDeviationOfNNearestNeighborsMap(clij2, values, labels, destination, k));
+            assertSparseEqualsDense(scatteredLabelMap(), (clij2, values, labels, destination) -> ModeOfNNearestNeighborsMap.modeOfNNearestNeighborsMap(clij2, values, labels, destination, k));
+        }
+    }
+
+    @Test
+    public void testAverageDistanceOfNClosestNeighborsMap() {
+        for (int n = 1; n <= 3; n++) {
+            final int k = n;
+            assertSparseEqualsDense(scatteredLabelMap(), (clij2, values, labels, destination) -> AverageDistanceOfNClosestNeighborsMap.averageDistanceOfNClosestNeighborsMap(clij2, labels, destination, k));
+        }
+    }
+
+    @Test
+    public void testMedian() {
+        // compared on vectors; LocalMedianTouchingNeighborCountMap's dense vector lacks the last label
+        CLIJx clijx = CLIJx.getInstance();
+        ClearCLBuffer labels = clijx.push(ArrayImgs.floats(labelMap(), WIDTH, HEIGHT));
+        int number_of_labels = (int) clijx.maximumOfAllPixels(labels);
+
+        ClearCLBuffer touch_matrix = clijx.create(new long[]{number_of_labels + 1, number_of_labels + 1}, NativeTypeEnum.Float);
+        clijx.generateTouchMatrix(labels, touch_matrix);
+        float[] values = new float[number_of_labels + 1];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = value(i);
+        }
+        ClearCLBuffer values_vector = clijx.create(new long[]{values.length, 1, 1}, NativeTypeEnum.Float);
+        values_vector.readFrom(FloatBuffer.wrap(values), true);
+        ClearCLBuffer median_vector = clijx.create(values_vector);
+        clijx.medianOfTouchingNeighbors(values_vector, touch_matrix, median_vector);
+        float[] dense = SparseLabelAdjacency.pullVector(median_vector);
+
+        float[] sparse = SparseLabelAdjacency.fromTouchingLabels(clijx, labels, number_of_labels).reduce(values, SparseLabelAdjacency.Reduction.MEDIAN);
+
+        // the background is never reported
+        for (int i = 1; i < values.length; i++) {
+            assertEquals("label " + i, dense[i], sparse[i], 0.0001);
+        }
+
+        labels.close();
+        touch_matrix.close();
+        values_vector.close();
+        median_vector.close();
+    }
+
+    private void assertSparseEqualsDense(NeighborMap neighborMap) {
+        assertSparseEqualsDense(labelMap(), neighborMap);
+    }
+
+    private void assertSparseEqualsDense(float[] labelPixels, NeighborMap neighborMap) {
+        CLIJx clijx = CLIJx.getInstance();
+        float[] valuePixels = new float[labelPixels.length];
+        for (int i = 0; i < labelPixels.length; i++) {
+            valuePixels[i] = labelPixels[i] > 0 ? value((int) labelPixels[i]) : 0;
+        }
+        ClearCLBuffer labels = clijx.push(ArrayImgs.floats(labelPixels, WIDTH, HEIGHT));
+        ClearCLBuffer values = clijx.push(ArrayImgs.floats(valuePixels, WIDTH, HEIGHT));
+        ClearCLBuffer dense = clijx.create(labels.getDimensions(), NativeTypeEnum.Float);
+        ClearCLBuffer sparse = clijx.create(labels.getDimensions(), NativeTypeEnum.Float);
+
+        int formerThreshold = SparseLabelAdjacency.label_count_threshold;
+        try {
+            SparseLabelAdjacency.label_count_threshold = Integer.MAX_VALUE;
+            neighborMap.apply(clijx, values, labels, dense);
+            SparseLabelAdjacency.label_count_threshold = 1;
+            neighborMap.apply(clijx, values, labels, sparse);
+        } finally {
+            SparseLabelAdjacency.label_count_threshold = formerThreshold;
+        }
+
+        float[] densePixels = new float[labelPixels.length];
+        float[] sparsePixels = new float[labelPixels.length];
+        dense.writeTo(FloatBuffer.wrap(densePixels), true);
+        sparse.writeTo(FloatBuffer.wrap(sparsePixels), true);
+        assertArrayEquals(densePixels, sparsePixels, 0.0001f);
+
+        labels.close();
+        values.close();
+        dense.close();
+        sparse.close();
+    }
+
+    // small integers so that the mode has ties and medians of even counts differ from the upper median
+    private static float value(int label) {
+        return (label * 5) % 7 + 1;
+    }
+
+    /**
+     * Bricks of 6 x 5 pixels, every other row shifted by half a brick, inside a background frame of one pixel.
+     * Labels only touch diagonally where they touch along an edge as well.
+     */
+    private static float[] labelMap() {
+        float[] pixels = new float[WIDTH * HEIGHT];
+        int[] firstLabelOfRow = {1, 5, 10, 14};
+        for (int y = 1; y < HEIGHT - 1; y++) {
+            int row = (y - 1) / 5;
+            int shift = row % 2 == 1 ? 3 : 0;
+            for (int x = 1; x < WIDTH - 1; x++) {
+                pixels[y * WIDTH + x] = firstLabelOfRow[row] + (x - 1 + shift) / 6;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Squares of 2 x 2 pixels which don't touch, placed so that no two pairs of centroids have the same distance;
+     * nearest neighbors are then the same no matter how ties would be resolved.
+     */
+    private static float[] scatteredLabelMap() {
+        Random random = new Random(3);
+        ArrayList<int[]> corners = new ArrayList<>();
+        HashSet<Integer> squaredDistances = new HashSet<>();
+        for (int attempt = 0; attempt < 10000 && corners.size() < 12; attempt++) {
+            int[] corner = {1 + random.nextInt(WIDTH - 3), 1 + random.nextInt(HEIGHT - 3)};
+            HashSet<Integer> newSquaredDistances = new HashSet<>();
+            boolean valid = true;
+            for (int[] other : corners) {
+                int dx = corner[0] - other[0];
+                int dy = corner[1] - other[1];
+                int squaredDistance = dx * dx + dy * dy;
+                if ((Math.abs(dx) < 3 && Math.abs(dy) < 3) || squaredDistances.contains(squaredDistance) || !newSquaredDistances.add(squaredDistance)) {
+                    valid = false;
+                    break;
+                }
+            }
+            if (valid) {
+                corners.add(corner);
+                squaredDistances.addAll(newSquaredDistances);
+            }
+        }
+        float[] pixels = new float[WIDTH * HEIGHT];
+        for (int label = 1; label <= corners.size(); label++) {
+            int[] corner = corners.get(label - 1);
+            for (int y = corner[1]; y < corner[1] + 2; y++) {
+                for (int x = corner[0]; x < corner[0] + 2; x++) {
+                    pixels[y * WIDTH + x] = label;
+                }
+            }
+        }
+        return pixels;
+    }
+}